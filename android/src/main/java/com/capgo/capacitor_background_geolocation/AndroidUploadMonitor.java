@@ -0,0 +1,117 @@
+package com.capgo.capacitor_background_geolocation;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.BatteryManager;
+import androidx.core.content.ContextCompat;
+import com.getcapacitor.Logger;
+
+// UploadPolicy.Monitor backed by the default network callback of
+// ConnectivityManager and the power connected/disconnected broadcasts.
+final class AndroidUploadMonitor implements UploadPolicy.Monitor {
+
+    private final Context context;
+    private final ConnectivityManager connectivityManager;
+    private volatile boolean connected;
+    private volatile boolean metered;
+    private volatile boolean charging;
+    private volatile Runnable listener;
+    private boolean registered;
+
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            update(capabilities);
+        }
+
+        @Override
+        public void onLost(Network network) {
+            connected = false;
+            notifyListener();
+        }
+    };
+
+    private final BroadcastReceiver powerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            charging = Intent.ACTION_POWER_CONNECTED.equals(intent.getAction());
+            notifyListener();
+        }
+    };
+
+    AndroidUploadMonitor(Context context) {
+        this.context = context.getApplicationContext();
+        this.connectivityManager = (ConnectivityManager) this.context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        readInitialState();
+        try {
+            if (connectivityManager != null) {
+                connectivityManager.registerDefaultNetworkCallback(networkCallback);
+            }
+            IntentFilter filter = new IntentFilter();
+            filter.addAction(Intent.ACTION_POWER_CONNECTED);
+            filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+            ContextCompat.registerReceiver(this.context, powerReceiver, filter, ContextCompat.RECEIVER_NOT_EXPORTED);
+            registered = true;
+        } catch (RuntimeException exception) {
+            // Without callbacks the last known state is kept; uploads behave as
+            // before instead of waiting forever.
+            Logger.error("Could not watch network state for native uploads", exception);
+            connected = true;
+        }
+    }
+
+    @Override
+    public UploadPolicy.Conditions current() {
+        return new UploadPolicy.Conditions(connected, metered, charging);
+    }
+
+    @Override
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!registered) {
+            return;
+        }
+        registered = false;
+        try {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+            context.unregisterReceiver(powerReceiver);
+        } catch (RuntimeException exception) {
+            Logger.error("Could not stop watching network state", exception);
+        }
+    }
+
+    private void readInitialState() {
+        if (connectivityManager != null) {
+            Network network = connectivityManager.getActiveNetwork();
+            NetworkCapabilities capabilities = network == null ? null : connectivityManager.getNetworkCapabilities(network);
+            connected = capabilities != null && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+            metered = capabilities == null || !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        } else {
+            connected = true;
+        }
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        charging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void update(NetworkCapabilities capabilities) {
+        connected = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
+        metered = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        Runnable listener = this.listener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+}
@@ -33,7 +33,10 @@ import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingClient;
 import com.google.android.gms.location.GeofencingRequest;
 import com.google.android.gms.location.LocationServices;
+import java.io.File;
+import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -63,6 +66,9 @@ public class BackgroundGeolocation extends Plugin {
     private CompletableFuture<Void> geofencePermissionFuture;
     private BroadcastReceiver serviceReceiver;
     private BroadcastReceiver geofenceEventReceiver;
+    private BroadcastReceiver routeEventReceiver;
+    private final LocationSerializer.Sample bridgeSample = new LocationSerializer.Sample();
+    private final JSObjectFieldSink bridgeSink = new JSObjectFieldSink();
 
     private void fetchLastLocation(PluginCall call) {
         try {
@@ -88,6 +94,19 @@ public class BackgroundGeolocation extends Plugin {
             return;
         }
 
+        String optionsError = DeliveryOptions.validate(call.getData());
+        if (optionsError != null) {
+            call.reject(optionsError);
+            return;
+        }
+
+        try {
+            SinkConfig.parseAll(sinksJsonFromCall(call));
+        } catch (JSONException exception) {
+            call.reject(exception.getMessage());
+            return;
+        }
+
         if (getPermissionState("location") != PermissionState.GRANTED && call.getBoolean("requestPermissions", true)) {
             call.setKeepAlive(true);
             requestLocationPermissions(call)
@@ -126,7 +145,11 @@ public class BackgroundGeolocation extends Plugin {
                     call.getFloat("distanceFilter", 0f),
                     call.getString("url", null),
                     headersFromCall(call),
-                    longOptionFromCall(call, "minIntervalMs", 0L)
+                    longOptionFromCall(call, "minIntervalMs", 0L),
+                    deliveryOptionsFromCall(call),
+                    sinksJsonFromCall(call),
+                    call.getString("diagnosticsUrl", null),
+                    longOptionFromCall(call, "diagnosticsIntervalMs", DiagnosticsReporter.DEFAULT_INTERVAL_MS)
                 );
             })
             .exceptionally((throwable) -> {
@@ -160,6 +183,132 @@ public class BackgroundGeolocation extends Plugin {
         call.resolve();
     }
 
+    @PluginMethod
+    public void getRecordedSegments(PluginCall call) {
+        if (call.getBoolean("closeCurrent", false) && serviceConnectionFuture != null) {
+            getServiceConnection()
+                .thenAccept((serviceBinder) -> {
+                    serviceBinder.closeRecordingSegments();
+                    call.resolve(recordedSegments());
+                })
+                .exceptionally((throwable) -> {
+                    call.reject("Failed to close recording segments: " + throwable.getMessage());
+                    return null;
+                });
+            return;
+        }
+        call.resolve(recordedSegments());
+    }
+
+    // Closed segments of every file sink, including sinks that were removed
+    // since, oldest first within each sink.
+    private JSObject recordedSegments() {
+        JSArray segments = new JSArray();
+        File[] sinkDirectories = LocationStore.recordingsDirectory(getContext()).listFiles();
+        if (sinkDirectories != null) {
+            Arrays.sort(sinkDirectories);
+            for (File directory : sinkDirectories) {
+                for (RollingLocationFile.Segment segment : RollingLocationFile.closedSegments(directory)) {
+                    JSObject item = new JSObject();
+                    item.put("sink", directory.getName());
+                    item.put("path", segment.file.getAbsolutePath());
+                    item.put("format", segment.isBinary() ? DeliveryOptions.FORMAT_BINARY : DeliveryOptions.FORMAT_JSON);
+                    item.put("size", segment.file.length());
+                    item.put("startTime", segment.openedAtMs);
+                    segments.put(item);
+                }
+            }
+        }
+        JSObject result = new JSObject();
+        result.put("segments", segments);
+        return result;
+    }
+
+    // Only closed segments under the recordings directory can be deleted, so a
+    // stray path never removes another file of the app.
+    @PluginMethod
+    public void deleteRecordedSegments(PluginCall call) {
+        JSArray paths = call.getArray("paths");
+        if (paths == null) {
+            call.reject("paths is required");
+            return;
+        }
+        try {
+            String recordings = LocationStore.recordingsDirectory(getContext()).getCanonicalPath();
+            for (int i = 0; i < paths.length(); i++) {
+                File file = new File(paths.getString(i)).getCanonicalFile();
+                File sinkDirectory = file.getParentFile();
+                boolean recorded = sinkDirectory != null && recordings.equals(sinkDirectory.getParent());
+                if (!recorded || RollingLocationFile.closedSegment(file) == null) {
+                    call.reject("Not a closed recording segment: " + paths.getString(i));
+                    return;
+                }
+                if (!file.delete()) {
+                    call.reject("Could not delete " + file);
+                    return;
+                }
+            }
+        } catch (IOException | JSONException exception) {
+            call.reject("Could not delete recording segments", exception);
+            return;
+        }
+        call.resolve();
+    }
+
+    // Counters cover this process since it started. Without a running service
+    // the sinks are not listed.
+    @PluginMethod
+    public void getDiagnostics(PluginCall call) {
+        if (serviceConnectionFuture != null) {
+            getServiceConnection()
+                .thenAccept((serviceBinder) -> {
+                    try {
+                        call.resolve(GeofenceStore.toJSObject(serviceBinder.diagnostics()));
+                    } catch (JSONException exception) {
+                        call.reject("Failed to read diagnostics: " + exception.getMessage());
+                    }
+                })
+                .exceptionally((throwable) -> {
+                    call.reject("Failed to read diagnostics: " + throwable.getMessage());
+                    return null;
+                });
+            return;
+        }
+        try {
+            call.resolve(GeofenceStore.toJSObject(BackgroundGeolocationService.diagnostics(getContext(), Collections.emptyList())));
+        } catch (JSONException exception) {
+            call.reject("Failed to read diagnostics: " + exception.getMessage());
+        }
+    }
+
+    // Resolves without progress until a fix was matched to the planned route.
+    @PluginMethod
+    public void getRouteProgress(PluginCall call) {
+        if (serviceConnectionFuture == null) {
+            call.resolve();
+            return;
+        }
+        serviceConnectionFuture
+            .thenAccept((serviceBinder) -> {
+                JSONObject progress = serviceBinder.routeProgress();
+                if (progress == null) {
+                    call.resolve();
+                    return;
+                }
+                try {
+                    JSObject result = new JSObject();
+                    result.put("progress", GeofenceStore.toJSObject(progress));
+                    call.resolve(result);
+                } catch (JSONException exception) {
+                    call.reject("Failed to read route progress: " + exception.getMessage());
+                }
+            })
+            .exceptionally((throwable) -> {
+                call.reject("Failed to read route progress: " + throwable.getMessage());
+                return null;
+            });
+    }
+
     private CompletableFuture<Void> requestLocationPermissions(PluginCall call) {
         if (locationPermissionFuture != null) {
             return locationPermissionFuture;
@@ -343,20 +492,38 @@ public class BackgroundGeolocation extends Plugin {
 
     @PluginMethod
     public void setPlannedRoute(PluginCall call) {
+        // Without a sound, deviations are only reported.
         String soundFile = call.getString("soundFile");
-        if (soundFile == null || soundFile.isEmpty()) {
-            call.reject("Sound file is required");
+        String sound = soundFile == null || soundFile.isEmpty() ? null : soundFile;
+        float distance = call.getFloat("distance", 50f);
+        Double backOnRouteDistance = call.getDouble("backOnRouteDistance");
+        Double deviationDurationMs = call.getDouble("deviationDurationMs");
+        Double maxAccuracy = call.getDouble("maxDeviationAccuracy");
+        if (
+            distance <= 0 ||
+            (backOnRouteDistance != null && backOnRouteDistance < 0) ||
+            (deviationDurationMs != null && deviationDurationMs < 0) ||
+            (maxAccuracy != null && maxAccuracy <= 0)
+        ) {
+            call.reject("distance and maxDeviationAccuracy must be positive, backOnRouteDistance and deviationDurationMs not negative");
             return;
         }
+        RouteDeviationDetector deviation = new RouteDeviationDetector(
+            distance,
+            backOnRouteDistance != null ? backOnRouteDistance : distance / 2,
+            deviationDurationMs != null ? deviationDurationMs.longValue() : RouteDeviationDetector.DEFAULT_MIN_DURATION_MS,
+            maxAccuracy != null ? maxAccuracy : RouteDeviationDetector.DEFAULT_MAX_ACCURACY_M
+        );
         if (serviceConnectionFuture == null) {
             call.reject("Service not started, make sure to call start() first", "NOT_STARTED");
             return;
         }
         try {
-            double[][] javaDoubleArray = getJavaDoubleArray(call.getArray("route"));
+            // Indexed here rather than on the service's main looper.
+            PlannedRoute route = new PlannedRoute(getJavaDoubleArray(call.getArray("route")));
             serviceConnectionFuture
                 .thenAccept((service) -> {
-                    service.setPlannedRoute(soundFile, javaDoubleArray, call.getFloat("distance", 50f));
+                    service.setPlannedRoute(sound, route, deviation);
                     call.resolve();
                 })
                 .exceptionally((throwable) -> {
@@ -385,6 +552,12 @@ public class BackgroundGeolocation extends Plugin {
             }
         }
 
+        String compression = call.getString("compression");
+        if (!RequestCompression.isSupported(compression)) {
+            call.reject("Unsupported compression, use \"gzip\", \"deflate\" or \"none\"");
+            return;
+        }
+
         JSObject payload = call.getObject("payload", new JSObject());
         boolean backgroundLocation = call.getBoolean("backgroundLocation", false);
         GeofenceStore.saveSetup(
@@ -394,7 +567,8 @@ public class BackgroundGeolocation extends Plugin {
             call.getBoolean("notifyOnExit", true),
             payload,
             backgroundLocation,
-            headersFromCall(call)
+            headersFromCall(call),
+            compression
         );
 
         if (!call.getBoolean("requestPermissions", true)) {
@@ -657,6 +831,16 @@ public class BackgroundGeolocation extends Plugin {
         return call.getData().optLong(key, defaultValue);
     }
 
+    static DeliveryOptions deliveryOptionsFromCall(PluginCall call) {
+        return DeliveryOptions.fromJson(call.getData());
+    }
+
+    // The "sinks" option as JSON, persisted as is and parsed by SinkConfig.
+    private static String sinksJsonFromCall(PluginCall call) {
+        JSONArray sinks = call.getData().optJSONArray("sinks");
+        return sinks == null || sinks.length() == 0 ? null : sinks.toString();
+    }
+
     private static Map<String, String> headersFromCall(PluginCall call) {
         return headersFromObject(call.getObject("headers"));
     }
@@ -678,27 +862,13 @@ public class BackgroundGeolocation extends Plugin {
         return result;
     }
 
-    private static JSObject formatLocation(Location location) {
-        JSObject obj = new JSObject();
-        obj.put("latitude", location.getLatitude());
-        obj.put("longitude", location.getLongitude());
-        // The docs state that all Location objects have an accuracy, but then why is there a
-        // hasAccuracy method? Better safe than sorry.
-        obj.put("accuracy", location.hasAccuracy() ? location.getAccuracy() : JSONObject.NULL);
-        obj.put("altitude", location.hasAltitude() ? location.getAltitude() : JSONObject.NULL);
-        if (Build.VERSION.SDK_INT >= 26 && location.hasVerticalAccuracy()) {
-            obj.put("altitudeAccuracy", location.getVerticalAccuracyMeters());
-        } else {
-            obj.put("altitudeAccuracy", JSONObject.NULL);
-        }
-        // In addition to mocking locations in development, Android allows the
-        // installation of apps which have the power to simulate location
-        // readings in other apps.
-        obj.put("simulated", location.isFromMockProvider());
-        obj.put("speed", location.hasSpeed() ? location.getSpeed() : JSONObject.NULL);
-        obj.put("bearing", location.hasBearing() ? location.getBearing() : JSONObject.NULL);
-        obj.put("time", location.getTime());
-        return obj;
+    // The bridge only accepts a JSObject, so this sink boxes each value; the
+    // field set itself comes from LocationSerializer, as for native delivery.
+    // Fixes reach the callback on the main looper only, so the sample and the
+    // sink are reused.
+    private JSObject formatLocation(Location location) {
+        BackgroundGeolocationService.copyLocation(location, bridgeSample);
+        return bridgeSink.write(bridgeSample);
     }
 
     // Receives messages from the service.
@@ -741,6 +911,27 @@ public class BackgroundGeolocation extends Plugin {
         }
     }
 
+    private class RouteEventReceiver extends BroadcastReceiver {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean deviation = BackgroundGeolocationService.ACTION_ROUTE_DEVIATION.equals(intent.getAction());
+            String payload = intent.getStringExtra(
+                deviation ? BackgroundGeolocationService.EXTRA_ROUTE_DEVIATION : BackgroundGeolocationService.EXTRA_ROUTE_PROGRESS
+            );
+            if (payload == null || payload.isEmpty()) {
+                return;
+            }
+            try {
+                // Deviations are kept for listeners added later, progress is
+                // superseded by the next fix.
+                notifyListeners(deviation ? "routeDeviation" : "routeProgress", GeofenceStore.toJSObject(new JSONObject(payload)), deviation);
+            } catch (JSONException exception) {
+                Logger.error("Could not parse route event", exception);
+            }
+        }
+    }
+
     @Override
     public void load() {
         super.load();
@@ -773,6 +964,11 @@ public class BackgroundGeolocation extends Plugin {
         IntentFilter geofenceFilter = new IntentFilter(GeofenceStore.ACTION_GEOFENCE_EVENT);
         geofenceFilter.addAction(GeofenceStore.ACTION_GEOFENCE_ERROR);
         LocalBroadcastManager.getInstance(this.getContext()).registerReceiver(geofenceEventReceiver, geofenceFilter);
+
+        routeEventReceiver = new RouteEventReceiver();
+        IntentFilter routeFilter = new IntentFilter(BackgroundGeolocationService.ACTION_ROUTE_PROGRESS);
+        routeFilter.addAction(BackgroundGeolocationService.ACTION_ROUTE_DEVIATION);
+        LocalBroadcastManager.getInstance(this.getContext()).registerReceiver(routeEventReceiver, routeFilter);
     }
 
     private CompletableFuture<BackgroundGeolocationService.LocalBinder> getServiceConnection() {
@@ -914,6 +1110,10 @@ public class BackgroundGeolocation extends Plugin {
             LocalBroadcastManager.getInstance(this.getContext()).unregisterReceiver(geofenceEventReceiver);
             geofenceEventReceiver = null;
         }
+        if (routeEventReceiver != null) {
+            LocalBroadcastManager.getInstance(this.getContext()).unregisterReceiver(routeEventReceiver);
+            routeEventReceiver = null;
+        }
         super.handleOnDestroy();
     }
 
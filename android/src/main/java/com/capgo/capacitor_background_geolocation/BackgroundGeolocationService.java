@@ -19,11 +19,18 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.getcapacitor.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 // A bound and started service that is promoted to a foreground service
@@ -32,34 +39,59 @@ import org.json.JSONObject;
 public class BackgroundGeolocationService extends Service {
 
     static final String ACTION_BROADCAST = (BackgroundGeolocationService.class.getPackage().getName() + ".broadcast");
+    static final String ACTION_ROUTE_PROGRESS = (BackgroundGeolocationService.class.getPackage().getName() + ".routeProgress");
+    static final String EXTRA_ROUTE_PROGRESS = "routeProgress";
+    static final String ACTION_ROUTE_DEVIATION = (BackgroundGeolocationService.class.getPackage().getName() + ".routeDeviation");
+    static final String EXTRA_ROUTE_DEVIATION = "routeDeviation";
     private final IBinder binder = new LocalBinder();
 
-    private static final double EARTH_RADIUS_M = 6371000;
-
     // Must be unique for this application.
     private static final int NOTIFICATION_ID = 28351;
 
+    // How long listing recordings waits for the open segments to be closed.
+    private static final long RECORDING_CLOSE_TIMEOUT_MS = 2000L;
+
     private String callbackId;
 
     private LocationManager client;
     private LocationListener locationCallback;
     private MediaPlayer mediaPlayer;
-    private double[][] route;
-    private double distanceThreshold;
-    private boolean isOffRoute;
+    // Set from the plugin thread, read on the main looper. The progress and
+    // deviation state are replaced before the cursor, so a fix never pairs a
+    // new route with the state along the old one.
+    private volatile RouteCursor routeCursor;
+    private volatile RouteProgress routeProgress;
+    private volatile RouteDeviationDetector routeDeviation;
+    // Last progress published, for getRouteProgress().
+    private volatile JSONObject lastRouteProgress;
+    private final PlannedRoute.Match routeMatch = new PlannedRoute.Match();
+    private final double[] routePoint = new double[2];
 
     private Handler watchdogHandler = new Handler(Looper.getMainLooper());
     private Runnable watchdogRunnable;
     private Runnable restartRunnable;
+    private final Runnable flushRunnable = () -> LocationStore.flush(getApplicationContext());
     private float currentDistanceFilter;
     private long currentMinIntervalMs;
     private PowerManager.WakeLock wakeLock;
 
-    // When set (via the "url" start option), each location is also POSTed to
-    // this URL directly from native code so delivery survives the WebView being
-    // destroyed. Delivery runs on postExecutor to keep it off the main thread.
-    private String nativePostUrl;
-    private ExecutorService postExecutor;
+    // When configured (via the "url" and "sinks" start options), each location
+    // is also delivered directly from native code so delivery survives the
+    // WebView being destroyed: to the url (the primary sink) and to any
+    // additional sinks, keyed by name. HTTP sinks have their own on-disk outbox
+    // drained off the main thread, so locations survive outages and process
+    // restarts; file sinks record them on the device. Only touched on the
+    // main looper, where fixes are delivered: binder calls post their changes
+    // to it.
+    private final Map<String, LocationSink> sinks = new LinkedHashMap<>();
+    // Copy of the sinks for diagnostics and recordings, which are read off the
+    // main thread.
+    private volatile List<LocationSink> publishedSinks = Collections.emptyList();
+    // Only created, replaced and closed on the main looper, like the sinks.
+    private DiagnosticsReporter diagnosticsReporter;
+    private final LocationSerializer.Sample sample = new LocationSerializer.Sample();
+    // Prefix of the eventId of every natively delivered location.
+    private String installationId;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -111,7 +143,6 @@ public class BackgroundGeolocationService extends Service {
             // service does not outlive the app, so it is not sticky-restarted.
             return START_NOT_STICKY;
         }
-        nativePostUrl = LocationStore.getUrl(context);
         promoteToForeground(LocationStore.getTitle(context), LocationStore.getMessage(context));
         if (client == null || locationCallback == null) {
             acquireWakeLock();
@@ -122,6 +153,8 @@ public class BackgroundGeolocationService extends Service {
             requestLocationUpdates();
             startWatchdog();
         }
+        updateSinks();
+        updateDiagnosticsReporter();
         return START_STICKY;
     }
 
@@ -134,10 +167,22 @@ public class BackgroundGeolocationService extends Service {
         releaseMediaPlayer();
         releaseWakeLock();
         stopWatchdog();
-        if (postExecutor != null) {
-            postExecutor.shutdown();
-            postExecutor = null;
+        watchdogHandler.removeCallbacks(flushRunnable);
+        LocationStore.flush(getApplicationContext());
+        closeSinks();
+        closeDiagnosticsReporter();
+    }
+
+    private void closeSinks() {
+        for (LocationSink sink : sinks.values()) {
+            sink.close();
         }
+        sinks.clear();
+        publishSinks();
+    }
+
+    private void publishSinks() {
+        publishedSinks = Collections.unmodifiableList(new ArrayList<>(sinks.values()));
     }
 
     private void releaseMediaPlayer() {
@@ -163,6 +208,7 @@ public class BackgroundGeolocationService extends Service {
             PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
             wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "BackgroundGeolocation::LocationWakeLock");
             wakeLock.acquire();
+            DeliveryMetrics.shared().wakeLockAcquired(SystemClock.elapsedRealtime());
             Logger.info("Wake lock acquired");
         } catch (Exception e) {
             Logger.error("Error acquiring wake lock", e);
@@ -176,6 +222,7 @@ public class BackgroundGeolocationService extends Service {
         try {
             if (wakeLock.isHeld()) {
                 wakeLock.release();
+                DeliveryMetrics.shared().wakeLockReleased(SystemClock.elapsedRealtime());
                 Logger.info("Wake lock released");
             }
         } catch (Exception e) {
@@ -189,6 +236,7 @@ public class BackgroundGeolocationService extends Service {
         if (client == null || locationCallback == null) {
             return;
         }
+        DeliveryMetrics.shared().watchdogRestarts.increment();
         client.removeUpdates(locationCallback);
         if (restartRunnable != null) {
             watchdogHandler.removeCallbacks(restartRunnable);
@@ -225,17 +273,16 @@ public class BackgroundGeolocationService extends Service {
     }
 
     private void handleLocationChanged(android.location.Location location) {
+        DeliveryMetrics.shared().fixesReceived.increment();
         startWatchdog();
-        if (nativePostUrl != null) {
-            postLocationNatively(location);
-        }
-        if (mediaPlayer != null) {
-            double[] point = { location.getLongitude(), location.getLatitude() };
-            var offRoute = distancePointToRoute(point) > distanceThreshold;
-            if (offRoute == true && isOffRoute == false) {
-                mediaPlayer.start();
+        postLocationNatively(location);
+        RouteCursor cursor = routeCursor;
+        if (cursor != null) {
+            RouteProgress progress = routeProgress;
+            RouteDeviationDetector deviation = routeDeviation;
+            if (matchRoute(cursor, progress, deviation.exitDistance, location)) {
+                checkRouteDeviation(deviation, progress, location);
             }
-            isOffRoute = offRoute;
         }
         Intent intent = new Intent(ACTION_BROADCAST);
         intent.putExtra("location", location);
@@ -243,46 +290,167 @@ public class BackgroundGeolocationService extends Service {
         LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
     }
 
-    // Delivers a location to the configured URL from native code, so it works
-    // even when the WebView/JavaScript layer no longer exists.
+    // Delivers a location to every sink from native code, so it works even
+    // when the WebView/JavaScript layer no longer exists.
     private void postLocationNatively(android.location.Location location) {
-        if (postExecutor == null) {
-            postExecutor = Executors.newSingleThreadExecutor();
+        if (sinks.isEmpty()) {
+            return;
+        }
+        // Fixes arrive on the main looper only, so the sample is reused. The
+        // sequence is fixed here, so every sink, retry and replay of this fix
+        // carries the same eventId.
+        copyLocation(location, sample);
+        if (installationId == null) {
+            installationId = LocationStore.getInstallationId(getApplicationContext());
+        }
+        sample.installationId = installationId;
+        sample.sequence = DeliveryIds.nextSequence();
+        for (LocationSink sink : sinks.values()) {
+            sink.accept(sample);
         }
+    }
+
+    // Persisted minimum interval of the primary sink. It survives restarts so
+    // a sticky restart does not POST a burst of fixes.
+    private boolean passesPostGate(LocationSerializer.Sample sample) {
         Context context = getApplicationContext();
-        JSONObject payload = locationToJson(location);
-        postExecutor.execute(() -> {
-            try {
-                LocationStore.sendLocation(context, payload);
-            } catch (Exception e) {
-                Logger.error("Native location POST failed", e);
+        if (!LocationStore.shouldPost(context, sample.time)) {
+            return false;
+        }
+        if (LocationStore.markPosted(context, sample.time)) {
+            watchdogHandler.postDelayed(flushRunnable, LastPostState.FLUSH_INTERVAL_MS);
+        }
+        return true;
+    }
+
+    // Brings the sinks in line with the persisted config. Sinks that keep
+    // their name are reconfigured in place, so their uploader (and its outbox)
+    // is never drained by two threads at once. Creating a sink replays
+    // whatever a previous process left in its outbox.
+    private void updateSinks() {
+        Context context = getApplicationContext();
+        LocationConfig config = LocationStore.config(context);
+        if (!config.enabled) {
+            closeSinks();
+            return;
+        }
+        Map<String, SinkConfig> wanted = new LinkedHashMap<>();
+        if (config.url != null) {
+            wanted.put(SinkConfig.PRIMARY, SinkConfig.primary(config));
+        }
+        for (SinkConfig sinkConfig : config.sinks) {
+            wanted.put(sinkConfig.name, sinkConfig);
+        }
+        List<String> bulkUrls = new ArrayList<>();
+        for (SinkConfig sinkConfig : wanted.values()) {
+            if (sinkConfig.url != null) {
+                bulkUrls.add(sinkConfig.url);
+            }
+        }
+        NativeHttpTransport.shared().configure(config.deliveryOptions.maxConnectionsPerOrigin, bulkUrls);
+        for (Iterator<LocationSink> it = sinks.values().iterator(); it.hasNext();) {
+            LocationSink sink = it.next();
+            SinkConfig sinkConfig = wanted.get(sink.name());
+            if (sinkConfig == null || !sink.reconfigure(sinkConfig)) {
+                sink.close();
+                it.remove();
             }
-        });
+        }
+        RetryPolicy retryPolicy = RetryPolicy.DEFAULT.forInstallation(LocationStore.getInstallationId(context));
+        for (SinkConfig sinkConfig : wanted.values()) {
+            if (!sinks.containsKey(sinkConfig.name)) {
+                LocationSink sink = createSink(context, sinkConfig, retryPolicy);
+                if (sink != null) {
+                    sinks.put(sinkConfig.name, sink);
+                }
+            }
+        }
+        publishSinks();
     }
 
-    private static JSONObject locationToJson(android.location.Location location) {
-        JSONObject obj = new JSONObject();
-        try {
-            obj.put("latitude", location.getLatitude());
-            obj.put("longitude", location.getLongitude());
-            obj.put("accuracy", location.hasAccuracy() ? location.getAccuracy() : JSONObject.NULL);
-            obj.put("altitude", location.hasAltitude() ? location.getAltitude() : JSONObject.NULL);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && location.hasVerticalAccuracy()) {
-                obj.put("altitudeAccuracy", location.getVerticalAccuracyMeters());
-            } else {
-                obj.put("altitudeAccuracy", JSONObject.NULL);
+    // Starts, replaces or stops the periodic diagnostics POST to match the
+    // persisted config.
+    private void updateDiagnosticsReporter() {
+        Context context = getApplicationContext();
+        String url = LocationStore.getDiagnosticsUrl(context);
+        long intervalMs = LocationStore.getDiagnosticsIntervalMs(context);
+        if (diagnosticsReporter != null && diagnosticsReporter.url.equals(url) && diagnosticsReporter.intervalMs == intervalMs) {
+            return;
+        }
+        closeDiagnosticsReporter();
+        if (url == null) {
+            return;
+        }
+        String installationId = LocationStore.getInstallationId(context);
+        diagnosticsReporter = new DiagnosticsReporter(
+            url,
+            intervalMs,
+            () -> diagnostics(context, publishedSinks).put("installationId", installationId).put("time", System.currentTimeMillis()),
+            // Reads the headers on every POST, so updateHeaders() applies.
+            (body) -> LocationStore.postDiagnostics(url, LocationStore.config(context).headers, body)
+        );
+    }
+
+    private void closeDiagnosticsReporter() {
+        if (diagnosticsReporter != null) {
+            diagnosticsReporter.close();
+            diagnosticsReporter = null;
+        }
+    }
+
+    // Snapshot returned by getDiagnostics(). Safe to call from any thread;
+    // without a running service, sinks is empty.
+    static JSONObject diagnostics(Context context, List<LocationSink> sinks) throws JSONException {
+        return DeliveryMetrics.shared().toJson(sinks, GeofenceStore.queuedTransitions(context), SystemClock.elapsedRealtime());
+    }
+
+    // Returns null when a file sink cannot open its directory.
+    private LocationSink createSink(Context context, SinkConfig config, RetryPolicy retryPolicy) {
+        if (SinkConfig.TYPE_FILE.equals(config.type)) {
+            try {
+                return new FileLocationSink(config, new File(LocationStore.recordingsDirectory(context), config.name));
+            } catch (IOException exception) {
+                Logger.error("Could not start recording locations to " + config.name, exception);
+                return null;
             }
-            obj.put("simulated", location.isFromMockProvider());
-            obj.put("speed", location.hasSpeed() ? location.getSpeed() : JSONObject.NULL);
-            obj.put("bearing", location.hasBearing() ? location.getBearing() : JSONObject.NULL);
-            obj.put("time", location.getTime());
-            // Lets the server distinguish native-delivered updates from those
-            // forwarded by the JavaScript callback.
-            obj.put("source", "native");
-        } catch (org.json.JSONException e) {
-            Logger.error("Could not serialize location", e);
         }
-        return obj;
+        boolean primary = SinkConfig.PRIMARY.equals(config.name);
+        return new HttpLocationSink(
+            config,
+            primary ? LocationStore.outboxDirectory(context) : LocationStore.sinkOutboxDirectory(context, config.name),
+            primary ? this::passesPostGate : LocationSink.Filter.ALL,
+            retryPolicy,
+            new AndroidUploadMonitor(context)
+        );
+    }
+
+    // Copies the values both location payloads carry into a reusable sample.
+    static void copyLocation(android.location.Location location, LocationSerializer.Sample sample) {
+        sample.clear();
+        sample.latitude = location.getLatitude();
+        sample.longitude = location.getLongitude();
+        // The docs state that all Location objects have an accuracy, but then why is there a
+        // hasAccuracy method? Better safe than sorry.
+        if (location.hasAccuracy()) {
+            sample.accuracy = location.getAccuracy();
+        }
+        if (location.hasAltitude()) {
+            sample.altitude = location.getAltitude();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && location.hasVerticalAccuracy()) {
+            sample.altitudeAccuracy = location.getVerticalAccuracyMeters();
+        }
+        // In addition to mocking locations in development, Android allows the
+        // installation of apps which have the power to simulate location
+        // readings in other apps.
+        sample.simulated = location.isFromMockProvider();
+        if (location.hasSpeed()) {
+            sample.speed = location.getSpeed();
+        }
+        if (location.hasBearing()) {
+            sample.bearing = location.getBearing();
+        }
+        sample.time = location.getTime();
     }
 
     // Android API < 30 requires these legacy callbacks to be implemented.
@@ -353,7 +521,11 @@ public class BackgroundGeolocationService extends Service {
             float distanceFilter,
             final String url,
             final Map<String, String> headers,
-            final long minIntervalMs
+            final long minIntervalMs,
+            final DeliveryOptions deliveryOptions,
+            final String sinksJson,
+            final String diagnosticsUrl,
+            final long diagnosticsIntervalMs
         ) {
             releaseMediaPlayer();
             acquireWakeLock();
@@ -362,16 +534,20 @@ public class BackgroundGeolocationService extends Service {
             currentDistanceFilter = distanceFilter;
             currentMinIntervalMs = Math.max(0L, minIntervalMs);
 
-            nativePostUrl = (url == null || url.isEmpty()) ? null : url;
             LocationStore.saveSetup(
                 getApplicationContext(),
-                nativePostUrl,
+                url,
                 notificationTitle,
                 notificationMessage,
                 distanceFilter,
                 headers,
-                currentMinIntervalMs
+                currentMinIntervalMs,
+                deliveryOptions,
+                sinksJson
             );
+            LocationStore.saveDiagnostics(getApplicationContext(), diagnosticsUrl, diagnosticsIntervalMs);
+            watchdogHandler.post(BackgroundGeolocationService.this::updateSinks);
+            watchdogHandler.post(BackgroundGeolocationService.this::updateDiagnosticsReporter);
 
             // The service may already be running (for example after a sticky
             // restart), so drop any previous listener before registering a new one.
@@ -383,13 +559,47 @@ public class BackgroundGeolocationService extends Service {
             promoteToForeground(notificationTitle, notificationMessage);
         }
 
+        // Null until a fix was matched to the planned route.
+        JSONObject routeProgress() {
+            return lastRouteProgress;
+        }
+
+        JSONObject diagnostics() throws JSONException {
+            return BackgroundGeolocationService.diagnostics(getApplicationContext(), publishedSinks);
+        }
+
+        // Closes the open segment of every file sink so the app can list all
+        // locations recorded so far.
+        void closeRecordingSegments() {
+            for (LocationSink sink : publishedSinks) {
+                if (sink instanceof FileLocationSink) {
+                    ((FileLocationSink) sink).closeSegment(RECORDING_CLOSE_TIMEOUT_MS);
+                }
+            }
+        }
+
+        // Applies to the primary sink; additional sinks keep their own headers.
         void updateHeaders(final Map<String, String> headers) {
             LocationStore.saveHeaders(getApplicationContext(), headers);
+            watchdogHandler.post(BackgroundGeolocationService.this::updateSinks);
         }
 
         String stop() {
-            LocationStore.clear(getApplicationContext());
-            nativePostUrl = null;
+            Context context = getApplicationContext();
+            // Send any partially filled batch before the config is forgotten;
+            // each sink keeps its own copy of it, so this need not run first.
+            watchdogHandler.post(() -> {
+                for (LocationSink sink : sinks.values()) {
+                    sink.flushAndClose();
+                }
+                sinks.clear();
+                publishSinks();
+                closeDiagnosticsReporter();
+            });
+            // clear() drops the last post time with the rest of the setup, so
+            // there is nothing left to flush.
+            watchdogHandler.removeCallbacks(flushRunnable);
+            LocationStore.clear(context);
             stopWatchdog();
             client.removeUpdates(locationCallback);
             stopForeground(true);
@@ -399,10 +609,16 @@ public class BackgroundGeolocationService extends Service {
             return callbackId;
         }
 
-        void setPlannedRoute(String filePath, double[][] routeCoordinates, float distance) {
-            route = routeCoordinates;
-            distanceThreshold = distance;
-            isOffRoute = true;
+        // filePath is the sound played on leaving the route, null for none.
+        void setPlannedRoute(String filePath, PlannedRoute plannedRoute, RouteDeviationDetector deviation) {
+            lastRouteProgress = null;
+            routeProgress = new RouteProgress();
+            routeDeviation = deviation;
+            routeCursor = new RouteCursor(plannedRoute);
+            if (filePath == null) {
+                releaseMediaPlayer();
+                return;
+            }
             try {
                 if (mediaPlayer != null) {
                     return;
@@ -494,86 +710,63 @@ public class BackgroundGeolocationService extends Service {
         return id == 0 ? fallback : context.getString(id);
     }
 
-    private static double haversine(double[] point1, double[] point2) {
-        double lon1 = point1[0];
-        double lat1 = point1[1];
-        double lon2 = point2[0];
-        double lat2 = point2[1];
-
-        double dLat = Math.toRadians(lat2 - lat1);
-        double dLon = Math.toRadians(lon2 - lon1);
-
-        double a =
-            Math.sin(dLat / 2) * Math.sin(dLat / 2) +
-            Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
-
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-
-        return EARTH_RADIUS_M * c;
-    }
-
-    private static double distancePointToLineSegment(double[] point, double[] lineStart, double[] lineEnd) {
-        // Calculate the distances between the three points using Haversine
-        double dist_A_B = haversine(point, lineStart);
-        double dist_A_C = haversine(point, lineEnd);
-        double dist_B_C = haversine(lineStart, lineEnd);
-
-        // Handle the edge case where the line segment is a single point
-        if (dist_B_C == 0) {
-            return dist_A_B;
-        }
-
-        // Check if the angles at the line segment's endpoints are obtuse.
-        // We use the Law of Cosines (c^2 = a^2 + b^2 - 2ab*cos(C))
-        // If cos(C) < 0, the angle is obtuse.
-
-        // Angle at B (lineStart)
-        // Use a small epsilon to handle floating point inaccuracies in division by zero
-        double cos_B = (Math.pow(dist_A_B, 2) + Math.pow(dist_B_C, 2) - Math.pow(dist_A_C, 2)) / (2 * dist_A_B * dist_B_C);
-        if (cos_B < 0) {
-            return dist_A_B;
-        }
-
-        // Angle at C (lineEnd)
-        double cos_C = (Math.pow(dist_A_C, 2) + Math.pow(dist_B_C, 2) - Math.pow(dist_A_B, 2)) / (2 * dist_A_C * dist_B_C);
-        if (cos_C < 0) {
-            return dist_A_C;
+    // Matches a fix to the planned route and publishes the progress along it.
+    // False when the route has no point.
+    private boolean matchRoute(RouteCursor cursor, RouteProgress progress, double threshold, android.location.Location location) {
+        routePoint[0] = location.getLongitude();
+        routePoint[1] = location.getLatitude();
+        double speed = location.hasSpeed() ? location.getSpeed() : Double.NaN;
+        cursor.match(routePoint, speed, location.getTime(), threshold, routeMatch);
+        if (routeMatch.segment < 0) {
+            return false;
         }
-
-        // If both angles are acute, the closest point is on the line segment itself.
-        // We can calculate the distance (height of the triangle) using its area.
-
-        // 1. Calculate the semi-perimeter of the triangle ABC
-        double s = (dist_A_B + dist_A_C + dist_B_C) / 2;
-
-        // 2. Calculate the area using Heron's formula
-        double area = Math.sqrt(Math.max(0, s * (s - dist_A_B) * (s - dist_A_C) * (s - dist_B_C)));
-
-        // 3. The distance is the height of the triangle from point A to the base BC
-        // Area = 0.5 * base * height  =>  height = 2 * Area / base
-        return (2 * area) / dist_B_C;
+        progress.update(cursor.route(), routePoint, routeMatch, speed, location.getTime());
+        try {
+            JSONObject json = progress.toJson();
+            lastRouteProgress = json;
+            Intent intent = new Intent(ACTION_ROUTE_PROGRESS);
+            intent.putExtra(EXTRA_ROUTE_PROGRESS, json.toString());
+            LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
+        } catch (JSONException exception) {
+            Logger.error("Could not publish route progress", exception);
+        }
+        return true;
     }
 
-    public double distancePointToRoute(double[] point) {
-        // If the polyline has less than 2 points, we can't form a segment.
-        if (this.route.length < 2) {
-            if (this.route.length == 1) {
-                return haversine(point, this.route[0]);
-            }
-            return Double.POSITIVE_INFINITY; // No line segments to measure against
+    // Plays the sound and reports the change when a fix confirms that the
+    // device left the route or came back to it. The report is queued for the
+    // native url too, so it reaches the server without the WebView.
+    private void checkRouteDeviation(RouteDeviationDetector deviation, RouteProgress progress, android.location.Location location) {
+        double accuracy = location.hasAccuracy() ? location.getAccuracy() : Double.NaN;
+        int change = deviation.update(routeMatch.distance, accuracy, location.getTime());
+        if (change == RouteDeviationDetector.NONE) {
+            return;
         }
-
-        double minDistance = Double.POSITIVE_INFINITY;
-
-        for (int i = 0; i < this.route.length - 1; i++) {
-            double[] lineStart = this.route[i];
-            double[] lineEnd = this.route[i + 1];
-            double distance = distancePointToLineSegment(point, lineStart, lineEnd);
-            if (distance < minDistance) {
-                minDistance = distance;
+        boolean offRoute = change == RouteDeviationDetector.OFF_ROUTE;
+        if (offRoute && mediaPlayer != null) {
+            mediaPlayer.start();
+        }
+        try {
+            JSONObject data = new JSONObject()
+                .put("event", "routeDeviation")
+                .put("deviation", offRoute ? "offRoute" : "backOnRoute")
+                .put("offRoute", offRoute)
+                .put("distanceToRoute", routeMatch.distance)
+                .put("latitude", location.getLatitude())
+                .put("longitude", location.getLongitude())
+                .put("segment", routeMatch.segment)
+                .put("distanceTravelled", progress.distanceTravelled)
+                .put("since", deviation.changedAtMs())
+                .put("time", location.getTime());
+            if (!Double.isNaN(accuracy)) {
+                data.put("accuracy", accuracy);
             }
+            RouteEventStore.enqueueDeviation(getApplicationContext(), data);
+            Intent intent = new Intent(ACTION_ROUTE_DEVIATION);
+            intent.putExtra(EXTRA_ROUTE_DEVIATION, data.toString());
+            LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
+        } catch (JSONException exception) {
+            Logger.error("Could not report route deviation", exception);
         }
-
-        return minDistance;
     }
 }
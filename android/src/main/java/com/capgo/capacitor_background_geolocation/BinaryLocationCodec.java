@@ -0,0 +1,243 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact binary wire format for native location uploads (format: "binary").
+//
+// A request body is the 4 byte header "CGL" + version, followed by one
+// length-prefixed record per fix:
+//
+//   body   := 'C' 'G' 'L' 0x01 record*
+//   record := varint(length) fields
+//   fields := varint(flags) zigzag(dTime) zigzag(dLatE7) zigzag(dLonE7)
+//             [zigzag(accuracyCm)] [zigzag(altitudeCm)]
+//             [zigzag(altitudeAccuracyCm)] [zigzag(speedCmPerSecond)]
+//             [zigzag(bearingCentiDegrees)] [varint(sequence)]
+//
+// Time (ms since epoch) and coordinates (degrees * 1e7) are deltas from the
+// previous record of the same body, starting from 0, so consecutive fixes only
+// cost a few bytes each. Optional values are present when their flag is set
+// (see LocationFix). The sequence is the one of the fix's eventId
+// (see DeliveryIds), so a server can recognize a replayed fix by its time and
+// sequence. Decoders skip bytes left at the end of a record, so later
+// versions can append fields.
+//
+// The outbox stores each fix as a self-contained record (RECORD_TYPE followed
+// by fields relative to 0) and encodeBody() delta-encodes a batch of them.
+final class BinaryLocationCodec {
+
+    static final String CONTENT_TYPE = "application/x-capgo-location-stream";
+    static final byte VERSION = 1;
+    // Leading byte of outbox records; JSON records start with '{' instead.
+    static final byte RECORD_TYPE = 1;
+
+    private static final byte[] MAGIC = { 'C', 'G', 'L' };
+    static final int HEADER_BYTES = MAGIC.length + 1;
+
+    private BinaryLocationCodec() {}
+
+    static boolean isRecord(byte[] record) {
+        return record.length > 0 && record[0] == RECORD_TYPE;
+    }
+
+    static boolean isBody(byte[] body) {
+        return body.length >= MAGIC.length + 1 && body[0] == MAGIC[0] && body[1] == MAGIC[1] && body[2] == MAGIC[2];
+    }
+
+    // Encodes one fix for the outbox.
+    static byte[] encodeRecord(LocationFix fix) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(32);
+        output.write(RECORD_TYPE);
+        writeFields(output, fix, 0, 0, 0);
+        return output.toByteArray();
+    }
+
+    static LocationFix decodeRecord(byte[] record) throws IOException {
+        if (!isRecord(record)) {
+            throw new IOException("Not a binary location record");
+        }
+        return readFields(new Reader(record, 1, record.length), 0, 0, 0);
+    }
+
+    // Builds a request body from outbox records, delta-encoding each fix against
+    // the one before it.
+    static byte[] encodeBody(List<byte[]> records) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(HEADER_BYTES + records.size() * 16);
+        writeHeader(output);
+        ByteArrayOutputStream fields = new ByteArrayOutputStream(32);
+        long previousTime = 0;
+        int previousLatitude = 0;
+        int previousLongitude = 0;
+        for (byte[] record : records) {
+            LocationFix fix = decodeRecord(record);
+            fields.reset();
+            writeFields(fields, fix, previousTime, previousLatitude, previousLongitude);
+            writeVarint(output, fields.size());
+            fields.writeTo(output);
+            previousTime = fix.time;
+            previousLatitude = fix.latitudeE7;
+            previousLongitude = fix.longitudeE7;
+        }
+        return output.toByteArray();
+    }
+
+    static void writeHeader(ByteArrayOutputStream output) {
+        output.write(MAGIC, 0, MAGIC.length);
+        output.write(VERSION);
+    }
+
+    // Appends one length-prefixed fix to a body that is written incrementally,
+    // delta-encoded against previous (null for the first fix after the header).
+    static void appendRecord(ByteArrayOutputStream output, LocationFix fix, LocationFix previous) {
+        ByteArrayOutputStream fields = new ByteArrayOutputStream(32);
+        if (previous == null) {
+            writeFields(fields, fix, 0, 0, 0);
+        } else {
+            writeFields(fields, fix, previous.time, previous.latitudeE7, previous.longitudeE7);
+        }
+        byte[] bytes = fields.toByteArray();
+        writeVarint(output, bytes.length);
+        output.write(bytes, 0, bytes.length);
+    }
+
+    static List<LocationFix> decodeBody(byte[] body) throws IOException {
+        if (!isBody(body)) {
+            throw new IOException("Not a binary location body");
+        }
+        if (body[MAGIC.length] != VERSION) {
+            throw new IOException("Unsupported binary location version " + body[MAGIC.length]);
+        }
+        List<LocationFix> fixes = new ArrayList<>();
+        Reader reader = new Reader(body, MAGIC.length + 1, body.length);
+        LocationFix previous = new LocationFix();
+        while (reader.hasRemaining()) {
+            long length = reader.readVarint();
+            if (length < 0 || length > reader.remaining()) {
+                throw new IOException("Truncated binary location record");
+            }
+            int end = reader.position + (int) length;
+            Reader fields = new Reader(body, reader.position, end);
+            LocationFix fix = readFields(fields, previous.time, previous.latitudeE7, previous.longitudeE7);
+            reader.position = end;
+            fixes.add(fix);
+            previous = fix;
+        }
+        return fixes;
+    }
+
+    private static void writeFields(
+        ByteArrayOutputStream output,
+        LocationFix fix,
+        long previousTime,
+        int previousLatitude,
+        int previousLongitude
+    ) {
+        int flags = fix.flags & LocationFix.KNOWN_FLAGS;
+        writeVarint(output, flags);
+        writeZigZag(output, fix.time - previousTime);
+        writeZigZag(output, (long) fix.latitudeE7 - previousLatitude);
+        writeZigZag(output, (long) fix.longitudeE7 - previousLongitude);
+        if ((flags & LocationFix.FLAG_ACCURACY) != 0) {
+            writeZigZag(output, fix.accuracyCm);
+        }
+        if ((flags & LocationFix.FLAG_ALTITUDE) != 0) {
+            writeZigZag(output, fix.altitudeCm);
+        }
+        if ((flags & LocationFix.FLAG_ALTITUDE_ACCURACY) != 0) {
+            writeZigZag(output, fix.altitudeAccuracyCm);
+        }
+        if ((flags & LocationFix.FLAG_SPEED) != 0) {
+            writeZigZag(output, fix.speedCmPerSecond);
+        }
+        if ((flags & LocationFix.FLAG_BEARING) != 0) {
+            writeZigZag(output, fix.bearingCentiDegrees);
+        }
+        if ((flags & LocationFix.FLAG_SEQUENCE) != 0) {
+            writeVarint(output, fix.sequence);
+        }
+    }
+
+    private static LocationFix readFields(Reader reader, long previousTime, int previousLatitude, int previousLongitude)
+        throws IOException {
+        LocationFix fix = new LocationFix();
+        fix.flags = (int) reader.readVarint() & LocationFix.KNOWN_FLAGS;
+        fix.time = previousTime + reader.readZigZag();
+        fix.latitudeE7 = (int) (previousLatitude + reader.readZigZag());
+        fix.longitudeE7 = (int) (previousLongitude + reader.readZigZag());
+        if (fix.has(LocationFix.FLAG_ACCURACY)) {
+            fix.accuracyCm = (int) reader.readZigZag();
+        }
+        if (fix.has(LocationFix.FLAG_ALTITUDE)) {
+            fix.altitudeCm = (int) reader.readZigZag();
+        }
+        if (fix.has(LocationFix.FLAG_ALTITUDE_ACCURACY)) {
+            fix.altitudeAccuracyCm = (int) reader.readZigZag();
+        }
+        if (fix.has(LocationFix.FLAG_SPEED)) {
+            fix.speedCmPerSecond = (int) reader.readZigZag();
+        }
+        if (fix.has(LocationFix.FLAG_BEARING)) {
+            fix.bearingCentiDegrees = (int) reader.readZigZag();
+        }
+        if (fix.has(LocationFix.FLAG_SEQUENCE)) {
+            fix.sequence = reader.readVarint();
+        }
+        return fix;
+    }
+
+    static void writeVarint(ByteArrayOutputStream output, long value) {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    static void writeZigZag(ByteArrayOutputStream output, long value) {
+        writeVarint(output, (value << 1) ^ (value >> 63));
+    }
+
+    private static final class Reader {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Reader(byte[] data, int position, int end) {
+            this.data = data;
+            this.position = position;
+            this.end = end;
+        }
+
+        boolean hasRemaining() {
+            return position < end;
+        }
+
+        int remaining() {
+            return end - position;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= end) {
+                    throw new IOException("Truncated binary location varint");
+                }
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed binary location varint");
+        }
+
+        long readZigZag() throws IOException {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+// Tracks consecutive native POST failures and when the next attempt is
+// allowed, following a RetryPolicy. Pauses requested by the server push the
+// next attempt back without counting as failures.
+//
+// The state is written to a small file next to the outbox so a START_STICKY
+// restart keeps backing off instead of hammering a backend that is still down.
+// Times are wall-clock milliseconds because they must survive the process.
+final class CircuitBreaker {
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File stateFile;
+    private final RetryPolicy policy;
+    private final Random random = new Random();
+    private int consecutiveFailures;
+    private long nextAttemptAtMs;
+
+    CircuitBreaker(File stateFile, RetryPolicy policy) {
+        this.stateFile = stateFile;
+        this.policy = policy;
+        load();
+    }
+
+    // True once failureThreshold POSTs failed in a row; only probes are sent
+    // until one succeeds.
+    synchronized boolean isOpen() {
+        return consecutiveFailures >= policy.failureThreshold;
+    }
+
+    synchronized int consecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    // Milliseconds to wait before the next POST may be attempted, 0 when it
+    // may go out now.
+    synchronized long delayMs(long nowMs) {
+        long delayMs = nextAttemptAtMs - nowMs;
+        if (delayMs <= 0) {
+            return 0;
+        }
+        return Math.min(delayMs, policy.longestDelayMs());
+    }
+
+    // Records a failed POST and returns how long to wait before the next one.
+    synchronized long recordFailure(long nowMs) throws IOException {
+        if (consecutiveFailures < Integer.MAX_VALUE) {
+            consecutiveFailures++;
+        }
+        long delayMs = policy.delayMs(consecutiveFailures, random.nextDouble());
+        nextAttemptAtMs = nowMs + delayMs;
+        save();
+        return delayMs;
+    }
+
+    // Holds off every POST for pauseMs, keeping any later attempt time already
+    // set. Returns the resulting delay.
+    synchronized long recordPause(long nowMs, long pauseMs) throws IOException {
+        nextAttemptAtMs = Math.max(nextAttemptAtMs, nowMs + pauseMs);
+        save();
+        return nextAttemptAtMs - nowMs;
+    }
+
+    // Records that the endpoint answered. Closes the breaker. Does not throw:
+    // the POST already went out, and a stale state file only delays the first
+    // attempt after a restart.
+    synchronized void recordSuccess() {
+        if (consecutiveFailures == 0 && nextAttemptAtMs == 0) {
+            return;
+        }
+        consecutiveFailures = 0;
+        nextAttemptAtMs = 0;
+        stateFile.delete();
+    }
+
+    private void load() {
+        if (!stateFile.isFile()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(stateFile))) {
+            consecutiveFailures = Math.max(0, input.readInt());
+            nextAttemptAtMs = input.readLong();
+        } catch (IOException exception) {
+            // A corrupt state file only costs one early attempt.
+            consecutiveFailures = 0;
+            nextAttemptAtMs = 0;
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(stateFile.getPath() + TMP_SUFFIX);
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp))) {
+            output.writeInt(consecutiveFailures);
+            output.writeLong(nextAttemptAtMs);
+        }
+        if (!tmp.renameTo(stateFile)) {
+            throw new IOException("Could not update " + stateFile);
+        }
+    }
+}
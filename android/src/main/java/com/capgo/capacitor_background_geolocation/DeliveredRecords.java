@@ -0,0 +1,113 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Bounded set of records the server acknowledged recently, kept next to a
+// queue so a record is never sent again once acknowledged.
+//
+// A queue only forgets a record after the POST succeeded, so a crash between
+// the two (or a worker retried after its run was already delivered) replays
+// it. The hashes of delivered records are persisted before the queue is
+// acknowledged, which lets the replay be skipped. Only the last capacity
+// hashes are kept: replays only ever concern the head of the queue.
+final class DeliveredRecords {
+
+    static final int DEFAULT_CAPACITY = 1024;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File file;
+    private final int capacity;
+    // Insertion order, oldest first, and the same hashes for lookups.
+    private final long[] ring;
+    private final Set<Long> hashes = new HashSet<>();
+    private int start;
+    private int size;
+
+    DeliveredRecords(File file, int capacity) {
+        this.file = file;
+        this.capacity = Math.max(1, capacity);
+        this.ring = new long[this.capacity];
+        load();
+    }
+
+    synchronized boolean contains(byte[] record) {
+        return hashes.contains(DeliveryIds.hash(record));
+    }
+
+    // Records of the list that were not delivered yet, in order.
+    synchronized List<byte[]> pending(List<byte[]> records) {
+        List<byte[]> pending = new ArrayList<>(records.size());
+        for (byte[] record : records) {
+            if (!hashes.contains(DeliveryIds.hash(record))) {
+                pending.add(record);
+            }
+        }
+        return pending;
+    }
+
+    // Remembers delivered records and persists the set before returning.
+    synchronized void addAll(List<byte[]> records) throws IOException {
+        for (byte[] record : records) {
+            add(DeliveryIds.hash(record));
+        }
+        save();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    private void add(long hash) {
+        if (!hashes.add(hash)) {
+            return;
+        }
+        if (size == capacity) {
+            hashes.remove(ring[start]);
+            ring[start] = hash;
+            start = (start + 1) % capacity;
+        } else {
+            ring[(start + size) % capacity] = hash;
+            size++;
+        }
+    }
+
+    private void load() {
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                add(input.readLong());
+            }
+        } catch (IOException exception) {
+            // A torn or missing file only costs the protection against replays.
+            hashes.clear();
+            start = 0;
+            size = 0;
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(file.getPath() + TMP_SUFFIX);
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp))) {
+            output.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                output.writeLong(ring[(start + i) % capacity]);
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not update " + file);
+        }
+    }
+}
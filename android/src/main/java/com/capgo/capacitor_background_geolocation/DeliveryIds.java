@@ -0,0 +1,92 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Identifiers for natively delivered events, so retries and replays can be
+// recognized by the server and on the device.
+//
+// Each event gets an eventId "<installationId>-<timeMs>-<sequence>", written
+// into its JSON body when it is queued and therefore identical on every retry.
+// Requests also carry an Idempotency-Key header: the eventId when the request
+// holds exactly one identified JSON event, otherwise a digest of the records it
+// carries (binary records hold the time and sequence but not the installation
+// id, and a batch may grow between attempts).
+final class DeliveryIds {
+
+    static final String HEADER = "Idempotency-Key";
+    static final String FIELD = "eventId";
+
+    private static final byte[] FIELD_PREFIX = ("\"" + FIELD + "\":\"").getBytes(StandardCharsets.UTF_8);
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final AtomicLong sequence = new AtomicLong();
+
+    private DeliveryIds() {}
+
+    // Process-wide sequence. Together with the event time it keeps ids
+    // distinct even for events in the same millisecond.
+    static long nextSequence() {
+        return sequence.getAndIncrement();
+    }
+
+    static String eventId(String installationId, long timeMs, long sequence) {
+        return installationId + "-" + timeMs + "-" + sequence;
+    }
+
+    // Idempotency-Key for a request carrying these records.
+    static String idempotencyKey(List<byte[]> records) {
+        if (records.size() == 1) {
+            String eventId = eventIdOf(records.get(0));
+            if (eventId != null) {
+                return eventId;
+            }
+        }
+        long digest = FNV_OFFSET_BASIS;
+        for (byte[] record : records) {
+            digest = (digest ^ hash(record)) * FNV_PRIME;
+        }
+        return Long.toHexString(digest) + "-" + records.size();
+    }
+
+    // Reads the eventId written by LocationSerializer or GeofenceStore, null
+    // for records queued without one.
+    static String eventIdOf(byte[] record) {
+        int start = indexOf(record, FIELD_PREFIX);
+        if (start < 0) {
+            return null;
+        }
+        start += FIELD_PREFIX.length;
+        for (int end = start; end < record.length; end++) {
+            if (record[end] == '"') {
+                return new String(record, start, end - start, StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    // 64-bit FNV-1a hash of a record's bytes. Records carry their eventId, so
+    // two different events practically never share a hash.
+    static long hash(byte[] record) {
+        long hash = FNV_OFFSET_BASIS;
+        for (byte b : record) {
+            hash ^= b & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= data.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,187 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Process-wide counters behind getDiagnostics() and the optional metrics POST,
+// so the gaps in a track can be explained from the device: were fixes
+// received, filtered, shed, queued, or did the POSTs fail?
+//
+// Counters are LongAdders and histograms are lock-free, so the location
+// callback, the uploader threads and the geofence worker update them without
+// contending. A snapshot is not atomic across counters.
+final class DeliveryMetrics {
+
+    private static final DeliveryMetrics SHARED = new DeliveryMetrics();
+
+    // POSTs of one kind: attempts counts requests that were started, so
+    // attempts - successes - failures are in flight.
+    static final class Requests {
+
+        final LongAdder attempts = new LongAdder();
+        final LongAdder successes = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        // Request body bytes put on the wire, after compression.
+        final LongAdder bytesSent = new LongAdder();
+        final LatencyHistogram latencyMs = new LatencyHistogram();
+
+        interface Post {
+            NativeHttpTransport.Response send() throws IOException;
+        }
+
+        // Runs the POST and records its outcome. A response outside 2xx and a
+        // request that got no response both count as failures.
+        NativeHttpTransport.Response record(Post post) throws IOException {
+            attempts.increment();
+            long startedAt = System.nanoTime();
+            NativeHttpTransport.Response response;
+            try {
+                response = post.send();
+            } catch (IOException | RuntimeException exception) {
+                failures.increment();
+                latencyMs.record(elapsedMs(startedAt));
+                throw exception;
+            }
+            if (response.isSuccessful()) {
+                successes.increment();
+            } else {
+                failures.increment();
+            }
+            bytesSent.add(response.wireBytes);
+            latencyMs.record(elapsedMs(startedAt));
+            return response;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("attempts", attempts.sum());
+            json.put("successes", successes.sum());
+            json.put("failures", failures.sum());
+            json.put("bytesSent", bytesSent.sum());
+            json.put("latencyMs", latencyMs.toJson());
+            return json;
+        }
+
+        private static long elapsedMs(long startedAt) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+        }
+    }
+
+    final LongAdder fixesReceived = new LongAdder();
+    final LongAdder watchdogRestarts = new LongAdder();
+    final Requests locationPosts = new Requests();
+    final Requests geofencePosts = new Requests();
+    final Requests routeEventPosts = new Requests();
+    // Runs of GeofenceTransitionWorker, and those that ended asking for a retry.
+    final LongAdder geofenceRuns = new LongAdder();
+    final LongAdder geofenceRetries = new LongAdder();
+    final LatencyHistogram wakeLockHoldMs = new LatencyHistogram();
+    private final LongAdder wakeLockHeldMs = new LongAdder();
+    // Time the wake lock was acquired, -1 while it is not held.
+    private final AtomicLong wakeLockAcquiredAtMs = new AtomicLong(-1);
+
+    static DeliveryMetrics shared() {
+        return SHARED;
+    }
+
+    // Times are on a monotonic clock that keeps running in deep sleep
+    // (SystemClock.elapsedRealtime() on the device).
+    void wakeLockAcquired(long nowMs) {
+        wakeLockAcquiredAtMs.compareAndSet(-1, nowMs);
+    }
+
+    void wakeLockReleased(long nowMs) {
+        long acquiredAtMs = wakeLockAcquiredAtMs.getAndSet(-1);
+        if (acquiredAtMs >= 0) {
+            long heldMs = Math.max(0L, nowMs - acquiredAtMs);
+            wakeLockHeldMs.add(heldMs);
+            wakeLockHoldMs.record(heldMs);
+        }
+    }
+
+    // Total wake lock time, including the hold in progress.
+    long wakeLockHeldMs(long nowMs) {
+        long acquiredAtMs = wakeLockAcquiredAtMs.get();
+        return wakeLockHeldMs.sum() + (acquiredAtMs >= 0 ? Math.max(0L, nowMs - acquiredAtMs) : 0);
+    }
+
+    // Everything as the JSON returned by getDiagnostics(). geofenceQueueDepth
+    // is -1 when the queue could not be read.
+    JSONObject toJson(List<LocationSink> sinks, int geofenceQueueDepth, long nowMs) throws JSONException {
+        JSONArray sinkStats = new JSONArray();
+        long queuedLocations = 0;
+        for (LocationSink sink : sinks) {
+            JSONObject stats = sinkJson(sink);
+            queuedLocations += stats.optLong("queued", 0);
+            sinkStats.put(stats);
+        }
+
+        JSONObject fixes = new JSONObject();
+        fixes.put("received", fixesReceived.sum());
+
+        JSONObject queueDepth = new JSONObject();
+        queueDepth.put("locations", queuedLocations);
+        queueDepth.put("geofences", geofenceQueueDepth);
+
+        JSONObject geofenceWorker = new JSONObject();
+        geofenceWorker.put("runs", geofenceRuns.sum());
+        geofenceWorker.put("retries", geofenceRetries.sum());
+
+        JSONObject wakeLock = new JSONObject();
+        wakeLock.put("held", wakeLockAcquiredAtMs.get() >= 0);
+        wakeLock.put("heldMs", wakeLockHeldMs(nowMs));
+        wakeLock.put("holdMs", wakeLockHoldMs.toJson());
+
+        NativeHttpTransport transport = NativeHttpTransport.shared();
+        JSONObject lanes = new JSONObject();
+        lanes.put("high", laneJson(transport.laneStats(DeliveryScheduler.Lane.HIGH)));
+        lanes.put("bulk", laneJson(transport.laneStats(DeliveryScheduler.Lane.BULK)));
+
+        JSONObject json = new JSONObject();
+        json.put("fixes", fixes);
+        json.put("locationPosts", locationPosts.toJson());
+        json.put("geofencePosts", geofencePosts.toJson());
+        json.put("routeEventPosts", routeEventPosts.toJson());
+        json.put("geofenceWorker", geofenceWorker);
+        json.put("queueDepth", queueDepth);
+        json.put("lanes", lanes);
+        json.put("watchdogRestarts", watchdogRestarts.sum());
+        json.put("wakeLock", wakeLock);
+        json.put("sinks", sinkStats);
+        return json;
+    }
+
+    private static JSONObject sinkJson(LocationSink sink) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("name", sink.name());
+        if (sink instanceof HttpLocationSink) {
+            HttpLocationSink http = (HttpLocationSink) sink;
+            json.put("type", SinkConfig.TYPE_HTTP);
+            json.put("filtered", http.filteredFixes());
+            json.put("shed", http.shedRecords());
+            json.put("queued", http.queuedRecords());
+            json.put("dropped", http.droppedRecords());
+        } else if (sink instanceof FileLocationSink) {
+            FileLocationSink file = (FileLocationSink) sink;
+            json.put("type", SinkConfig.TYPE_FILE);
+            json.put("filtered", file.filteredFixes());
+            json.put("shed", file.shedRecords());
+        }
+        return json;
+    }
+
+    private static JSONObject laneJson(DeliveryScheduler.LaneStats stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("waiting", stats.waiting);
+        json.put("inFlight", stats.inFlight);
+        json.put("completed", stats.completed);
+        json.put("peakWaiting", stats.peakWaiting);
+        return json;
+    }
+}
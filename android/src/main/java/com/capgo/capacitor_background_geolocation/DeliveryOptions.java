@@ -0,0 +1,252 @@
+package com.capgo.capacitor_background_geolocation;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Tuning for native location delivery, read from the start() options and
+// persisted by LocationStore so a sticky service restart keeps the same
+// behaviour.
+final class DeliveryOptions {
+
+    static final int DEFAULT_BATCH_SIZE = 1;
+    static final long DEFAULT_BATCH_MAX_DELAY_MS = 60000;
+    static final int DEFAULT_BATCH_MAX_BYTES = 256 * 1024;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ORIGIN = NativeHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ORIGIN;
+    static final int DEFAULT_BUFFER_SIZE = 256;
+    static final int DEFAULT_BUFFER_THIN_EVERY = 2;
+    static final long DEFAULT_BUFFER_WINDOW_MS = 60000;
+    static final String FORMAT_JSON = "json";
+    static final String FORMAT_BINARY = "binary";
+
+    static final DeliveryOptions DEFAULT = new Builder().build();
+
+    // Maximum number of locations per POST. 1 keeps the original one JSON
+    // object per request; anything larger POSTs a JSON array.
+    final int batchSize;
+    // Longest time a location may wait for its batch to fill up.
+    final long batchMaxDelayMs;
+    // Upper bound for the serialized locations of a single batch.
+    final int batchMaxBytes;
+    // Content-Encoding for POST bodies ("gzip" or "deflate"), or null.
+    final String compression;
+    // Cap on concurrent native POSTs to the url's origin, enforced by
+    // DeliveryScheduler. Not the size of the platform's connection pool.
+    // Raised when several sinks share an origin (see
+    // NativeHttpTransport.configure).
+    final int maxConnectionsPerOrigin;
+    // Response header carrying a server-requested pause (Retry-After syntax),
+    // or null.
+    final String rateHintHeader;
+    // Wire format of new locations: FORMAT_JSON or FORMAT_BINARY.
+    final String format;
+    // Records held in memory while the uploader thread is busy, and what to
+    // shed once they do not fit (see LocationBuffer).
+    final int bufferSize;
+    final String bufferPolicy;
+    // Keep one record in bufferThinEvery when thinning.
+    final int bufferThinEvery;
+    // Window of fix time for LocationBuffer.POLICY_FIRST_LAST.
+    final long bufferWindowMs;
+    // Network and power conditions uploads wait for.
+    final UploadPolicy uploadPolicy;
+    // Fields and static envelope of JSON locations; binary records keep their
+    // fixed layout.
+    final LocationSerializer.Projection projection;
+
+    private DeliveryOptions(Builder builder) {
+        this.batchSize = builder.batchSize;
+        this.batchMaxDelayMs = builder.batchMaxDelayMs;
+        this.batchMaxBytes = builder.batchMaxBytes;
+        this.compression = builder.compression;
+        this.maxConnectionsPerOrigin = builder.maxConnectionsPerOrigin;
+        this.rateHintHeader = builder.rateHintHeader;
+        this.format = builder.format;
+        this.bufferSize = builder.bufferSize;
+        this.bufferPolicy = builder.bufferPolicy;
+        this.bufferThinEvery = builder.bufferThinEvery;
+        this.bufferWindowMs = builder.bufferWindowMs;
+        this.uploadPolicy = new UploadPolicy(builder.uploadNetwork, builder.uploadRequiresCharging);
+        this.projection = builder.fields == LocationSerializer.ALL_FIELDS && builder.envelope == null
+            ? LocationSerializer.Projection.ALL
+            : new LocationSerializer.Projection(builder.fields, builder.envelope);
+    }
+
+    // Reads the options of start() or of one of its sinks. Values are clamped
+    // by the builder; unsupported strings fall back to the defaults.
+    static DeliveryOptions fromJson(JSONObject options) {
+        return new Builder()
+            .setBatchSize(options.optInt("batchSize", DEFAULT_BATCH_SIZE))
+            .setBatchMaxDelayMs(options.optLong("batchMaxDelayMs", DEFAULT_BATCH_MAX_DELAY_MS))
+            .setBatchMaxBytes(options.optInt("batchMaxBytes", DEFAULT_BATCH_MAX_BYTES))
+            .setCompression(options.optString("compression", null))
+            .setMaxConnectionsPerOrigin(options.optInt("maxConnectionsPerOrigin", DEFAULT_MAX_CONNECTIONS_PER_ORIGIN))
+            .setRateHintHeader(options.optString("rateHintHeader", null))
+            .setFormat(options.optString("format", null))
+            .setBufferSize(options.optInt("bufferSize", DEFAULT_BUFFER_SIZE))
+            .setBufferPolicy(options.optString("bufferPolicy", null))
+            .setBufferThinEvery(options.optInt("bufferThinEvery", DEFAULT_BUFFER_THIN_EVERY))
+            .setBufferWindowMs(options.optLong("bufferWindowMs", DEFAULT_BUFFER_WINDOW_MS))
+            .setUploadNetwork(options.optString("uploadNetwork", null))
+            .setUploadRequiresCharging(options.optBoolean("uploadRequiresCharging", false))
+            .setFields(fieldsFromJson(options.optJSONArray("fields")))
+            .setEnvelope(options.optJSONObject("envelope") == null ? null : options.optJSONObject("envelope").toString())
+            .build();
+    }
+
+    // Unknown names are ignored here and reported by validate().
+    private static int fieldsFromJson(JSONArray names) {
+        if (names == null) {
+            return LocationSerializer.ALL_FIELDS;
+        }
+        int fields = 0;
+        for (int i = 0; i < names.length(); i++) {
+            fields |= LocationSerializer.field(names.optString(i, null));
+        }
+        return fields;
+    }
+
+    // Message for the first unsupported option value, or null when all of
+    // them are supported.
+    static String validate(JSONObject options) {
+        if (!RequestCompression.isSupported(options.optString("compression", null))) {
+            return "Unsupported compression, use \"gzip\", \"deflate\" or \"none\"";
+        }
+        if (!isSupportedFormat(options.optString("format", null))) {
+            return "Unsupported format, use \"json\" or \"binary\"";
+        }
+        if (!LocationBuffer.isSupportedPolicy(options.optString("bufferPolicy", null))) {
+            return "Unsupported bufferPolicy, use \"drop-oldest\", \"drop-newest\", \"thin\" or \"first-last\"";
+        }
+        if (!UploadPolicy.isSupportedNetwork(options.optString("uploadNetwork", null))) {
+            return "Unsupported uploadNetwork, use \"any\" or \"unmetered\"";
+        }
+        if (!options.isNull("fields")) {
+            JSONArray fields = options.optJSONArray("fields");
+            if (fields == null) {
+                return "fields must be an array of field names";
+            }
+            for (int i = 0; i < fields.length(); i++) {
+                if (LocationSerializer.field(fields.optString(i, null)) == 0) {
+                    return "Unsupported field \"" + fields.opt(i) + "\" in fields";
+                }
+            }
+        }
+        if (!options.isNull("envelope") && options.optJSONObject("envelope") == null) {
+            return "envelope must be an object";
+        }
+        return null;
+    }
+
+    boolean isBatching() {
+        return batchSize > 1;
+    }
+
+    boolean isBinary() {
+        return FORMAT_BINARY.equals(format);
+    }
+
+    static boolean isSupportedFormat(String format) {
+        return format == null || FORMAT_JSON.equals(format) || FORMAT_BINARY.equals(format);
+    }
+
+    static final class Builder {
+
+        private int batchSize = DEFAULT_BATCH_SIZE;
+        private long batchMaxDelayMs = DEFAULT_BATCH_MAX_DELAY_MS;
+        private int batchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+        private String compression;
+        private int maxConnectionsPerOrigin = DEFAULT_MAX_CONNECTIONS_PER_ORIGIN;
+        private String rateHintHeader;
+        private String format = FORMAT_JSON;
+        private int bufferSize = DEFAULT_BUFFER_SIZE;
+        private String bufferPolicy = LocationBuffer.POLICY_DROP_OLDEST;
+        private int bufferThinEvery = DEFAULT_BUFFER_THIN_EVERY;
+        private long bufferWindowMs = DEFAULT_BUFFER_WINDOW_MS;
+        private String uploadNetwork = UploadPolicy.NETWORK_ANY;
+        private boolean uploadRequiresCharging;
+        private int fields = LocationSerializer.ALL_FIELDS;
+        private String envelope;
+
+        Builder setBatchSize(int batchSize) {
+            this.batchSize = Math.max(1, batchSize);
+            return this;
+        }
+
+        Builder setBatchMaxDelayMs(long batchMaxDelayMs) {
+            this.batchMaxDelayMs = Math.max(0L, batchMaxDelayMs);
+            return this;
+        }
+
+        Builder setBatchMaxBytes(int batchMaxBytes) {
+            this.batchMaxBytes = Math.max(1, batchMaxBytes);
+            return this;
+        }
+
+        Builder setCompression(String compression) {
+            this.compression = RequestCompression.normalize(compression);
+            return this;
+        }
+
+        Builder setMaxConnectionsPerOrigin(int maxConnectionsPerOrigin) {
+            this.maxConnectionsPerOrigin = Math.max(1, maxConnectionsPerOrigin);
+            return this;
+        }
+
+        Builder setRateHintHeader(String rateHintHeader) {
+            this.rateHintHeader = rateHintHeader == null || rateHintHeader.trim().isEmpty() ? null : rateHintHeader.trim();
+            return this;
+        }
+
+        Builder setFormat(String format) {
+            this.format = FORMAT_BINARY.equals(format) ? FORMAT_BINARY : FORMAT_JSON;
+            return this;
+        }
+
+        Builder setBufferSize(int bufferSize) {
+            this.bufferSize = Math.max(1, bufferSize);
+            return this;
+        }
+
+        Builder setBufferPolicy(String bufferPolicy) {
+            this.bufferPolicy = bufferPolicy != null && LocationBuffer.isSupportedPolicy(bufferPolicy)
+                ? bufferPolicy
+                : LocationBuffer.POLICY_DROP_OLDEST;
+            return this;
+        }
+
+        Builder setBufferThinEvery(int bufferThinEvery) {
+            this.bufferThinEvery = Math.max(2, bufferThinEvery);
+            return this;
+        }
+
+        Builder setBufferWindowMs(long bufferWindowMs) {
+            this.bufferWindowMs = Math.max(1L, bufferWindowMs);
+            return this;
+        }
+
+        Builder setUploadNetwork(String uploadNetwork) {
+            this.uploadNetwork = uploadNetwork;
+            return this;
+        }
+
+        Builder setUploadRequiresCharging(boolean uploadRequiresCharging) {
+            this.uploadRequiresCharging = uploadRequiresCharging;
+            return this;
+        }
+
+        Builder setFields(int fields) {
+            this.fields = fields & LocationSerializer.ALL_FIELDS;
+            return this;
+        }
+
+        // JSON object text; an empty object is the same as none.
+        Builder setEnvelope(String envelope) {
+            this.envelope = envelope == null || envelope.trim().isEmpty() || "{}".equals(envelope.trim()) ? null : envelope;
+            return this;
+        }
+
+        DeliveryOptions build() {
+            return new DeliveryOptions(this);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Hands out the connection slots of one origin to native POSTs by priority
+// lane, so a geofence transition (or another urgent event) never waits behind
+// a backlog of track points.
+//
+// HIGH requests may use every slot and are always served before waiting BULK
+// requests. BULK requests leave one slot free for HIGH whenever more than one
+// connection is allowed, so an urgent event does not queue behind a slow bulk
+// upload either. Within a lane, requests start in no particular order; each
+// caller (the location uploader, the geofence drain run) already sends its
+// own queue in order.
+final class DeliveryScheduler {
+
+    enum Lane {
+        // Geofence transitions and other events the server should see first.
+        HIGH,
+        // Track points, usually drained from a backlog.
+        BULK
+    }
+
+    // Snapshot of one lane: requests waiting for a slot, in flight, finished,
+    // and the deepest the wait queue has been.
+    static final class LaneStats {
+
+        final int waiting;
+        final int inFlight;
+        final long completed;
+        final int peakWaiting;
+
+        LaneStats(int waiting, int inFlight, long completed, int peakWaiting) {
+            this.waiting = waiting;
+            this.inFlight = inFlight;
+            this.completed = completed;
+            this.peakWaiting = peakWaiting;
+        }
+
+        LaneStats plus(LaneStats other) {
+            return new LaneStats(
+                waiting + other.waiting,
+                inFlight + other.inFlight,
+                completed + other.completed,
+                Math.max(peakWaiting, other.peakWaiting)
+            );
+        }
+    }
+
+    static final LaneStats NO_STATS = new LaneStats(0, 0, 0, 0);
+
+    private final int[] waiting = new int[Lane.values().length];
+    private final int[] inFlight = new int[Lane.values().length];
+    private final long[] completed = new long[Lane.values().length];
+    private final int[] peakWaiting = new int[Lane.values().length];
+    private int maxConcurrent;
+
+    DeliveryScheduler(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    synchronized void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        notifyAll();
+    }
+
+    // Maximum number of requests of a lane in flight at once.
+    synchronized int concurrency(Lane lane) {
+        if (lane == Lane.HIGH || maxConcurrent == 1) {
+            return maxConcurrent;
+        }
+        return maxConcurrent - 1;
+    }
+
+    // Blocks until a request of this lane may start. Every successful call
+    // must be paired with release().
+    synchronized void acquire(Lane lane) throws InterruptedException {
+        int index = lane.ordinal();
+        waiting[index]++;
+        peakWaiting[index] = Math.max(peakWaiting[index], waiting[index]);
+        try {
+            while (!canStart(lane)) {
+                wait();
+            }
+            inFlight[index]++;
+        } finally {
+            waiting[index]--;
+            // A HIGH request that stopped waiting may unblock BULK ones.
+            notifyAll();
+        }
+    }
+
+    synchronized void release(Lane lane) {
+        int index = lane.ordinal();
+        inFlight[index]--;
+        completed[index]++;
+        notifyAll();
+    }
+
+    synchronized LaneStats stats(Lane lane) {
+        int index = lane.ordinal();
+        return new LaneStats(waiting[index], inFlight[index], completed[index], peakWaiting[index]);
+    }
+
+    private boolean canStart(Lane lane) {
+        int total = 0;
+        for (int count : inFlight) {
+            total += count;
+        }
+        if (total >= maxConcurrent || inFlight[lane.ordinal()] >= concurrency(lane)) {
+            return false;
+        }
+        return lane == Lane.HIGH || waiting[Lane.HIGH.ordinal()] == 0;
+    }
+}
@@ -0,0 +1,60 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// POSTs the getDiagnostics() snapshot to a metrics url every intervalMs, so a
+// fleet can be watched without the app asking each device.
+//
+// Best effort: the counters are cumulative, so a failed POST is only logged
+// and the next snapshot carries everything it would have. Nothing is queued
+// on disk and failures do not count in the location POST metrics.
+final class DiagnosticsReporter {
+
+    static final long DEFAULT_INTERVAL_MS = 15 * 60 * 1000L;
+    static final long MIN_INTERVAL_MS = 60 * 1000L;
+
+    interface Snapshot {
+        JSONObject take() throws JSONException;
+    }
+
+    interface Sender {
+        void send(byte[] body) throws IOException;
+    }
+
+    final String url;
+    final long intervalMs;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final Snapshot snapshot;
+    private final Sender sender;
+
+    DiagnosticsReporter(String url, long intervalMs, Snapshot snapshot, Sender sender) {
+        this.url = url;
+        this.intervalMs = intervalMs;
+        this.snapshot = snapshot;
+        this.sender = sender;
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        executor.scheduleWithFixedDelay(this::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    static long clampIntervalMs(long intervalMs) {
+        return intervalMs <= 0 ? DEFAULT_INTERVAL_MS : Math.max(MIN_INTERVAL_MS, intervalMs);
+    }
+
+    void close() {
+        executor.shutdown();
+    }
+
+    private void report() {
+        try {
+            sender.send(snapshot.take().toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | JSONException exception) {
+            Logger.error("Could not report diagnostics", exception);
+        }
+    }
+}
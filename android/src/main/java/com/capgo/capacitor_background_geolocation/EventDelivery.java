@@ -0,0 +1,91 @@
+package com.capgo.capacitor_background_geolocation;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.ListenableWorker;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import com.getcapacitor.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Queue, drain scheduling and server-requested pause of one kind of event
+// POSTed natively one by one (geofence transitions, route deviations). Each
+// kind has its own EventQueue in no-backup storage, its own unique WorkManager
+// chain drained by its worker, and its own pause, so a server slowing down one
+// kind does not hold back the other.
+final class EventDelivery {
+
+    private static final String KEY_PAUSED_UNTIL = "pausedUntil";
+    private static final String DELIVERED_FILE = "delivered";
+
+    private final String label;
+    private final String prefsName;
+    private final String outboxDirectory;
+    private final String workName;
+    private final Class<? extends ListenableWorker> workerClass;
+    private EventQueue queue;
+
+    // label names the events in the log; the pause is kept in the prefsName
+    // preferences.
+    EventDelivery(String label, String prefsName, String outboxDirectory, String workName, Class<? extends ListenableWorker> workerClass) {
+        this.label = label;
+        this.prefsName = prefsName;
+        this.outboxDirectory = outboxDirectory;
+        this.workName = workName;
+        this.workerClass = workerClass;
+    }
+
+    // Shared queue of events waiting for delivery, together with the set of
+    // events already delivered.
+    synchronized EventQueue queue(Context context) throws IOException {
+        if (queue == null) {
+            Context appContext = context.getApplicationContext();
+            File directory = new File(appContext.getNoBackupFilesDir(), outboxDirectory);
+            LocationOutbox outbox = LocationOutbox.open(directory, EventQueue.SEGMENT_BYTES, EventQueue.MAX_QUEUE_BYTES);
+            DeliveredRecords delivered = new DeliveredRecords(new File(directory, DELIVERED_FILE), DeliveredRecords.DEFAULT_CAPACITY);
+            queue = new EventQueue(outbox, delivered, (delayMs) -> scheduleDrain(appContext, delayMs), label);
+        }
+        return queue;
+    }
+
+    // Persists an event; a drain run picks it up once any pause is over.
+    void enqueue(Context context, byte[] event) throws IOException {
+        queue(context).enqueue(event, pauseRemainingMs(context));
+    }
+
+    // Milliseconds left of the last pause the server asked for, 0 when none.
+    long pauseRemainingMs(Context context) {
+        long remainingMs = prefs(context).getLong(KEY_PAUSED_UNTIL, 0L) - System.currentTimeMillis();
+        return Math.min(Math.max(0L, remainingMs), RetryPolicy.MAX_PAUSE_MS + RetryPolicy.MAX_SPREAD_MS);
+    }
+
+    // Holds back events for the pause the server asked for, spread per device
+    // like native location delivery.
+    void pause(Context context, long requestedPauseMs) {
+        long pauseMs = RetryPolicy.DEFAULT.forInstallation(LocationStore.getInstallationId(context)).pauseMs(requestedPauseMs);
+        Logger.debug("Server asked to pause " + label + " POSTs for " + requestedPauseMs + "ms, next POST in " + pauseMs + "ms");
+        prefs(context).edit().putLong(KEY_PAUSED_UNTIL, System.currentTimeMillis() + pauseMs).apply();
+    }
+
+    // Appends a drain run to the unique work chain, held back by delayMs while
+    // the server asked for a pause. APPEND_OR_REPLACE queues it behind a run
+    // that is finishing and starts a fresh chain if the previous one failed or
+    // was cancelled.
+    private void scheduleDrain(Context context, long delayMs) {
+        Constraints constraints = new Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build();
+        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(workerClass)
+            .setConstraints(constraints)
+            .setInitialDelay(Math.max(0L, delayMs), TimeUnit.MILLISECONDS)
+            .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(workName, ExistingWorkPolicy.APPEND_OR_REPLACE, request);
+    }
+
+    private SharedPreferences prefs(Context context) {
+        return context.getSharedPreferences(prefsName, Context.MODE_PRIVATE);
+    }
+}
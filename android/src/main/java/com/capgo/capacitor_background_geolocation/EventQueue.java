@@ -0,0 +1,143 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+import java.io.IOException;
+import java.util.function.LongSupplier;
+
+// Persistent queue of events (geofence transitions, route deviations) waiting
+// to be POSTed one by one, drained by a single unique WorkManager run instead
+// of one job per event. EventDelivery holds one queue per kind of event.
+//
+// Events are appended to a LocationOutbox. Only the first event of a burst
+// schedules the worker; the rest are picked up by the same run. The
+// running/scheduled flags are process-local and guarded by this queue's lock,
+// which also covers the worker's final emptiness check, so an event that
+// arrives while a run is finishing is never left behind: either the run sees
+// it, or the run has already given up its slot and a new one is scheduled.
+// After a process restart the flags start clear, which at worst schedules one
+// extra run.
+//
+// Events the server acknowledged are remembered in a DeliveredRecords set
+// before they leave the queue, so a run retried after its event was already
+// delivered (or a crash in between) does not send it twice. The label names
+// what is queued in the log.
+final class EventQueue {
+
+    static final long SEGMENT_BYTES = 64 * 1024;
+    static final long MAX_QUEUE_BYTES = 1024 * 1024;
+
+    interface Scheduler {
+        // Enqueues a drain run after delayMs, appended to the unique chain.
+        void schedule(long delayMs);
+    }
+
+    interface Sender {
+        void send(byte[] event) throws IOException;
+    }
+
+    enum Outcome {
+        // The queue is empty.
+        DRAINED,
+        // The server asked for a pause; another run has been scheduled.
+        PAUSED,
+        // Delivery failed; let WorkManager retry this run with backoff.
+        RETRY
+    }
+
+    private final LocationOutbox outbox;
+    private final DeliveredRecords delivered;
+    private final Scheduler scheduler;
+    private final String label;
+    private boolean running;
+    private boolean scheduled;
+
+    EventQueue(LocationOutbox outbox, DeliveredRecords delivered, Scheduler scheduler, String label) {
+        this.outbox = outbox;
+        this.delivered = delivered;
+        this.scheduler = scheduler;
+        this.label = label;
+    }
+
+    // Persists an event and makes sure a drain run will pick it up, held back
+    // by delayMs while the server asked for a pause.
+    synchronized void enqueue(byte[] event, long delayMs) throws IOException {
+        outbox.append(event);
+        if (!running && !scheduled) {
+            scheduled = true;
+            scheduler.schedule(delayMs);
+        }
+    }
+
+    synchronized int size() {
+        return outbox.size();
+    }
+
+    // Sends queued events in order until the queue is empty, the server asks
+    // for a pause (pauseRemainingMs > 0) or delivery fails. Events the server
+    // rejects outright are dropped so they do not block the rest.
+    Outcome drain(Sender sender, LongSupplier pauseRemainingMs) {
+        synchronized (this) {
+            running = true;
+            scheduled = false;
+        }
+        try {
+            while (true) {
+                long pauseMs = pauseRemainingMs.getAsLong();
+                if (pauseMs > 0) {
+                    synchronized (this) {
+                        running = false;
+                        scheduled = true;
+                        scheduler.schedule(pauseMs);
+                    }
+                    return Outcome.PAUSED;
+                }
+                LocationOutbox.Batch batch = outbox.peek(1, MAX_QUEUE_BYTES);
+                if (batch.isEmpty()) {
+                    synchronized (this) {
+                        if (outbox.isEmpty()) {
+                            running = false;
+                            return Outcome.DRAINED;
+                        }
+                    }
+                    continue;
+                }
+                if (delivered.pending(batch.records).isEmpty()) {
+                    outbox.acknowledge(batch);
+                    continue;
+                }
+                try {
+                    sender.send(batch.records.get(0));
+                    remember(batch);
+                } catch (HttpStatusException exception) {
+                    if (exception.retryAfterMs > 0) {
+                        // The sender recorded the pause; the next pass sees it.
+                        continue;
+                    }
+                    if (exception.isRetryable()) {
+                        throw exception;
+                    }
+                    Logger.error("POST of queued " + label + " rejected, dropping it", exception);
+                }
+                outbox.acknowledge(batch);
+            }
+        } catch (IOException | RuntimeException exception) {
+            Logger.error("Failed to send " + label, exception);
+            synchronized (this) {
+                running = false;
+                // WorkManager re-runs this work, which counts as the next run.
+                scheduled = true;
+            }
+            return Outcome.RETRY;
+        }
+    }
+
+    // Losing this only costs the protection against replays, so the event is
+    // still acknowledged.
+    private void remember(LocationOutbox.Batch batch) {
+        try {
+            delivered.addAll(batch.records);
+        } catch (IOException exception) {
+            Logger.error("Could not persist delivered " + label, exception);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// LocationSink that records fixes on the device, into the rolling segment
+// files of RollingLocationFile, instead of sending them anywhere. Works
+// without a url, so tracks survive the WebView being gone for apps that sync
+// them over their own channel.
+//
+// Fixes are encoded on the caller's thread and written on the sink's own
+// thread. At most bufferSize fixes wait for that thread; further ones are
+// shed and counted, as with the HTTP sinks.
+final class FileLocationSink implements LocationSink {
+
+    private static final long MIN_TICK_MS = 1000L;
+
+    private final LocationSerializer serializer = new LocationSerializer();
+    private final LocationFilter filter;
+    private final RollingLocationFile file;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile SinkConfig config;
+    // Only written by the thread that calls accept().
+    private volatile long filteredFixes;
+    private volatile long shedRecords;
+    private ScheduledFuture<?> ticker;
+
+    FileLocationSink(SinkConfig config, File directory) throws IOException {
+        this.config = config;
+        this.filter = new LocationFilter(config.minIntervalMs, config.distanceFilter);
+        this.file = new RollingLocationFile(
+            directory,
+            config.deliveryOptions.isBinary(),
+            config.maxFileBytes,
+            config.maxFileAgeMs,
+            config.syncIntervalMs
+        );
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduleTicks(config);
+    }
+
+    @Override
+    public String name() {
+        return config.name;
+    }
+
+    @Override
+    public void accept(LocationSerializer.Sample sample) {
+        if (!filter.accept(sample)) {
+            filteredFixes++;
+            return;
+        }
+        if (pending.get() >= config.deliveryOptions.bufferSize) {
+            shedRecords++;
+            return;
+        }
+        pending.incrementAndGet();
+        if (file.isBinary()) {
+            LocationFix fix = LocationFix.fromSample(sample);
+            executor.execute(() -> write(() -> file.appendFix(fix, System.currentTimeMillis())));
+        } else {
+            serializer.writeJson(sample, LocationSerializer.SOURCE_NATIVE, config.deliveryOptions.projection);
+            byte[] json = serializer.toByteArray();
+            executor.execute(() -> write(() -> file.appendJson(json, System.currentTimeMillis())));
+        }
+    }
+
+    // A new format needs a new segment writer, so the caller replaces the sink.
+    @Override
+    public boolean reconfigure(SinkConfig config) {
+        if (!SinkConfig.TYPE_FILE.equals(config.type) || config.deliveryOptions.isBinary() != file.isBinary()) {
+            return false;
+        }
+        this.config = config;
+        filter.configure(config.minIntervalMs, config.distanceFilter);
+        executor.execute(() -> {
+            file.configure(config.maxFileBytes, config.maxFileAgeMs, config.syncIntervalMs);
+            scheduleTicks(config);
+        });
+        return true;
+    }
+
+    // Closes the open segment so everything recorded so far can be listed.
+    // Waits for the pending writes, up to timeoutMs.
+    boolean closeSegment(long timeoutMs) {
+        try {
+            executor.submit(this::closeFile).get(timeoutMs, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception exception) {
+            // Also thrown when the sink was closed in the meantime, which
+            // closed the segment anyway.
+            Logger.error("Could not close the location recording segment", exception);
+            return false;
+        }
+    }
+
+    // Nothing waits for a server, so both close the open segment.
+    @Override
+    public void flushAndClose() {
+        close();
+    }
+
+    @Override
+    public void close() {
+        executor.execute(this::closeFile);
+        executor.shutdown();
+    }
+
+    long filteredFixes() {
+        return filteredFixes;
+    }
+
+    long shedRecords() {
+        return shedRecords;
+    }
+
+    private interface Write {
+        void run() throws IOException;
+    }
+
+    private void write(Write write) {
+        pending.decrementAndGet();
+        try {
+            write.run();
+        } catch (IOException exception) {
+            Logger.error("Could not record location", exception);
+        }
+    }
+
+    private void closeFile() {
+        try {
+            file.closeSegment();
+        } catch (IOException exception) {
+            Logger.error("Could not close the location recording segment", exception);
+        }
+    }
+
+    // Ticks close segments that got too old while no fix arrived, and sync the
+    // last fixes of a burst without waiting for the next one.
+    private void scheduleTicks(SinkConfig config) {
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+        long periodMs = Math.max(MIN_TICK_MS, Math.min(config.syncIntervalMs, config.maxFileAgeMs));
+        ticker = executor.scheduleWithFixedDelay(this::tick, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        try {
+            file.tick(System.currentTimeMillis());
+        } catch (IOException exception) {
+            Logger.error("Could not sync the location recording", exception);
+        }
+    }
+}
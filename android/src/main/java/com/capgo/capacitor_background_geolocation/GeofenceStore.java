@@ -2,20 +2,13 @@ package com.capgo.capacitor_background_geolocation;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import androidx.work.Constraints;
-import androidx.work.Data;
-import androidx.work.NetworkType;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Logger;
 import com.google.android.gms.location.Geofence;
 import com.google.android.gms.location.GeofencingRequest;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -37,8 +30,19 @@ final class GeofenceStore {
     private static final String KEY_NOTIFY_ON_EXIT = "notifyOnExit";
     private static final String KEY_BACKGROUND_LOCATION = "backgroundLocation";
     private static final String KEY_PAYLOAD = "payload";
+    private static final String KEY_COMPRESSION = "compression";
     private static final String KEY_REGION_IDS = "regionIds";
     private static final String KEY_REGION_PREFIX = "region.";
+    private static final String OUTBOX_DIRECTORY = "CapgoBackgroundGeolocationGeofenceOutbox";
+    private static final String DRAIN_WORK_NAME = "CapgoGeofenceTransitions";
+
+    private static final EventDelivery DELIVERY = new EventDelivery(
+        "geofence transition",
+        PREFS_NAME,
+        OUTBOX_DIRECTORY,
+        DRAIN_WORK_NAME,
+        GeofenceTransitionWorker.class
+    );
 
     private GeofenceStore() {}
 
@@ -49,7 +53,8 @@ final class GeofenceStore {
         boolean notifyOnExit,
         JSONObject payload,
         boolean backgroundLocation,
-        Map<String, String> headers
+        Map<String, String> headers,
+        String compression
     ) {
         SharedPreferences.Editor editor = prefs(context).edit();
         if (url == null || url.isEmpty()) {
@@ -63,6 +68,7 @@ final class GeofenceStore {
         editor.putBoolean(KEY_NOTIFY_ON_EXIT, notifyOnExit);
         editor.putBoolean(KEY_BACKGROUND_LOCATION, backgroundLocation);
         editor.putString(KEY_PAYLOAD, payload == null ? new JSONObject().toString() : payload.toString());
+        editor.putString(KEY_COMPRESSION, RequestCompression.normalize(compression));
         editor.apply();
     }
 
@@ -78,6 +84,10 @@ final class GeofenceStore {
         return prefs(context).getString(KEY_URL, null);
     }
 
+    static String getCompression(Context context) {
+        return prefs(context).getString(KEY_COMPRESSION, null);
+    }
+
     static boolean getNotifyOnEntry(Context context) {
         return prefs(context).getBoolean(KEY_NOTIFY_ON_ENTRY, true);
     }
@@ -202,47 +212,79 @@ final class GeofenceStore {
         if (getUrl(context) == null || getUrl(context).isEmpty()) {
             return;
         }
-        Data inputData = new Data.Builder().putString(EXTRA_GEOFENCE_PAYLOAD, data.toString()).build();
-        Constraints constraints = new Constraints.Builder().setRequiredNetworkType(NetworkType.CONNECTED).build();
-        OneTimeWorkRequest request = new OneTimeWorkRequest.Builder(GeofenceTransitionWorker.class)
-            .setInputData(inputData)
-            .setConstraints(constraints)
-            .build();
-        WorkManager.getInstance(context).enqueue(request);
+        try {
+            // Queued with its id, so every retry of this transition carries the
+            // same one.
+            data.put(
+                DeliveryIds.FIELD,
+                DeliveryIds.eventId(LocationStore.getInstallationId(context), System.currentTimeMillis(), DeliveryIds.nextSequence())
+            );
+            DELIVERY.enqueue(context, data.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | JSONException exception) {
+            Logger.error("Could not queue geofence transition", exception);
+        }
+    }
+
+    // Shared queue of transitions waiting for delivery. It lives in no-backup
+    // storage next to the location outbox.
+    static EventQueue transitionQueue(Context context) throws IOException {
+        return DELIVERY.queue(context);
     }
 
-    static void sendTransition(Context context, JSONObject data) throws IOException {
+    // Transitions waiting for delivery, -1 when the queue cannot be opened.
+    static int queuedTransitions(Context context) {
+        try {
+            return transitionQueue(context).size();
+        } catch (IOException exception) {
+            Logger.error("Could not open geofence transition queue", exception);
+            return -1;
+        }
+    }
+
+    // Milliseconds left of the last pause the server asked for, 0 when none.
+    static long pauseRemainingMs(Context context) {
+        return DELIVERY.pauseRemainingMs(context);
+    }
+
+    // POSTs one queued transition. Returns without sending when geofence
+    // delivery was turned off since it was queued.
+    static void sendTransition(Context context, byte[] body) throws IOException {
         String urlString = getUrl(context);
         if (urlString == null || urlString.isEmpty()) {
             return;
         }
-        HttpURLConnection connection = null;
-        try {
-            URL url = new URL(urlString);
-            byte[] body = data.toString().getBytes(StandardCharsets.UTF_8);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setConnectTimeout(15000);
-            connection.setReadTimeout(15000);
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Content-Length", String.valueOf(body.length));
-            for (Map.Entry<String, String> header : getHeaders(context).entrySet()) {
-                connection.setRequestProperty(header.getKey(), header.getValue());
-            }
-            try (OutputStream outputStream = connection.getOutputStream()) {
-                outputStream.write(body);
-            }
-            int responseCode = connection.getResponseCode();
-            Logger.debug("Geofence transition POST finished with response code: " + responseCode);
-            if (responseCode < HttpURLConnection.HTTP_OK || responseCode >= HttpURLConnection.HTTP_MULT_CHOICE) {
-                throw new IOException("Geofence transition POST failed with response code: " + responseCode);
-            }
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+        // Transitions are time sensitive, so they take the high priority lane
+        // ahead of any location backlog going to the same server.
+        Map<String, String> headers = LocationStore.withIdempotencyKey(
+            getHeaders(context),
+            DeliveryIds.idempotencyKey(Collections.singletonList(body))
+        );
+        String compression = getCompression(context);
+        NativeHttpTransport.Response response = DeliveryMetrics.shared().geofencePosts.record(() ->
+            NativeHttpTransport.shared().post(DeliveryScheduler.Lane.HIGH, urlString, headers, NativeHttpTransport.JSON_CONTENT_TYPE, compression, body)
+        );
+        Logger.debug(
+            "Geofence transition POST finished with response code: " +
+                response.statusCode +
+                " (" +
+                body.length +
+                " bytes, " +
+                response.wireBytes +
+                " sent)"
+        );
+        // The rate hint header is configured with the location delivery, and
+        // honored here too when it is set.
+        String rateHintHeader = LocationStore.config(context).deliveryOptions.rateHintHeader;
+        long requestedPauseMs = response.requestedPauseMs(rateHintHeader, System.currentTimeMillis());
+        if (requestedPauseMs > 0) {
+            DELIVERY.pause(context, requestedPauseMs);
+        }
+        if (!response.isSuccessful()) {
+            throw new HttpStatusException(
+                "Geofence transition POST failed with response code: " + response.statusCode,
+                response.statusCode,
+                requestedPauseMs
+            );
         }
     }
 
@@ -5,9 +5,12 @@ import androidx.annotation.NonNull;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 import com.getcapacitor.Logger;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 
+// Drains every queued geofence transition in one run. Only one run is
+// scheduled at a time (see EventQueue), so a burst of transitions
+// shares a single job and the shared keep-alive connection.
 public class GeofenceTransitionWorker extends Worker {
 
     public GeofenceTransitionWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
@@ -17,19 +20,33 @@ public class GeofenceTransitionWorker extends Worker {
     @NonNull
     @Override
     public Result doWork() {
-        String payload = getInputData().getString(GeofenceStore.EXTRA_GEOFENCE_PAYLOAD);
-        if (payload == null || payload.isEmpty()) {
-            return Result.success();
-        }
+        Context context = getApplicationContext();
+        DeliveryMetrics metrics = DeliveryMetrics.shared();
+        metrics.geofenceRuns.increment();
+        EventQueue queue;
         try {
-            GeofenceStore.sendTransition(getApplicationContext(), new JSONObject(payload));
-            return Result.success();
-        } catch (JSONException exception) {
-            Logger.error("Invalid geofence transition payload", exception);
-            return Result.failure();
-        } catch (Exception exception) {
-            Logger.error("Failed to send geofence transition", exception);
+            queue = GeofenceStore.transitionQueue(context);
+            // Work enqueued before the queue existed carries its transition in
+            // the input data; move it into the queue on the first attempt.
+            String payload = getInputData().getString(GeofenceStore.EXTRA_GEOFENCE_PAYLOAD);
+            if (payload != null && !payload.isEmpty() && getRunAttemptCount() == 0) {
+                queue.enqueue(payload.getBytes(StandardCharsets.UTF_8), 0);
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not open geofence transition queue", exception);
+            metrics.geofenceRetries.increment();
+            return Result.retry();
+        }
+        // Transitions that arrive while the server asked for a pause wait for
+        // it to end instead of going through WorkManager's own backoff.
+        EventQueue.Outcome outcome = queue.drain(
+            (transition) -> GeofenceStore.sendTransition(context, transition),
+            () -> GeofenceStore.pauseRemainingMs(context)
+        );
+        if (outcome == EventQueue.Outcome.RETRY) {
+            metrics.geofenceRetries.increment();
             return Result.retry();
         }
+        return Result.success();
     }
 }
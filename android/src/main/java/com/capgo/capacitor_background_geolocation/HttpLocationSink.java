@@ -0,0 +1,91 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.File;
+import java.io.IOException;
+
+// LocationSink that POSTs fixes to one url. Each sink has its own outbox and
+// LocationUploader thread, so a slow endpoint only holds back its own fixes;
+// connections are still pooled per origin by NativeHttpTransport.
+final class HttpLocationSink implements LocationSink {
+
+    private final LocationSerializer serializer = new LocationSerializer();
+    private final LocationSink.Filter gate;
+    private final LocationFilter filter;
+    private final LocationUploader uploader;
+    private volatile SinkConfig config;
+    // Only written by the thread that calls accept().
+    private volatile long filteredFixes;
+
+    // gate applies on top of the config's own filter; the primary sink uses it
+    // for the persisted interval gate.
+    HttpLocationSink(SinkConfig config, File outboxDirectory, LocationSink.Filter gate, RetryPolicy retryPolicy, UploadPolicy.Monitor monitor) {
+        this.config = config;
+        this.gate = gate;
+        this.filter = new LocationFilter(config.minIntervalMs, config.distanceFilter);
+        this.uploader = new LocationUploader(outboxDirectory, this::send, config.deliveryOptions, retryPolicy, monitor);
+    }
+
+    @Override
+    public String name() {
+        return config.name;
+    }
+
+    @Override
+    public void accept(LocationSerializer.Sample sample) {
+        if (!filter.accept(sample) || !gate.accept(sample)) {
+            filteredFixes++;
+            return;
+        }
+        if (config.deliveryOptions.isBinary()) {
+            LocationFix fix = LocationFix.fromSample(sample);
+            uploader.enqueue(BinaryLocationCodec.encodeRecord(fix), sample.time);
+        } else {
+            // The serializer buffer is reused; the outbox gets a right-sized copy.
+            serializer.writeJson(sample, LocationSerializer.SOURCE_NATIVE, config.deliveryOptions.projection);
+            uploader.enqueue(serializer.toByteArray(), sample.time);
+        }
+    }
+
+    @Override
+    public boolean reconfigure(SinkConfig config) {
+        if (!SinkConfig.TYPE_HTTP.equals(config.type)) {
+            return false;
+        }
+        this.config = config;
+        filter.configure(config.minIntervalMs, config.distanceFilter);
+        uploader.setOptions(config.deliveryOptions);
+        return true;
+    }
+
+    @Override
+    public void flushAndClose() {
+        uploader.flushAndShutdown(this::send);
+    }
+
+    @Override
+    public void close() {
+        uploader.shutdown();
+    }
+
+    long filteredFixes() {
+        return filteredFixes;
+    }
+
+    long shedRecords() {
+        return uploader.shedRecords();
+    }
+
+    int queuedRecords() {
+        return uploader.queuedRecords();
+    }
+
+    long droppedRecords() {
+        return uploader.droppedRecords();
+    }
+
+    // Reads the config on every request, so header updates apply to queued fixes.
+    private long send(byte[] body, String idempotencyKey) throws IOException {
+        SinkConfig config = this.config;
+        return LocationStore.post(config.url, config.headers, config.deliveryOptions, body, idempotencyKey);
+    }
+}
@@ -0,0 +1,31 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.IOException;
+
+// Thrown when a native POST reaches the server but gets a non-2xx response.
+// Carries the status code so delivery can tell a request worth retrying from
+// one the server will never accept, and how long the server asked clients to
+// back off (Retry-After on 429/503, or the configured rate-hint header).
+final class HttpStatusException extends IOException {
+
+    final int statusCode;
+    // Pause requested by the server in milliseconds, 0 when it did not ask.
+    final long retryAfterMs;
+
+    HttpStatusException(String message, int statusCode) {
+        this(message, statusCode, 0);
+    }
+
+    HttpStatusException(String message, int statusCode, long retryAfterMs) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMs = Math.max(0L, retryAfterMs);
+    }
+
+    // These codes mean the body itself was rejected, so sending it again would
+    // fail the same way. Anything else (including 401/403, which recover once
+    // updateHeaders() rotates the credentials) is worth retrying.
+    boolean isRetryable() {
+        return statusCode != 400 && statusCode != 413 && statusCode != 415 && statusCode != 422;
+    }
+}
@@ -0,0 +1,52 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.getcapacitor.JSObject;
+import org.json.JSONObject;
+
+// Writes a location for the JavaScript callback, with the values it always
+// had: coordinates and altitude at full double precision, and the fields
+// Android reports as floats as Float, so JS sees 4.1 rather than the widened
+// 4.099999904632568. Reused for every fix on the main looper; only the
+// returned object is new.
+final class JSObjectFieldSink implements LocationSerializer.FieldSink {
+
+    private JSObject obj;
+
+    JSObject write(LocationSerializer.Sample sample) {
+        obj = new JSObject();
+        LocationSerializer.write(sample, null, this);
+        JSObject result = obj;
+        obj = null;
+        return result;
+    }
+
+    @Override
+    public void number(String key, double value, int fractionDigits) {
+        obj.put(key, Double.isNaN(value) ? JSONObject.NULL : (Object) value);
+    }
+
+    @Override
+    public void floatNumber(String key, double value, int fractionDigits) {
+        obj.put(key, Double.isNaN(value) ? JSONObject.NULL : (Object) (float) value);
+    }
+
+    @Override
+    public void integer(String key, long value) {
+        obj.put(key, value);
+    }
+
+    @Override
+    public void bool(String key, boolean value) {
+        obj.put(key, value);
+    }
+
+    @Override
+    public void string(String key, String value) {
+        obj.put(key, value);
+    }
+
+    @Override
+    public void eventId(String key, String installationId, long time, long sequence) {
+        obj.put(key, DeliveryIds.eventId(installationId, time, sequence));
+    }
+}
@@ -0,0 +1,75 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Write-behind holder for the time of the last location accepted for native
+// delivery, which gates minIntervalMs.
+//
+// Writing it to SharedPreferences for every fix rewrote the whole prefs file
+// each time. Now the value lives in memory and is persisted at most once per
+// flush interval (the caller schedules flush() when markPosted() reports new
+// unsaved state) and when the service stops or is destroyed.
+//
+// After a crash the persisted value can be up to one interval old. That only
+// makes the gate more permissive, so at most one extra point is sent after a
+// restart and none are dropped.
+final class LastPostState {
+
+    static final long FLUSH_INTERVAL_MS = 30_000;
+    static final long NONE = Long.MIN_VALUE;
+
+    interface Persister {
+        void persist(long lastPostTime);
+    }
+
+    private final Persister persister;
+    private long lastPostTime;
+    private boolean dirty;
+
+    LastPostState(long persistedLastPostTime, Persister persister) {
+        this.lastPostTime = persistedLastPostTime;
+        this.persister = persister;
+    }
+
+    // Returns true when this location should be POSTed given the configured
+    // minimum interval. Points older than the last accepted time pass through.
+    synchronized boolean shouldPost(long locationTimeMs, long minIntervalMs) {
+        if (minIntervalMs <= 0 || lastPostTime == NONE) {
+            return true;
+        }
+        if (locationTimeMs < lastPostTime) {
+            return true;
+        }
+        return locationTimeMs - lastPostTime >= minIntervalMs;
+    }
+
+    // Records an accepted location. Returns true when it leaves unsaved state
+    // behind that no flush is pending for yet, i.e. the caller should schedule
+    // flush() within FLUSH_INTERVAL_MS.
+    synchronized boolean markPosted(long locationTimeMs) {
+        lastPostTime = locationTimeMs;
+        if (dirty) {
+            return false;
+        }
+        dirty = true;
+        return true;
+    }
+
+    synchronized long lastPostTime() {
+        return lastPostTime;
+    }
+
+    // Persists the latest value if it changed since the last flush.
+    synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        persister.persist(lastPostTime);
+    }
+
+    // Forgets the last post, e.g. for a new setup; the caller already removed
+    // the persisted value.
+    synchronized void reset() {
+        lastPostTime = NONE;
+        dirty = false;
+    }
+}
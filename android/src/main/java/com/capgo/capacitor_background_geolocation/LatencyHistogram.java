@@ -0,0 +1,84 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Lock-free histogram of durations in milliseconds, for diagnostics.
+//
+// Bucket 0 counts zeros and bucket i counts values in [2^(i-1), 2^i), so a
+// percentile is reported as the upper bound of its bucket: within a factor of
+// two, which tells a 50 ms POST from a 5 s one, in a fixed array and without
+// allocating per value. The max is exact.
+final class LatencyHistogram {
+
+    static final int BUCKETS = 32;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long valueMs) {
+        long value = Math.max(0L, valueMs);
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    long max() {
+        return max.get();
+    }
+
+    // Upper bound of the bucket holding the given fraction of the values, at
+    // most the max. 0 when nothing was recorded.
+    long percentile(double fraction) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(Math.min(Math.max(0, fraction), 1) * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    JSONObject toJson() throws JSONException {
+        long count = count();
+        JSONObject json = new JSONObject();
+        json.put("count", count);
+        json.put("mean", count == 0 ? 0 : sum.sum() / count);
+        json.put("p50", percentile(0.50));
+        json.put("p90", percentile(0.90));
+        json.put("p99", percentile(0.99));
+        json.put("max", max.get());
+        return json;
+    }
+
+    static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
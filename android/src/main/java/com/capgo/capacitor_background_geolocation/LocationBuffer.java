@@ -0,0 +1,154 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+// Bounded hand-off between the thread that receives fixes and the uploader
+// thread, which may be stuck in a POST for a whole connect/read timeout.
+//
+// Records wait here until the uploader moves them to the outbox. When the
+// buffer is full, the configured policy decides which records are shed:
+// - POLICY_DROP_OLDEST drops the oldest buffered record;
+// - POLICY_DROP_NEWEST drops the record being added;
+// - POLICY_THIN keeps every thinEvery-th buffered record, counting back from
+//   the newest, so the track loses resolution instead of a whole stretch;
+// - POLICY_FIRST_LAST keeps the first and last record of every windowMs
+//   window of fix time, and drops the oldest when that frees nothing.
+// Shed records are counted so the loss shows up in diagnostics.
+final class LocationBuffer {
+
+    static final String POLICY_DROP_OLDEST = "drop-oldest";
+    static final String POLICY_DROP_NEWEST = "drop-newest";
+    static final String POLICY_THIN = "thin";
+    static final String POLICY_FIRST_LAST = "first-last";
+
+    private static final class Entry {
+
+        final byte[] record;
+        final long timeMs;
+
+        Entry(byte[] record, long timeMs) {
+            this.record = record;
+            this.timeMs = timeMs;
+        }
+    }
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int capacity;
+    private String policy;
+    private int thinEvery;
+    private long windowMs;
+    private long shedRecords;
+
+    LocationBuffer(DeliveryOptions options) {
+        configure(options);
+    }
+
+    static boolean isSupportedPolicy(String policy) {
+        return (
+            policy == null ||
+            POLICY_DROP_OLDEST.equals(policy) ||
+            POLICY_DROP_NEWEST.equals(policy) ||
+            POLICY_THIN.equals(policy) ||
+            POLICY_FIRST_LAST.equals(policy)
+        );
+    }
+
+    // Applies new options. A smaller capacity sheds the excess right away.
+    synchronized void configure(DeliveryOptions options) {
+        capacity = options.bufferSize;
+        policy = options.bufferPolicy;
+        thinEvery = options.bufferThinEvery;
+        windowMs = options.bufferWindowMs;
+        while (entries.size() > capacity) {
+            entries.pollFirst();
+            shedRecords++;
+        }
+    }
+
+    // Buffers a record. Returns false when the record itself was shed.
+    synchronized boolean offer(byte[] record, long timeMs) {
+        if (entries.size() >= capacity && !makeRoom()) {
+            shedRecords++;
+            return false;
+        }
+        entries.addLast(new Entry(record, timeMs));
+        return true;
+    }
+
+    // Removes and returns everything buffered, oldest first.
+    synchronized List<byte[]> drain() {
+        List<byte[]> records = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            records.add(entry.record);
+        }
+        entries.clear();
+        return records;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long shedRecords() {
+        return shedRecords;
+    }
+
+    // Frees at least one slot according to the policy, or returns false when
+    // the new record should be shed instead.
+    private boolean makeRoom() {
+        int before = entries.size();
+        switch (policy) {
+            case POLICY_DROP_NEWEST:
+                return false;
+            case POLICY_THIN:
+                thin();
+                break;
+            case POLICY_FIRST_LAST:
+                keepFirstAndLastPerWindow();
+                break;
+            default:
+                break;
+        }
+        if (entries.size() == before) {
+            entries.pollFirst();
+        }
+        shedRecords += before - entries.size();
+        return true;
+    }
+
+    private void thin() {
+        if (thinEvery < 2) {
+            return;
+        }
+        int index = entries.size() - 1;
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); index--) {
+            it.next();
+            if (index % thinEvery != 0) {
+                it.remove();
+            }
+        }
+    }
+
+    // Drops every record that is neither the first nor the last of its window.
+    private void keepFirstAndLastPerWindow() {
+        long window = Math.max(1L, windowMs);
+        Entry previous = null;
+        boolean previousIsFirst = false;
+        ArrayDeque<Entry> kept = new ArrayDeque<>(entries.size());
+        for (Entry entry : entries) {
+            boolean sameWindow = previous != null && Math.floorDiv(previous.timeMs, window) == Math.floorDiv(entry.timeMs, window);
+            if (sameWindow && !previousIsFirst) {
+                // previous sat between the first and this record.
+                kept.pollLast();
+            }
+            kept.addLast(entry);
+            previousIsFirst = !sameWindow;
+            previous = entry;
+        }
+        entries.clear();
+        entries.addAll(kept);
+    }
+}
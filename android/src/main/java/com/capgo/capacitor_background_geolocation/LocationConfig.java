@@ -0,0 +1,95 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.json.JSONException;
+
+// Immutable snapshot of the native location watcher config. LocationStore loads
+// it from SharedPreferences once and swaps in a new snapshot whenever the
+// config is saved, so the per-fix path reads plain fields instead of going
+// through SharedPreferences and re-parsing the headers JSON.
+final class LocationConfig {
+
+    static final String DEFAULT_TITLE = "Using your location";
+
+    static final LocationConfig DISABLED = new LocationConfig(
+        false,
+        null,
+        DEFAULT_TITLE,
+        "",
+        0f,
+        null,
+        0L,
+        DeliveryOptions.DEFAULT,
+        null
+    );
+
+    final boolean enabled;
+    final String url;
+    final String title;
+    final String message;
+    final float distanceFilter;
+    // Unmodifiable, never null.
+    final Map<String, String> headers;
+    final long minIntervalMs;
+    final DeliveryOptions deliveryOptions;
+    // The "sinks" start option as the app passed it, and its parsed form.
+    final String sinksJson;
+    final List<SinkConfig> sinks;
+
+    LocationConfig(
+        boolean enabled,
+        String url,
+        String title,
+        String message,
+        float distanceFilter,
+        Map<String, String> headers,
+        long minIntervalMs,
+        DeliveryOptions deliveryOptions,
+        String sinksJson
+    ) {
+        this.sinksJson = sinksJson;
+        this.sinks = parseSinks(sinksJson);
+        // Without a url, file sinks alone still record natively.
+        this.enabled = enabled && (url != null || !sinks.isEmpty());
+        this.url = url;
+        this.title = title;
+        this.message = message;
+        this.distanceFilter = distanceFilter;
+        this.headers = copyHeaders(headers);
+        this.minIntervalMs = Math.max(0L, minIntervalMs);
+        this.deliveryOptions = deliveryOptions;
+    }
+
+    LocationConfig withHeaders(Map<String, String> headers) {
+        return new LocationConfig(enabled, url, title, message, distanceFilter, headers, minIntervalMs, deliveryOptions, sinksJson);
+    }
+
+    // start() validated the sinks before persisting them, so this only fails
+    // on a corrupted store.
+    private static List<SinkConfig> parseSinks(String sinksJson) {
+        try {
+            return SinkConfig.parseAll(sinksJson);
+        } catch (JSONException exception) {
+            Logger.error("Could not parse persisted location sinks", exception);
+            return Collections.emptyList();
+        }
+    }
+
+    // Drops null names and values, as the persisted JSON form does.
+    private static Map<String, String> copyHeaders(Map<String, String> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> copy = new HashMap<>();
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey() != null && entry.getValue() != null) {
+                copy.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+}
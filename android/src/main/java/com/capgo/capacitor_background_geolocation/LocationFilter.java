@@ -0,0 +1,44 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Downsampling filter of a sink: a fix passes when at least minIntervalMs
+// (by fix time) and distanceFilter meters separate it from the last fix that
+// passed. The state is in memory only; after a restart the first fix passes.
+final class LocationFilter implements LocationSink.Filter {
+
+    private long minIntervalMs;
+    private float distanceFilter;
+    private boolean hasLast;
+    private long lastTime;
+    private double lastLatitude;
+    private double lastLongitude;
+
+    LocationFilter(long minIntervalMs, float distanceFilter) {
+        configure(minIntervalMs, distanceFilter);
+    }
+
+    void configure(long minIntervalMs, float distanceFilter) {
+        this.minIntervalMs = Math.max(0L, minIntervalMs);
+        this.distanceFilter = Math.max(0f, distanceFilter);
+    }
+
+    @Override
+    public boolean accept(LocationSerializer.Sample sample) {
+        if (hasLast) {
+            if (sample.time - lastTime < minIntervalMs) {
+                return false;
+            }
+            // Same haversine as the route matching, so sink filters and route
+            // distances agree.
+            if (
+                distanceFilter > 0 && PlannedRoute.haversine(lastLongitude, lastLatitude, sample.longitude, sample.latitude) < distanceFilter
+            ) {
+                return false;
+            }
+        }
+        hasLast = true;
+        lastTime = sample.time;
+        lastLatitude = sample.latitude;
+        lastLongitude = sample.longitude;
+        return true;
+    }
+}
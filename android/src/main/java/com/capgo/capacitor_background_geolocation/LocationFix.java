@@ -0,0 +1,146 @@
+package com.capgo.capacitor_background_geolocation;
+
+// One location fix in fixed-point form, as carried by the binary wire format.
+//
+// Coordinates are degrees * 1e7 (about 1 cm at the equator). Optional values are
+// only meaningful when their flag is set and are stored in centimeters,
+// centimeters per second and hundredths of a degree.
+final class LocationFix {
+
+    static final int FLAG_ACCURACY = 1;
+    static final int FLAG_ALTITUDE = 1 << 1;
+    static final int FLAG_ALTITUDE_ACCURACY = 1 << 2;
+    static final int FLAG_SPEED = 1 << 3;
+    static final int FLAG_BEARING = 1 << 4;
+    static final int FLAG_SIMULATED = 1 << 5;
+    static final int FLAG_SEQUENCE = 1 << 6;
+    static final int KNOWN_FLAGS = (1 << 7) - 1;
+
+    private static final double COORDINATE_SCALE = 1e7;
+    private static final double VALUE_SCALE = 100;
+
+    long time;
+    int latitudeE7;
+    int longitudeE7;
+    int flags;
+    int accuracyCm;
+    int altitudeCm;
+    int altitudeAccuracyCm;
+    int speedCmPerSecond;
+    int bearingCentiDegrees;
+    // DeliveryIds sequence; with the time it identifies the fix on this device.
+    long sequence;
+
+    LocationFix() {}
+
+    LocationFix(double latitude, double longitude, long time) {
+        this.latitudeE7 = toFixed(latitude, COORDINATE_SCALE);
+        this.longitudeE7 = toFixed(longitude, COORDINATE_SCALE);
+        this.time = time;
+    }
+
+    // Binary form of a serializer sample. The sequence is only kept for fixes
+    // that have an eventId.
+    static LocationFix fromSample(LocationSerializer.Sample sample) {
+        LocationFix fix = new LocationFix(sample.latitude, sample.longitude, sample.time);
+        if (!Double.isNaN(sample.accuracy)) {
+            fix.setAccuracy(sample.accuracy);
+        }
+        if (!Double.isNaN(sample.altitude)) {
+            fix.setAltitude(sample.altitude);
+        }
+        if (!Double.isNaN(sample.altitudeAccuracy)) {
+            fix.setAltitudeAccuracy(sample.altitudeAccuracy);
+        }
+        if (!Double.isNaN(sample.speed)) {
+            fix.setSpeed(sample.speed);
+        }
+        if (!Double.isNaN(sample.bearing)) {
+            fix.setBearing(sample.bearing);
+        }
+        if (sample.installationId != null) {
+            fix.setSequence(sample.sequence);
+        }
+        return fix.setSimulated(sample.simulated);
+    }
+
+    boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    double latitude() {
+        return latitudeE7 / COORDINATE_SCALE;
+    }
+
+    double longitude() {
+        return longitudeE7 / COORDINATE_SCALE;
+    }
+
+    LocationFix setAccuracy(double meters) {
+        accuracyCm = toFixed(meters, VALUE_SCALE);
+        flags |= FLAG_ACCURACY;
+        return this;
+    }
+
+    LocationFix setAltitude(double meters) {
+        altitudeCm = toFixed(meters, VALUE_SCALE);
+        flags |= FLAG_ALTITUDE;
+        return this;
+    }
+
+    LocationFix setAltitudeAccuracy(double meters) {
+        altitudeAccuracyCm = toFixed(meters, VALUE_SCALE);
+        flags |= FLAG_ALTITUDE_ACCURACY;
+        return this;
+    }
+
+    LocationFix setSpeed(double metersPerSecond) {
+        speedCmPerSecond = toFixed(metersPerSecond, VALUE_SCALE);
+        flags |= FLAG_SPEED;
+        return this;
+    }
+
+    LocationFix setBearing(double degrees) {
+        bearingCentiDegrees = toFixed(degrees, VALUE_SCALE);
+        flags |= FLAG_BEARING;
+        return this;
+    }
+
+    LocationFix setSequence(long sequence) {
+        this.sequence = sequence;
+        flags |= FLAG_SEQUENCE;
+        return this;
+    }
+
+    LocationFix setSimulated(boolean simulated) {
+        flags = simulated ? flags | FLAG_SIMULATED : flags & ~FLAG_SIMULATED;
+        return this;
+    }
+
+    double accuracy() {
+        return accuracyCm / VALUE_SCALE;
+    }
+
+    double altitude() {
+        return altitudeCm / VALUE_SCALE;
+    }
+
+    double altitudeAccuracy() {
+        return altitudeAccuracyCm / VALUE_SCALE;
+    }
+
+    double speed() {
+        return speedCmPerSecond / VALUE_SCALE;
+    }
+
+    double bearing() {
+        return bearingCentiDegrees / VALUE_SCALE;
+    }
+
+    private static int toFixed(double value, double scale) {
+        if (Double.isNaN(value)) {
+            return 0;
+        }
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.round(value * scale)));
+    }
+}
@@ -0,0 +1,333 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Append-only, file-backed queue of serialized location records.
+//
+// Records are appended to numbered segment files as [int length][bytes]. A
+// small cursor file stores the segment and offset of the next record that has
+// not been acknowledged yet, so delivery resumes in order after the process is
+// killed or the system restarts the service. Segments that were read past are
+// deleted, and the oldest segments are dropped once maxBytes is exceeded so
+// disk usage stays bounded during long outages.
+//
+// Records are handed to the OS on every append (no fsync): they survive the
+// process being killed, which is the failure this queue protects against.
+final class LocationOutbox {
+
+    // Guards against reading garbage as a length after a torn write.
+    static final int MAX_RECORD_BYTES = 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+    private static final String CURSOR_TMP_FILE = "cursor.tmp";
+
+    // A contiguous run of records read from the head of the outbox. Passing it
+    // back to acknowledge() removes exactly these records.
+    static final class Batch {
+
+        final List<byte[]> records;
+        final int bytes;
+        private final long endSegment;
+        private final long endOffset;
+
+        Batch(List<byte[]> records, int bytes, long endSegment, long endOffset) {
+            this.records = records;
+            this.bytes = bytes;
+            this.endSegment = endSegment;
+            this.endOffset = endOffset;
+        }
+
+        boolean isEmpty() {
+            return records.isEmpty();
+        }
+
+        int size() {
+            return records.size();
+        }
+    }
+
+    private static final Map<String, LocationOutbox> OPEN_OUTBOXES = new HashMap<>();
+
+    private final File directory;
+    private final long segmentBytes;
+    private final long maxBytes;
+
+    // Segment id -> file size in bytes, for every segment still on disk.
+    private final TreeMap<Long, Long> segments = new TreeMap<>();
+    private long readSegment;
+    private long readOffset;
+    private int pendingRecords;
+    private long droppedRecords;
+
+    LocationOutbox(File directory, long segmentBytes, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create outbox directory: " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = Math.max(1, segmentBytes);
+        this.maxBytes = Math.max(this.segmentBytes, maxBytes);
+        recover();
+    }
+
+    // Returns the shared instance for a directory. Two instances over the same
+    // files would overwrite each other's cursor. Sharing the instance does not
+    // make it safe to drain from two threads: LocationUploader keeps a single
+    // drainer per directory.
+    static LocationOutbox open(File directory, long segmentBytes, long maxBytes) throws IOException {
+        synchronized (OPEN_OUTBOXES) {
+            String key = directory.getAbsolutePath();
+            LocationOutbox outbox = OPEN_OUTBOXES.get(key);
+            if (outbox == null) {
+                outbox = new LocationOutbox(directory, segmentBytes, maxBytes);
+                OPEN_OUTBOXES.put(key, outbox);
+            }
+            return outbox;
+        }
+    }
+
+    // Appends one record at the tail of the outbox.
+    synchronized void append(byte[] record) throws IOException {
+        if (record.length > MAX_RECORD_BYTES) {
+            throw new IOException("Outbox record too large: " + record.length + " bytes");
+        }
+        long segment = segments.isEmpty() ? readSegment : segments.lastKey();
+        long size = segments.getOrDefault(segment, 0L);
+        if (size > 0 && size + 4 + record.length > segmentBytes) {
+            segment++;
+            size = 0;
+        }
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(segmentFile(segment), true))) {
+            output.writeInt(record.length);
+            output.write(record);
+        }
+        segments.put(segment, size + 4 + record.length);
+        pendingRecords++;
+        trimToMaxBytes();
+    }
+
+    // Reads up to maxRecords records (and roughly maxBytes of payload, but at
+    // least one record) from the head of the outbox without removing them.
+    synchronized Batch peek(int maxRecords, long maxBytes) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        int bytes = 0;
+        long segment = readSegment;
+        long offset = readOffset;
+        while (records.size() < maxRecords && segments.containsKey(segment)) {
+            try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r")) {
+                file.seek(offset);
+                while (records.size() < maxRecords && offset + 4 <= file.length()) {
+                    int length = file.readInt();
+                    if (!records.isEmpty() && bytes + length > maxBytes) {
+                        return new Batch(records, bytes, segment, offset);
+                    }
+                    byte[] record = new byte[length];
+                    file.readFully(record);
+                    records.add(record);
+                    bytes += length;
+                    offset += 4 + length;
+                }
+                if (records.size() >= maxRecords) {
+                    break;
+                }
+            }
+            Long next = segments.higherKey(segment);
+            if (next == null) {
+                break;
+            }
+            segment = next;
+            offset = 0;
+        }
+        return new Batch(records, bytes, segment, offset);
+    }
+
+    // Removes the records of a batch previously returned by peek(). Segments
+    // that were fully read are deleted. A batch that ends at or before the
+    // cursor was already acknowledged and is ignored, so the cursor never
+    // moves backwards.
+    synchronized void acknowledge(Batch batch) throws IOException {
+        if (batch.isEmpty() || batch.endSegment < readSegment || (batch.endSegment == readSegment && batch.endOffset <= readOffset)) {
+            return;
+        }
+        for (Long segment : new ArrayList<>(segments.headMap(batch.endSegment, false).keySet())) {
+            deleteSegment(segment);
+        }
+        readSegment = batch.endSegment;
+        readOffset = batch.endOffset;
+        pendingRecords = Math.max(0, pendingRecords - batch.size());
+        writeCursor();
+    }
+
+    synchronized int size() {
+        return pendingRecords;
+    }
+
+    synchronized boolean isEmpty() {
+        return pendingRecords == 0;
+    }
+
+    // Number of records discarded because the outbox exceeded maxBytes.
+    synchronized long droppedRecords() {
+        return droppedRecords;
+    }
+
+    synchronized long sizeBytes() {
+        long total = 0;
+        for (long size : segments.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    // Deletes every pending record.
+    synchronized void clear() throws IOException {
+        for (Long segment : new ArrayList<>(segments.keySet())) {
+            deleteSegment(segment);
+        }
+        pendingRecords = 0;
+        readOffset = 0;
+        writeCursor();
+    }
+
+    private void trimToMaxBytes() throws IOException {
+        while (segments.size() > 1 && sizeBytes() > maxBytes) {
+            long oldest = segments.firstKey();
+            int dropped = oldest < readSegment ? 0 : countRecords(oldest, oldest == readSegment ? readOffset : 0);
+            deleteSegment(oldest);
+            droppedRecords += dropped;
+            pendingRecords = Math.max(0, pendingRecords - dropped);
+            if (oldest >= readSegment) {
+                readSegment = segments.firstKey();
+                readOffset = 0;
+                writeCursor();
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file.length());
+                } catch (NumberFormatException ignore) {
+                    // Not one of our segments.
+                }
+            }
+        }
+        readCursor();
+        for (Long segment : new ArrayList<>(segments.headMap(readSegment, false).keySet())) {
+            deleteSegment(segment);
+        }
+        if (!segments.containsKey(readSegment)) {
+            readSegment = segments.isEmpty() ? readSegment : segments.firstKey();
+            readOffset = 0;
+        }
+        // Only the last segment can end with a record that was cut short by the
+        // process dying mid-write. Truncate it so later appends stay readable.
+        if (!segments.isEmpty()) {
+            long last = segments.lastKey();
+            long validLength = validLength(last);
+            if (validLength < segments.get(last)) {
+                try (RandomAccessFile file = new RandomAccessFile(segmentFile(last), "rw")) {
+                    file.setLength(validLength);
+                }
+                segments.put(last, validLength);
+            }
+        }
+        pendingRecords = 0;
+        for (Long segment : segments.keySet()) {
+            pendingRecords += countRecords(segment, segment == readSegment ? readOffset : 0);
+        }
+    }
+
+    private long validLength(long segment) throws IOException {
+        long offset = 0;
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r")) {
+            long length = file.length();
+            while (offset + 4 <= length) {
+                file.seek(offset);
+                int recordLength = file.readInt();
+                if (recordLength < 0 || recordLength > MAX_RECORD_BYTES || offset + 4 + recordLength > length) {
+                    break;
+                }
+                offset += 4 + recordLength;
+            }
+        }
+        return offset;
+    }
+
+    private int countRecords(long segment, long fromOffset) throws IOException {
+        int count = 0;
+        long offset = fromOffset;
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r")) {
+            long length = file.length();
+            while (offset + 4 <= length) {
+                file.seek(offset);
+                offset += 4 + file.readInt();
+                if (offset > length) {
+                    break;
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void readCursor() {
+        File cursor = new File(directory, CURSOR_FILE);
+        if (!cursor.isFile()) {
+            readSegment = segments.isEmpty() ? 0 : segments.firstKey();
+            readOffset = 0;
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(cursor, "r")) {
+            readSegment = file.readLong();
+            readOffset = file.readLong();
+        } catch (IOException exception) {
+            // A missing or corrupt cursor replays from the oldest segment, which
+            // may re-send some points but never skips any.
+            readSegment = segments.isEmpty() ? 0 : segments.firstKey();
+            readOffset = 0;
+        }
+    }
+
+    // Writes the cursor to a temporary file and renames it over the old one so
+    // a crash never leaves a half-written cursor behind.
+    private void writeCursor() throws IOException {
+        File tmp = new File(directory, CURSOR_TMP_FILE);
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(tmp))) {
+            output.writeLong(readSegment);
+            output.writeLong(readOffset);
+        }
+        if (!tmp.renameTo(new File(directory, CURSOR_FILE))) {
+            throw new IOException("Could not update outbox cursor");
+        }
+    }
+
+    private void deleteSegment(long segment) {
+        segments.remove(segment);
+        File file = segmentFile(segment);
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format(Locale.ROOT, "%020d%s", segment, SEGMENT_SUFFIX));
+    }
+}
@@ -0,0 +1,435 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Serializes location fixes, shared by the JavaScript bridge and the native
+// url sink so both describe a fix with the same fields.
+//
+// Fields are read from a reusable Sample and written through a FieldSink. The
+// JSON sink writes straight into a reusable byte buffer: after warm-up a fix is
+// serialized without allocating (no map, no boxing, no intermediate String).
+//
+// Native delivery can narrow the payload with a Projection: a set of fields
+// and a static envelope merged into every object. Both are compiled once per
+// config, so a projected fix costs fewer bytes and no extra work.
+final class LocationSerializer {
+
+    static final String SOURCE_NATIVE = "native";
+
+    // Bits of the optional fields. They are persisted, so only append new ones.
+    static final int FIELD_LATITUDE = 1;
+    static final int FIELD_LONGITUDE = 1 << 1;
+    static final int FIELD_ACCURACY = 1 << 2;
+    static final int FIELD_ALTITUDE = 1 << 3;
+    static final int FIELD_ALTITUDE_ACCURACY = 1 << 4;
+    static final int FIELD_SIMULATED = 1 << 5;
+    static final int FIELD_SPEED = 1 << 6;
+    static final int FIELD_BEARING = 1 << 7;
+    static final int FIELD_TIME = 1 << 8;
+    static final int FIELD_SOURCE = 1 << 9;
+    // Indexed by bit position.
+    static final String[] FIELD_NAMES = {
+        "latitude",
+        "longitude",
+        "accuracy",
+        "altitude",
+        "altitudeAccuracy",
+        "simulated",
+        "speed",
+        "bearing",
+        "time",
+        "source"
+    };
+    static final int ALL_FIELDS = (1 << FIELD_NAMES.length) - 1;
+
+    // Decimal places kept for coordinates (about 0.1 mm) and for the other
+    // values (sensor readings are floats, which carry about 7 digits).
+    private static final int COORDINATE_DIGITS = 9;
+    private static final int VALUE_DIGITS = 6;
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    // "key": prefixes of the payload keys, encoded once.
+    private static final Map<String, byte[]> KEY_BYTES = new HashMap<>();
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (String name : FIELD_NAMES) {
+            KEY_BYTES.put(name, keyBytes(name));
+        }
+        KEY_BYTES.put(DeliveryIds.FIELD, keyBytes(DeliveryIds.FIELD));
+    }
+
+    // Which fields a natively delivered fix carries, and the static members
+    // added after them. The eventId is always written, as retries and replays
+    // are recognized by it.
+    static final class Projection {
+
+        static final Projection ALL = new Projection(ALL_FIELDS, null);
+
+        final int fields;
+        // Canonical JSON of the envelope object, or null.
+        final String envelope;
+        // The envelope's members as "k":v,... without braces, empty for none.
+        private final byte[] envelopeBytes;
+
+        Projection(int fields, String envelope) {
+            this.fields = fields & ALL_FIELDS;
+            this.envelope = envelope;
+            this.envelopeBytes = encodeEnvelope(envelope, this.fields);
+        }
+
+        // Location fields win: envelope members named like a projected field,
+        // or like the eventId, are dropped. A field left out of the projection
+        // leaves its name to the envelope.
+        private static byte[] encodeEnvelope(String envelope, int fields) {
+            if (envelope == null) {
+                return new byte[0];
+            }
+            try {
+                JSONObject source = new JSONObject(envelope);
+                JSONObject members = new JSONObject();
+                Iterator<String> keys = source.keys();
+                while (keys.hasNext()) {
+                    String key = keys.next();
+                    if (!DeliveryIds.FIELD.equals(key) && (field(key) & fields) == 0) {
+                        members.put(key, source.get(key));
+                    }
+                }
+                String json = members.toString();
+                return json.substring(1, json.length() - 1).getBytes(StandardCharsets.UTF_8);
+            } catch (JSONException exception) {
+                Logger.error("Ignoring invalid location envelope", exception);
+                return new byte[0];
+            }
+        }
+    }
+
+    // Values of one fix. Missing optional values are NaN.
+    static final class Sample {
+
+        double latitude;
+        double longitude;
+        double accuracy = Double.NaN;
+        double altitude = Double.NaN;
+        double altitudeAccuracy = Double.NaN;
+        boolean simulated;
+        double speed = Double.NaN;
+        double bearing = Double.NaN;
+        long time;
+        // Set for natively delivered fixes to give them an eventId.
+        String installationId;
+        long sequence;
+
+        void clear() {
+            latitude = 0;
+            longitude = 0;
+            accuracy = Double.NaN;
+            altitude = Double.NaN;
+            altitudeAccuracy = Double.NaN;
+            simulated = false;
+            speed = Double.NaN;
+            bearing = Double.NaN;
+            time = 0;
+            installationId = null;
+            sequence = 0;
+        }
+    }
+
+    interface FieldSink {
+        // Writes a number, or null when value is NaN.
+        void number(String key, double value, int fractionDigits);
+
+        // Writes a number Android reports as a float, widened in the Sample,
+        // or null when value is NaN.
+        default void floatNumber(String key, double value, int fractionDigits) {
+            number(key, value, fractionDigits);
+        }
+
+        void integer(String key, long value);
+
+        void bool(String key, boolean value);
+
+        void string(String key, String value);
+
+        // Writes DeliveryIds.eventId(installationId, time, sequence).
+        void eventId(String key, String installationId, long time, long sequence);
+    }
+
+    private final JsonSink json = new JsonSink();
+
+    static void write(Sample sample, String source, FieldSink sink) {
+        write(sample, source, ALL_FIELDS, sink);
+    }
+
+    // The single definition of the location payload, limited to fields.
+    // source is only set for natively delivered fixes.
+    static void write(Sample sample, String source, int fields, FieldSink sink) {
+        if ((fields & FIELD_LATITUDE) != 0) {
+            sink.number("latitude", sample.latitude, COORDINATE_DIGITS);
+        }
+        if ((fields & FIELD_LONGITUDE) != 0) {
+            sink.number("longitude", sample.longitude, COORDINATE_DIGITS);
+        }
+        if ((fields & FIELD_ACCURACY) != 0) {
+            sink.floatNumber("accuracy", sample.accuracy, VALUE_DIGITS);
+        }
+        if ((fields & FIELD_ALTITUDE) != 0) {
+            sink.number("altitude", sample.altitude, VALUE_DIGITS);
+        }
+        if ((fields & FIELD_ALTITUDE_ACCURACY) != 0) {
+            sink.floatNumber("altitudeAccuracy", sample.altitudeAccuracy, VALUE_DIGITS);
+        }
+        if ((fields & FIELD_SIMULATED) != 0) {
+            sink.bool("simulated", sample.simulated);
+        }
+        if ((fields & FIELD_SPEED) != 0) {
+            sink.floatNumber("speed", sample.speed, VALUE_DIGITS);
+        }
+        if ((fields & FIELD_BEARING) != 0) {
+            sink.floatNumber("bearing", sample.bearing, VALUE_DIGITS);
+        }
+        if ((fields & FIELD_TIME) != 0) {
+            sink.integer("time", sample.time);
+        }
+        if (source != null && (fields & FIELD_SOURCE) != 0) {
+            // Lets the server distinguish native-delivered updates from those
+            // forwarded by the JavaScript callback.
+            sink.string("source", source);
+        }
+        if (sample.installationId != null) {
+            sink.eventId(DeliveryIds.FIELD, sample.installationId, sample.time, sample.sequence);
+        }
+    }
+
+    // Serializes the sample as a JSON object into the reusable buffer and
+    // returns its length. The bytes stay valid until the next call.
+    int writeJson(Sample sample, String source) {
+        return writeJson(sample, source, Projection.ALL);
+    }
+
+    int writeJson(Sample sample, String source, Projection projection) {
+        json.begin();
+        write(sample, source, projection.fields, json);
+        json.end(projection.envelopeBytes);
+        return json.length;
+    }
+
+    // Bit of a field name, 0 for an unknown name.
+    static int field(String name) {
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            if (FIELD_NAMES[i].equals(name)) {
+                return 1 << i;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] keyBytes(String key) {
+        return (JSONObject.quote(key) + ":").getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] buffer() {
+        return json.buffer;
+    }
+
+    // Copy of the last serialized object, sized to fit.
+    byte[] toByteArray() {
+        return Arrays.copyOf(json.buffer, json.length);
+    }
+
+    private static final class JsonSink implements FieldSink {
+
+        private byte[] buffer = new byte[256];
+        private int length;
+        private boolean first;
+
+        void begin() {
+            length = 0;
+            first = true;
+            append('{');
+        }
+
+        void end(byte[] envelope) {
+            if (envelope.length > 0) {
+                if (!first) {
+                    append(',');
+                }
+                appendBytes(envelope);
+            }
+            append('}');
+        }
+
+        @Override
+        public void number(String key, double value, int fractionDigits) {
+            key(key);
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                appendAscii("null");
+                return;
+            }
+            appendDecimal(value, fractionDigits);
+        }
+
+        @Override
+        public void integer(String key, long value) {
+            key(key);
+            appendLong(value);
+        }
+
+        @Override
+        public void bool(String key, boolean value) {
+            key(key);
+            appendAscii(value ? "true" : "false");
+        }
+
+        @Override
+        public void string(String key, String value) {
+            key(key);
+            if (value == null) {
+                appendAscii("null");
+                return;
+            }
+            appendString(value);
+        }
+
+        @Override
+        public void eventId(String key, String installationId, long time, long sequence) {
+            key(key);
+            append('"');
+            appendEscaped(installationId);
+            append('-');
+            appendLong(time);
+            append('-');
+            appendLong(sequence);
+            append('"');
+        }
+
+        private void key(String key) {
+            if (!first) {
+                append(',');
+            }
+            first = false;
+            byte[] bytes = KEY_BYTES.get(key);
+            if (bytes != null) {
+                appendBytes(bytes);
+            } else {
+                appendString(key);
+                append(':');
+            }
+        }
+
+        // Rounds to fractionDigits decimals and drops trailing zeros, so 5.0
+        // is written as 5 and 4.1f as 4.1 rather than 4.099999904632568.
+        private void appendDecimal(double value, int fractionDigits) {
+            int digits = fractionDigits;
+            while (digits > 0 && Math.abs(value) * POWERS_OF_TEN[digits] >= 9e18) {
+                digits--;
+            }
+            long scale = POWERS_OF_TEN[digits];
+            long units = Math.round(value * scale);
+            if (units < 0) {
+                append('-');
+                units = -units;
+            }
+            appendLong(units / scale);
+            long fraction = units % scale;
+            if (fraction == 0) {
+                return;
+            }
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            append('.');
+            for (int i = digits - 1; i >= 0; i--) {
+                append((char) ('0' + (fraction / POWERS_OF_TEN[i]) % 10));
+            }
+        }
+
+        private void appendLong(long value) {
+            if (value == Long.MIN_VALUE) {
+                appendAscii("-9223372036854775808");
+                return;
+            }
+            if (value < 0) {
+                append('-');
+                value = -value;
+            }
+            int digits = 1;
+            while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+                digits++;
+            }
+            for (int i = digits - 1; i >= 0; i--) {
+                append((char) ('0' + (value / POWERS_OF_TEN[i]) % 10));
+            }
+        }
+
+        private void appendAscii(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                append(text.charAt(i));
+            }
+        }
+
+        // Writes a quoted JSON string as UTF-8.
+        private void appendString(String text) {
+            append('"');
+            appendEscaped(text);
+            append('"');
+        }
+
+        private void appendEscaped(String text) {
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '"' || c == '\\') {
+                    append('\\');
+                    append(c);
+                } else if (c < 0x20) {
+                    appendAscii("\\u00");
+                    append(Character.forDigit(c >> 4, 16));
+                    append(Character.forDigit(c & 0xF, 16));
+                } else if (c < 0x80) {
+                    append(c);
+                } else if (c < 0x800) {
+                    append((char) (0xC0 | (c >> 6)));
+                    append((char) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                    append((char) (0xF0 | (codePoint >> 18)));
+                    append((char) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    append((char) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    append((char) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    append((char) (0xE0 | (c >> 12)));
+                    append((char) (0x80 | ((c >> 6) & 0x3F)));
+                    append((char) (0x80 | (c & 0x3F)));
+                }
+            }
+        }
+
+        private void appendBytes(byte[] bytes) {
+            if (length + bytes.length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes.length));
+            }
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+
+        // Appends one byte; c is an ASCII character or an already encoded
+        // UTF-8 byte.
+        private void append(char c) {
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[length++] = (byte) c;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Destination of natively delivered fixes. BackgroundGeolocationService fans
+// every fix out to all configured sinks.
+//
+// accept() runs on the main looper for every fix, so a sink must only encode
+// the fix and hand it to its own background thread: a slow or unreachable
+// destination may delay itself but never the other sinks.
+interface LocationSink {
+    // Decides whether a fix goes to a sink, for example to downsample it.
+    interface Filter {
+        Filter ALL = (sample) -> true;
+
+        boolean accept(LocationSerializer.Sample sample);
+    }
+
+    String name();
+
+    // The sample is reused once this returns, so it must not be kept.
+    void accept(LocationSerializer.Sample sample);
+
+    // Applies a new config with the same name. Returns false when this sink
+    // cannot take it, so the caller replaces the sink instead.
+    boolean reconfigure(SinkConfig config);
+
+    // Sends what is pending, then releases the sink. Used when tracking stops.
+    void flushAndClose();
+
+    // Releases the sink; pending fixes are kept for the next one.
+    void close();
+}
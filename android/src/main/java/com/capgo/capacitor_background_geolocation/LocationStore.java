@@ -3,15 +3,14 @@ package com.capgo.capacitor_background_geolocation;
 import android.content.Context;
 import android.content.SharedPreferences;
 import com.getcapacitor.Logger;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -30,6 +29,33 @@ final class LocationStore {
     private static final String KEY_HEADERS = "headers";
     private static final String KEY_MIN_INTERVAL_MS = "minIntervalMs";
     private static final String KEY_LAST_POST_TIME = "lastPostTime";
+    private static final String KEY_BATCH_SIZE = "batchSize";
+    private static final String KEY_BATCH_MAX_DELAY_MS = "batchMaxDelayMs";
+    private static final String KEY_BATCH_MAX_BYTES = "batchMaxBytes";
+    private static final String KEY_COMPRESSION = "compression";
+    private static final String KEY_MAX_CONNECTIONS_PER_ORIGIN = "maxConnectionsPerOrigin";
+    private static final String KEY_RATE_HINT_HEADER = "rateHintHeader";
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_BUFFER_SIZE = "bufferSize";
+    private static final String KEY_BUFFER_POLICY = "bufferPolicy";
+    private static final String KEY_BUFFER_THIN_EVERY = "bufferThinEvery";
+    private static final String KEY_BUFFER_WINDOW_MS = "bufferWindowMs";
+    private static final String KEY_UPLOAD_NETWORK = "uploadNetwork";
+    private static final String KEY_UPLOAD_REQUIRES_CHARGING = "uploadRequiresCharging";
+    private static final String KEY_FIELDS = "fields";
+    private static final String KEY_ENVELOPE = "envelope";
+    private static final String KEY_INSTALLATION_ID = "installationId";
+    private static final String KEY_SINKS = "sinks";
+    private static final String KEY_DIAGNOSTICS_URL = "diagnosticsUrl";
+    private static final String KEY_DIAGNOSTICS_INTERVAL_MS = "diagnosticsIntervalMs";
+    private static final String OUTBOX_DIRECTORY = "CapgoBackgroundGeolocationOutbox";
+    private static final String SINKS_DIRECTORY = "CapgoBackgroundGeolocationSinks";
+    private static final String RECORDINGS_DIRECTORY = "CapgoBackgroundGeolocationRecordings";
+
+    // Loaded from preferences on first use and replaced by every save, so
+    // readers never see a half-updated config.
+    private static final AtomicReference<LocationConfig> snapshot = new AtomicReference<>();
+    private static LastPostState lastPost;
 
     private LocationStore() {}
 
@@ -37,7 +63,8 @@ final class LocationStore {
         return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
     }
 
-    // Persists the watcher config. A null or empty url disables native delivery.
+    // Persists the watcher config. Native delivery is disabled when there is
+    // neither a url nor any additional sink.
     static void saveSetup(
         Context context,
         String url,
@@ -45,123 +72,299 @@ final class LocationStore {
         String message,
         float distanceFilter,
         Map<String, String> headers,
-        long minIntervalMs
+        long minIntervalMs,
+        DeliveryOptions deliveryOptions,
+        String sinksJson
     ) {
+        if (url != null && url.isEmpty()) {
+            url = null;
+        }
+        LocationConfig config = new LocationConfig(true, url, title, message, distanceFilter, headers, minIntervalMs, deliveryOptions, sinksJson);
+        SharedPreferences.Editor editor;
+        if (config.enabled) {
+            editor = prefs(context).edit();
+            writeConfig(editor, config);
+        } else {
+            editor = clearSetup(prefs(context));
+            config = LocationConfig.DISABLED;
+        }
+        editor.apply();
+        resetLastPost();
+        snapshot.set(config);
+    }
+
+    // Writes an enabled config; the interval gate restarts with it.
+    static void writeConfig(SharedPreferences.Editor editor, LocationConfig config) {
+        DeliveryOptions deliveryOptions = config.deliveryOptions;
+        editor
+            .putBoolean(KEY_ENABLED, true)
+            .putString(KEY_URL, config.url)
+            .putString(KEY_TITLE, config.title)
+            .putString(KEY_MESSAGE, config.message)
+            .putFloat(KEY_DISTANCE_FILTER, config.distanceFilter)
+            .putString(KEY_HEADERS, headersToJson(config.headers))
+            .putLong(KEY_MIN_INTERVAL_MS, config.minIntervalMs)
+            .putInt(KEY_BATCH_SIZE, deliveryOptions.batchSize)
+            .putLong(KEY_BATCH_MAX_DELAY_MS, deliveryOptions.batchMaxDelayMs)
+            .putInt(KEY_BATCH_MAX_BYTES, deliveryOptions.batchMaxBytes)
+            .putString(KEY_COMPRESSION, deliveryOptions.compression)
+            .putInt(KEY_MAX_CONNECTIONS_PER_ORIGIN, deliveryOptions.maxConnectionsPerOrigin)
+            .putString(KEY_RATE_HINT_HEADER, deliveryOptions.rateHintHeader)
+            .putString(KEY_FORMAT, deliveryOptions.format)
+            .putInt(KEY_BUFFER_SIZE, deliveryOptions.bufferSize)
+            .putString(KEY_BUFFER_POLICY, deliveryOptions.bufferPolicy)
+            .putInt(KEY_BUFFER_THIN_EVERY, deliveryOptions.bufferThinEvery)
+            .putLong(KEY_BUFFER_WINDOW_MS, deliveryOptions.bufferWindowMs)
+            .putString(KEY_SINKS, config.sinksJson)
+            .putString(KEY_UPLOAD_NETWORK, deliveryOptions.uploadPolicy.network)
+            .putBoolean(KEY_UPLOAD_REQUIRES_CHARGING, deliveryOptions.uploadPolicy.requiresCharging)
+            .putInt(KEY_FIELDS, deliveryOptions.projection.fields)
+            .putString(KEY_ENVELOPE, deliveryOptions.projection.envelope)
+            .remove(KEY_LAST_POST_TIME);
+    }
+
+    // Where the periodic diagnostics snapshot is POSTed; no url turns it off.
+    // Saved after saveSetup(), which clears the store when delivery is off.
+    static void saveDiagnostics(Context context, String url, long intervalMs) {
         SharedPreferences.Editor editor = prefs(context).edit();
         if (url == null || url.isEmpty()) {
-            editor.clear();
+            editor.remove(KEY_DIAGNOSTICS_URL).remove(KEY_DIAGNOSTICS_INTERVAL_MS);
         } else {
-            editor
-                .putBoolean(KEY_ENABLED, true)
-                .putString(KEY_URL, url)
-                .putString(KEY_TITLE, title)
-                .putString(KEY_MESSAGE, message)
-                .putFloat(KEY_DISTANCE_FILTER, distanceFilter)
-                .putString(KEY_HEADERS, headersToJson(headers))
-                .putLong(KEY_MIN_INTERVAL_MS, Math.max(0L, minIntervalMs))
-                .remove(KEY_LAST_POST_TIME);
+            editor.putString(KEY_DIAGNOSTICS_URL, url).putLong(KEY_DIAGNOSTICS_INTERVAL_MS, DiagnosticsReporter.clampIntervalMs(intervalMs));
         }
         editor.apply();
     }
 
+    static String getDiagnosticsUrl(Context context) {
+        return prefs(context).getString(KEY_DIAGNOSTICS_URL, null);
+    }
+
+    static long getDiagnosticsIntervalMs(Context context) {
+        return prefs(context).getLong(KEY_DIAGNOSTICS_INTERVAL_MS, DiagnosticsReporter.DEFAULT_INTERVAL_MS);
+    }
+
     static void saveHeaders(Context context, Map<String, String> headers) {
         prefs(context).edit().putString(KEY_HEADERS, headersToJson(headers)).apply();
+        config(context);
+        snapshot.updateAndGet((config) -> config.withHeaders(headers));
     }
 
+    // Clears the tracking setup but keeps the installation id.
     static void clear(Context context) {
-        prefs(context).edit().clear().apply();
+        clearSetup(prefs(context)).apply();
+        resetLastPost();
+        snapshot.set(LocationConfig.DISABLED);
     }
 
-    static boolean isEnabled(Context context) {
-        SharedPreferences prefs = prefs(context);
-        return prefs.getBoolean(KEY_ENABLED, false) && prefs.getString(KEY_URL, null) != null;
+    // Starts an edit that clears everything but the installation id, which
+    // must outlive the tracking setup: the fleet back-off slot and every
+    // eventId are derived from it.
+    static SharedPreferences.Editor clearSetup(SharedPreferences prefs) {
+        String installationId = prefs.getString(KEY_INSTALLATION_ID, null);
+        SharedPreferences.Editor editor = prefs.edit().clear();
+        if (installationId != null) {
+            editor.putString(KEY_INSTALLATION_ID, installationId);
+        }
+        return editor;
     }
 
-    static String getUrl(Context context) {
-        return prefs(context).getString(KEY_URL, null);
+    // Current config snapshot. Cheap enough to call for every fix.
+    static LocationConfig config(Context context) {
+        LocationConfig config = snapshot.get();
+        if (config == null) {
+            snapshot.compareAndSet(null, readConfig(prefs(context)));
+            config = snapshot.get();
+        }
+        return config;
+    }
+
+    // Reads the persisted config. This is what every fix used to pay for.
+    static LocationConfig readConfig(SharedPreferences prefs) {
+        if (!prefs.getBoolean(KEY_ENABLED, false)) {
+            return LocationConfig.DISABLED;
+        }
+        return new LocationConfig(
+            true,
+            prefs.getString(KEY_URL, null),
+            prefs.getString(KEY_TITLE, LocationConfig.DEFAULT_TITLE),
+            prefs.getString(KEY_MESSAGE, ""),
+            prefs.getFloat(KEY_DISTANCE_FILTER, 0f),
+            headersFromJson(prefs.getString(KEY_HEADERS, null)),
+            prefs.getLong(KEY_MIN_INTERVAL_MS, 0L),
+            readDeliveryOptions(prefs),
+            prefs.getString(KEY_SINKS, null)
+        );
+    }
+
+    private static DeliveryOptions readDeliveryOptions(SharedPreferences prefs) {
+        return new DeliveryOptions.Builder()
+            .setBatchSize(prefs.getInt(KEY_BATCH_SIZE, DeliveryOptions.DEFAULT_BATCH_SIZE))
+            .setBatchMaxDelayMs(prefs.getLong(KEY_BATCH_MAX_DELAY_MS, DeliveryOptions.DEFAULT_BATCH_MAX_DELAY_MS))
+            .setBatchMaxBytes(prefs.getInt(KEY_BATCH_MAX_BYTES, DeliveryOptions.DEFAULT_BATCH_MAX_BYTES))
+            .setCompression(prefs.getString(KEY_COMPRESSION, null))
+            .setMaxConnectionsPerOrigin(prefs.getInt(KEY_MAX_CONNECTIONS_PER_ORIGIN, DeliveryOptions.DEFAULT_MAX_CONNECTIONS_PER_ORIGIN))
+            .setRateHintHeader(prefs.getString(KEY_RATE_HINT_HEADER, null))
+            .setFormat(prefs.getString(KEY_FORMAT, null))
+            .setBufferSize(prefs.getInt(KEY_BUFFER_SIZE, DeliveryOptions.DEFAULT_BUFFER_SIZE))
+            .setBufferPolicy(prefs.getString(KEY_BUFFER_POLICY, null))
+            .setBufferThinEvery(prefs.getInt(KEY_BUFFER_THIN_EVERY, DeliveryOptions.DEFAULT_BUFFER_THIN_EVERY))
+            .setBufferWindowMs(prefs.getLong(KEY_BUFFER_WINDOW_MS, DeliveryOptions.DEFAULT_BUFFER_WINDOW_MS))
+            .setUploadNetwork(prefs.getString(KEY_UPLOAD_NETWORK, null))
+            .setUploadRequiresCharging(prefs.getBoolean(KEY_UPLOAD_REQUIRES_CHARGING, false))
+            .setFields(prefs.getInt(KEY_FIELDS, LocationSerializer.ALL_FIELDS))
+            .setEnvelope(prefs.getString(KEY_ENVELOPE, null))
+            .build();
+    }
+
+    static boolean isEnabled(Context context) {
+        return config(context).enabled;
     }
 
     static String getTitle(Context context) {
-        return prefs(context).getString(KEY_TITLE, "Using your location");
+        return config(context).title;
     }
 
     static String getMessage(Context context) {
-        return prefs(context).getString(KEY_MESSAGE, "");
+        return config(context).message;
     }
 
     static float getDistanceFilter(Context context) {
-        return prefs(context).getFloat(KEY_DISTANCE_FILTER, 0f);
+        return config(context).distanceFilter;
     }
 
     static long getMinIntervalMs(Context context) {
-        return prefs(context).getLong(KEY_MIN_INTERVAL_MS, 0L);
+        return config(context).minIntervalMs;
     }
 
     static Map<String, String> getHeaders(Context context) {
-        return headersFromJson(prefs(context).getString(KEY_HEADERS, null));
+        return config(context).headers;
+    }
+
+    // Random id generated once per installation. Used to give each device a
+    // stable slot when the server asks the whole fleet to back off.
+    static String getInstallationId(Context context) {
+        SharedPreferences prefs = prefs(context);
+        String installationId = prefs.getString(KEY_INSTALLATION_ID, null);
+        if (installationId == null) {
+            installationId = UUID.randomUUID().toString();
+            prefs.edit().putString(KEY_INSTALLATION_ID, installationId).apply();
+        }
+        return installationId;
     }
 
     // Returns true when this location should be POSTed given the configured
-    // minimum interval. Points older than the last sent time pass through.
+    // minimum interval.
     static boolean shouldPost(Context context, long locationTimeMs) {
-        long minIntervalMs = getMinIntervalMs(context);
-        if (minIntervalMs <= 0) {
-            return true;
-        }
-        long lastPostTime = prefs(context).getLong(KEY_LAST_POST_TIME, Long.MIN_VALUE);
-        if (lastPostTime != Long.MIN_VALUE && locationTimeMs < lastPostTime) {
-            return true;
+        return lastPost(context).shouldPost(locationTimeMs, config(context).minIntervalMs);
+    }
+
+    // Records that a location was accepted for delivery. Once a point is in the
+    // outbox it will be sent, so the interval gate counts it immediately. The
+    // value is written behind: returns true when the caller should schedule
+    // flush() within LastPostState.FLUSH_INTERVAL_MS.
+    static boolean markPosted(Context context, long locationTimeMs) {
+        return lastPost(context).markPosted(locationTimeMs);
+    }
+
+    // Persists write-behind bookkeeping; call on a schedule and on shutdown.
+    static void flush(Context context) {
+        lastPost(context).flush();
+    }
+
+    private static synchronized LastPostState lastPost(Context context) {
+        if (lastPost == null) {
+            Context appContext = context.getApplicationContext();
+            lastPost = new LastPostState(
+                prefs(appContext).getLong(KEY_LAST_POST_TIME, LastPostState.NONE),
+                (lastPostTime) -> prefs(appContext).edit().putLong(KEY_LAST_POST_TIME, lastPostTime).apply()
+            );
         }
-        if (lastPostTime != Long.MIN_VALUE && locationTimeMs - lastPostTime < minIntervalMs) {
-            return false;
+        return lastPost;
+    }
+
+    // The persisted last post time was removed; drop the in-memory one too.
+    private static synchronized void resetLastPost() {
+        if (lastPost != null) {
+            lastPost.reset();
         }
-        return true;
     }
 
-    static void markPosted(Context context, long locationTimeMs) {
-        prefs(context).edit().putLong(KEY_LAST_POST_TIME, locationTimeMs).apply();
+    // Directory of the on-disk outbox that holds locations until they are
+    // delivered. It lives in no-backup storage: queued points are device-local.
+    static File outboxDirectory(Context context) {
+        return new File(context.getNoBackupFilesDir(), OUTBOX_DIRECTORY);
+    }
+
+    // Outbox of an additional sink. Sinks keep their backlog across restarts as
+    // long as they keep their name.
+    static File sinkOutboxDirectory(Context context, String name) {
+        return new File(new File(context.getNoBackupFilesDir(), SINKS_DIRECTORY), name);
+    }
+
+    // Parent of the segment directories of all file sinks, one per sink name.
+    static File recordingsDirectory(Context context) {
+        return new File(context.getNoBackupFilesDir(), RECORDINGS_DIRECTORY);
     }
 
-    // POSTs a single location as JSON to the configured url. Runs synchronously,
-    // so callers must invoke it off the main thread.
-    static void sendLocation(Context context, JSONObject data) throws IOException {
-        String urlString = getUrl(context);
+    // POSTs a body (one JSON location, a JSON array of them when batching, or a
+    // binary location stream) and returns the pause the server asked for, in
+    // milliseconds. Throws when no url is given so the records stay queued
+    // instead of being dropped.
+    static long post(String urlString, Map<String, String> headers, DeliveryOptions options, byte[] body, String idempotencyKey)
+        throws IOException {
         if (urlString == null || urlString.isEmpty()) {
-            return;
+            throw new IOException("No url configured for native location delivery");
         }
-        long locationTimeMs = data.optLong("time", System.currentTimeMillis());
-        if (!shouldPost(context, locationTimeMs)) {
-            return;
+        Map<String, String> requestHeaders = withIdempotencyKey(headers, idempotencyKey);
+        String contentType = BinaryLocationCodec.isBody(body) ? BinaryLocationCodec.CONTENT_TYPE : NativeHttpTransport.JSON_CONTENT_TYPE;
+        NativeHttpTransport.Response response = DeliveryMetrics.shared().locationPosts.record(() ->
+            NativeHttpTransport.shared().post(DeliveryScheduler.Lane.BULK, urlString, requestHeaders, contentType, options.compression, body)
+        );
+        Logger.debug(
+            "Location POST finished with response code: " +
+                response.statusCode +
+                " (" +
+                body.length +
+                " bytes, " +
+                response.wireBytes +
+                " sent)"
+        );
+        long requestedPauseMs = response.requestedPauseMs(options.rateHintHeader, System.currentTimeMillis());
+        if (!response.isSuccessful()) {
+            throw new HttpStatusException(
+                "Location POST failed with response code: " + response.statusCode,
+                response.statusCode,
+                requestedPauseMs
+            );
         }
-        HttpURLConnection connection = null;
-        try {
-            URL url = new URL(urlString);
-            byte[] body = data.toString().getBytes(StandardCharsets.UTF_8);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setConnectTimeout(15000);
-            connection.setReadTimeout(15000);
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Accept", "application/json");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Content-Length", String.valueOf(body.length));
-            for (Map.Entry<String, String> header : getHeaders(context).entrySet()) {
-                connection.setRequestProperty(header.getKey(), header.getValue());
-            }
-            try (OutputStream outputStream = connection.getOutputStream()) {
-                outputStream.write(body);
-            }
-            int responseCode = connection.getResponseCode();
-            Logger.debug("Location POST finished with response code: " + responseCode);
-            if (responseCode < HttpURLConnection.HTTP_OK || responseCode >= HttpURLConnection.HTTP_MULT_CHOICE) {
-                throw new IOException("Location POST failed with response code: " + responseCode);
-            }
-            markPosted(context, locationTimeMs);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+        return requestedPauseMs;
+    }
+
+    // POSTs a diagnostics snapshot with the primary sink's headers. Not counted
+    // in the location POST metrics.
+    static void postDiagnostics(String urlString, Map<String, String> headers, byte[] body) throws IOException {
+        NativeHttpTransport.Response response = NativeHttpTransport.shared().post(
+            DeliveryScheduler.Lane.BULK,
+            urlString,
+            headers,
+            NativeHttpTransport.JSON_CONTENT_TYPE,
+            null,
+            body
+        );
+        if (!response.isSuccessful()) {
+            throw new HttpStatusException("Diagnostics POST failed with response code: " + response.statusCode, response.statusCode);
+        }
+    }
+
+    // Copy of the configured headers with the request's Idempotency-Key, unless
+    // the app already sets one itself.
+    static Map<String, String> withIdempotencyKey(Map<String, String> headers, String idempotencyKey) {
+        if (idempotencyKey == null || (headers != null && headers.containsKey(DeliveryIds.HEADER))) {
+            return headers;
         }
+        Map<String, String> withKey = headers == null ? new HashMap<>() : new HashMap<>(headers);
+        withKey.put(DeliveryIds.HEADER, idempotencyKey);
+        return withKey;
     }
 
     static String headersToJson(Map<String, String> headers) {
@@ -179,22 +382,29 @@ final class LocationStore {
         return object.toString();
     }
 
+    // Header values are stringified; null values are dropped.
+    static Map<String, String> headersFromObject(JSONObject object) {
+        Map<String, String> headers = new HashMap<>();
+        if (object == null) {
+            return headers;
+        }
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = object.opt(key);
+            if (value != null && value != JSONObject.NULL) {
+                headers.put(key, String.valueOf(value));
+            }
+        }
+        return headers;
+    }
+
     static Map<String, String> headersFromJson(String json) {
         if (json == null || json.isEmpty()) {
             return Collections.emptyMap();
         }
         try {
-            JSONObject object = new JSONObject(json);
-            Map<String, String> headers = new HashMap<>();
-            Iterator<String> keys = object.keys();
-            while (keys.hasNext()) {
-                String key = keys.next();
-                Object value = object.opt(key);
-                if (value != null && value != JSONObject.NULL) {
-                    headers.put(key, String.valueOf(value));
-                }
-            }
-            return headers;
+            return headersFromObject(new JSONObject(json));
         } catch (JSONException exception) {
             Logger.error("Could not parse persisted location headers", exception);
             return Collections.emptyMap();
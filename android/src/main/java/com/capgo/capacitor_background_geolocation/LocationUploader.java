@@ -0,0 +1,498 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.getcapacitor.Logger;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Drains a LocationOutbox in order on a single background thread.
+//
+// New locations wait in a bounded LocationBuffer until the background thread
+// appends them to the outbox, which it also does between two requests. A POST
+// stuck until its timeout therefore holds at most bufferSize locations in
+// memory; beyond that the buffer's shedding policy applies.
+//
+// Every location is appended to the outbox before any network I/O happens. A
+// record is only removed once its POST succeeded, so a failed POST (or the
+// process dying mid-request) leaves it at the head of the outbox and the drain
+// is retried later. Pending records from a previous process are replayed as
+// soon as the uploader is created.
+//
+// Failed POSTs are retried with jittered exponential backoff. After too many
+// failures in a row a circuit breaker stops regular attempts and only probes
+// the endpoint now and then; its state is persisted next to the outbox. When
+// the server asks for a pause (Retry-After), nothing is sent until it is over
+// and the fixes collected meanwhile go out back to back.
+//
+// Uploads only run while the UploadPolicy of the options allows them: never
+// offline, and optionally only on unmetered networks or while charging. A
+// deferred backlog is sent as soon as the monitor reports that the
+// conditions allow it again.
+//
+// With batching enabled, records wait in the outbox until batchSize records or
+// batchMaxBytes bytes are pending, or the oldest one has waited
+// batchMaxDelayMs, and are then POSTed together as a JSON array.
+//
+// Every request carries an Idempotency-Key (see DeliveryIds). Records are
+// remembered in a DeliveredRecords set before the outbox forgets them, so a
+// batch replayed after a crash only sends the records the server has not
+// acknowledged yet.
+//
+// An outbox has a single drainer: a new uploader for a directory waits until
+// the previous one (typically still running the final flush of stop()) has
+// terminated before it touches the outbox.
+final class LocationUploader {
+
+    static final long SEGMENT_BYTES = 256 * 1024;
+    static final long MAX_OUTBOX_BYTES = 10 * 1024 * 1024;
+    static final String BREAKER_FILE = "breaker";
+    static final String DELIVERED_FILE = "delivered";
+
+    interface Sender {
+        // Returns the pause the server asked for in milliseconds, 0 for none.
+        long send(byte[] body, String idempotencyKey) throws IOException;
+    }
+
+    // Directory -> executor of the last uploader created for it.
+    private static final Map<String, ExecutorService> DRAINERS = new HashMap<>();
+
+    private final File directory;
+    private final RetryPolicy retryPolicy;
+    private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final LocationBuffer buffer;
+    private final UploadPolicy.Monitor monitor;
+    // Set while a task that moves the buffer to the outbox is queued, so a
+    // burst of fixes queues a single task.
+    private final AtomicBoolean persistQueued = new AtomicBoolean();
+    private long loggedShedRecords;
+    // Set while the backlog waits for the upload policy to allow it.
+    private boolean waitingForConditions;
+    private volatile boolean stopped;
+    // Set for the final drain of flushAndShutdown(), which ignores the breaker.
+    private boolean flushing;
+    private Sender sender;
+    private DeliveryOptions options;
+    // Volatile so diagnostics can read the queue depth from any thread.
+    private volatile LocationOutbox outbox;
+    private CircuitBreaker breaker;
+    private DeliveredRecords delivered;
+    private ScheduledFuture<?> retry;
+    private ScheduledFuture<?> batchTimer;
+    // Monotonic time at which the oldest record still waiting for its batch was
+    // queued. Only meaningful while batchStarted is set.
+    private boolean batchStarted;
+    private long batchStartedAtMs;
+
+    LocationUploader(File directory, Sender sender, DeliveryOptions options) {
+        this(directory, sender, options, RetryPolicy.DEFAULT);
+    }
+
+    LocationUploader(File directory, Sender sender, DeliveryOptions options, RetryPolicy retryPolicy) {
+        this(directory, sender, options, retryPolicy, UploadPolicy.ALWAYS_ONLINE);
+    }
+
+    // Takes ownership of the monitor and closes it on shutdown.
+    LocationUploader(File directory, Sender sender, DeliveryOptions options, RetryPolicy retryPolicy, UploadPolicy.Monitor monitor) {
+        this.directory = directory;
+        this.retryPolicy = retryPolicy;
+        this.sender = sender;
+        this.options = options;
+        this.buffer = new LocationBuffer(options);
+        this.monitor = monitor;
+        // Pending retries and batch timers must not fire after shutdown().
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        ExecutorService previous;
+        synchronized (DRAINERS) {
+            previous = DRAINERS.put(directory.getAbsolutePath(), executor);
+        }
+        // Queued first, so every other task runs once the outbox is ours.
+        executor.execute(() -> {
+            if (awaitPreviousDrainer(previous)) {
+                drainAll();
+            }
+        });
+        monitor.setListener(this::onConditionsChanged);
+    }
+
+    void setOptions(DeliveryOptions options) {
+        buffer.configure(options);
+        executor.execute(() -> {
+            this.options = options;
+            drain(false);
+        });
+    }
+
+    // Buffers a record, then persists it and tries to deliver everything
+    // pending. While a retry is scheduled the record is only persisted, so an
+    // outage does not turn every new fix into another doomed connection
+    // attempt. timeMs is the fix time, used by the first-last policy.
+    void enqueue(byte[] record, long timeMs) {
+        buffer.offer(record, timeMs);
+        if (!persistQueued.compareAndSet(false, true)) {
+            return;
+        }
+        executor.execute(() -> {
+            persistQueued.set(false);
+            if (persistBuffered() && retry == null) {
+                drain(false);
+            }
+        });
+    }
+
+    // Locations shed by the in-memory buffer since this uploader started.
+    long shedRecords() {
+        return buffer.shedRecords();
+    }
+
+    // Locations waiting for delivery, in memory and in the outbox.
+    int queuedRecords() {
+        LocationOutbox outbox = this.outbox;
+        return buffer.size() + (outbox == null ? 0 : outbox.size());
+    }
+
+    // Locations the outbox dropped to stay under its size cap.
+    long droppedRecords() {
+        LocationOutbox outbox = this.outbox;
+        return outbox == null ? 0 : outbox.droppedRecords();
+    }
+
+    // Sends whatever is pending, ignoring the batch thresholds, through the
+    // given sender and then stops the background thread. Used by stop(), where
+    // the persisted url is cleared before the flush gets to run.
+    void flushAndShutdown(Sender finalSender) {
+        executor.execute(() -> {
+            sender = finalSender;
+            flushing = true;
+            drain(true);
+        });
+        executor.shutdown();
+        monitor.close();
+    }
+
+    // Stops the background thread. Records that were not delivered stay in the
+    // outbox and are replayed by the next uploader.
+    void shutdown() {
+        stopped = true;
+        executor.execute(this::persistBuffered);
+        executor.shutdown();
+        monitor.close();
+    }
+
+    // Flushes a deferred backlog, without waiting for the batch thresholds,
+    // once the network (or power) state allows uploads again.
+    private void onConditionsChanged() {
+        if (stopped || executor.isShutdown()) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                if (waitingForConditions && options.uploadPolicy.allows(monitor.current())) {
+                    drain(true);
+                }
+            });
+        } catch (RejectedExecutionException exception) {
+            // Shut down in the meantime.
+        }
+    }
+
+    // Waits for the previous uploader of this directory to terminate, so two
+    // threads never POST the same head of the outbox. Returns false when this
+    // uploader was shut down meanwhile.
+    private boolean awaitPreviousDrainer(ExecutorService previous) {
+        if (previous == null) {
+            return true;
+        }
+        try {
+            while (!previous.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (stopped) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Delivers the backlog left by a previous process without waiting for the
+    // batch thresholds; those points have already waited long enough.
+    private void drainAll() {
+        drain(true);
+    }
+
+    private void drain(boolean force) {
+        cancelRetry();
+        cancelBatchTimer();
+        LocationOutbox outbox = outbox();
+        if (outbox == null) {
+            return;
+        }
+        CircuitBreaker breaker = breaker();
+        while (!stopped) {
+            persistBuffered();
+            DeliveryOptions options = this.options;
+            try {
+                LocationOutbox.Batch batch = outbox.peek(options.batchSize, options.batchMaxBytes);
+                if (batch.isEmpty()) {
+                    batchStarted = false;
+                    return;
+                }
+                // After a format change the outbox holds both JSON and binary
+                // records; each request carries only one kind.
+                int sameFormat = leadingSameFormat(batch.records);
+                boolean formatChanged = sameFormat < batch.size();
+                if (formatChanged) {
+                    batch = outbox.peek(sameFormat, options.batchMaxBytes);
+                }
+                if (!force && !formatChanged && !isBatchReady(batch, outbox, options)) {
+                    scheduleBatchTimer(options);
+                    return;
+                }
+                // Offline, every attempt would only wait for a connect
+                // timeout; the monitor's listener resumes the drain.
+                waitingForConditions = !flushing && !options.uploadPolicy.allows(monitor.current());
+                if (waitingForConditions) {
+                    return;
+                }
+                long waitMs = flushing ? 0 : breaker.delayMs(System.currentTimeMillis());
+                if (waitMs > 0) {
+                    scheduleRetry(waitMs);
+                    return;
+                }
+                List<byte[]> pending = delivered().pending(batch.records);
+                long requestedPauseMs = 0;
+                try {
+                    if (!pending.isEmpty()) {
+                        requestedPauseMs = sender.send(body(pending, options), DeliveryIds.idempotencyKey(pending));
+                        remember(pending);
+                    }
+                    breaker.recordSuccess();
+                } catch (HttpStatusException exception) {
+                    if (exception.isRetryable()) {
+                        throw exception;
+                    }
+                    // The server will reject these records every time, so they
+                    // must not block the records queued behind them.
+                    Logger.error("Native location POST rejected, dropping " + batch.size() + " point(s)", exception);
+                    breaker.recordSuccess();
+                }
+                outbox.acknowledge(batch);
+                batchStarted = false;
+                if (!outbox.isEmpty()) {
+                    startBatch();
+                }
+                if (requestedPauseMs > 0) {
+                    pause(breaker, requestedPauseMs);
+                }
+            } catch (HttpStatusException exception) {
+                if (executor.isShutdown()) {
+                    return;
+                }
+                // A server asking for a pause is up, so it does not count
+                // towards opening the breaker.
+                scheduleRetry(exception.retryAfterMs > 0 ? pause(breaker, exception.retryAfterMs) : failureDelayMs(breaker, exception));
+                return;
+            } catch (IOException exception) {
+                if (executor.isShutdown()) {
+                    return;
+                }
+                scheduleRetry(failureDelayMs(breaker, exception));
+                return;
+            }
+        }
+    }
+
+    // Moves buffered records to the outbox. Returns false when there was
+    // nothing to move.
+    private boolean persistBuffered() {
+        logShedRecords();
+        List<byte[]> records = buffer.drain();
+        if (records.isEmpty()) {
+            return false;
+        }
+        LocationOutbox outbox = outbox();
+        if (outbox == null) {
+            return false;
+        }
+        try {
+            for (byte[] record : records) {
+                outbox.append(record);
+            }
+        } catch (IOException exception) {
+            Logger.error("Could not persist location to outbox", exception);
+            return false;
+        }
+        if (!batchStarted) {
+            startBatch();
+        }
+        return true;
+    }
+
+    private void logShedRecords() {
+        long shedRecords = buffer.shedRecords();
+        if (shedRecords > loggedShedRecords) {
+            Logger.warn("Native location buffer full, shed " + (shedRecords - loggedShedRecords) + " point(s)");
+            loggedShedRecords = shedRecords;
+        }
+    }
+
+    private long failureDelayMs(CircuitBreaker breaker, IOException failure) {
+        long delayMs;
+        try {
+            delayMs = breaker.recordFailure(System.currentTimeMillis());
+        } catch (IOException exception) {
+            Logger.error("Could not persist native location retry state", exception);
+            delayMs = retryPolicy.delayMs(breaker.consecutiveFailures(), Math.random());
+        }
+        if (breaker.isOpen()) {
+            Logger.error(
+                "Native location POST failed " + breaker.consecutiveFailures() + " times in a row, probing again in " + delayMs + "ms",
+                failure
+            );
+        } else {
+            Logger.error("Native location POST failed, retrying in " + delayMs + "ms", failure);
+        }
+        return delayMs;
+    }
+
+    private long pause(CircuitBreaker breaker, long requestedPauseMs) {
+        long pauseMs = retryPolicy.pauseMs(requestedPauseMs);
+        Logger.debug("Native location server asked to pause for " + requestedPauseMs + "ms, next POST in " + pauseMs + "ms");
+        try {
+            return breaker.recordPause(System.currentTimeMillis(), pauseMs);
+        } catch (IOException exception) {
+            Logger.error("Could not persist native location pause", exception);
+            return pauseMs;
+        }
+    }
+
+    private void scheduleRetry(long delayMs) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        retry = executor.schedule(() -> drain(false), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelRetry() {
+        if (retry != null) {
+            retry.cancel(false);
+            retry = null;
+        }
+    }
+
+    // A batch is sent as soon as any threshold is reached: enough records, more
+    // records pending than fit in batchMaxBytes, or the oldest waited too long.
+    private boolean isBatchReady(LocationOutbox.Batch batch, LocationOutbox outbox, DeliveryOptions options) {
+        if (!options.isBatching() || batch.size() >= options.batchSize || outbox.size() > batch.size()) {
+            return true;
+        }
+        return !batchStarted || now() - batchStartedAtMs >= options.batchMaxDelayMs;
+    }
+
+    private void startBatch() {
+        batchStarted = true;
+        batchStartedAtMs = now();
+    }
+
+    private void scheduleBatchTimer(DeliveryOptions options) {
+        if (executor.isShutdown()) {
+            return;
+        }
+        long delayMs = Math.max(0L, batchStartedAtMs + options.batchMaxDelayMs - now());
+        batchTimer = executor.schedule(() -> drain(false), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelBatchTimer() {
+        if (batchTimer != null) {
+            batchTimer.cancel(false);
+            batchTimer = null;
+        }
+    }
+
+    // Binary records always go out as a binary location stream. JSON records
+    // keep the original one object per request unless batching is enabled.
+    static byte[] body(List<byte[]> records, DeliveryOptions options) throws IOException {
+        if (BinaryLocationCodec.isRecord(records.get(0))) {
+            return BinaryLocationCodec.encodeBody(records);
+        }
+        return options.isBatching() ? jsonArrayBody(records) : records.get(0);
+    }
+
+    private static int leadingSameFormat(List<byte[]> records) {
+        boolean binary = BinaryLocationCodec.isRecord(records.get(0));
+        int count = 1;
+        while (count < records.size() && BinaryLocationCodec.isRecord(records.get(count)) == binary) {
+            count++;
+        }
+        return count;
+    }
+
+    // Joins already serialized JSON objects into a JSON array without parsing
+    // them again.
+    static byte[] jsonArrayBody(List<byte[]> records) {
+        int length = 2 + Math.max(0, records.size() - 1);
+        for (byte[] record : records) {
+            length += record.length;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream(length);
+        body.write('[');
+        for (int i = 0; i < records.size(); i++) {
+            if (i > 0) {
+                body.write(',');
+            }
+            byte[] record = records.get(i);
+            body.write(record, 0, record.length);
+        }
+        body.write(']');
+        return body.toByteArray();
+    }
+
+    private LocationOutbox outbox() {
+        if (outbox == null) {
+            try {
+                outbox = LocationOutbox.open(directory, SEGMENT_BYTES, MAX_OUTBOX_BYTES);
+            } catch (IOException exception) {
+                Logger.error("Could not open location outbox", exception);
+            }
+        }
+        return outbox;
+    }
+
+    private DeliveredRecords delivered() {
+        if (delivered == null) {
+            delivered = new DeliveredRecords(new File(directory, DELIVERED_FILE), DeliveredRecords.DEFAULT_CAPACITY);
+        }
+        return delivered;
+    }
+
+    // Losing this only costs the protection against replays, so the batch is
+    // still acknowledged.
+    private void remember(List<byte[]> records) {
+        try {
+            delivered().addAll(records);
+        } catch (IOException exception) {
+            Logger.error("Could not persist delivered locations", exception);
+        }
+    }
+
+    private CircuitBreaker breaker() {
+        if (breaker == null) {
+            breaker = new CircuitBreaker(new File(directory, BREAKER_FILE), retryPolicy);
+        }
+        return breaker;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
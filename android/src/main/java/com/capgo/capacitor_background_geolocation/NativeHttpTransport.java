@@ -0,0 +1,323 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.MalformedURLException;
+import java.net.Socket;
+import java.net.URL;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+// Shared HTTP client for every native POST (locations and geofence
+// transitions).
+//
+// Completed requests are not disconnect()ed: the response body is read to the
+// end and closed instead, which hands the socket back to the platform's
+// HttpURLConnection pool so the next POST to the same origin skips the TCP and
+// TLS handshakes. Only a request that failed midway is disconnected, so a
+// half-written or half-read socket never goes back to the pool. The pool itself is left with the platform defaults, which
+// are process wide and shared with the app. Concurrent requests per origin are
+// capped here instead, so a backlog cannot open a connection per queued
+// request, and the slots are handed out by priority lane (see
+// DeliveryScheduler).
+final class NativeHttpTransport {
+
+    static final int CONNECT_TIMEOUT_MS = 15000;
+    static final int READ_TIMEOUT_MS = 15000;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_ORIGIN = 2;
+    static final String JSON_CONTENT_TYPE = "application/json";
+
+    private static final NativeHttpTransport SHARED = new NativeHttpTransport();
+
+    static final class Response {
+
+        final int statusCode;
+        final Map<String, List<String>> headers;
+        // Request body bytes put on the wire, after compression.
+        final long wireBytes;
+
+        Response(int statusCode, Map<String, List<String>> headers, long wireBytes) {
+            this.statusCode = statusCode;
+            this.headers = headers == null ? Collections.emptyMap() : headers;
+            this.wireBytes = wireBytes;
+        }
+
+        boolean isSuccessful() {
+            return statusCode >= HttpURLConnection.HTTP_OK && statusCode < HttpURLConnection.HTTP_MULT_CHOICE;
+        }
+
+        // How long the server asked clients to hold off, in milliseconds, 0 when
+        // it did not. Retry-After is honored on 429 and 503; rateHintHeader, when
+        // set, names a header with the same syntax that is honored on any
+        // response, so the server can slow devices down without failing requests.
+        long requestedPauseMs(String rateHintHeader, long nowMs) {
+            long pauseMs = 0;
+            if (statusCode == 429 || statusCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+                pauseMs = parseRetryAfterMs(header("Retry-After"), nowMs);
+            }
+            if (rateHintHeader != null && !rateHintHeader.isEmpty()) {
+                pauseMs = Math.max(pauseMs, parseRetryAfterMs(header(rateHintHeader), nowMs));
+            }
+            return pauseMs;
+        }
+
+        String header(String name) {
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey()) && !entry.getValue().isEmpty()) {
+                    return entry.getValue().get(0);
+                }
+            }
+            return null;
+        }
+    }
+
+    // Parses a Retry-After value, either delay-seconds or an HTTP-date, into a
+    // delay from nowMs. Returns 0 for missing or malformed values.
+    static long parseRetryAfterMs(String value, long nowMs) {
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        String trimmed = value.trim();
+        try {
+            return Math.max(0L, Math.round(Double.parseDouble(trimmed) * 1000));
+        } catch (NumberFormatException ignore) {
+            // Not delay-seconds, try an HTTP-date.
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(trimmed);
+            return Math.max(0L, date.getTime() - nowMs);
+        } catch (ParseException exception) {
+            return 0;
+        }
+    }
+
+    private final Map<String, DeliveryScheduler> originSchedulers = new ConcurrentHashMap<>();
+    private final CountingSSLSocketFactory sslSocketFactory = new CountingSSLSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong httpsRequests = new AtomicLong();
+    private final AtomicLong totalLatencyMs = new AtomicLong();
+    private volatile int maxConnectionsPerOrigin = DEFAULT_MAX_CONNECTIONS_PER_ORIGIN;
+    // Number of sinks uploading to each origin.
+    private volatile Map<String, Integer> bulkSenders = Collections.emptyMap();
+
+    NativeHttpTransport() {}
+
+    static NativeHttpTransport shared() {
+        return SHARED;
+    }
+
+    void configure(int maxConnectionsPerOrigin) {
+        configure(maxConnectionsPerOrigin, Collections.emptyList());
+    }
+
+    // Caps the requests in flight to each origin, including the schedulers
+    // already created. bulkUrls are the urls the sinks upload to: each sink
+    // sends one request at a time, and BULK requests leave a slot free for
+    // HIGH ones, so an origin shared by several sinks gets one slot per sink
+    // plus that one. Otherwise the sinks would take turns on the single BULK
+    // slot of the default cap. A cap of 1 is kept as is.
+    void configure(int maxConnectionsPerOrigin, Collection<String> bulkUrls) {
+        this.maxConnectionsPerOrigin = Math.max(1, maxConnectionsPerOrigin);
+        Map<String, Integer> senders = new HashMap<>();
+        for (String urlString : bulkUrls) {
+            try {
+                senders.merge(origin(new URL(urlString)), 1, Integer::sum);
+            } catch (MalformedURLException exception) {
+                // Reported by the sink's own POSTs.
+            }
+        }
+        bulkSenders = senders;
+        for (Map.Entry<String, DeliveryScheduler> entry : originSchedulers.entrySet()) {
+            entry.getValue().setMaxConcurrent(maxConcurrent(entry.getKey()));
+        }
+    }
+
+    private int maxConcurrent(String origin) {
+        Integer senders = bulkSenders.get(origin);
+        if (maxConnectionsPerOrigin == 1 || senders == null) {
+            return maxConnectionsPerOrigin;
+        }
+        return Math.max(maxConnectionsPerOrigin, senders + 1);
+    }
+
+    // POSTs a JSON body and returns the response status and headers. Blocks for
+    // up to the connect and read timeouts, so it must run off the main thread.
+    Response post(String urlString, Map<String, String> headers, String compression, byte[] body) throws IOException {
+        return post(urlString, headers, JSON_CONTENT_TYPE, compression, body);
+    }
+
+    Response post(String urlString, Map<String, String> headers, String contentType, String compression, byte[] body)
+        throws IOException {
+        return post(DeliveryScheduler.Lane.BULK, urlString, headers, contentType, compression, body);
+    }
+
+    Response post(
+        DeliveryScheduler.Lane lane,
+        String urlString,
+        Map<String, String> headers,
+        String contentType,
+        String compression,
+        byte[] body
+    ) throws IOException {
+        URL url = new URL(urlString);
+        DeliveryScheduler scheduler = originSchedulers.computeIfAbsent(origin(url), (key) -> new DeliveryScheduler(maxConcurrent(key)));
+        try {
+            scheduler.acquire(lane);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a connection to " + origin(url), exception);
+        }
+        long startedAt = System.nanoTime();
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            if (connection instanceof HttpsURLConnection) {
+                ((HttpsURLConnection) connection).setSSLSocketFactory(sslSocketFactory);
+                httpsRequests.incrementAndGet();
+            }
+            requests.incrementAndGet();
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setRequestProperty("Content-Type", contentType);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+            try {
+                long wireBytes = RequestCompression.writeBody(connection, body, compression);
+                int statusCode = connection.getResponseCode();
+                Response response = new Response(statusCode, connection.getHeaderFields(), wireBytes);
+                consume(statusCode >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection.getInputStream());
+                return response;
+            } catch (IOException exception) {
+                connection.disconnect();
+                throw exception;
+            }
+        } finally {
+            totalLatencyMs.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+            scheduler.release(lane);
+        }
+    }
+
+    // Connection slot usage of a lane, summed over every origin.
+    DeliveryScheduler.LaneStats laneStats(DeliveryScheduler.Lane lane) {
+        DeliveryScheduler.LaneStats stats = DeliveryScheduler.NO_STATS;
+        for (DeliveryScheduler scheduler : originSchedulers.values()) {
+            stats = stats.plus(scheduler.stats(lane));
+        }
+        return stats;
+    }
+
+    // Number of POSTs issued through this transport.
+    long requestCount() {
+        return requests.get();
+    }
+
+    // Number of TLS handshakes, i.e. HTTPS connections that had to be opened
+    // because no pooled connection was available.
+    long handshakeCount() {
+        return sslSocketFactory.handshakes.get();
+    }
+
+    // Share of HTTPS POSTs that reused a pooled connection, between 0 and 1.
+    double reuseRatio() {
+        long https = httpsRequests.get();
+        if (https == 0) {
+            return 0;
+        }
+        return Math.max(0, 1 - (double) handshakeCount() / https);
+    }
+
+    long averageLatencyMs() {
+        long count = requests.get();
+        return count == 0 ? 0 : totalLatencyMs.get() / count;
+    }
+
+    // Reading the body to the end is what lets the pool keep the connection.
+    private static void consume(InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return;
+        }
+        try (InputStream stream = inputStream) {
+            byte[] buffer = new byte[1024];
+            while (stream.read(buffer) != -1) {
+                // Discard.
+            }
+        }
+    }
+
+    private static String origin(URL url) {
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    // Delegates to the platform factory and counts new sockets. A single
+    // instance is shared so pooled connections keep matching it.
+    private static final class CountingSSLSocketFactory extends SSLSocketFactory {
+
+        final AtomicLong handshakes = new AtomicLong();
+        private final SSLSocketFactory delegate;
+
+        CountingSSLSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            handshakes.incrementAndGet();
+            return delegate.createSocket(socket, host, port, autoClose);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            handshakes.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            handshakes.incrementAndGet();
+            return delegate.createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            handshakes.incrementAndGet();
+            return delegate.createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            handshakes.incrementAndGet();
+            return delegate.createSocket(address, port, localAddress, localPort);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// A route given to setPlannedRoute(), indexed for nearest-segment queries.
+//
+// Measuring a fix against every segment costs three haversines per segment,
+// so a 20,000 vertex delivery route cost 60,000 of them per fix on the main
+// looper. The segments are packed once into an STR R-tree (sort-tile-recursive
+// bulk loading, up to NODE_CAPACITY entries per node). A query descends it
+// depth first, nearest box first, and skips every box that cannot hold a
+// segment closer than the best one measured so far; only the segments left
+// are measured. On routes whose segments are short compared with the whole
+// route, a query touches O(log n) nodes.
+//
+// The route is also projected once, into flat arrays of meters on a local
+// equirectangular plane centered on the route, with each segment's vector
+// and squared length. Boxes and segments are first measured on that plane,
+// without trigonometry or allocation. Divided by the projection's worst
+// stretch, a planar distance is a lower bound of the spherical one, so the
+// haversine triangle only runs for the segments that bound cannot rule out,
+// usually the nearest alone.
+//
+// Queries are synchronized: the service answers them on the main looper, the
+// plugin may ask from its own thread.
+final class PlannedRoute {
+
+    static final int NODE_CAPACITY = 16;
+    private static final double EARTH_RADIUS_M = 6371000;
+    private static final double METERS_PER_DEGREE = EARTH_RADIUS_M * Math.PI / 180;
+    // Added to the projection's stretch for the curvature it ignores, which
+    // stays well below a percent at route scale.
+    private static final double PROJECTION_MARGIN = 0.01;
+    // Values per box: minX, minY, maxX, maxY.
+    private static final int BOX = 4;
+
+    // Result of a query. Reused by the caller, so queries do not allocate.
+    static final class Match {
+
+        // Index of the nearest segment (from point segment to segment + 1),
+        // -1 when the route has no point.
+        int segment = -1;
+        // Distance to the route, in meters.
+        double distance = Double.POSITIVE_INFINITY;
+    }
+
+    private final int size;
+    // Vertices as given to setPlannedRoute(), in degrees.
+    private final double[] longitudes;
+    private final double[] latitudes;
+    // Vertices on the plane, in meters from the center of the route's box.
+    private final double[] xs;
+    private final double[] ys;
+    // Per segment: vector from its start to its end and squared length, on
+    // the plane.
+    private final double[] dxs;
+    private final double[] dys;
+    private final double[] lengthsSquared;
+    // Distance along the route to each vertex, in meters.
+    private final double[] along;
+    private final double centerLongitude;
+    private final double centerLatitude;
+    private final double metersPerDegreeLongitude;
+    private final double centerCos;
+    // Largest absolute latitude of the route.
+    private final double maxAbsLatitude;
+    // Tree levels from the leaves up. Level 0 holds the segments, in tree
+    // order; every other level holds nodes, whose children are the entries
+    // first[level][node] to first + count in the level below. The top level
+    // is the root alone.
+    private final double[][] boxes;
+    private final int[][] first;
+    private final int[][] count;
+    private final int[] segments;
+    // Per level scratch to visit children nearest first.
+    private final double[][] childBounds;
+    private final int[][] childOrder;
+    private double bestDistance;
+    private int bestSegment;
+    // Squared factor from planar to spherical distance lower bounds.
+    private double boundScaleSquared;
+    private int measured;
+
+    PlannedRoute(double[][] points) {
+        size = points.length;
+        longitudes = new double[size];
+        latitudes = new double[size];
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            if (points[i].length < 2) {
+                throw new IllegalArgumentException("Route points need a longitude and a latitude");
+            }
+            longitudes[i] = points[i][0];
+            latitudes[i] = points[i][1];
+            minLon = Math.min(minLon, longitudes[i]);
+            minLat = Math.min(minLat, latitudes[i]);
+            maxLon = Math.max(maxLon, longitudes[i]);
+            maxLat = Math.max(maxLat, latitudes[i]);
+        }
+        centerLongitude = size == 0 ? 0 : (minLon + maxLon) / 2;
+        centerLatitude = size == 0 ? 0 : (minLat + maxLat) / 2;
+        centerCos = cosOfLatitude(centerLatitude);
+        maxAbsLatitude = size == 0 ? 0 : Math.max(Math.abs(minLat), Math.abs(maxLat));
+        metersPerDegreeLongitude = METERS_PER_DEGREE * centerCos;
+
+        xs = new double[size];
+        ys = new double[size];
+        along = new double[size];
+        for (int i = 0; i < size; i++) {
+            xs[i] = projectX(longitudes[i]);
+            ys[i] = projectY(latitudes[i]);
+            if (i > 0) {
+                along[i] = along[i - 1] + haversine(longitudes[i - 1], latitudes[i - 1], longitudes[i], latitudes[i]);
+            }
+        }
+        int segmentCount = segmentCount();
+        dxs = new double[segmentCount];
+        dys = new double[segmentCount];
+        lengthsSquared = new double[segmentCount];
+        double[] leafBoxes = new double[segmentCount * BOX];
+        for (int i = 0; i < segmentCount; i++) {
+            dxs[i] = xs[i + 1] - xs[i];
+            dys[i] = ys[i + 1] - ys[i];
+            lengthsSquared[i] = dxs[i] * dxs[i] + dys[i] * dys[i];
+            setBox(leafBoxes, i, Math.min(xs[i], xs[i + 1]), Math.min(ys[i], ys[i + 1]), Math.max(xs[i], xs[i + 1]), Math.max(ys[i], ys[i + 1]));
+        }
+
+        int levels = 1;
+        for (int entries = segmentCount; entries > 1; entries = ceilDiv(entries, NODE_CAPACITY)) {
+            levels++;
+        }
+        boxes = new double[levels][];
+        first = new int[levels][];
+        count = new int[levels][];
+        childBounds = new double[levels][NODE_CAPACITY];
+        childOrder = new int[levels][NODE_CAPACITY];
+
+        int[] order = strOrder(leafBoxes, segmentCount);
+        segments = order;
+        boxes[0] = reorder(leafBoxes, order);
+        for (int level = 1; level < levels; level++) {
+            buildLevel(level);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int segmentCount() {
+        return Math.max(0, size - 1);
+    }
+
+    // Distance along the route from its first point to point index, in meters.
+    double along(int index) {
+        return along[index];
+    }
+
+    // Length of the whole route, in meters.
+    double length() {
+        return size == 0 ? 0 : along[size - 1];
+    }
+
+    double longitude(int index) {
+        return longitudes[index];
+    }
+
+    double latitude(int index) {
+        return latitudes[index];
+    }
+
+    // Where point projects onto a segment, as a fraction of its length from
+    // its start, taken on the plane.
+    double fraction(double[] point, int segment) {
+        if (segment < 0 || segment >= segmentCount() || lengthsSquared[segment] == 0) {
+            return 0;
+        }
+        double px = projectX(point[0]) - xs[segment];
+        double py = projectY(point[1]) - ys[segment];
+        double t = (px * dxs[segment] + py * dys[segment]) / lengthsSquared[segment];
+        return Math.max(0, Math.min(1, t));
+    }
+
+    double projectX(double longitude) {
+        return (longitude - centerLongitude) * metersPerDegreeLongitude;
+    }
+
+    double projectY(double latitude) {
+        return (latitude - centerLatitude) * METERS_PER_DEGREE;
+    }
+
+    // Factor that turns a planar distance to a point at this latitude into a
+    // lower bound of the spherical one. Longitude degrees are projected at the
+    // center's scale, so they are stretched where they are shorter, towards
+    // the poles.
+    double boundScale(double latitude) {
+        double maxAbs = Math.max(maxAbsLatitude, Math.abs(latitude));
+        return 1 / (centerCos / Math.max(1e-9, cosOfLatitude(maxAbs)) + PROJECTION_MARGIN);
+    }
+
+    // Squared planar distance from (x, y) to a segment, in square meters.
+    double planarDistanceSquared(double x, double y, int segment) {
+        double px = x - xs[segment];
+        double py = y - ys[segment];
+        double lengthSquared = lengthsSquared[segment];
+        if (lengthSquared > 0) {
+            double t = (px * dxs[segment] + py * dys[segment]) / lengthSquared;
+            if (t >= 1) {
+                px -= dxs[segment];
+                py -= dys[segment];
+            } else if (t > 0) {
+                px -= t * dxs[segment];
+                py -= t * dys[segment];
+            }
+        }
+        return px * px + py * py;
+    }
+
+    // Spherical distance from point, a [longitude, latitude] pair, to one
+    // segment, in meters.
+    double distanceToSegment(double[] point, int segment) {
+        return distancePointToLineSegment(
+            point[0],
+            point[1],
+            longitudes[segment],
+            latitudes[segment],
+            longitudes[segment + 1],
+            latitudes[segment + 1]
+        );
+    }
+
+    // Segments measured on the sphere by the last query, to check how much
+    // work it did.
+    synchronized int measuredSegments() {
+        return measured;
+    }
+
+    // Finds the segment nearest to point, a [longitude, latitude] pair, and
+    // its distance in meters.
+    synchronized void nearest(double[] point, Match match) {
+        measured = 0;
+        if (size < 2) {
+            match.segment = size == 1 ? 0 : -1;
+            match.distance = size == 1 ? haversine(point[0], point[1], longitudes[0], latitudes[0]) : Double.POSITIVE_INFINITY;
+            return;
+        }
+        bestDistance = Double.POSITIVE_INFINITY;
+        bestSegment = -1;
+        double scale = boundScale(point[1]);
+        boundScaleSquared = scale * scale;
+        double x = projectX(point[0]);
+        double y = projectY(point[1]);
+        int top = boxes.length - 1;
+        if (top == 0) {
+            measure(point, 0);
+        } else {
+            search(point, x, y, top, 0);
+        }
+        match.segment = bestSegment;
+        match.distance = bestDistance;
+    }
+
+    // Visits the children of a node, nearest box first, while they can still
+    // beat the best segment. Bounds are squared spherical lower bounds.
+    private void search(double[] point, double x, double y, int level, int node) {
+        int start = first[level][node];
+        int children = count[level][node];
+        double[] bounds = childBounds[level];
+        int[] order = childOrder[level];
+        double[] childBoxes = boxes[level - 1];
+        for (int i = 0; i < children; i++) {
+            double bound = level == 1
+                ? planarDistanceSquared(x, y, segments[start + i]) * boundScaleSquared
+                : boxDistanceSquared(childBoxes, start + i, x, y) * boundScaleSquared;
+            int j = i;
+            while (j > 0 && bounds[j - 1] > bound) {
+                bounds[j] = bounds[j - 1];
+                order[j] = order[j - 1];
+                j--;
+            }
+            bounds[j] = bound;
+            order[j] = start + i;
+        }
+        for (int i = 0; i < children; i++) {
+            if (bounds[i] >= bestDistance * bestDistance) {
+                return;
+            }
+            if (level == 1) {
+                measure(point, order[i]);
+            } else {
+                search(point, x, y, level - 1, order[i]);
+            }
+        }
+    }
+
+    private void measure(double[] point, int entry) {
+        int segment = segments[entry];
+        double distance = distanceToSegment(point, segment);
+        measured++;
+        if (distance < bestDistance) {
+            bestDistance = distance;
+            bestSegment = segment;
+        }
+    }
+
+    // Groups the entries of the level below into nodes of up to NODE_CAPACITY.
+    private void buildLevel(int level) {
+        double[] below = boxes[level - 1];
+        int entries = below.length / BOX;
+        int nodes = ceilDiv(entries, NODE_CAPACITY);
+        double[] nodeBoxes = new double[nodes * BOX];
+        int[] nodeFirst = new int[nodes];
+        int[] nodeCount = new int[nodes];
+        for (int node = 0; node < nodes; node++) {
+            int start = node * NODE_CAPACITY;
+            int end = Math.min(entries, start + NODE_CAPACITY);
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = start; i < end; i++) {
+                minX = Math.min(minX, below[i * BOX]);
+                minY = Math.min(minY, below[i * BOX + 1]);
+                maxX = Math.max(maxX, below[i * BOX + 2]);
+                maxY = Math.max(maxY, below[i * BOX + 3]);
+            }
+            setBox(nodeBoxes, node, minX, minY, maxX, maxY);
+            nodeFirst[node] = start;
+            nodeCount[node] = end - start;
+        }
+        if (nodes > 1) {
+            // Tile this level too; a node keeps its children when it moves.
+            int[] order = strOrder(nodeBoxes, nodes);
+            nodeBoxes = reorder(nodeBoxes, order);
+            nodeFirst = reorder(nodeFirst, order);
+            nodeCount = reorder(nodeCount, order);
+        }
+        boxes[level] = nodeBoxes;
+        first[level] = nodeFirst;
+        count[level] = nodeCount;
+    }
+
+    // Sort-tile-recursive order: entries sorted by x into vertical slices of
+    // whole nodes, each slice sorted by y, so consecutive runs of
+    // NODE_CAPACITY entries are compact.
+    private static int[] strOrder(double[] boxes, int entries) {
+        Integer[] order = new Integer[entries];
+        for (int i = 0; i < entries; i++) {
+            order[i] = i;
+        }
+        int slices = (int) Math.ceil(Math.sqrt(ceilDiv(entries, NODE_CAPACITY)));
+        int sliceSize = Math.max(1, slices) * NODE_CAPACITY;
+        Arrays.sort(order, Comparator.comparingDouble((i) -> boxes[i * BOX] + boxes[i * BOX + 2]));
+        for (int start = 0; start < entries; start += sliceSize) {
+            Arrays.sort(order, start, Math.min(entries, start + sliceSize), Comparator.comparingDouble((i) -> boxes[i * BOX + 1] + boxes[i * BOX + 3]));
+        }
+        int[] result = new int[entries];
+        for (int i = 0; i < entries; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    private static double[] reorder(double[] boxes, int[] order) {
+        double[] result = new double[boxes.length];
+        for (int i = 0; i < order.length; i++) {
+            System.arraycopy(boxes, order[i] * BOX, result, i * BOX, BOX);
+        }
+        return result;
+    }
+
+    private static int[] reorder(int[] values, int[] order) {
+        int[] result = new int[values.length];
+        for (int i = 0; i < order.length; i++) {
+            result[i] = values[order[i]];
+        }
+        return result;
+    }
+
+    private static void setBox(double[] boxes, int entry, double minX, double minY, double maxX, double maxY) {
+        int offset = entry * BOX;
+        boxes[offset] = minX;
+        boxes[offset + 1] = minY;
+        boxes[offset + 2] = maxX;
+        boxes[offset + 3] = maxY;
+    }
+
+    // Squared planar distance from (x, y) to anything in the box.
+    private static double boxDistanceSquared(double[] boxes, int entry, double x, double y) {
+        int offset = entry * BOX;
+        double dx = Math.max(0, Math.max(boxes[offset] - x, x - boxes[offset + 2]));
+        double dy = Math.max(0, Math.max(boxes[offset + 1] - y, y - boxes[offset + 3]));
+        return dx * dx + dy * dy;
+    }
+
+    private static double cosOfLatitude(double latitude) {
+        return Math.max(0, Math.cos(Math.toRadians(Math.min(90, Math.abs(latitude)))));
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    static double haversine(double[] point1, double[] point2) {
+        return haversine(point1[0], point1[1], point2[0], point2[1]);
+    }
+
+    static double haversine(double lon1, double lat1, double lon2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+
+        double a =
+            Math.sin(dLat / 2) * Math.sin(dLat / 2) +
+            Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+
+        return EARTH_RADIUS_M * c;
+    }
+
+    static double distancePointToLineSegment(double[] point, double[] lineStart, double[] lineEnd) {
+        return distancePointToLineSegment(point[0], point[1], lineStart[0], lineStart[1], lineEnd[0], lineEnd[1]);
+    }
+
+    static double distancePointToLineSegment(double lon, double lat, double startLon, double startLat, double endLon, double endLat) {
+        // Calculate the distances between the three points using Haversine
+        double dist_A_B = haversine(lon, lat, startLon, startLat);
+        double dist_A_C = haversine(lon, lat, endLon, endLat);
+        double dist_B_C = haversine(startLon, startLat, endLon, endLat);
+
+        // Handle the edge case where the line segment is a single point
+        if (dist_B_C == 0) {
+            return dist_A_B;
+        }
+
+        // Check if the angles at the line segment's endpoints are obtuse.
+        // We use the Law of Cosines (c^2 = a^2 + b^2 - 2ab*cos(C))
+        // If cos(C) < 0, the angle is obtuse.
+
+        // Angle at B (lineStart)
+        // Use a small epsilon to handle floating point inaccuracies in division by zero
+        double cos_B = (dist_A_B * dist_A_B + dist_B_C * dist_B_C - dist_A_C * dist_A_C) / (2 * dist_A_B * dist_B_C);
+        if (cos_B < 0) {
+            return dist_A_B;
+        }
+
+        // Angle at C (lineEnd)
+        double cos_C = (dist_A_C * dist_A_C + dist_B_C * dist_B_C - dist_A_B * dist_A_B) / (2 * dist_A_C * dist_B_C);
+        if (cos_C < 0) {
+            return dist_A_C;
+        }
+
+        // If both angles are acute, the closest point is on the line segment itself.
+        // We can calculate the distance (height of the triangle) using its area.
+
+        // 1. Calculate the semi-perimeter of the triangle ABC
+        double s = (dist_A_B + dist_A_C + dist_B_C) / 2;
+
+        // 2. Calculate the area using Heron's formula
+        double area = Math.sqrt(Math.max(0, s * (s - dist_A_B) * (s - dist_A_C) * (s - dist_B_C)));
+
+        // 3. The distance is the height of the triangle from point A to the base BC
+        // Area = 0.5 * base * height  =>  height = 2 * Area / base
+        return (2 * area) / dist_B_C;
+    }
+}
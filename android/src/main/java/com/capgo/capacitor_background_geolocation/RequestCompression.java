@@ -0,0 +1,89 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Writes native POST bodies, optionally compressed with gzip or deflate, and
+// keeps running totals of the bytes before and after compression so the
+// bandwidth saved on cellular can be measured.
+final class RequestCompression {
+
+    static final String NONE = "none";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private static final AtomicLong uncompressedBytes = new AtomicLong();
+    private static final AtomicLong wireBytes = new AtomicLong();
+
+    private RequestCompression() {}
+
+    static boolean isSupported(String compression) {
+        return compression == null || NONE.equals(compression) || GZIP.equals(compression) || DEFLATE.equals(compression);
+    }
+
+    // Maps the JS option to the value persisted by the stores; null means the
+    // body is sent as is.
+    static String normalize(String compression) {
+        return GZIP.equals(compression) || DEFLATE.equals(compression) ? compression : null;
+    }
+
+    // Configures the request headers and streams the body through the selected
+    // compressor. Must be called before the connection is opened. Returns the
+    // number of body bytes put on the wire.
+    static long writeBody(HttpURLConnection connection, byte[] body, String compression) throws IOException {
+        uncompressedBytes.addAndGet(body.length);
+        if (normalize(compression) == null) {
+            connection.setRequestProperty("Content-Length", String.valueOf(body.length));
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body);
+            }
+            wireBytes.addAndGet(body.length);
+            return body.length;
+        }
+        connection.setRequestProperty("Content-Encoding", compression);
+        // The compressed size is only known once the body is written.
+        connection.setChunkedStreamingMode(0);
+        CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+        try (OutputStream outputStream = GZIP.equals(compression) ? new GZIPOutputStream(counter) : new DeflaterOutputStream(counter)) {
+            outputStream.write(body);
+        }
+        wireBytes.addAndGet(counter.count);
+        return counter.count;
+    }
+
+    // Total size of all POST bodies before compression.
+    static long uncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    // Total size of all POST bodies as sent.
+    static long wireBytes() {
+        return wireBytes.get();
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Delays between failed native location POSTs.
+//
+// Consecutive failures back off exponentially from baseDelayMs up to
+// maxDelayMs. After failureThreshold failures in a row the circuit breaker
+// opens and only probes the endpoint every probeIntervalMs. Every delay is
+// jittered so devices that lost the backend at the same moment do not retry in
+// lockstep.
+//
+// Pauses requested by the server (Retry-After) are not jittered randomly but
+// spread by a fraction derived from the installation id, so each device keeps
+// the same slot in the reconnect window across incidents.
+final class RetryPolicy {
+
+    static final long DEFAULT_BASE_DELAY_MS = 5000;
+    static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+    static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    static final long DEFAULT_PROBE_INTERVAL_MS = 15 * 60 * 1000;
+    // Server pauses longer than this are clamped, so a misconfigured header
+    // cannot stall delivery for days.
+    static final long MAX_PAUSE_MS = 60 * 60 * 1000;
+    // Upper bound of the extra per-device delay added to a server pause.
+    static final long MAX_SPREAD_MS = 10 * 60 * 1000;
+
+    static final RetryPolicy DEFAULT = new RetryPolicy(
+        DEFAULT_BASE_DELAY_MS,
+        DEFAULT_MAX_DELAY_MS,
+        DEFAULT_FAILURE_THRESHOLD,
+        DEFAULT_PROBE_INTERVAL_MS
+    );
+
+    final long baseDelayMs;
+    final long maxDelayMs;
+    final int failureThreshold;
+    final long probeIntervalMs;
+    // Position of this device in a server pause's reconnect window, in [0, 1).
+    final double spreadFraction;
+
+    RetryPolicy(long baseDelayMs, long maxDelayMs, int failureThreshold, long probeIntervalMs) {
+        this(baseDelayMs, maxDelayMs, failureThreshold, probeIntervalMs, 0);
+    }
+
+    RetryPolicy(long baseDelayMs, long maxDelayMs, int failureThreshold, long probeIntervalMs, double spreadFraction) {
+        this.baseDelayMs = Math.max(1L, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.probeIntervalMs = Math.max(1L, probeIntervalMs);
+        this.spreadFraction = Math.min(Math.max(0, spreadFraction), 1);
+    }
+
+    RetryPolicy forInstallation(String installationId) {
+        return new RetryPolicy(baseDelayMs, maxDelayMs, failureThreshold, probeIntervalMs, spreadFraction(installationId));
+    }
+
+    // Maps an installation id to a stable fraction in [0, 1).
+    static double spreadFraction(String installationId) {
+        if (installationId == null) {
+            return 0;
+        }
+        return (installationId.hashCode() & 0x7fffffffL) / (double) (1L << 31);
+    }
+
+    // Delay before the next POST after the server asked for requestedPauseMs:
+    // the pause itself plus this device's share of a window as long as the
+    // pause (at most MAX_SPREAD_MS).
+    long pauseMs(long requestedPauseMs) {
+        long pauseMs = Math.min(Math.max(0L, requestedPauseMs), MAX_PAUSE_MS);
+        return pauseMs + (long) (spreadFraction * Math.min(pauseMs, MAX_SPREAD_MS));
+    }
+
+    // Delay after the given number of consecutive failures (1 for the first).
+    // random is uniform in [0, 1).
+    long delayMs(int consecutiveFailures, double random) {
+        if (consecutiveFailures >= failureThreshold) {
+            return jitter(probeIntervalMs, random);
+        }
+        int exponent = Math.min(Math.max(0, consecutiveFailures - 1), 30);
+        return jitter(Math.min(maxDelayMs, baseDelayMs << exponent), random);
+    }
+
+    // Longest delay this policy can produce. Used to bound persisted state when
+    // the wall clock jumps backwards.
+    long longestDelayMs() {
+        return Math.max(Math.max(maxDelayMs, probeIntervalMs), MAX_PAUSE_MS + MAX_SPREAD_MS);
+    }
+
+    // Keeps half of the delay and randomizes the other half, so the spread
+    // is wide without ever retrying almost immediately.
+    private static long jitter(long delayMs, double random) {
+        long half = delayMs / 2;
+        return half + (long) ((delayMs - half) * random);
+    }
+}
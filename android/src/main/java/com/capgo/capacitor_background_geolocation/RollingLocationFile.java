@@ -0,0 +1,341 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Records a track into size- and time-rotated segment files, for apps that
+// sync recorded tracks over their own channel.
+//
+// The open segment is named <openedAtMs>.part; once it reaches maxBytes or
+// maxAgeMs it is synced and renamed to <openedAtMs>.ndjson (one Location JSON
+// object per line) or <openedAtMs>.cgl (a complete binary body, see
+// BinaryLocationCodec). Closed segments are never written again, so the app
+// can read and delete them while recording goes on.
+//
+// Writes go through a direct buffer to a FileChannel, and the channel is only
+// forced to disk every syncIntervalMs (and when a segment is closed): a crash
+// loses at most that much of the track. A segment left open by a killed
+// process is cut back to its last complete record and closed on restart.
+//
+// Not thread-safe: FileLocationSink calls it from its own thread only.
+final class RollingLocationFile {
+
+    static final String EXTENSION_JSON = ".ndjson";
+    static final String EXTENSION_BINARY = ".cgl";
+    static final String EXTENSION_OPEN = ".part";
+
+    private static final int BUFFER_BYTES = 8 * 1024;
+    private static final byte NEWLINE = '\n';
+
+    // A closed segment, as listed for the app.
+    static final class Segment {
+
+        final File file;
+        final long openedAtMs;
+
+        Segment(File file, long openedAtMs) {
+            this.file = file;
+            this.openedAtMs = openedAtMs;
+        }
+
+        boolean isBinary() {
+            return file.getName().endsWith(EXTENSION_BINARY);
+        }
+    }
+
+    private final File directory;
+    private final boolean binary;
+    private long maxBytes;
+    private long maxAgeMs;
+    private long syncIntervalMs;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+
+    private File openFile;
+    private FileOutputStream openStream;
+    private FileChannel channel;
+    private long openedAtMs;
+    private long size;
+    private long lastSyncMs;
+    private boolean dirty;
+    // Previous fix of the open binary segment; its records are deltas.
+    private LocationFix previousFix;
+
+    RollingLocationFile(File directory, boolean binary, long maxBytes, long maxAgeMs, long syncIntervalMs) throws IOException {
+        this.directory = directory;
+        this.binary = binary;
+        configure(maxBytes, maxAgeMs, syncIntervalMs);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        recoverOpenSegments();
+    }
+
+    void configure(long maxBytes, long maxAgeMs, long syncIntervalMs) {
+        this.maxBytes = Math.max(1L, maxBytes);
+        this.maxAgeMs = Math.max(1L, maxAgeMs);
+        this.syncIntervalMs = Math.max(0L, syncIntervalMs);
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    // Appends one JSON object (without its newline) to a JSON recording.
+    void appendJson(byte[] json, long nowMs) throws IOException {
+        record.reset();
+        record.write(json, 0, json.length);
+        record.write(NEWLINE);
+        if (isRotationDue(record.size(), nowMs)) {
+            closeSegment();
+        }
+        append(nowMs);
+    }
+
+    // Appends one fix to a binary recording.
+    void appendFix(LocationFix fix, long nowMs) throws IOException {
+        encodeFix(fix);
+        if (isRotationDue(record.size(), nowMs)) {
+            closeSegment();
+            // The first record of a segment carries the header and no delta.
+            encodeFix(fix);
+        }
+        write(nowMs);
+        // Only once the record is in: the next one is encoded as a delta from
+        // it, and must not be from a fix that never reached the file.
+        previousFix = fix;
+        syncIfDue(nowMs);
+    }
+
+    // Called periodically: syncs what is due and closes a segment that got too
+    // old even when no fix arrived, so it becomes available to the app.
+    void tick(long nowMs) throws IOException {
+        if (channel != null && nowMs - openedAtMs >= maxAgeMs) {
+            closeSegment();
+        } else if (dirty && nowMs - lastSyncMs >= syncIntervalMs) {
+            sync(nowMs);
+        }
+    }
+
+    // Closes the open segment, if any, so everything recorded so far is listed.
+    void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flushBuffer();
+            channel.force(false);
+        } finally {
+            buffer.clear();
+            openStream.close();
+            channel = null;
+            openStream = null;
+            previousFix = null;
+            dirty = false;
+        }
+        seal(openFile, binary);
+        openFile = null;
+    }
+
+    // Closed segments, oldest first.
+    static List<Segment> closedSegments(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (File file : files) {
+            Segment segment = closedSegment(file);
+            if (segment != null) {
+                segments.add(segment);
+            }
+        }
+        Collections.sort(segments, (a, b) -> Long.compare(a.openedAtMs, b.openedAtMs));
+        return segments;
+    }
+
+    // The closed segment stored in file, or null when file is not one.
+    static Segment closedSegment(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || !file.isFile()) {
+            return null;
+        }
+        String extension = name.substring(dot);
+        if (!EXTENSION_JSON.equals(extension) && !EXTENSION_BINARY.equals(extension)) {
+            return null;
+        }
+        try {
+            return new Segment(file, Long.parseLong(name.substring(0, dot)));
+        } catch (NumberFormatException exception) {
+            return null;
+        }
+    }
+
+    private void encodeFix(LocationFix fix) {
+        record.reset();
+        if (channel == null) {
+            BinaryLocationCodec.writeHeader(record);
+        }
+        BinaryLocationCodec.appendRecord(record, fix, previousFix);
+    }
+
+    private void append(long nowMs) throws IOException {
+        write(nowMs);
+        syncIfDue(nowMs);
+    }
+
+    private void write(long nowMs) throws IOException {
+        if (channel == null) {
+            open(nowMs);
+        }
+        byte[] bytes = record.toByteArray();
+        if (bytes.length > buffer.remaining()) {
+            flushBuffer();
+        }
+        if (bytes.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+        size += bytes.length;
+        dirty = true;
+    }
+
+    private void syncIfDue(long nowMs) throws IOException {
+        if (nowMs - lastSyncMs >= syncIntervalMs) {
+            sync(nowMs);
+        }
+    }
+
+    // A segment always takes at least one record, whatever its size.
+    private boolean isRotationDue(int recordBytes, long nowMs) {
+        return channel != null && (nowMs - openedAtMs >= maxAgeMs || (size > 0 && size + recordBytes > maxBytes));
+    }
+
+    private void open(long nowMs) throws IOException {
+        // Two segments opened in the same millisecond get distinct names.
+        long name = nowMs;
+        while (
+            new File(directory, name + EXTENSION_OPEN).exists() ||
+            new File(directory, name + EXTENSION_JSON).exists() ||
+            new File(directory, name + EXTENSION_BINARY).exists()
+        ) {
+            name++;
+        }
+        openFile = new File(directory, name + EXTENSION_OPEN);
+        openStream = new FileOutputStream(openFile, true);
+        channel = openStream.getChannel();
+        openedAtMs = nowMs;
+        size = 0;
+        lastSyncMs = nowMs;
+    }
+
+    private void sync(long nowMs) throws IOException {
+        flushBuffer();
+        channel.force(false);
+        lastSyncMs = nowMs;
+        dirty = false;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer source) throws IOException {
+        while (source.hasRemaining()) {
+            channel.write(source);
+        }
+    }
+
+    private void seal(File file, boolean binary) throws IOException {
+        String name = file.getName();
+        String extension = binary ? EXTENSION_BINARY : EXTENSION_JSON;
+        File sealed = new File(directory, name.substring(0, name.length() - EXTENSION_OPEN.length()) + extension);
+        if (!file.renameTo(sealed)) {
+            throw new IOException("Could not close segment " + file);
+        }
+    }
+
+    // Segments left open by a previous process: drop a torn last record, then
+    // close them like any other. Empty ones are deleted.
+    private void recoverOpenSegments() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION_OPEN)) {
+                continue;
+            }
+            long complete;
+            // The format may have changed since, so it is taken from the file.
+            boolean binarySegment;
+            try (RandomAccessFile input = new RandomAccessFile(file, "rw")) {
+                byte[] bytes = new byte[(int) Math.min(Integer.MAX_VALUE, input.length())];
+                input.readFully(bytes);
+                binarySegment = BinaryLocationCodec.isBody(bytes);
+                complete = binarySegment ? completeBinaryLength(bytes) : completeJsonLength(bytes);
+                input.setLength(complete);
+            }
+            if (complete == 0) {
+                if (!file.delete()) {
+                    throw new IOException("Could not delete " + file);
+                }
+            } else {
+                seal(file, binarySegment);
+            }
+        }
+    }
+
+    private static long completeJsonLength(byte[] bytes) {
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes[i] == NEWLINE) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Length of the header and the records that are fully on disk.
+    static long completeBinaryLength(byte[] bytes) {
+        int position = BinaryLocationCodec.HEADER_BYTES;
+        if (bytes.length < position) {
+            return 0;
+        }
+        int complete = position;
+        while (position < bytes.length) {
+            long length = 0;
+            int shift = 0;
+            while (true) {
+                if (position >= bytes.length || shift > 28) {
+                    return complete == BinaryLocationCodec.HEADER_BYTES ? 0 : complete;
+                }
+                byte b = bytes[position++];
+                length |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+            }
+            if (length > bytes.length - position) {
+                break;
+            }
+            position += (int) length;
+            complete = position;
+        }
+        return complete == BinaryLocationCodec.HEADER_BYTES ? 0 : complete;
+    }
+}
@@ -0,0 +1,134 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Follows a fix along a PlannedRoute from one fix to the next.
+//
+// A vehicle on its route moves along it, so the next match is near the last
+// one. The cursor measures the segments within reach of the last match first:
+// the distance the fix may have covered since then (speed times elapsed time,
+// with a margin) plus the off-route threshold, both ways along the route. The
+// whole route is only searched, through the index, when nothing in that
+// window is within the threshold, on the first fix, or when the window would
+// be too wide to be cheaper. A typical fix thus costs O(window), not O(route),
+// and mostly planar arithmetic on the route's flat arrays.
+//
+// Preferring the window also keeps the match on the current leg where a route
+// passes the same place twice. Where it runs twice along the same street
+// within the window, as around the far end of an out-and-back route, segments
+// about as near as the nearest are told apart by where the fix is expected:
+// the last match moved forward by speed times elapsed time. Used on the main
+// looper only.
+final class RouteCursor {
+
+    // Reach around the last match even for a fix that did not move.
+    static final double MIN_REACH_M = 200;
+    // Speed assumed when the fix has none, in meters per second.
+    static final double DEFAULT_SPEED_MPS = 30;
+    // Covers acceleration and speed errors between two fixes.
+    static final double SPEED_MARGIN = 2;
+    // Wider windows are left to the index.
+    static final int MAX_WINDOW_SEGMENTS = 256;
+    // Segments this much farther than the nearest still count as a tie.
+    static final double TIE_M = 5;
+
+    private final PlannedRoute route;
+    private final double[] windowDistances = new double[MAX_WINDOW_SEGMENTS];
+    private int segment = -1;
+    // Distance along the route of the last match, taken at its segment's middle.
+    private double along;
+    private long timeMs;
+    private long globalSearches;
+
+    RouteCursor(PlannedRoute route) {
+        this.route = route;
+    }
+
+    // Matches a fix, a [longitude, latitude] pair taken at timeMs. speed is in
+    // meters per second, NaN when unknown.
+    void match(double[] point, double speed, long timeMs, double threshold, PlannedRoute.Match match) {
+        if (segment < 0 || route.segmentCount() == 0 || !matchWindow(point, speed, timeMs, threshold, match)) {
+            globalSearches++;
+            route.nearest(point, match);
+        }
+        segment = match.segment;
+        along = middle(match.segment);
+        this.timeMs = timeMs;
+    }
+
+    PlannedRoute route() {
+        return route;
+    }
+
+    // Searches of the whole route so far, the first fix included.
+    long globalSearches() {
+        return globalSearches;
+    }
+
+    // True when a segment within the reach of the last match is within the
+    // threshold; match then holds the nearest of them.
+    private boolean matchWindow(double[] point, double speed, long timeMs, double threshold, PlannedRoute.Match match) {
+        double elapsedS = Math.max(0, timeMs - this.timeMs) / 1000.0;
+        double metersPerSecond = Double.isNaN(speed) || speed < 0 ? DEFAULT_SPEED_MPS : speed;
+        double reach = MIN_REACH_M + threshold + metersPerSecond * SPEED_MARGIN * elapsedS;
+        int last = route.segmentCount() - 1;
+        int from = segment;
+        double start = route.along(segment) - reach;
+        while (from > 0 && route.along(from) > start) {
+            from--;
+        }
+        int to = segment;
+        double end = route.along(segment + 1) + reach;
+        while (to < last && route.along(to + 1) < end) {
+            to++;
+        }
+        if (to - from + 1 > MAX_WINDOW_SEGMENTS) {
+            return false;
+        }
+
+        // Planar distances first; only the segments whose lower bound could be
+        // the nearest or tie with it are measured on the sphere.
+        double x = route.projectX(point[0]);
+        double y = route.projectY(point[1]);
+        double scale = route.boundScale(point[1]);
+        int planarNearest = from;
+        for (int i = from; i <= to; i++) {
+            windowDistances[i - from] = route.planarDistanceSquared(x, y, i);
+            if (windowDistances[i - from] < windowDistances[planarNearest - from]) {
+                planarNearest = i;
+            }
+        }
+        double cutoff = route.distanceToSegment(point, planarNearest) + TIE_M;
+        double nearest = Double.POSITIVE_INFINITY;
+        for (int i = from; i <= to; i++) {
+            double bound = Math.sqrt(windowDistances[i - from]) * scale;
+            double distance = bound <= cutoff ? route.distanceToSegment(point, i) : Double.POSITIVE_INFINITY;
+            windowDistances[i - from] = distance;
+            nearest = Math.min(nearest, distance);
+        }
+        if (nearest > threshold) {
+            return false;
+        }
+        double expected = along + metersPerSecond * elapsedS;
+        int bestSegment = -1;
+        double bestOffset = Double.POSITIVE_INFINITY;
+        for (int i = from; i <= to; i++) {
+            if (windowDistances[i - from] <= nearest + TIE_M) {
+                double offset = Math.abs(middle(i) - expected);
+                if (offset < bestOffset) {
+                    bestOffset = offset;
+                    bestSegment = i;
+                }
+            }
+        }
+        // A tie moves the match, not the distance to the route.
+        match.segment = bestSegment;
+        match.distance = nearest;
+        return true;
+    }
+
+    private double middle(int segment) {
+        if (segment < 0 || segment >= route.segmentCount()) {
+            return 0;
+        }
+        return (route.along(segment) + route.along(segment + 1)) / 2;
+    }
+}
@@ -0,0 +1,84 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Decides when a fix has left the planned route and when it is back, from its
+// distance to the route.
+//
+// A single threshold flaps while a fix wanders around it, so leaving and
+// coming back use two distances with a band between them, and either change
+// only holds once every usable fix agreed for minDurationMs. A fix only counts
+// as off route when even the nearest point of its accuracy circle is beyond
+// the exit distance, and fixes less accurate than maxAccuracy are ignored: they
+// neither start nor confirm nor cancel a change.
+//
+// The device usually starts away from the route, on its way to it, so there is
+// no event until it first joins the route. Used on the main looper only.
+final class RouteDeviationDetector {
+
+    static final int NONE = 0;
+    static final int OFF_ROUTE = 1;
+    static final int BACK_ON_ROUTE = 2;
+
+    static final long DEFAULT_MIN_DURATION_MS = 5000;
+    static final double DEFAULT_MAX_ACCURACY_M = 100;
+
+    final double exitDistance;
+    final double reentryDistance;
+    final long minDurationMs;
+    final double maxAccuracy;
+    private boolean joined;
+    private boolean offRoute;
+    // Time of the first fix agreeing with a pending change, -1 when none.
+    private long pendingSinceMs = -1;
+    private long changedAtMs;
+
+    // reentryDistance is clamped to exitDistance, which leaves no band.
+    RouteDeviationDetector(double exitDistance, double reentryDistance, long minDurationMs, double maxAccuracy) {
+        this.exitDistance = exitDistance;
+        this.reentryDistance = Math.min(reentryDistance, exitDistance);
+        this.minDurationMs = Math.max(0, minDurationMs);
+        this.maxAccuracy = maxAccuracy;
+    }
+
+    // Feeds one fix: its distance to the route in meters, its accuracy radius
+    // in meters (NaN when unknown) and its time. Returns OFF_ROUTE or
+    // BACK_ON_ROUTE when the fix confirms a change, NONE otherwise.
+    int update(double distance, double accuracy, long timeMs) {
+        double radius = Double.isNaN(accuracy) ? 0 : accuracy;
+        if (radius > maxAccuracy) {
+            return NONE;
+        }
+        boolean leaving = distance - radius > exitDistance;
+        boolean returning = distance <= reentryDistance;
+        if (!joined) {
+            if (returning) {
+                joined = true;
+                changedAtMs = timeMs;
+            }
+            return NONE;
+        }
+        if (offRoute ? !returning : !leaving) {
+            pendingSinceMs = -1;
+            return NONE;
+        }
+        if (pendingSinceMs < 0) {
+            pendingSinceMs = timeMs;
+        }
+        if (timeMs - pendingSinceMs < minDurationMs) {
+            return NONE;
+        }
+        offRoute = !offRoute;
+        changedAtMs = pendingSinceMs;
+        pendingSinceMs = -1;
+        return offRoute ? OFF_ROUTE : BACK_ON_ROUTE;
+    }
+
+    boolean isOffRoute() {
+        return offRoute;
+    }
+
+    // Time of the first fix of the last confirmed change, when the device
+    // actually left or came back.
+    long changedAtMs() {
+        return changedAtMs;
+    }
+}
@@ -0,0 +1,116 @@
+package com.capgo.capacitor_background_geolocation;
+
+import android.content.Context;
+import com.getcapacitor.Logger;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Native delivery of route deviations to the url given to start(), so they
+// reach dispatch even when the WebView is gone.
+//
+// Deviations are rare and time sensitive, so they are not batched with the
+// locations: each one is queued on its own, in an EventQueue drained by a
+// unique RouteEventWorker run, and POSTed on the high priority lane with the
+// primary sink's headers and compression, like geofence transitions.
+final class RouteEventStore {
+
+    private static final String PREFS_NAME = "CapgoBackgroundGeolocationRouteEvents";
+    private static final String OUTBOX_DIRECTORY = "CapgoBackgroundGeolocationRouteOutbox";
+    private static final String DRAIN_WORK_NAME = "CapgoRouteEvents";
+
+    private static final EventDelivery DELIVERY = new EventDelivery(
+        "route deviation",
+        PREFS_NAME,
+        OUTBOX_DIRECTORY,
+        DRAIN_WORK_NAME,
+        RouteEventWorker.class
+    );
+
+    // Appends deviations to the queue in the order they were reported.
+    private static final ExecutorService ENQUEUE_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private RouteEventStore() {}
+
+    // Queues a deviation for the primary url. Does nothing without one. Called
+    // from the location callback, so the data gets its eventId right away but
+    // the queue's disk I/O runs on ENQUEUE_EXECUTOR, like the sinks' uploads.
+    static void enqueueDeviation(Context context, JSONObject data) {
+        LocationConfig config = LocationStore.config(context);
+        if (!config.enabled || config.url == null) {
+            return;
+        }
+        byte[] event;
+        try {
+            // Queued with its id, so every retry of this deviation carries the
+            // same one.
+            data.put(
+                DeliveryIds.FIELD,
+                DeliveryIds.eventId(LocationStore.getInstallationId(context), System.currentTimeMillis(), DeliveryIds.nextSequence())
+            );
+            event = data.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (JSONException exception) {
+            Logger.error("Could not queue route deviation", exception);
+            return;
+        }
+        Context appContext = context.getApplicationContext();
+        ENQUEUE_EXECUTOR.execute(() -> {
+            try {
+                DELIVERY.enqueue(appContext, event);
+            } catch (IOException exception) {
+                Logger.error("Could not queue route deviation", exception);
+            }
+        });
+    }
+
+    // Shared queue of deviations waiting for delivery, in no-backup storage
+    // next to the geofence transition queue.
+    static EventQueue eventQueue(Context context) throws IOException {
+        return DELIVERY.queue(context);
+    }
+
+    // Milliseconds left of the last pause the server asked for, 0 when none.
+    static long pauseRemainingMs(Context context) {
+        return DELIVERY.pauseRemainingMs(context);
+    }
+
+    // POSTs one queued deviation. Returns without sending when native
+    // delivery was stopped since it was queued.
+    static void sendEvent(Context context, byte[] body) throws IOException {
+        LocationConfig config = LocationStore.config(context);
+        if (!config.enabled || config.url == null) {
+            return;
+        }
+        Map<String, String> headers = LocationStore.withIdempotencyKey(
+            config.headers,
+            DeliveryIds.idempotencyKey(Collections.singletonList(body))
+        );
+        NativeHttpTransport.Response response = DeliveryMetrics.shared().routeEventPosts.record(() ->
+            NativeHttpTransport.shared().post(
+                DeliveryScheduler.Lane.HIGH,
+                config.url,
+                headers,
+                NativeHttpTransport.JSON_CONTENT_TYPE,
+                config.deliveryOptions.compression,
+                body
+            )
+        );
+        Logger.debug("Route deviation POST finished with response code: " + response.statusCode);
+        long requestedPauseMs = response.requestedPauseMs(config.deliveryOptions.rateHintHeader, System.currentTimeMillis());
+        if (requestedPauseMs > 0) {
+            DELIVERY.pause(context, requestedPauseMs);
+        }
+        if (!response.isSuccessful()) {
+            throw new HttpStatusException(
+                "Route deviation POST failed with response code: " + response.statusCode,
+                response.statusCode,
+                requestedPauseMs
+            );
+        }
+    }
+}
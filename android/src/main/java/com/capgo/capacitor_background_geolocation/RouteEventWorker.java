@@ -0,0 +1,35 @@
+package com.capgo.capacitor_background_geolocation;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import com.getcapacitor.Logger;
+import java.io.IOException;
+
+// Drains every queued route deviation in one run, like
+// GeofenceTransitionWorker does for geofence transitions.
+public class RouteEventWorker extends Worker {
+
+    public RouteEventWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        EventQueue queue;
+        try {
+            queue = RouteEventStore.eventQueue(context);
+        } catch (IOException exception) {
+            Logger.error("Could not open route event queue", exception);
+            return Result.retry();
+        }
+        EventQueue.Outcome outcome = queue.drain(
+            (event) -> RouteEventStore.sendEvent(context, event),
+            () -> RouteEventStore.pauseRemainingMs(context)
+        );
+        return outcome == EventQueue.Outcome.RETRY ? Result.retry() : Result.success();
+    }
+}
@@ -0,0 +1,107 @@
+package com.capgo.capacitor_background_geolocation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Where the last fix is along the planned route: the matched segment, the fix
+// snapped onto it, distances travelled and remaining, and a speed based ETA.
+//
+// The route keeps the distance along it to every vertex, computed when it was
+// loaded, so once the cursor has matched a fix an update is O(1): the distance
+// to the segment's start plus the snapped fraction of its length. Updated on
+// the main looper only.
+final class RouteProgress {
+
+    // Below this the vehicle counts as stopped and there is no ETA.
+    static final double MIN_ETA_SPEED_MPS = 0.5;
+    // Weight of the newest fix in the smoothed speed, so one noisy fix does
+    // not swing the ETA.
+    static final double SPEED_SMOOTHING = 0.3;
+
+    // -1 until a fix was matched.
+    int segment = -1;
+    // The fix snapped onto the route, in degrees.
+    double latitude;
+    double longitude;
+    // Distance from the fix to the route, in meters.
+    double distanceToRoute;
+    double distanceTravelled;
+    double distanceRemaining;
+    double routeLength;
+    // 0 to 100.
+    double percentComplete;
+    // Smoothed speed along the route, in meters per second. NaN until known.
+    double speed = Double.NaN;
+    long time;
+
+    // Updates the progress from a fix matched to segment. fixSpeed is in
+    // meters per second, NaN when the fix has none; the progress made since
+    // the last fix is used instead.
+    void update(PlannedRoute route, double[] point, PlannedRoute.Match match, double fixSpeed, long timeMs) {
+        if (match.segment < 0) {
+            return;
+        }
+        double previousTravelled = distanceTravelled;
+        long previousTime = time;
+        boolean hadFix = segment >= 0;
+
+        segment = match.segment;
+        distanceToRoute = match.distance;
+        routeLength = route.length();
+        if (segment < route.segmentCount()) {
+            double t = route.fraction(point, segment);
+            longitude = route.longitude(segment) + t * (route.longitude(segment + 1) - route.longitude(segment));
+            latitude = route.latitude(segment) + t * (route.latitude(segment + 1) - route.latitude(segment));
+            distanceTravelled = route.along(segment) + t * (route.along(segment + 1) - route.along(segment));
+        } else {
+            longitude = route.longitude(segment);
+            latitude = route.latitude(segment);
+            distanceTravelled = route.along(segment);
+        }
+        distanceRemaining = Math.max(0, routeLength - distanceTravelled);
+        percentComplete = routeLength > 0 ? Math.min(100, distanceTravelled / routeLength * 100) : 100;
+        time = timeMs;
+
+        double current = fixSpeed;
+        if ((Double.isNaN(current) || current < 0) && hadFix && timeMs > previousTime) {
+            current = Math.max(0, distanceTravelled - previousTravelled) / ((timeMs - previousTime) / 1000.0);
+        }
+        if (!Double.isNaN(current) && current >= 0) {
+            speed = Double.isNaN(speed) ? current : speed + SPEED_SMOOTHING * (current - speed);
+        }
+    }
+
+    // Seconds to the end of the route at the smoothed speed, NaN while it is
+    // unknown or the vehicle is stopped.
+    double timeRemaining() {
+        if (distanceRemaining == 0) {
+            return 0;
+        }
+        if (Double.isNaN(speed) || speed < MIN_ETA_SPEED_MPS) {
+            return Double.NaN;
+        }
+        return distanceRemaining / speed;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject()
+            .put("segment", segment)
+            .put("latitude", latitude)
+            .put("longitude", longitude)
+            .put("distanceToRoute", distanceToRoute)
+            .put("distanceTravelled", distanceTravelled)
+            .put("distanceRemaining", distanceRemaining)
+            .put("routeLength", routeLength)
+            .put("percentComplete", percentComplete)
+            .put("time", time);
+        if (!Double.isNaN(speed)) {
+            json.put("speed", speed);
+        }
+        double timeRemaining = timeRemaining();
+        if (!Double.isNaN(timeRemaining)) {
+            json.put("timeRemaining", timeRemaining);
+            json.put("eta", time + Math.round(timeRemaining * 1000));
+        }
+        return json;
+    }
+}
@@ -0,0 +1,143 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Immutable config of one native location sink: where fixes go, which of them
+// (minIntervalMs, distanceFilter) and how they are batched and encoded.
+//
+// TYPE_HTTP sinks POST to their url (HttpLocationSink); TYPE_FILE sinks record
+// into rolling files on the device (FileLocationSink) and only use the format
+// and bufferSize of their delivery options.
+//
+// The primary sink is the url given to start(); its interval gate is the
+// persisted one in LocationStore, so its own filter lets everything through.
+// Additional sinks come from the "sinks" start option, persisted as the JSON
+// the app passed and parsed again here after a sticky restart.
+final class SinkConfig {
+
+    static final String PRIMARY = "primary";
+
+    static final String TYPE_HTTP = "http";
+    static final String TYPE_FILE = "file";
+
+    static final long DEFAULT_MAX_FILE_BYTES = 1024 * 1024;
+    static final long DEFAULT_MAX_FILE_AGE_MS = 60 * 60 * 1000L;
+    static final long DEFAULT_SYNC_INTERVAL_MS = 10_000L;
+
+    // Names become directory names, so they are kept to a safe alphabet.
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+
+    final String name;
+    final String type;
+    // Null for file sinks.
+    final String url;
+    // Unmodifiable, never null.
+    final Map<String, String> headers;
+    final long minIntervalMs;
+    final float distanceFilter;
+    final DeliveryOptions deliveryOptions;
+    // File sinks: segment rotation by size and age, and fsync interval.
+    final long maxFileBytes;
+    final long maxFileAgeMs;
+    final long syncIntervalMs;
+
+    SinkConfig(
+        String name,
+        String url,
+        Map<String, String> headers,
+        long minIntervalMs,
+        float distanceFilter,
+        DeliveryOptions deliveryOptions
+    ) {
+        this(name, TYPE_HTTP, url, headers, minIntervalMs, distanceFilter, deliveryOptions, 0L, 0L, 0L);
+    }
+
+    SinkConfig(
+        String name,
+        String type,
+        String url,
+        Map<String, String> headers,
+        long minIntervalMs,
+        float distanceFilter,
+        DeliveryOptions deliveryOptions,
+        long maxFileBytes,
+        long maxFileAgeMs,
+        long syncIntervalMs
+    ) {
+        this.name = name;
+        this.type = type;
+        this.url = url;
+        this.headers = headers == null ? Collections.emptyMap() : Collections.unmodifiableMap(headers);
+        this.minIntervalMs = Math.max(0L, minIntervalMs);
+        this.distanceFilter = Math.max(0f, distanceFilter);
+        this.deliveryOptions = deliveryOptions;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileAgeMs = maxFileAgeMs;
+        this.syncIntervalMs = syncIntervalMs;
+    }
+
+    static SinkConfig primary(LocationConfig config) {
+        return new SinkConfig(PRIMARY, config.url, config.headers, 0L, 0f, config.deliveryOptions);
+    }
+
+    // Parses the "sinks" start option. Throws with a message for the app when
+    // a sink has an unknown type, no url, an unsupported option or a duplicate
+    // or invalid name.
+    static List<SinkConfig> parseAll(String json) throws JSONException {
+        if (json == null || json.isEmpty()) {
+            return Collections.emptyList();
+        }
+        JSONArray array = new JSONArray(json);
+        List<SinkConfig> sinks = new ArrayList<>(array.length());
+        Set<String> names = new HashSet<>();
+        names.add(PRIMARY);
+        for (int i = 0; i < array.length(); i++) {
+            SinkConfig sink = parse(array.getJSONObject(i), i);
+            if (!names.add(sink.name)) {
+                throw new JSONException("Duplicate sink name \"" + sink.name + "\"");
+            }
+            sinks.add(sink);
+        }
+        return Collections.unmodifiableList(sinks);
+    }
+
+    private static SinkConfig parse(JSONObject object, int index) throws JSONException {
+        String name = object.optString("name", "sink-" + index);
+        if (!NAME.matcher(name).matches()) {
+            throw new JSONException("Invalid sink name \"" + name + "\", use letters, digits, '.', '_' or '-'");
+        }
+        String type = object.optString("type", TYPE_HTTP);
+        if (!TYPE_HTTP.equals(type) && !TYPE_FILE.equals(type)) {
+            throw new JSONException("Sink \"" + name + "\": unsupported type, use \"http\" or \"file\"");
+        }
+        String url = object.optString("url", null);
+        if (TYPE_HTTP.equals(type) && (url == null || url.isEmpty())) {
+            throw new JSONException("Sink \"" + name + "\" needs a url");
+        }
+        String error = DeliveryOptions.validate(object);
+        if (error != null) {
+            throw new JSONException("Sink \"" + name + "\": " + error);
+        }
+        return new SinkConfig(
+            name,
+            type,
+            TYPE_HTTP.equals(type) ? url : null,
+            LocationStore.headersFromObject(object.optJSONObject("headers")),
+            object.optLong("minIntervalMs", 0L),
+            (float) object.optDouble("distanceFilter", 0),
+            DeliveryOptions.fromJson(object),
+            object.optLong("maxFileBytes", DEFAULT_MAX_FILE_BYTES),
+            object.optLong("maxFileAgeMs", DEFAULT_MAX_FILE_AGE_MS),
+            object.optLong("syncIntervalMs", DEFAULT_SYNC_INTERVAL_MS)
+        );
+    }
+}
@@ -0,0 +1,79 @@
+package com.capgo.capacitor_background_geolocation;
+
+// Decides whether native location uploads may run under the current network
+// and power conditions.
+//
+// Uploads never run while offline: every attempt would only wait for a connect
+// timeout. Apps can additionally hold the backlog for an unmetered network or
+// until the device is charging. The conditions come from a Monitor, so the
+// policy can be tested without a ConnectivityManager; the monitor reports
+// changes so the backlog is flushed as soon as the conditions allow it.
+final class UploadPolicy {
+
+    static final String NETWORK_ANY = "any";
+    static final String NETWORK_UNMETERED = "unmetered";
+
+    static final UploadPolicy DEFAULT = new UploadPolicy(NETWORK_ANY, false);
+
+    // Network and power state at one point in time.
+    static final class Conditions {
+
+        static final Conditions ONLINE = new Conditions(true, false, false);
+
+        final boolean connected;
+        final boolean metered;
+        final boolean charging;
+
+        Conditions(boolean connected, boolean metered, boolean charging) {
+            this.connected = connected;
+            this.metered = metered;
+            this.charging = charging;
+        }
+    }
+
+    interface Monitor {
+        Conditions current();
+
+        // Called, from any thread, whenever the conditions may have changed.
+        void setListener(Runnable listener);
+
+        // Stops watching. current() keeps returning the last known state.
+        void close();
+    }
+
+    // Monitor for tests and callers without a Context: always online.
+    static final Monitor ALWAYS_ONLINE = new Monitor() {
+        @Override
+        public Conditions current() {
+            return Conditions.ONLINE;
+        }
+
+        @Override
+        public void setListener(Runnable listener) {}
+
+        @Override
+        public void close() {}
+    };
+
+    final String network;
+    final boolean requiresCharging;
+
+    UploadPolicy(String network, boolean requiresCharging) {
+        this.network = NETWORK_UNMETERED.equals(network) ? NETWORK_UNMETERED : NETWORK_ANY;
+        this.requiresCharging = requiresCharging;
+    }
+
+    static boolean isSupportedNetwork(String network) {
+        return network == null || NETWORK_ANY.equals(network) || NETWORK_UNMETERED.equals(network);
+    }
+
+    boolean allows(Conditions conditions) {
+        if (!conditions.connected) {
+            return false;
+        }
+        if (NETWORK_UNMETERED.equals(network) && conditions.metered) {
+            return false;
+        }
+        return !requiresCharging || conditions.charging;
+    }
+}
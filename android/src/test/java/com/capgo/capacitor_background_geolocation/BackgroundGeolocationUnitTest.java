@@ -133,6 +133,44 @@ public class BackgroundGeolocationUnitTest {
         assertEquals(60_000L, BackgroundGeolocation.longOptionFromCall(call, "minIntervalMs", 60_000L));
     }
 
+    @Test
+    public void testDeliveryOptionsFromCall() throws JSONException {
+        JSObject data = new JSObject();
+        data.put("batchSize", 25);
+        data.put("batchMaxDelayMs", 120_000);
+        data.put("batchMaxBytes", 0);
+        data.put("compression", "gzip");
+        data.put("maxConnectionsPerOrigin", 0);
+        data.put("rateHintHeader", " X-Upload-Pause ");
+        data.put("format", "binary");
+
+        DeliveryOptions options = BackgroundGeolocation.deliveryOptionsFromCall(
+            new PluginCall(null, "BackgroundGeolocation", "test-callback", "start", data)
+        );
+
+        assertEquals(25, options.batchSize);
+        assertEquals(120_000L, options.batchMaxDelayMs);
+        assertEquals("Byte budget is clamped to at least one byte", 1, options.batchMaxBytes);
+        assertTrue(options.isBatching());
+        assertEquals("gzip", options.compression);
+        assertEquals("Connection cap is clamped to at least one", 1, options.maxConnectionsPerOrigin);
+        assertEquals("X-Upload-Pause", options.rateHintHeader);
+        assertTrue(options.isBinary());
+    }
+
+    @Test
+    public void testDeliveryOptionsDefaultToUnbatched() {
+        DeliveryOptions options = BackgroundGeolocation.deliveryOptionsFromCall(
+            new PluginCall(null, "BackgroundGeolocation", "test-callback", "start", new JSObject())
+        );
+
+        assertEquals(1, options.batchSize);
+        assertFalse(options.isBatching());
+        assertNull(options.compression);
+        assertFalse(options.isBinary());
+        assertEquals(NativeHttpTransport.DEFAULT_MAX_CONNECTIONS_PER_ORIGIN, options.maxConnectionsPerOrigin);
+    }
+
     @Test
     public void testForegroundServiceStartNotAllowedDetection() {
         assertTrue(
@@ -0,0 +1,141 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Unit tests for the binary location wire format
+ */
+public class BinaryLocationCodecTest {
+
+    @Test
+    public void testRecordRoundTrip() throws IOException {
+        LocationFix fix = new LocationFix(-33.8688197, 151.2092955, 1_700_000_000_123L)
+            .setAccuracy(4.5)
+            .setAltitude(-12.34)
+            .setSpeed(13.89)
+            .setBearing(359.99)
+            .setSequence(300)
+            .setSimulated(true);
+
+        LocationFix decoded = BinaryLocationCodec.decodeRecord(BinaryLocationCodec.encodeRecord(fix));
+
+        assertEquals(-33.8688197, decoded.latitude(), 1e-9);
+        assertEquals(151.2092955, decoded.longitude(), 1e-9);
+        assertEquals(1_700_000_000_123L, decoded.time);
+        assertEquals(4.5, decoded.accuracy(), 1e-9);
+        assertEquals(-12.34, decoded.altitude(), 1e-9);
+        assertFalse(decoded.has(LocationFix.FLAG_ALTITUDE_ACCURACY));
+        assertEquals(13.89, decoded.speed(), 1e-9);
+        assertEquals(359.99, decoded.bearing(), 1e-9);
+        assertTrue(decoded.has(LocationFix.FLAG_SIMULATED));
+        assertEquals(300, decoded.sequence);
+    }
+
+    @Test
+    public void testBodyRoundTripMatchesReferenceDecoder() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            LocationFix fix = new LocationFix(48.8566 + i * 0.00013, 2.3522 - i * 0.00021, 1_700_000_000_000L + i * 1000L);
+            if (i % 2 == 0) {
+                fix.setAccuracy(5).setSpeed(i);
+            } else {
+                fix.setSequence(i);
+            }
+            records.add(BinaryLocationCodec.encodeRecord(fix));
+        }
+
+        byte[] body = BinaryLocationCodec.encodeBody(records);
+        List<LocationFix> decoded = BinaryLocationCodec.decodeBody(body);
+        List<Map<String, Object>> reference = ReferenceLocationStreamDecoder.decode(body);
+
+        assertEquals(20, decoded.size());
+        assertEquals(20, reference.size());
+        for (int i = 0; i < 20; i++) {
+            LocationFix expected = BinaryLocationCodec.decodeRecord(records.get(i));
+            assertEquals(expected.latitudeE7, decoded.get(i).latitudeE7);
+            assertEquals(expected.longitudeE7, decoded.get(i).longitudeE7);
+            assertEquals(expected.time, decoded.get(i).time);
+            assertEquals(expected.flags, decoded.get(i).flags);
+            assertEquals(expected.latitude(), (Double) reference.get(i).get("latitude"), 1e-9);
+            assertEquals(expected.longitude(), (Double) reference.get(i).get("longitude"), 1e-9);
+            assertEquals(expected.time, reference.get(i).get("time"));
+            assertEquals(i % 2 == 0 ? Double.valueOf(i) : null, reference.get(i).get("speed"));
+            assertNull(reference.get(i).get("bearing"));
+            assertEquals(i % 2 == 0 ? null : Long.valueOf(i), reference.get(i).get("sequence"));
+        }
+    }
+
+    @Test
+    public void testBinaryIsAnOrderOfMagnitudeSmallerThanJson() throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < 100; i++) {
+            double latitude = 48.8566 + i * 0.0001;
+            double longitude = 2.3522 + i * 0.0001;
+            long time = 1_700_000_000_000L + i * 1000L;
+            records.add(BinaryLocationCodec.encodeRecord(new LocationFix(latitude, longitude, time).setAccuracy(5).setSpeed(1.4)));
+            if (i > 0) {
+                json.append(',');
+            }
+            json
+                .append("{\"latitude\":")
+                .append(latitude)
+                .append(",\"longitude\":")
+                .append(longitude)
+                .append(",\"accuracy\":5.0,\"altitude\":null,\"altitudeAccuracy\":null,\"simulated\":false,")
+                .append("\"speed\":1.4,\"bearing\":null,\"time\":")
+                .append(time)
+                .append(",\"source\":\"native\"}");
+        }
+        int jsonBytes = json.append(']').toString().getBytes(StandardCharsets.UTF_8).length;
+
+        int binaryBytes = BinaryLocationCodec.encodeBody(records).length;
+
+        assertTrue("binary " + binaryBytes + " bytes vs json " + jsonBytes, binaryBytes * 10 < jsonBytes);
+    }
+
+    @Test
+    public void testDecoderSkipsFieldsAddedByLaterVersions() throws IOException {
+        byte[] body = BinaryLocationCodec.encodeBody(Arrays.asList(BinaryLocationCodec.encodeRecord(new LocationFix(1, 2, 3))));
+        // Append two unknown bytes to the only record and fix up its length.
+        byte[] extended = Arrays.copyOf(body, body.length + 2);
+        extended[4] = (byte) (body[4] + 2);
+
+        List<LocationFix> decoded = BinaryLocationCodec.decodeBody(extended);
+
+        assertEquals(1, decoded.size());
+        assertEquals(1.0, decoded.get(0).latitude(), 1e-9);
+    }
+
+    @Test
+    public void testVarintEdgeCases() throws IOException {
+        LocationFix extreme = new LocationFix(-90, 180, Long.MAX_VALUE / 2).setAltitude(-1e7);
+        List<byte[]> records = Arrays.asList(
+            BinaryLocationCodec.encodeRecord(new LocationFix(90, -180, 0)),
+            BinaryLocationCodec.encodeRecord(extreme)
+        );
+
+        LocationFix decoded = BinaryLocationCodec.decodeBody(BinaryLocationCodec.encodeBody(records)).get(1);
+
+        assertEquals(-90, decoded.latitude(), 1e-9);
+        assertEquals(180, decoded.longitude(), 1e-9);
+        assertEquals(Long.MAX_VALUE / 2, decoded.time);
+        assertEquals(-1e7, decoded.altitude(), 1e-9);
+    }
+
+    @Test
+    public void testCorruptBodiesAreRejected() {
+        assertFalse(BinaryLocationCodec.isBody("{\"a\":1}".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(IOException.class, () -> BinaryLocationCodec.decodeBody(new byte[] { 'C', 'G', 'L', 9 }));
+        assertThrows(IOException.class, () -> BinaryLocationCodec.decodeBody(new byte[] { 'C', 'G', 'L', 1, 5, 0 }));
+        assertThrows(IOException.class, () -> BinaryLocationCodec.decodeRecord("{}".getBytes(StandardCharsets.UTF_8)));
+    }
+}
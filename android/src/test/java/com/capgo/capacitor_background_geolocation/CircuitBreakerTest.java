@@ -0,0 +1,119 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for native POST backoff and the circuit breaker
+ */
+public class CircuitBreakerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RetryPolicy policy = new RetryPolicy(1000, 8000, 5, 60000);
+
+    @Test
+    public void testBackoffGrowsExponentiallyUpToMaxDelay() {
+        assertEquals(1000, policy.delayMs(1, 0.999999), 1);
+        assertEquals(2000, policy.delayMs(2, 0.999999), 1);
+        assertEquals(4000, policy.delayMs(3, 0.999999), 1);
+        assertEquals(8000, policy.delayMs(4, 0.999999), 1);
+        assertEquals(60000, policy.delayMs(5, 0.999999), 1);
+        assertEquals(8000, new RetryPolicy(1000, 8000, 100, 60000).delayMs(50, 0.999999), 1);
+    }
+
+    @Test
+    public void testJitterKeepsAtLeastHalfTheDelay() {
+        assertEquals(2000, policy.delayMs(3, 0));
+        assertEquals(3000, policy.delayMs(3, 0.5));
+        assertEquals(30000, policy.delayMs(5, 0));
+    }
+
+    @Test
+    public void testBreakerOpensAfterThresholdFailures() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(stateFile(), policy);
+
+        for (int i = 0; i < 4; i++) {
+            breaker.recordFailure(0);
+        }
+        assertFalse(breaker.isOpen());
+        long probeDelayMs = breaker.recordFailure(0);
+
+        assertTrue(breaker.isOpen());
+        assertTrue(probeDelayMs >= 30000 && probeDelayMs <= 60000);
+        assertEquals(probeDelayMs, breaker.delayMs(0));
+        assertEquals(0, breaker.delayMs(probeDelayMs));
+    }
+
+    @Test
+    public void testStateSurvivesRestart() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(stateFile(), policy);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure(1000);
+        }
+        long delayMs = breaker.delayMs(1000);
+
+        CircuitBreaker restored = new CircuitBreaker(stateFile(), policy);
+
+        assertTrue(restored.isOpen());
+        assertEquals(5, restored.consecutiveFailures());
+        assertEquals(delayMs, restored.delayMs(1000));
+    }
+
+    @Test
+    public void testSuccessClosesBreaker() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(stateFile(), policy);
+        for (int i = 0; i < 5; i++) {
+            breaker.recordFailure(0);
+        }
+
+        breaker.recordSuccess();
+
+        assertFalse(breaker.isOpen());
+        assertEquals(0, breaker.delayMs(0));
+        assertFalse(stateFile().exists());
+        assertEquals(0, new CircuitBreaker(stateFile(), policy).consecutiveFailures());
+    }
+
+    @Test
+    public void testDelayIsBoundedWhenClockGoesBackwards() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(stateFile(), policy);
+        breaker.recordFailure(1_000_000_000L);
+
+        assertEquals(policy.longestDelayMs(), breaker.delayMs(0));
+    }
+
+    @Test
+    public void testServerPauseIsSpreadDeterministicallyPerInstallation() {
+        RetryPolicy first = policy.forInstallation("0b5c8a1e-7d0e-4c6b-9d55-2f1f0c1a9e01");
+        RetryPolicy second = policy.forInstallation("9f3e2d1c-0a4b-4c5d-8e6f-7a8b9c0d1e2f");
+
+        assertEquals(first.pauseMs(60000), policy.forInstallation("0b5c8a1e-7d0e-4c6b-9d55-2f1f0c1a9e01").pauseMs(60000));
+        assertNotEquals(first.pauseMs(60000), second.pauseMs(60000));
+        assertTrue(first.pauseMs(60000) >= 60000 && first.pauseMs(60000) < 120000);
+        assertEquals(60000, policy.pauseMs(60000));
+        assertTrue(first.pauseMs(Long.MAX_VALUE) <= RetryPolicy.MAX_PAUSE_MS + RetryPolicy.MAX_SPREAD_MS);
+    }
+
+    @Test
+    public void testPauseDelaysAttemptsWithoutCountingFailures() throws IOException {
+        CircuitBreaker breaker = new CircuitBreaker(stateFile(), policy);
+
+        breaker.recordPause(0, 45000);
+
+        assertFalse(breaker.isOpen());
+        assertEquals(0, breaker.consecutiveFailures());
+        assertEquals(45000, breaker.delayMs(0));
+        assertEquals(45000, new CircuitBreaker(stateFile(), policy).delayMs(0));
+    }
+
+    private File stateFile() {
+        return new File(folder.getRoot(), LocationUploader.BREAKER_FILE);
+    }
+}
@@ -0,0 +1,106 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the delivered record set and the delivery identifiers
+ */
+public class DeliveredRecordsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPendingSkipsDeliveredRecordsInOrder() throws IOException {
+        DeliveredRecords delivered = new DeliveredRecords(file(), 16);
+        delivered.addAll(List.of(record(1), record(3)));
+
+        List<byte[]> pending = delivered.pending(List.of(record(0), record(1), record(2), record(3)));
+
+        assertEquals(List.of("record-0", "record-2"), texts(pending));
+    }
+
+    @Test
+    public void testOnlyTheLastCapacityRecordsAreKept() throws IOException {
+        DeliveredRecords delivered = new DeliveredRecords(file(), 3);
+        for (int i = 0; i < 5; i++) {
+            delivered.addAll(List.of(record(i)));
+        }
+        // Adding a record twice does not evict anything.
+        delivered.addAll(List.of(record(4)));
+
+        assertEquals(3, delivered.size());
+        assertFalse(delivered.contains(record(1)));
+        assertTrue(delivered.contains(record(2)));
+        assertTrue(delivered.contains(record(4)));
+    }
+
+    @Test
+    public void testSurvivesRestart() throws IOException {
+        DeliveredRecords delivered = new DeliveredRecords(file(), 3);
+        for (int i = 0; i < 4; i++) {
+            delivered.addAll(List.of(record(i)));
+        }
+
+        DeliveredRecords restarted = new DeliveredRecords(file(), 3);
+        assertEquals(3, restarted.size());
+        assertFalse(restarted.contains(record(0)));
+        assertTrue(restarted.contains(record(3)));
+
+        // The restored ring keeps evicting the oldest record first.
+        restarted.addAll(List.of(record(4)));
+        assertFalse(restarted.contains(record(1)));
+        assertTrue(restarted.contains(record(2)));
+    }
+
+    @Test
+    public void testTornFileStartsEmpty() throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file())) {
+            output.write(new byte[] { 0, 0, 0, 9, 1, 2 });
+        }
+
+        DeliveredRecords delivered = new DeliveredRecords(file(), 16);
+
+        assertEquals(0, delivered.size());
+    }
+
+    @Test
+    public void testIdempotencyKeys() {
+        byte[] event = "{\"time\":1000,\"eventId\":\"install-1000-7\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("install-1000-7", DeliveryIds.idempotencyKey(List.of(event)));
+        assertNull(DeliveryIds.eventIdOf(record(0)));
+
+        String batch = DeliveryIds.idempotencyKey(List.of(event, record(0)));
+        assertTrue(batch, batch.endsWith("-2"));
+        assertEquals(batch, DeliveryIds.idempotencyKey(List.of(event, record(0))));
+        assertNotEquals(batch, DeliveryIds.idempotencyKey(List.of(record(0), event)));
+        assertNotEquals(DeliveryIds.idempotencyKey(List.of(record(0))), DeliveryIds.idempotencyKey(List.of(record(1))));
+    }
+
+    private File file() {
+        return new File(folder.getRoot(), "delivered");
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> texts(List<byte[]> records) {
+        List<String> texts = new ArrayList<>();
+        for (byte[] record : records) {
+            texts.add(new String(record, StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+}
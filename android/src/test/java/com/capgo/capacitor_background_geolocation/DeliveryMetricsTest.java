@@ -0,0 +1,131 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the delivery counters and latency histograms behind getDiagnostics()
+ */
+public class DeliveryMetricsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHistogramPercentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(40);
+        }
+        histogram.record(900);
+        histogram.record(5000);
+
+        assertEquals(100, histogram.count());
+        // 40 falls in [32, 64).
+        assertEquals(63, histogram.percentile(0.50));
+        assertEquals(1023, histogram.percentile(0.99));
+        assertEquals(5000, histogram.percentile(1));
+        assertEquals(5000, histogram.max());
+    }
+
+    @Test
+    public void testHistogramEdges() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.5));
+
+        histogram.record(0);
+        histogram.record(-5);
+        assertEquals(0, histogram.percentile(0.99));
+        assertEquals(0, LatencyHistogram.bucket(0));
+        assertEquals(1, LatencyHistogram.bucket(1));
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testRequestsCountOutcomesAndBytes() throws Exception {
+        DeliveryMetrics.Requests requests = new DeliveryMetrics.Requests();
+
+        requests.record(() -> new NativeHttpTransport.Response(204, null, 120));
+        requests.record(() -> new NativeHttpTransport.Response(503, null, 80));
+        assertThrows(IOException.class, () ->
+            requests.record(() -> {
+                throw new IOException("reset");
+            })
+        );
+
+        JSONObject json = requests.toJson();
+        assertEquals(3, json.getLong("attempts"));
+        assertEquals(1, json.getLong("successes"));
+        assertEquals(2, json.getLong("failures"));
+        assertEquals(200, json.getLong("bytesSent"));
+        assertEquals(3, json.getJSONObject("latencyMs").getLong("count"));
+    }
+
+    @Test
+    public void testWakeLockHoldTimeIncludesTheCurrentHold() {
+        DeliveryMetrics metrics = new DeliveryMetrics();
+
+        metrics.wakeLockAcquired(1000);
+        metrics.wakeLockReleased(4000);
+        metrics.wakeLockReleased(5000);
+        metrics.wakeLockAcquired(10_000);
+        metrics.wakeLockAcquired(11_000);
+
+        assertEquals(5000, metrics.wakeLockHeldMs(12_000));
+        assertEquals(1, metrics.wakeLockHoldMs.count());
+        assertEquals(3000, metrics.wakeLockHoldMs.max());
+    }
+
+    @Test
+    public void testSnapshotListsSinks() throws Exception {
+        DeliveryMetrics metrics = new DeliveryMetrics();
+        metrics.fixesReceived.add(3);
+        metrics.watchdogRestarts.increment();
+        // Nothing listens on the discard port, so the fixes stay queued.
+        SinkConfig config = new SinkConfig("backup", "http://127.0.0.1:9/locations", null, 2000, 0f, DeliveryOptions.DEFAULT);
+        HttpLocationSink sink = new HttpLocationSink(
+            config,
+            new File(folder.getRoot(), "backup"),
+            LocationSink.Filter.ALL,
+            RetryPolicy.DEFAULT,
+            UploadPolicy.ALWAYS_ONLINE
+        );
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        for (int i = 0; i < 3; i++) {
+            sample.time = i * 1000L;
+            sink.accept(sample);
+        }
+
+        // A fix is briefly in neither place while it moves to the outbox, so
+        // poll the snapshot itself.
+        List<LocationSink> sinks = Collections.singletonList(sink);
+        JSONObject json = metrics.toJson(sinks, 4, 0);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (json.getJSONObject("queueDepth").getLong("locations") < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            json = metrics.toJson(sinks, 4, 0);
+        }
+        sink.close();
+
+        assertEquals(3, json.getJSONObject("fixes").getLong("received"));
+        assertEquals(1, json.getLong("watchdogRestarts"));
+        assertEquals(4, json.getJSONObject("queueDepth").getLong("geofences"));
+        JSONObject stats = json.getJSONArray("sinks").getJSONObject(0);
+        assertEquals("backup", stats.getString("name"));
+        assertEquals(SinkConfig.TYPE_HTTP, stats.getString("type"));
+        assertEquals(1, stats.getLong("filtered"));
+        assertEquals(2, stats.getLong("queued"));
+        assertEquals(2, json.getJSONObject("queueDepth").getLong("locations"));
+        assertFalse(json.getJSONObject("wakeLock").getBoolean("held"));
+        assertTrue(json.getJSONObject("lanes").has("high"));
+        assertEquals(0, json.getJSONObject("routeEventPosts").getLong("attempts"));
+    }
+}
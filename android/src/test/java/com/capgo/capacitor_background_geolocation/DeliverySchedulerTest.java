@@ -0,0 +1,102 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Unit tests for the priority lanes of native delivery
+ */
+public class DeliverySchedulerTest {
+
+    @Test
+    public void testBulkLeavesASlotForHigh() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler(3);
+
+        assertEquals(3, scheduler.concurrency(DeliveryScheduler.Lane.HIGH));
+        assertEquals(2, scheduler.concurrency(DeliveryScheduler.Lane.BULK));
+        scheduler.acquire(DeliveryScheduler.Lane.BULK);
+        scheduler.acquire(DeliveryScheduler.Lane.BULK);
+        Thread blockedBulk = start(scheduler, DeliveryScheduler.Lane.BULK, new ArrayList<>());
+        awaitWaiting(scheduler, DeliveryScheduler.Lane.BULK, 1);
+
+        // The reserved slot is free for an urgent request.
+        scheduler.acquire(DeliveryScheduler.Lane.HIGH);
+
+        assertEquals(2, scheduler.stats(DeliveryScheduler.Lane.BULK).inFlight);
+        assertEquals(1, scheduler.stats(DeliveryScheduler.Lane.HIGH).inFlight);
+        scheduler.release(DeliveryScheduler.Lane.BULK);
+        blockedBulk.join(1000);
+        assertFalse(blockedBulk.isAlive());
+    }
+
+    @Test
+    public void testWaitingHighIsServedBeforeWaitingBulk() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler(1);
+        List<DeliveryScheduler.Lane> started = Collections.synchronizedList(new ArrayList<>());
+        scheduler.acquire(DeliveryScheduler.Lane.BULK);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            threads.add(start(scheduler, DeliveryScheduler.Lane.BULK, started));
+        }
+        awaitWaiting(scheduler, DeliveryScheduler.Lane.BULK, 3);
+        threads.add(start(scheduler, DeliveryScheduler.Lane.HIGH, started));
+        awaitWaiting(scheduler, DeliveryScheduler.Lane.HIGH, 1);
+
+        scheduler.release(DeliveryScheduler.Lane.BULK);
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+
+        assertEquals(4, started.size());
+        assertEquals(DeliveryScheduler.Lane.HIGH, started.get(0));
+        assertEquals(3, scheduler.stats(DeliveryScheduler.Lane.BULK).peakWaiting);
+        assertEquals(4, scheduler.stats(DeliveryScheduler.Lane.BULK).completed);
+        assertEquals(1, scheduler.stats(DeliveryScheduler.Lane.HIGH).completed);
+    }
+
+    @Test
+    public void testInterruptedWaiterGivesUpItsPlace() throws InterruptedException {
+        DeliveryScheduler scheduler = new DeliveryScheduler(1);
+        scheduler.acquire(DeliveryScheduler.Lane.BULK);
+        Thread high = start(scheduler, DeliveryScheduler.Lane.HIGH, new ArrayList<>());
+        awaitWaiting(scheduler, DeliveryScheduler.Lane.HIGH, 1);
+
+        high.interrupt();
+        high.join(1000);
+        scheduler.release(DeliveryScheduler.Lane.BULK);
+
+        assertEquals(0, scheduler.stats(DeliveryScheduler.Lane.HIGH).waiting);
+        assertEquals(0, scheduler.stats(DeliveryScheduler.Lane.HIGH).completed);
+        // Nothing is left holding back the bulk lane.
+        scheduler.acquire(DeliveryScheduler.Lane.BULK);
+        assertEquals(1, scheduler.stats(DeliveryScheduler.Lane.BULK).inFlight);
+    }
+
+    // Starts a thread that acquires a slot, records its lane and releases it.
+    private static Thread start(DeliveryScheduler scheduler, DeliveryScheduler.Lane lane, List<DeliveryScheduler.Lane> started) {
+        Thread thread = new Thread(() -> {
+            try {
+                scheduler.acquire(lane);
+            } catch (InterruptedException exception) {
+                return;
+            }
+            started.add(lane);
+            scheduler.release(lane);
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(DeliveryScheduler scheduler, DeliveryScheduler.Lane lane, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (scheduler.stats(lane).waiting < count) {
+            assertTrue("timed out waiting for " + count + " " + lane + " waiter(s)", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Integration tests and throughput benchmark for native delivery against an
+ * in-process HTTP stand-in that injects latency, 5xx, 429, resets and slow
+ * bodies. Each scenario feeds a synthetic fix stream through an HTTP sink (and
+ * so LocationStore.post), or transitions through GeofenceStore.sendTransition,
+ * and prints throughput, p50/p99 delivery latency and loss.
+ */
+public class DeliveryStandInTest {
+
+    private static final int FIXES = 200;
+    private static final long FIX_INTERVAL_MS = 2;
+    private static final int TRANSITIONS = 40;
+    private static final long DELIVERY_TIMEOUT_MS = 30_000;
+    // Short backoff so a scenario takes seconds; the breaker never opens.
+    private static final RetryPolicy FAST_RETRY = new RetryPolicy(20, 200, 1000, 1000);
+    private static final DeliveryOptions BATCHED = new DeliveryOptions.Builder().setBatchSize(5).setBatchMaxDelayMs(50).build();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpStandInServer server;
+
+    @After
+    public void stopServer() {
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testBaseline() throws Exception {
+        Report report = deliverFixes("baseline", new HttpStandInServer.Script());
+
+        assertEquals(0, report.lost);
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        Report report = deliverFixes("latency", new HttpStandInServer.Script().setLatencyMs(40));
+
+        assertEquals(0, report.lost);
+        assertTrue(report.toString(), report.p50Ms >= 40);
+    }
+
+    @Test
+    public void testServerErrorsAreRetried() throws Exception {
+        Report report = deliverFixes("5xx", new HttpStandInServer.Script().setServerErrorRate(0.3));
+
+        assertTrue(server.faults(HttpStandInServer.Fault.SERVER_ERROR) > 0);
+        assertEquals(0, report.lost);
+    }
+
+    @Test
+    public void testThrottlingIsHonored() throws Exception {
+        Report report = deliverFixes("429", new HttpStandInServer.Script().setThrottleRate(0.05));
+
+        assertTrue(server.faults(HttpStandInServer.Fault.THROTTLE) > 0);
+        assertEquals(0, report.lost);
+        // Retry-After: 1 holds every fix queued behind a throttled request.
+        assertTrue(report.toString(), report.p99Ms >= 1000);
+    }
+
+    @Test
+    public void testResetsAreRetried() throws Exception {
+        Report report = deliverFixes("reset", new HttpStandInServer.Script().setResetRate(0.2));
+
+        assertTrue(server.faults(HttpStandInServer.Fault.RESET) > 0);
+        assertEquals(0, report.lost);
+    }
+
+    @Test
+    public void testSlowBodies() throws Exception {
+        Report report = deliverFixes("slow-body", new HttpStandInServer.Script().setSlowBody(0.3, 200));
+
+        assertTrue(server.faults(HttpStandInServer.Fault.SLOW_BODY) > 0);
+        assertEquals(0, report.lost);
+    }
+
+    @Test
+    public void testGeofenceTransitionsSurviveFaults() throws Exception {
+        HttpStandInServer.Script script = new HttpStandInServer.Script()
+            .setLatencyMs(5)
+            .setServerErrorRate(0.2)
+            .setThrottleRate(0.03)
+            .setResetRate(0.1)
+            .setSlowBody(0.1, 100);
+        Report report = deliverTransitions("geofence", script);
+
+        assertEquals(0, report.lost);
+        assertEquals(0, server.duplicates());
+    }
+
+    // Streams FIXES fixes into an HTTP sink, one every FIX_INTERVAL_MS, and
+    // waits for the stand-in to store them all.
+    private Report deliverFixes(String scenario, HttpStandInServer.Script script) throws Exception {
+        server = new HttpStandInServer(script, "time");
+        SinkConfig config = new SinkConfig(scenario, server.url(), null, 0, 0f, BATCHED);
+        HttpLocationSink sink = new HttpLocationSink(
+            config,
+            new File(folder.getRoot(), scenario),
+            LocationSink.Filter.ALL,
+            FAST_RETRY,
+            UploadPolicy.ALWAYS_ONLINE
+        );
+        Map<Long, Long> sentNanos = new HashMap<>();
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        long startNanos = System.nanoTime();
+        try {
+            for (int i = 0; i < FIXES; i++) {
+                sample.time = i;
+                sample.latitude = 48.8566 + i * 0.0001;
+                sample.longitude = 2.3522;
+                sentNanos.put((long) i, System.nanoTime());
+                sink.accept(sample);
+                Thread.sleep(FIX_INTERVAL_MS);
+            }
+            awaitStored(FIXES);
+        } finally {
+            sink.close();
+        }
+        return report(scenario, startNanos, sentNanos);
+    }
+
+    // Sends TRANSITIONS transitions the way GeofenceTransitionWorker does:
+    // queued, then drained through GeofenceStore.sendTransition, with failed
+    // and paused runs retried like WorkManager would.
+    private Report deliverTransitions(String scenario, HttpStandInServer.Script script) throws Exception {
+        server = new HttpStandInServer(script, "time");
+        Context context = new PreferencesContext();
+        GeofenceStore.saveSetup(context, server.url(), true, true, null, false, null, null);
+        File directory = folder.newFolder(scenario);
+        LocationOutbox outbox = LocationOutbox.open(directory, EventQueue.SEGMENT_BYTES, EventQueue.MAX_QUEUE_BYTES);
+        DeliveredRecords delivered = new DeliveredRecords(new File(directory, "delivered"), DeliveredRecords.DEFAULT_CAPACITY);
+        EventQueue queue = new EventQueue(outbox, delivered, (delayMs) -> {}, "geofence transition");
+
+        Map<Long, Long> sentNanos = new HashMap<>();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < TRANSITIONS; i++) {
+            JSONObject transition = new JSONObject().put("identifier", "region-" + (i % 3)).put("action", "enter").put("time", i);
+            sentNanos.put((long) i, System.nanoTime());
+            queue.enqueue(transition.toString().getBytes(StandardCharsets.UTF_8), 0);
+        }
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        while (queue.size() > 0 && System.currentTimeMillis() < deadline) {
+            EventQueue.Outcome outcome = queue.drain(
+                (transition) -> GeofenceStore.sendTransition(context, transition),
+                () -> GeofenceStore.pauseRemainingMs(context)
+            );
+            if (outcome == EventQueue.Outcome.PAUSED) {
+                Thread.sleep(Math.max(1L, GeofenceStore.pauseRemainingMs(context)));
+            } else if (outcome == EventQueue.Outcome.RETRY) {
+                Thread.sleep(FAST_RETRY.baseDelayMs);
+            }
+        }
+        return report(scenario, startNanos, sentNanos);
+    }
+
+    private void awaitStored(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        while (server.storedNanos().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private Report report(String scenario, long startNanos, Map<Long, Long> sentNanos) {
+        Map<Long, Long> storedNanos = server.storedNanos();
+        List<Long> latenciesMs = new ArrayList<>();
+        long lastStoredNanos = startNanos;
+        for (Map.Entry<Long, Long> sent : sentNanos.entrySet()) {
+            Long stored = storedNanos.get(sent.getKey());
+            if (stored != null) {
+                latenciesMs.add((stored - sent.getValue()) / 1_000_000L);
+                lastStoredNanos = Math.max(lastStoredNanos, stored);
+            }
+        }
+        Collections.sort(latenciesMs);
+        Report report = new Report(
+            scenario,
+            sentNanos.size(),
+            sentNanos.size() - latenciesMs.size(),
+            latenciesMs.size() * 1e9 / Math.max(1L, lastStoredNanos - startNanos),
+            percentile(latenciesMs, 0.50),
+            percentile(latenciesMs, 0.99),
+            server.requests()
+        );
+        System.out.println(report);
+        return report;
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) {
+            return -1;
+        }
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    private static final class Report {
+
+        final String scenario;
+        final int sent;
+        final int lost;
+        final double perSecond;
+        final long p50Ms;
+        final long p99Ms;
+        final int requests;
+
+        Report(String scenario, int sent, int lost, double perSecond, long p50Ms, long p99Ms, int requests) {
+            this.scenario = scenario;
+            this.sent = sent;
+            this.lost = lost;
+            this.perSecond = perSecond;
+            this.p50Ms = p50Ms;
+            this.p99Ms = p99Ms;
+            this.requests = requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                Locale.ROOT,
+                "delivery[%s] sent=%d requests=%d throughput=%.1f/s p50=%dms p99=%dms loss=%.1f%%",
+                scenario,
+                sent,
+                requests,
+                perSecond,
+                p50Ms,
+                p99Ms,
+                100.0 * lost / Math.max(1, sent)
+            );
+        }
+    }
+
+    // Just enough of a Context for the preference-backed stores.
+    private static final class PreferencesContext extends ContextWrapper {
+
+        private final Map<String, SharedPreferences> preferences = new ConcurrentHashMap<>();
+
+        PreferencesContext() {
+            super(null);
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return preferences.computeIfAbsent(name, (key) -> new InMemorySharedPreferences());
+        }
+    }
+}
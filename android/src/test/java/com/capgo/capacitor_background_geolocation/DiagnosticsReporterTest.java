@@ -0,0 +1,51 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Unit tests for the periodic diagnostics POST
+ */
+public class DiagnosticsReporterTest {
+
+    @Test
+    public void testFailedReportsDoNotStopTheSchedule() throws Exception {
+        AtomicInteger snapshots = new AtomicInteger();
+        List<String> sent = new CopyOnWriteArrayList<>();
+        DiagnosticsReporter reporter = new DiagnosticsReporter(
+            "https://example.com/metrics",
+            20,
+            () -> new JSONObject().put("n", snapshots.incrementAndGet()),
+            (body) -> {
+                String text = new String(body, StandardCharsets.UTF_8);
+                if (text.contains("\"n\":1}")) {
+                    throw new IOException("offline");
+                }
+                sent.add(text);
+            }
+        );
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sent.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        reporter.close();
+
+        assertTrue(sent.toString(), sent.size() >= 2);
+        assertEquals("{\"n\":2}", sent.get(0));
+    }
+
+    @Test
+    public void testIntervalIsClamped() {
+        assertEquals(DiagnosticsReporter.DEFAULT_INTERVAL_MS, DiagnosticsReporter.clampIntervalMs(0));
+        assertEquals(DiagnosticsReporter.MIN_INTERVAL_MS, DiagnosticsReporter.clampIntervalMs(1000));
+        assertEquals(3_600_000L, DiagnosticsReporter.clampIntervalMs(3_600_000L));
+    }
+}
@@ -0,0 +1,170 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the event queue and its single drain run
+ */
+public class EventQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<Long> scheduled = new ArrayList<>();
+    private final List<String> sent = new ArrayList<>();
+
+    @Test
+    public void testBurstSchedulesOneRunThatDrainsEverything() throws IOException {
+        EventQueue queue = queue();
+        for (int i = 0; i < 20; i++) {
+            queue.enqueue(transition(i), 0);
+        }
+
+        EventQueue.Outcome outcome = queue.drain(this::collect, () -> 0);
+
+        assertEquals(List.of(0L), scheduled);
+        assertEquals(EventQueue.Outcome.DRAINED, outcome);
+        assertEquals(20, sent.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals("transition-" + i, sent.get(i));
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testTransitionsQueuedDuringARunAreSentByIt() throws IOException {
+        EventQueue queue = queue();
+        queue.enqueue(transition(0), 0);
+
+        queue.drain(
+            (transition) -> {
+                collect(transition);
+                if (sent.size() == 1) {
+                    queue.enqueue(transition(1), 0);
+                }
+            },
+            () -> 0
+        );
+
+        assertEquals(List.of("transition-0", "transition-1"), sent);
+        assertEquals(1, scheduled.size());
+
+        queue.enqueue(transition(2), 0);
+
+        assertEquals(2, scheduled.size());
+    }
+
+    @Test
+    public void testRejectedTransitionsAreDropped() throws IOException {
+        EventQueue queue = queue();
+        queue.enqueue(transition(0), 0);
+        queue.enqueue(transition(1), 0);
+
+        EventQueue.Outcome outcome = queue.drain(
+            (transition) -> {
+                collect(transition);
+                if (sent.size() == 1) {
+                    throw new HttpStatusException("rejected", 400);
+                }
+            },
+            () -> 0
+        );
+
+        assertEquals(EventQueue.Outcome.DRAINED, outcome);
+        assertEquals(List.of("transition-0", "transition-1"), sent);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testFailureKeepsTransitionsForTheRetriedRun() throws IOException {
+        EventQueue queue = queue();
+        queue.enqueue(transition(0), 0);
+
+        EventQueue.Outcome outcome = queue.drain(
+            (transition) -> {
+                throw new HttpStatusException("unavailable", 503);
+            },
+            () -> 0
+        );
+        queue.enqueue(transition(1), 0);
+
+        assertEquals(EventQueue.Outcome.RETRY, outcome);
+        assertEquals(2, queue.size());
+        // The retried run will pick up the new transition too.
+        assertEquals(1, scheduled.size());
+
+        assertEquals(EventQueue.Outcome.DRAINED, queue.drain(this::collect, () -> 0));
+        assertEquals(List.of("transition-0", "transition-1"), sent);
+    }
+
+    @Test
+    public void testPauseSchedulesADelayedRun() throws IOException {
+        EventQueue queue = queue();
+        queue.enqueue(transition(0), 0);
+        long[] pauseMs = { 0 };
+
+        EventQueue.Outcome outcome = queue.drain(
+            (transition) -> {
+                pauseMs[0] = 30_000;
+                throw new HttpStatusException("slow down", 429, 30_000);
+            },
+            () -> pauseMs[0]
+        );
+
+        assertEquals(EventQueue.Outcome.PAUSED, outcome);
+        assertEquals(List.of(0L, 30_000L), scheduled);
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testQueueSurvivesRestart() throws IOException {
+        queue().enqueue(transition(0), 0);
+
+        assertEquals(EventQueue.Outcome.DRAINED, queue().drain(this::collect, () -> 0));
+        assertEquals(List.of("transition-0"), sent);
+    }
+
+    @Test
+    public void testDeliveredTransitionIsNotSentAgainAfterRestart() throws IOException {
+        queue().enqueue(transition(0), 0);
+        queue().enqueue(transition(1), 0);
+        // The transition was delivered, but the process died before the queue
+        // forgot it.
+        delivered().addAll(List.of(transition(0)));
+
+        assertEquals(EventQueue.Outcome.DRAINED, queue().drain(this::collect, () -> 0));
+        assertEquals(List.of("transition-1"), sent);
+        assertTrue(delivered().contains(transition(1)));
+    }
+
+    // A fresh queue over the same files, as after a process restart.
+    private EventQueue queue() throws IOException {
+        return new EventQueue(
+            new LocationOutbox(folder.getRoot(), EventQueue.SEGMENT_BYTES, EventQueue.MAX_QUEUE_BYTES),
+            delivered(),
+            scheduled::add,
+            "geofence transition"
+        );
+    }
+
+    private DeliveredRecords delivered() {
+        return new DeliveredRecords(new File(folder.getRoot(), "delivered"), DeliveredRecords.DEFAULT_CAPACITY);
+    }
+
+    private void collect(byte[] transition) {
+        sent.add(new String(transition, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] transition(int i) {
+        return ("transition-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,131 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for fanning native fixes out to several HTTP sinks
+ */
+public class HttpLocationSinkTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Separate origins: sinks on one origin share its connection slots.
+    private HttpServer slowServer;
+    private HttpServer fastServer;
+    private final CountDownLatch releaseSlow = new CountDownLatch(1);
+    private final List<String> fastBodies = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startServers() throws Exception {
+        slowServer = server();
+        slowServer.createContext("/", (exchange) -> {
+            try {
+                releaseSlow.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        fastServer = server();
+        fastServer.createContext("/", (exchange) -> {
+            try (InputStream input = exchange.getRequestBody()) {
+                fastBodies.add(new String(input.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        slowServer.start();
+        fastServer.start();
+    }
+
+    @After
+    public void stopServers() {
+        releaseSlow.countDown();
+        slowServer.stop(0);
+        fastServer.stop(0);
+    }
+
+    @Test
+    public void testSlowSinkDoesNotHoldBackTheOthers() throws Exception {
+        HttpLocationSink slow = sink("slow", slowServer, 0);
+        HttpLocationSink fast = sink("fast", fastServer, 0);
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+
+        for (int i = 0; i < 5; i++) {
+            sample.time = i * 1000L;
+            sample.latitude = i;
+            slow.accept(sample);
+            fast.accept(sample);
+        }
+
+        awaitFastFixes(5);
+        assertEquals(5, fastFixes());
+        assertTrue(fastBodies.toString(), fastBodies.get(fastBodies.size() - 1).contains("\"latitude\":4"));
+        releaseSlow.countDown();
+        slow.close();
+        fast.close();
+    }
+
+    @Test
+    public void testSinkFilterDownsamplesItsOwnFixes() throws Exception {
+        HttpLocationSink fast = sink("fast", fastServer, 2000);
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+
+        for (int i = 0; i < 5; i++) {
+            sample.time = i * 1000L;
+            fast.accept(sample);
+        }
+
+        fast.flushAndClose();
+        awaitFastFixes(3);
+        assertEquals(3, fastFixes());
+        assertTrue(fastBodies.toString(), fastBodies.toString().contains("\"time\":2000"));
+    }
+
+    private void awaitFastFixes(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (fastFixes() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    // Fixes may arrive one per request or batched in an array.
+    private int fastFixes() {
+        int fixes = 0;
+        for (String body : fastBodies) {
+            fixes += body.split("\"time\":", -1).length - 1;
+        }
+        return fixes;
+    }
+
+    private static HttpServer server() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        return server;
+    }
+
+    private HttpLocationSink sink(String name, HttpServer server, long minIntervalMs) {
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/locations";
+        SinkConfig config = new SinkConfig(name, url, null, minIntervalMs, 0f, DeliveryOptions.DEFAULT);
+        File directory = new File(folder.getRoot(), name);
+        return new HttpLocationSink(config, directory, LocationSink.Filter.ALL, RetryPolicy.DEFAULT, UploadPolicy.ALWAYS_ONLINE);
+    }
+}
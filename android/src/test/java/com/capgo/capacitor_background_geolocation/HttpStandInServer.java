@@ -0,0 +1,231 @@
+package com.capgo.capacitor_background_geolocation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * In-process stand-in for a location server, for JVM tests that drive the
+ * native delivery path over a real socket. Every request waits for the
+ * scripted latency, then gets one fault picked at random from the script:
+ * a 5xx, a 429 with Retry-After, a connection closed without a response, or a
+ * response body dribbled out slowly. Requests without a fault are accepted.
+ *
+ * Accepted bodies are parsed as one JSON object or an array of them, and the
+ * time each record id (the long value of idField) was first stored is kept,
+ * so tests can measure delivery latency and loss.
+ */
+final class HttpStandInServer {
+
+    enum Fault {
+        NONE,
+        SERVER_ERROR,
+        THROTTLE,
+        RESET,
+        SLOW_BODY
+    }
+
+    // Fault rates are fractions of all requests and must not add up to more
+    // than 1.
+    static final class Script {
+
+        long latencyMs;
+        double serverErrorRate;
+        double throttleRate;
+        long retryAfterSeconds = 1;
+        double resetRate;
+        double slowBodyRate;
+        long slowBodyMs;
+        long seed = 1;
+
+        Script setLatencyMs(long latencyMs) {
+            this.latencyMs = latencyMs;
+            return this;
+        }
+
+        Script setServerErrorRate(double serverErrorRate) {
+            this.serverErrorRate = serverErrorRate;
+            return this;
+        }
+
+        Script setThrottleRate(double throttleRate) {
+            this.throttleRate = throttleRate;
+            return this;
+        }
+
+        Script setResetRate(double resetRate) {
+            this.resetRate = resetRate;
+            return this;
+        }
+
+        Script setSlowBody(double slowBodyRate, long slowBodyMs) {
+            this.slowBodyRate = slowBodyRate;
+            this.slowBodyMs = slowBodyMs;
+            return this;
+        }
+    }
+
+    private static final int SLOW_BODY_CHUNKS = 8;
+    private static final byte[] SLOW_BODY_CHUNK = " ".repeat(256).getBytes(StandardCharsets.UTF_8);
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Script script;
+    private final String idField;
+    private final Random random;
+    private final Map<Long, Long> storedNanos = new ConcurrentHashMap<>();
+    private final Map<Fault, AtomicInteger> faults = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger duplicates = new AtomicInteger();
+
+    HttpStandInServer(Script script, String idField) throws IOException {
+        this.script = script;
+        this.idField = idField;
+        this.random = new Random(script.seed);
+        for (Fault fault : Fault.values()) {
+            faults.put(fault, new AtomicInteger());
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/locations";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // Record id to the System.nanoTime() at which it was first stored.
+    Map<Long, Long> storedNanos() {
+        return storedNanos;
+    }
+
+    int requests() {
+        return requests.get();
+    }
+
+    int faults(Fault fault) {
+        return faults.get(fault).get();
+    }
+
+    // Records stored again after their first delivery.
+    int duplicates() {
+        return duplicates.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Fault fault = nextFault();
+        faults.get(fault).incrementAndGet();
+        sleep(script.latencyMs);
+        switch (fault) {
+            case SERVER_ERROR:
+                respond(exchange, 503, null);
+                return;
+            case THROTTLE:
+                respond(exchange, 429, String.valueOf(script.retryAfterSeconds));
+                return;
+            case RESET:
+                // Closing before the response headers drops the connection.
+                exchange.close();
+                return;
+            default:
+                break;
+        }
+        // Like a real server, records are stored before they are acknowledged.
+        store(readBody(exchange));
+        if (fault == Fault.SLOW_BODY) {
+            exchange.sendResponseHeaders(200, (long) SLOW_BODY_CHUNKS * SLOW_BODY_CHUNK.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                for (int i = 0; i < SLOW_BODY_CHUNKS; i++) {
+                    output.write(SLOW_BODY_CHUNK);
+                    output.flush();
+                    sleep(script.slowBodyMs / SLOW_BODY_CHUNKS);
+                }
+            }
+        } else {
+            respond(exchange, 204, null);
+        }
+    }
+
+    private synchronized Fault nextFault() {
+        double roll = random.nextDouble();
+        if ((roll -= script.serverErrorRate) < 0) {
+            return Fault.SERVER_ERROR;
+        }
+        if ((roll -= script.throttleRate) < 0) {
+            return Fault.THROTTLE;
+        }
+        if ((roll -= script.resetRate) < 0) {
+            return Fault.RESET;
+        }
+        if ((roll -= script.slowBodyRate) < 0) {
+            return Fault.SLOW_BODY;
+        }
+        return Fault.NONE;
+    }
+
+    private void store(byte[] body) {
+        long nowNanos = System.nanoTime();
+        String text = new String(body, StandardCharsets.UTF_8).trim();
+        try {
+            JSONArray records = text.startsWith("[") ? new JSONArray(text) : new JSONArray().put(new JSONObject(text));
+            for (int i = 0; i < records.length(); i++) {
+                long id = records.getJSONObject(i).getLong(idField);
+                if (storedNanos.putIfAbsent(id, nowNanos) != null) {
+                    duplicates.incrementAndGet();
+                }
+            }
+        } catch (JSONException exception) {
+            throw new AssertionError("Unexpected body: " + text, exception);
+        }
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream input = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            input = new GZIPInputStream(input);
+        }
+        try (InputStream body = input) {
+            return body.readAllBytes();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int statusCode, String retryAfter) throws IOException {
+        if (retryAfter != null) {
+            exchange.getResponseHeaders().set("Retry-After", retryAfter);
+        }
+        exchange.sendResponseHeaders(statusCode, -1);
+        exchange.close();
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
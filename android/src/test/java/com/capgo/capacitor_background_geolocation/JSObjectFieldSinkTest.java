@@ -0,0 +1,85 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import com.getcapacitor.JSObject;
+import java.util.Iterator;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Unit tests for the locations passed to the JavaScript callback
+ */
+public class JSObjectFieldSinkTest {
+
+    // What formatLocation() put in the object before the shared serializer:
+    // the Location getters' values, boxed as they come.
+    private static JSObject baseline(float accuracy, float altitudeAccuracy, float speed, float bearing) {
+        JSObject obj = new JSObject();
+        obj.put("latitude", 48.85661234567891);
+        obj.put("longitude", 2.352219876543219);
+        obj.put("accuracy", (Object) accuracy);
+        obj.put("altitude", 35.123456789);
+        obj.put("altitudeAccuracy", (Object) altitudeAccuracy);
+        obj.put("simulated", false);
+        obj.put("speed", (Object) speed);
+        obj.put("bearing", (Object) bearing);
+        obj.put("time", 1700000000123L);
+        return obj;
+    }
+
+    private static LocationSerializer.Sample sample(float accuracy, float altitudeAccuracy, float speed, float bearing) {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.clear();
+        sample.latitude = 48.85661234567891;
+        sample.longitude = 2.352219876543219;
+        // Widened like copyLocation() does.
+        sample.accuracy = accuracy;
+        sample.altitude = 35.123456789;
+        sample.altitudeAccuracy = altitudeAccuracy;
+        sample.speed = speed;
+        sample.bearing = bearing;
+        sample.time = 1700000000123L;
+        return sample;
+    }
+
+    @Test
+    public void testMatchesTheBaselineValues() throws Exception {
+        JSObjectFieldSink sink = new JSObjectFieldSink();
+        JSObject expected = baseline(4.1f, 2.7f, 13.9f, 271.3f);
+
+        JSObject actual = sink.write(sample(4.1f, 2.7f, 13.9f, 271.3f));
+
+        assertEquals(expected.length(), actual.length());
+        for (Iterator<String> keys = expected.keys(); keys.hasNext();) {
+            String key = keys.next();
+            assertEquals(key, expected.get(key), actual.get(key));
+        }
+        assertEquals("4.1", actual.get("accuracy").toString());
+        assertFalse(actual.has(DeliveryIds.FIELD));
+    }
+
+    @Test
+    public void testMissingValuesAreNull() throws Exception {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.clear();
+        sample.latitude = 48.8566;
+        sample.longitude = 2.3522;
+        sample.time = 1;
+
+        JSObject actual = new JSObjectFieldSink().write(sample);
+
+        for (String key : new String[] { "accuracy", "altitude", "altitudeAccuracy", "speed", "bearing" }) {
+            assertTrue(key, JSONObject.NULL == actual.get(key));
+        }
+    }
+
+    @Test
+    public void testEachFixGetsItsOwnObject() {
+        JSObjectFieldSink sink = new JSObjectFieldSink();
+        JSObject first = sink.write(sample(1f, 1f, 1f, 1f));
+        JSObject second = sink.write(sample(2f, 2f, 2f, 2f));
+        assertNotSame(first, second);
+        assertEquals(1f, first.opt("speed"));
+    }
+}
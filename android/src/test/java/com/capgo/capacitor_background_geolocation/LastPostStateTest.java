@@ -0,0 +1,71 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Unit tests for the write-behind last post bookkeeping
+ */
+public class LastPostStateTest {
+
+    @Test
+    public void testGatesOnMinimumInterval() {
+        LastPostState state = new LastPostState(LastPostState.NONE, (time) -> {});
+
+        assertTrue(state.shouldPost(10_000, 5_000));
+        state.markPosted(10_000);
+        assertFalse(state.shouldPost(14_999, 5_000));
+        assertTrue(state.shouldPost(15_000, 5_000));
+        // Points older than the last accepted one pass through.
+        assertTrue(state.shouldPost(9_000, 5_000));
+        assertTrue(state.shouldPost(11_000, 0));
+    }
+
+    @Test
+    public void testCoalescesWritesUntilFlushed() {
+        List<Long> persisted = new ArrayList<>();
+        LastPostState state = new LastPostState(LastPostState.NONE, persisted::add);
+
+        assertTrue(state.markPosted(1_000));
+        for (long time = 2_000; time <= 100_000; time += 1_000) {
+            assertFalse(state.markPosted(time));
+        }
+        assertTrue(persisted.isEmpty());
+
+        state.flush();
+        state.flush();
+
+        assertEquals(List.of(100_000L), persisted);
+        assertTrue(state.markPosted(101_000));
+    }
+
+    @Test
+    public void testRestartKeepsGating() {
+        List<Long> persisted = new ArrayList<>();
+        LastPostState state = new LastPostState(LastPostState.NONE, persisted::add);
+        state.markPosted(50_000);
+        state.flush();
+
+        LastPostState restarted = new LastPostState(persisted.get(persisted.size() - 1), (time) -> {});
+
+        assertFalse(restarted.shouldPost(52_000, 5_000));
+        assertTrue(restarted.shouldPost(55_000, 5_000));
+    }
+
+    @Test
+    public void testResetDiscardsUnsavedState() {
+        List<Long> persisted = new ArrayList<>();
+        LastPostState state = new LastPostState(20_000, persisted::add);
+        state.markPosted(30_000);
+
+        state.reset();
+        state.flush();
+
+        assertTrue(persisted.isEmpty());
+        assertEquals(LastPostState.NONE, state.lastPostTime());
+        assertTrue(state.shouldPost(30_001, 5_000));
+    }
+}
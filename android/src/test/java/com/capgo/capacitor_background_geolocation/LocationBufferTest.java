@@ -0,0 +1,118 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Unit tests for the bounded location buffer and its shedding policies
+ */
+public class LocationBufferTest {
+
+    @Test
+    public void testDropOldestKeepsTheNewestRecords() {
+        LocationBuffer buffer = buffer(LocationBuffer.POLICY_DROP_OLDEST, 3);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(buffer.offer(record(i), i * 1000L));
+        }
+
+        assertEquals(List.of("2", "3", "4"), texts(buffer.drain()));
+        assertEquals(2, buffer.shedRecords());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testDropNewestKeepsTheOldestRecords() {
+        LocationBuffer buffer = buffer(LocationBuffer.POLICY_DROP_NEWEST, 3);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i < 3, buffer.offer(record(i), i * 1000L));
+        }
+
+        assertEquals(List.of("0", "1", "2"), texts(buffer.drain()));
+        assertEquals(2, buffer.shedRecords());
+    }
+
+    @Test
+    public void testThinKeepsEveryNthRecordAcrossTheWholeOutage() {
+        LocationBuffer buffer = new LocationBuffer(
+            new DeliveryOptions.Builder().setBufferSize(6).setBufferPolicy(LocationBuffer.POLICY_THIN).setBufferThinEvery(3).build()
+        );
+        for (int i = 0; i < 7; i++) {
+            buffer.offer(record(i), i * 1000L);
+        }
+
+        // Full at 0..5: keeps 2 and 5, counting back from the newest.
+        assertEquals(List.of("2", "5", "6"), texts(buffer.drain()));
+        assertEquals(4, buffer.shedRecords());
+    }
+
+    @Test
+    public void testFirstLastKeepsTheEdgesOfEachWindow() {
+        LocationBuffer buffer = new LocationBuffer(
+            new DeliveryOptions.Builder().setBufferSize(6).setBufferPolicy(LocationBuffer.POLICY_FIRST_LAST).setBufferWindowMs(10_000).build()
+        );
+        long[] times = { 0, 2000, 4000, 6000, 11_000, 12_000, 25_000 };
+        for (int i = 0; i < times.length; i++) {
+            buffer.offer(record(i), times[i]);
+        }
+
+        assertEquals(List.of("0", "3", "4", "5", "6"), texts(buffer.drain()));
+        assertEquals(2, buffer.shedRecords());
+    }
+
+    @Test
+    public void testFirstLastDropsTheOldestWhenEveryWindowIsMinimal() {
+        LocationBuffer buffer = new LocationBuffer(
+            new DeliveryOptions.Builder().setBufferSize(2).setBufferPolicy(LocationBuffer.POLICY_FIRST_LAST).setBufferWindowMs(1000).build()
+        );
+        for (int i = 0; i < 3; i++) {
+            buffer.offer(record(i), i * 5000L);
+        }
+
+        assertEquals(List.of("1", "2"), texts(buffer.drain()));
+        assertEquals(1, buffer.shedRecords());
+    }
+
+    @Test
+    public void testShrinkingTheCapacityShedsTheOldest() {
+        LocationBuffer buffer = buffer(LocationBuffer.POLICY_DROP_NEWEST, 4);
+        for (int i = 0; i < 4; i++) {
+            buffer.offer(record(i), i);
+        }
+
+        buffer.configure(new DeliveryOptions.Builder().setBufferSize(2).build());
+
+        assertEquals(List.of("2", "3"), texts(buffer.drain()));
+        assertEquals(2, buffer.shedRecords());
+    }
+
+    @Test
+    public void testUnknownPoliciesAreRejected() {
+        assertTrue(LocationBuffer.isSupportedPolicy(null));
+        assertTrue(LocationBuffer.isSupportedPolicy("thin"));
+        assertFalse(LocationBuffer.isSupportedPolicy("drop-random"));
+        assertEquals(
+            LocationBuffer.POLICY_DROP_OLDEST,
+            new DeliveryOptions.Builder().setBufferPolicy("drop-random").build().bufferPolicy
+        );
+    }
+
+    private static LocationBuffer buffer(String policy, int size) {
+        return new LocationBuffer(new DeliveryOptions.Builder().setBufferSize(size).setBufferPolicy(policy).build());
+    }
+
+    private static byte[] record(int i) {
+        return String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> texts(List<byte[]> records) {
+        List<String> texts = new ArrayList<>();
+        for (byte[] record : records) {
+            texts.add(new String(record, StandardCharsets.UTF_8));
+        }
+        return texts;
+    }
+}
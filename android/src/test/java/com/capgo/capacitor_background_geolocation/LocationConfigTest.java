@@ -0,0 +1,179 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Unit tests for the native watcher config snapshot
+ */
+public class LocationConfigTest {
+
+    @Test
+    public void testRoundTripsThroughPreferences() {
+        InMemorySharedPreferences prefs = new InMemorySharedPreferences();
+        DeliveryOptions deliveryOptions = new DeliveryOptions.Builder()
+            .setBatchSize(25)
+            .setCompression("gzip")
+            .setRateHintHeader("X-Rate")
+            .setFormat(DeliveryOptions.FORMAT_BINARY)
+            .setFields(LocationSerializer.FIELD_LATITUDE | LocationSerializer.FIELD_TIME)
+            .setEnvelope("{\"fleet\":\"north\"}")
+            .build();
+        LocationConfig config = new LocationConfig(
+            true,
+            "https://example.com/locations",
+            "Tracking",
+            "On the way",
+            15f,
+            headers("Authorization", "Bearer token"),
+            -5,
+            deliveryOptions,
+            "[{\"name\":\"archive\",\"url\":\"https://archive.example.com\",\"minIntervalMs\":60000}]"
+        );
+        save(prefs, config);
+
+        LocationConfig read = LocationStore.readConfig(prefs);
+
+        assertTrue(read.enabled);
+        assertEquals("https://example.com/locations", read.url);
+        assertEquals("Tracking", read.title);
+        assertEquals("On the way", read.message);
+        assertEquals(15f, read.distanceFilter, 0f);
+        assertEquals(headers("Authorization", "Bearer token"), read.headers);
+        assertEquals(0, read.minIntervalMs);
+        assertEquals(25, read.deliveryOptions.batchSize);
+        assertEquals("gzip", read.deliveryOptions.compression);
+        assertEquals("X-Rate", read.deliveryOptions.rateHintHeader);
+        assertTrue(read.deliveryOptions.isBinary());
+        assertEquals(LocationSerializer.FIELD_LATITUDE | LocationSerializer.FIELD_TIME, read.deliveryOptions.projection.fields);
+        assertEquals("{\"fleet\":\"north\"}", read.deliveryOptions.projection.envelope);
+        assertEquals(1, read.sinks.size());
+        assertEquals("archive", read.sinks.get(0).name);
+        assertEquals(60000, read.sinks.get(0).minIntervalMs);
+    }
+
+    @Test
+    public void testEmptyPreferencesAreDisabled() {
+        LocationConfig read = LocationStore.readConfig(new InMemorySharedPreferences());
+
+        assertSame(LocationConfig.DISABLED, read);
+        assertFalse(read.enabled);
+        assertNull(read.url);
+        assertTrue(read.headers.isEmpty());
+    }
+
+    @Test
+    public void testClearingTheSetupKeepsTheInstallationId() {
+        InMemorySharedPreferences prefs = new InMemorySharedPreferences();
+        prefs.edit().putString("installationId", "0b5c8a1e-7d0e-4c6b-9d55-2f1f0c1a9e01").apply();
+        save(prefs, new LocationConfig(true, "https://example.com/locations", null, null, 0f, null, 0, DeliveryOptions.DEFAULT, null));
+
+        LocationStore.clearSetup(prefs).apply();
+
+        assertSame(LocationConfig.DISABLED, LocationStore.readConfig(prefs));
+        assertEquals("0b5c8a1e-7d0e-4c6b-9d55-2f1f0c1a9e01", prefs.getString("installationId", null));
+        assertNull(prefs.getString("url", null));
+
+        // Nothing to keep when no id was generated yet.
+        InMemorySharedPreferences fresh = new InMemorySharedPreferences();
+        fresh.edit().putString("url", "https://example.com/locations").apply();
+        LocationStore.clearSetup(fresh).apply();
+        assertFalse(fresh.contains("installationId"));
+        assertNull(fresh.getString("url", null));
+    }
+
+    @Test
+    public void testFileSinkAloneEnablesNativeDelivery() {
+        String sinks = "[{\"type\":\"file\",\"name\":\"track\"}]";
+
+        LocationConfig recording = new LocationConfig(true, null, "t", "m", 0f, null, 0, DeliveryOptions.DEFAULT, sinks);
+        LocationConfig nothing = new LocationConfig(true, null, "t", "m", 0f, null, 0, DeliveryOptions.DEFAULT, null);
+
+        assertTrue(recording.enabled);
+        assertNull(recording.url);
+        assertFalse(nothing.enabled);
+    }
+
+    @Test
+    public void testWithHeadersLeavesTheOriginalUntouched() {
+        Map<String, String> original = headers("A", "1");
+        LocationConfig config = new LocationConfig(true, "https://example.com", "t", "m", 0f, original, 0, DeliveryOptions.DEFAULT, null);
+        original.put("B", "2");
+
+        LocationConfig updated = config.withHeaders(headers("C", "3"));
+
+        assertEquals(headers("A", "1"), config.headers);
+        assertEquals(headers("C", "3"), updated.headers);
+        assertEquals(config.url, updated.url);
+        assertThrows(UnsupportedOperationException.class, () -> updated.headers.put("D", "4"));
+    }
+
+    @Test
+    public void testNullHeaderValuesAreDropped() {
+        Map<String, String> headers = headers("A", "1");
+        headers.put("B", null);
+
+        LocationConfig config = new LocationConfig(true, "https://example.com", "t", "m", 0f, headers, 0, DeliveryOptions.DEFAULT, null);
+
+        assertEquals(headers("A", "1"), config.headers);
+    }
+
+    @Test
+    public void testConfigDoesNotReadPreferencesPerFix() {
+        PreferencesContext context = new PreferencesContext();
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < 4; i++) {
+            headers.put("X-Header-" + i, "value-" + i);
+        }
+        try {
+            LocationStore.saveSetup(context, "https://example.com/locations", "t", "m", 0f, headers, 1000, DeliveryOptions.DEFAULT, null);
+            LocationConfig first = LocationStore.config(context);
+            int reads = context.preferences.reads;
+
+            for (int i = 0; i < 1000; i++) {
+                LocationConfig config = LocationStore.config(context);
+                // The same snapshot, so the headers JSON was not parsed again.
+                assertSame(first, config);
+                assertSame(first.headers, config.headers);
+            }
+
+            assertEquals(reads, context.preferences.reads);
+            assertEquals(headers, first.headers);
+            assertEquals(1000, first.minIntervalMs);
+        } finally {
+            LocationStore.clear(context);
+        }
+    }
+
+    private static Map<String, String> headers(String name, String value) {
+        Map<String, String> headers = new HashMap<>();
+        headers.put(name, value);
+        return headers;
+    }
+
+    private static void save(InMemorySharedPreferences prefs, LocationConfig config) {
+        SharedPreferences.Editor editor = prefs.edit();
+        LocationStore.writeConfig(editor, config);
+        editor.apply();
+    }
+
+    // Hands out one counting preferences file, whatever the name.
+    private static final class PreferencesContext extends ContextWrapper {
+
+        final InMemorySharedPreferences preferences = new InMemorySharedPreferences();
+
+        PreferencesContext() {
+            super(null);
+        }
+
+        @Override
+        public SharedPreferences getSharedPreferences(String name, int mode) {
+            return preferences;
+        }
+    }
+}
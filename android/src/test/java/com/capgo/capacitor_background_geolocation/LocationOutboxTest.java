@@ -0,0 +1,164 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for the on-disk location outbox
+ */
+public class LocationOutboxTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRecordsAreReadInAppendOrder() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 64, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            outbox.append(record(i));
+        }
+
+        LocationOutbox.Batch batch = outbox.peek(100, Long.MAX_VALUE);
+
+        assertEquals(10, batch.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("point-" + i, text(batch.records.get(i)));
+        }
+    }
+
+    @Test
+    public void testPeekDoesNotRemoveUntilAcknowledged() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 64, 1024 * 1024);
+        outbox.append(record(0));
+        outbox.append(record(1));
+
+        assertEquals("point-0", text(outbox.peek(1, Long.MAX_VALUE).records.get(0)));
+        assertEquals("A failed delivery must leave the record at the head", "point-0", text(outbox.peek(1, Long.MAX_VALUE).records.get(0)));
+
+        outbox.acknowledge(outbox.peek(1, Long.MAX_VALUE));
+
+        assertEquals(1, outbox.size());
+        assertEquals("point-1", text(outbox.peek(1, Long.MAX_VALUE).records.get(0)));
+    }
+
+    @Test
+    public void testStaleAcknowledgeDoesNotMoveTheCursorBack() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024, 1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            outbox.append(record(i));
+        }
+        LocationOutbox.Batch first = outbox.peek(1, Long.MAX_VALUE);
+        LocationOutbox.Batch both = outbox.peek(2, Long.MAX_VALUE);
+
+        outbox.acknowledge(both);
+        outbox.acknowledge(first);
+        outbox.acknowledge(both);
+
+        assertEquals(1, outbox.size());
+        assertEquals("point-2", text(outbox.peek(1, Long.MAX_VALUE).records.get(0)));
+    }
+
+    @Test
+    public void testPendingRecordsSurviveReopen() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 64, 1024 * 1024);
+        for (int i = 0; i < 6; i++) {
+            outbox.append(record(i));
+        }
+        outbox.acknowledge(outbox.peek(2, Long.MAX_VALUE));
+
+        LocationOutbox reopened = new LocationOutbox(folder.getRoot(), 64, 1024 * 1024);
+        LocationOutbox.Batch batch = reopened.peek(100, Long.MAX_VALUE);
+
+        assertEquals(4, reopened.size());
+        assertEquals("point-2", text(batch.records.get(0)));
+        assertEquals("point-5", text(batch.records.get(3)));
+    }
+
+    @Test
+    public void testAcknowledgedSegmentsAreDeleted() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 32, 1024 * 1024);
+        for (int i = 0; i < 20; i++) {
+            outbox.append(record(i));
+        }
+        int segmentsBefore = segmentCount();
+
+        outbox.acknowledge(outbox.peek(18, Long.MAX_VALUE));
+
+        assertTrue("Fully read segments should be removed", segmentCount() < segmentsBefore);
+        assertEquals(2, outbox.size());
+    }
+
+    @Test
+    public void testPeekHonorsByteBudgetButReturnsAtLeastOneRecord() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024, 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            outbox.append(record(i));
+        }
+
+        assertEquals(1, outbox.peek(100, 1).size());
+        assertEquals(2, outbox.peek(100, 2 * record(0).length).size());
+    }
+
+    @Test
+    public void testOldestSegmentsAreDroppedPastMaxBytes() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 32, 128);
+        for (int i = 0; i < 50; i++) {
+            outbox.append(record(i));
+        }
+
+        assertTrue("Disk usage must stay bounded", outbox.sizeBytes() <= 128);
+        assertTrue(outbox.droppedRecords() > 0);
+        assertEquals(50, outbox.size() + outbox.droppedRecords());
+        LocationOutbox.Batch batch = outbox.peek(100, Long.MAX_VALUE);
+        assertEquals("point-49", text(batch.records.get(batch.size() - 1)));
+    }
+
+    @Test
+    public void testTornTailIsTruncatedOnRecovery() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 1024, 1024 * 1024);
+        outbox.append(record(0));
+        outbox.append(record(1));
+        File segment = folder.getRoot().listFiles((dir, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        LocationOutbox reopened = new LocationOutbox(folder.getRoot(), 1024, 1024 * 1024);
+        reopened.append(record(2));
+        LocationOutbox.Batch batch = reopened.peek(100, Long.MAX_VALUE);
+
+        assertEquals(2, batch.size());
+        assertEquals("point-0", text(batch.records.get(0)));
+        assertEquals("point-2", text(batch.records.get(1)));
+    }
+
+    @Test
+    public void testClearRemovesPendingRecords() throws IOException {
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), 64, 1024 * 1024);
+        outbox.append(record(0));
+        outbox.clear();
+
+        assertTrue(outbox.isEmpty());
+        assertTrue(outbox.peek(10, Long.MAX_VALUE).isEmpty());
+        assertTrue(new LocationOutbox(folder.getRoot(), 64, 1024 * 1024).isEmpty());
+    }
+
+    private int segmentCount() {
+        return folder.getRoot().listFiles((dir, name) -> name.endsWith(".seg")).length;
+    }
+
+    private static byte[] record(int index) {
+        return ("point-" + index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] record) {
+        return new String(record, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,242 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Unit tests for the shared location serializer
+ */
+public class LocationSerializerTest {
+
+    @Test
+    public void testWritesEveryField() {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.latitude = -33.8688197;
+        sample.longitude = 151.2092955;
+        sample.accuracy = 4.1f;
+        sample.altitude = -12.5;
+        sample.altitudeAccuracy = 3;
+        sample.simulated = true;
+        sample.speed = 13.89f;
+        sample.bearing = 0;
+        sample.time = 1_700_000_000_123L;
+
+        assertEquals(
+            "{\"latitude\":-33.8688197,\"longitude\":151.2092955,\"accuracy\":4.1,\"altitude\":-12.5," +
+                "\"altitudeAccuracy\":3,\"simulated\":true,\"speed\":13.89,\"bearing\":0," +
+                "\"time\":1700000000123,\"source\":\"native\"}",
+            json(sample, LocationSerializer.SOURCE_NATIVE)
+        );
+    }
+
+    @Test
+    public void testWritesTheEventIdOfNativeDeliveries() {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.time = 1000;
+        sample.installationId = "install\"1";
+        sample.sequence = 42;
+
+        String json = json(sample, LocationSerializer.SOURCE_NATIVE);
+
+        assertTrue(json, json.endsWith(",\"source\":\"native\",\"eventId\":\"install\\\"1-1000-42\"}"));
+        sample.installationId = "install";
+        assertEquals("install-1000-42", DeliveryIds.eventIdOf(record(sample)));
+    }
+
+    @Test
+    public void testMissingValuesAreNull() {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.latitude = 1e-10;
+        sample.longitude = -0.5;
+        sample.time = 0;
+
+        assertEquals(
+            "{\"latitude\":0,\"longitude\":-0.5,\"accuracy\":null,\"altitude\":null,\"altitudeAccuracy\":null," +
+                "\"simulated\":false,\"speed\":null,\"bearing\":null,\"time\":0}",
+            json(sample, null)
+        );
+    }
+
+    @Test
+    public void testEscapesStrings() {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+
+        String json = json(sample, "a\"b\\c\n\u00e9\u20ac\ud83d\ude00");
+
+        assertTrue(json, json.endsWith(",\"source\":\"a\\\"b\\\\c\\u000a\u00e9\u20ac\ud83d\ude00\"}"));
+    }
+
+    @Test
+    public void testProjectionKeepsSelectedFieldsAndTheEventId() {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.latitude = 52.52;
+        sample.longitude = 13.405;
+        sample.accuracy = 8;
+        sample.time = 1000;
+        sample.installationId = "install";
+        sample.sequence = 7;
+        LocationSerializer.Projection projection = new LocationSerializer.Projection(
+            LocationSerializer.FIELD_LATITUDE | LocationSerializer.FIELD_LONGITUDE | LocationSerializer.FIELD_TIME,
+            null
+        );
+
+        assertEquals(
+            "{\"latitude\":52.52,\"longitude\":13.405,\"time\":1000,\"eventId\":\"install-1000-7\"}",
+            json(sample, LocationSerializer.SOURCE_NATIVE, projection)
+        );
+    }
+
+    @Test
+    public void testEnvelopeIsMergedAfterTheFields() throws Exception {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.time = 5;
+        JSONObject envelope = new JSONObject()
+            .put("vehicle", "van-12")
+            .put("tags", new JSONArray().put("cold"))
+            .put("time", 0)
+            .put(DeliveryIds.FIELD, "spoofed");
+        LocationSerializer.Projection projection = new LocationSerializer.Projection(LocationSerializer.FIELD_TIME, envelope.toString());
+
+        JSONObject json = new JSONObject(json(sample, LocationSerializer.SOURCE_NATIVE, projection));
+
+        // Location fields win over envelope members of the same name.
+        assertEquals(5, json.getLong("time"));
+        assertFalse(json.has(DeliveryIds.FIELD));
+        assertEquals("van-12", json.getString("vehicle"));
+        assertEquals("cold", json.getJSONArray("tags").getString(0));
+        assertEquals(3, json.length());
+
+        // A field that is projected out leaves its name to the envelope.
+        LocationSerializer.Projection timeless = new LocationSerializer.Projection(LocationSerializer.FIELD_LATITUDE, envelope.toString());
+        JSONObject renamed = new JSONObject(json(sample, LocationSerializer.SOURCE_NATIVE, timeless));
+        assertEquals(0, renamed.getLong("time"));
+        assertFalse(renamed.has(DeliveryIds.FIELD));
+        assertEquals(4, renamed.length());
+
+        LocationSerializer.Projection envelopeOnly = new LocationSerializer.Projection(0, "{\"vehicle\":\"van-12\"}");
+        assertEquals("{\"vehicle\":\"van-12\"}", json(sample, LocationSerializer.SOURCE_NATIVE, envelopeOnly));
+        assertEquals("{}", json(sample, null, new LocationSerializer.Projection(0, null)));
+    }
+
+    @Test
+    public void testDeliveryOptionsReadFieldsAndEnvelope() throws Exception {
+        JSONObject options = new JSONObject()
+            .put("fields", new JSONArray().put("latitude").put("longitude").put("accuracy"))
+            .put("envelope", new JSONObject().put("driver", 4));
+
+        DeliveryOptions deliveryOptions = DeliveryOptions.fromJson(options);
+
+        assertNull(DeliveryOptions.validate(options));
+        assertEquals(
+            LocationSerializer.FIELD_LATITUDE | LocationSerializer.FIELD_LONGITUDE | LocationSerializer.FIELD_ACCURACY,
+            deliveryOptions.projection.fields
+        );
+        assertEquals("{\"driver\":4}", deliveryOptions.projection.envelope);
+        assertSame(LocationSerializer.Projection.ALL, DeliveryOptions.DEFAULT.projection);
+    }
+
+    @Test
+    public void testSharesTheFieldSetWithOtherSinks() {
+        List<String> keys = new ArrayList<>();
+        LocationSerializer.write(
+            new LocationSerializer.Sample(),
+            LocationSerializer.SOURCE_NATIVE,
+            new LocationSerializer.FieldSink() {
+                @Override
+                public void number(String key, double value, int fractionDigits) {
+                    keys.add(key);
+                }
+
+                @Override
+                public void integer(String key, long value) {
+                    keys.add(key);
+                }
+
+                @Override
+                public void bool(String key, boolean value) {
+                    keys.add(key);
+                }
+
+                @Override
+                public void string(String key, String value) {
+                    keys.add(key);
+                }
+
+                @Override
+                public void eventId(String key, String installationId, long time, long sequence) {
+                    keys.add(key);
+                }
+            }
+        );
+
+        assertEquals(
+            List.of("latitude", "longitude", "accuracy", "altitude", "altitudeAccuracy", "simulated", "speed", "bearing", "time", "source"),
+            keys
+        );
+    }
+
+    @Test
+    public void testSerializingDoesNotAllocateAfterWarmUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        LocationSerializer serializer = new LocationSerializer();
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        String installationId = "5c0f3d8e-6a43-4b8a-9f6e-0d2b5a7c1e94";
+        long checksum = 0;
+        for (int i = 0; i < 20_000; i++) {
+            checksum += serialize(serializer, sample, installationId, i);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            checksum += serialize(serializer, sample, installationId, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum > 0);
+        // Leaves room for the measurement itself, far below one byte per fix.
+        assertTrue("allocated " + allocated + " bytes for 10000 fixes", allocated < 4096);
+    }
+
+    private static int serialize(LocationSerializer serializer, LocationSerializer.Sample sample, String installationId, int i) {
+        sample.clear();
+        sample.latitude = 48.8566 + i * 1e-5;
+        sample.longitude = 2.3522 - i * 1e-5;
+        sample.accuracy = 5 + (i % 7) * 0.1f;
+        sample.speed = i % 3 == 0 ? Double.NaN : 1.4;
+        sample.time = 1_700_000_000_000L + i * 1000L;
+        sample.installationId = installationId;
+        sample.sequence = i;
+        return serializer.writeJson(sample, LocationSerializer.SOURCE_NATIVE);
+    }
+
+    private static byte[] record(LocationSerializer.Sample sample) {
+        LocationSerializer serializer = new LocationSerializer();
+        serializer.writeJson(sample, LocationSerializer.SOURCE_NATIVE);
+        return serializer.toByteArray();
+    }
+
+    private static String json(LocationSerializer.Sample sample, String source) {
+        return json(sample, source, LocationSerializer.Projection.ALL);
+    }
+
+    private static String json(LocationSerializer.Sample sample, String source, LocationSerializer.Projection projection) {
+        LocationSerializer serializer = new LocationSerializer();
+        int length = serializer.writeJson(sample, source, projection);
+        return new String(serializer.buffer(), 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,395 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for draining the location outbox
+ */
+public class LocationUploaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<String> bodies = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void testSingleLocationsArePostedAsObjects() throws Exception {
+        CountDownLatch sent = new CountDownLatch(2);
+        LocationUploader uploader = new LocationUploader(folder.getRoot(), recording(sent), DeliveryOptions.DEFAULT);
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        uploader.enqueue(record("{\"n\":2}"), 0);
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("{\"n\":1}", "{\"n\":2}"), bodies);
+        uploader.shutdown();
+    }
+
+    @Test
+    public void testFullBatchIsPostedAsJsonArray() throws Exception {
+        CountDownLatch sent = new CountDownLatch(1);
+        DeliveryOptions options = new DeliveryOptions.Builder().setBatchSize(3).setBatchMaxDelayMs(60000).build();
+        LocationUploader uploader = new LocationUploader(folder.getRoot(), recording(sent), options);
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        uploader.enqueue(record("{\"n\":2}"), 0);
+        uploader.enqueue(record("{\"n\":3}"), 0);
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("[{\"n\":1},{\"n\":2},{\"n\":3}]"), bodies);
+        uploader.shutdown();
+    }
+
+    @Test
+    public void testPartialBatchIsPostedAfterMaxDelay() throws Exception {
+        CountDownLatch sent = new CountDownLatch(1);
+        DeliveryOptions options = new DeliveryOptions.Builder().setBatchSize(10).setBatchMaxDelayMs(100).build();
+        LocationUploader uploader = new LocationUploader(folder.getRoot(), recording(sent), options);
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("[{\"n\":1}]"), bodies);
+        uploader.shutdown();
+    }
+
+    @Test
+    public void testFlushAndShutdownPostsPartialBatch() throws Exception {
+        CountDownLatch sent = new CountDownLatch(1);
+        DeliveryOptions options = new DeliveryOptions.Builder().setBatchSize(10).setBatchMaxDelayMs(60000).build();
+        LocationUploader uploader = new LocationUploader(folder.getRoot(), (body, key) -> {
+                fail("Batch should wait");
+                return 0;
+            }, options);
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        uploader.enqueue(record("{\"n\":2}"), 0);
+        uploader.flushAndShutdown(recording(sent));
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("[{\"n\":1},{\"n\":2}]"), bodies);
+    }
+
+    @Test
+    public void testRejectedLocationDoesNotBlockQueue() throws Exception {
+        CountDownLatch sent = new CountDownLatch(1);
+        LocationUploader uploader = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                if (text(body).contains("bad")) {
+                    throw new HttpStatusException("Location POST failed with response code: 422", 422);
+                }
+                return recording(sent).send(body, key);
+            },
+            DeliveryOptions.DEFAULT
+        );
+
+        uploader.enqueue(record("{\"bad\":true}"), 0);
+        uploader.enqueue(record("{\"n\":2}"), 0);
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("{\"n\":2}"), bodies);
+        uploader.shutdown();
+    }
+
+    @Test
+    public void testFailedPostKeepsLocationsQueued() throws Exception {
+        CountDownLatch attempted = new CountDownLatch(1);
+        LocationUploader uploader = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                attempted.countDown();
+                throw new IOException("offline");
+            },
+            DeliveryOptions.DEFAULT
+        );
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        assertTrue(attempted.await(5, TimeUnit.SECONDS));
+        uploader.shutdown();
+
+        LocationOutbox outbox = LocationOutbox.open(folder.getRoot(), LocationUploader.SEGMENT_BYTES, LocationUploader.MAX_OUTBOX_BYTES);
+        assertEquals(1, outbox.size());
+    }
+
+    @Test
+    public void testOpenBreakerStopsAttemptsUntilProbe() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch opened = new CountDownLatch(2);
+        RetryPolicy policy = new RetryPolicy(10, 10, 2, 60000);
+        LocationUploader uploader = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                attempts.incrementAndGet();
+                opened.countDown();
+                throw new IOException("offline");
+            },
+            DeliveryOptions.DEFAULT,
+            policy
+        );
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        uploader.enqueue(record("{\"n\":2}"), 0);
+        uploader.enqueue(record("{\"n\":3}"), 0);
+        Thread.sleep(200);
+        uploader.shutdown();
+
+        assertEquals("No attempts while the breaker waits for its probe", 2, attempts.get());
+    }
+
+    @Test
+    public void testBreakerStateSurvivesRestart() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 10, 1, 60000);
+        CountDownLatch attempted = new CountDownLatch(1);
+        LocationUploader failing = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                attempted.countDown();
+                throw new IOException("offline");
+            },
+            DeliveryOptions.DEFAULT,
+            policy
+        );
+        failing.enqueue(record("{\"n\":1}"), 0);
+        assertTrue(attempted.await(5, TimeUnit.SECONDS));
+        // Give the uploader time to persist the failure.
+        Thread.sleep(100);
+        failing.shutdown();
+
+        LocationUploader restarted = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                bodies.add(text(body));
+                return 0;
+            },
+            DeliveryOptions.DEFAULT,
+            policy
+        );
+        restarted.enqueue(record("{\"n\":2}"), 0);
+        Thread.sleep(200);
+        restarted.shutdown();
+
+        assertTrue("The restarted uploader keeps the open breaker", bodies.isEmpty());
+    }
+
+    @Test
+    public void testRetryAfterPausesWithoutOpeningBreaker() throws Exception {
+        CountDownLatch throttled = new CountDownLatch(1);
+        RetryPolicy policy = new RetryPolicy(10, 10, 1, 60000);
+        LocationUploader uploader = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                if (throttled.getCount() > 0) {
+                    throttled.countDown();
+                    throw new HttpStatusException("Location POST failed with response code: 429", 429, 300);
+                }
+                bodies.add(text(body));
+                return 0;
+            },
+            DeliveryOptions.DEFAULT,
+            policy
+        );
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        assertTrue(throttled.await(5, TimeUnit.SECONDS));
+        uploader.enqueue(record("{\"n\":2}"), 0);
+        Thread.sleep(100);
+        assertTrue("Nothing is sent during the pause", bodies.isEmpty());
+        Thread.sleep(600);
+        uploader.shutdown();
+
+        assertEquals("The pause is not a failure, so the breaker stays closed", Arrays.asList("{\"n\":1}", "{\"n\":2}"), bodies);
+    }
+
+    @Test
+    public void testRateHintOnSuccessDelaysNextPost() throws Exception {
+        LocationUploader uploader = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                bodies.add(text(body));
+                return 300;
+            },
+            DeliveryOptions.DEFAULT
+        );
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        uploader.enqueue(record("{\"n\":2}"), 0);
+        Thread.sleep(150);
+        assertEquals(Arrays.asList("{\"n\":1}"), bodies);
+        Thread.sleep(600);
+        uploader.shutdown();
+
+        assertEquals(Arrays.asList("{\"n\":1}", "{\"n\":2}"), bodies);
+    }
+
+    @Test
+    public void testFormatChangeNeverMixesRecordsInOneRequest() throws Exception {
+        List<byte[]> sentBodies = new CopyOnWriteArrayList<>();
+        CountDownLatch sent = new CountDownLatch(3);
+        DeliveryOptions options = new DeliveryOptions.Builder().setBatchSize(10).setBatchMaxDelayMs(60000).build();
+        LocationUploader.Sender sender = (body, key) -> {
+            sentBodies.add(body);
+            sent.countDown();
+            return 0;
+        };
+        LocationUploader uploader = new LocationUploader(folder.getRoot(), sender, options);
+
+        uploader.enqueue(record("{\"n\":1}"), 0);
+        uploader.enqueue(BinaryLocationCodec.encodeRecord(new LocationFix(1, 2, 1000)), 0);
+        uploader.enqueue(BinaryLocationCodec.encodeRecord(new LocationFix(1.5, 2.5, 2000)), 0);
+        uploader.enqueue(record("{\"n\":4}"), 0);
+        uploader.flushAndShutdown(sender);
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        assertEquals("[{\"n\":1}]", text(sentBodies.get(0)));
+        assertEquals(2, BinaryLocationCodec.decodeBody(sentBodies.get(1)).size());
+        assertEquals("[{\"n\":4}]", text(sentBodies.get(2)));
+    }
+
+    @Test
+    public void testReplayedRecordsAlreadyDeliveredAreSkipped() throws Exception {
+        byte[] delivered = record("{\"eventId\":\"install-1000-1\"}");
+        byte[] pending = record("{\"eventId\":\"install-2000-2\"}");
+        // A crash after the POST succeeded but before the outbox forgot it.
+        LocationOutbox outbox = new LocationOutbox(folder.getRoot(), LocationUploader.SEGMENT_BYTES, LocationUploader.MAX_OUTBOX_BYTES);
+        outbox.append(delivered);
+        outbox.append(pending);
+        new DeliveredRecords(new File(folder.getRoot(), LocationUploader.DELIVERED_FILE), DeliveredRecords.DEFAULT_CAPACITY).addAll(
+            Arrays.asList(delivered)
+        );
+        List<String> keys = new CopyOnWriteArrayList<>();
+        CountDownLatch sent = new CountDownLatch(1);
+
+        LocationUploader uploader = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                bodies.add(text(body));
+                keys.add(key);
+                sent.countDown();
+                return 0;
+            },
+            DeliveryOptions.DEFAULT
+        );
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        uploader.shutdown();
+
+        assertEquals(Arrays.asList(text(pending)), bodies);
+        assertEquals(Arrays.asList("install-2000-2"), keys);
+    }
+
+    @Test
+    public void testHungPostKeepsBufferedLocationsBounded() throws Exception {
+        CountDownLatch requestStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        DeliveryOptions options = new DeliveryOptions.Builder().setBufferSize(100).build();
+        LocationUploader uploader = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                requestStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                }
+                bodies.add(text(body));
+                return 0;
+            },
+            options
+        );
+        uploader.enqueue(record("{\"n\":0}"), 0);
+        assertTrue(requestStarted.await(5, TimeUnit.SECONDS));
+
+        // The uploader thread is stuck in the first POST meanwhile.
+        for (int i = 1; i <= 10_000; i++) {
+            uploader.enqueue(record("{\"n\":" + i + "}"), i * 1000L);
+        }
+        assertEquals(9_900, uploader.shedRecords());
+
+        release.countDown();
+        uploader.flushAndShutdown((body, key) -> {
+            bodies.add(text(body));
+            return 0;
+        });
+        Thread.sleep(300);
+
+        assertEquals(101, bodies.size());
+        assertEquals("{\"n\":9901}", bodies.get(1));
+        assertEquals("{\"n\":10000}", bodies.get(100));
+    }
+
+    @Test
+    public void testNewUploaderWaitsForTheFinalFlushOfThePreviousOne() throws Exception {
+        CountDownLatch flushStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        LocationUploader stopping = new LocationUploader(
+            folder.getRoot(),
+            (body, key) -> {
+                fail("Batch should wait");
+                return 0;
+            },
+            new DeliveryOptions.Builder().setBatchSize(10).setBatchMaxDelayMs(60000).build()
+        );
+        stopping.enqueue(record("{\"n\":1}"), 0);
+        stopping.flushAndShutdown((body, key) -> {
+            flushStarted.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+            bodies.add("flush " + text(body));
+            return 0;
+        });
+        assertTrue(flushStarted.await(5, TimeUnit.SECONDS));
+
+        // Started again while the final flush is still in flight.
+        CountDownLatch sent = new CountDownLatch(1);
+        LocationUploader started = new LocationUploader(folder.getRoot(), recording(sent), DeliveryOptions.DEFAULT);
+        started.enqueue(record("{\"n\":2}"), 0);
+        Thread.sleep(200);
+        assertTrue("the new uploader must not send meanwhile", bodies.isEmpty());
+
+        release.countDown();
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        started.shutdown();
+        assertEquals(Arrays.asList("flush [{\"n\":1}]", "{\"n\":2}"), bodies);
+    }
+
+    @Test
+    public void testJsonArrayBodyJoinsRecords() {
+        assertEquals("[]", text(LocationUploader.jsonArrayBody(Arrays.asList())));
+        assertEquals("[{}]", text(LocationUploader.jsonArrayBody(Arrays.asList(record("{}")))));
+        assertEquals("[{\"a\":1},{\"b\":2}]", text(LocationUploader.jsonArrayBody(Arrays.asList(record("{\"a\":1}"), record("{\"b\":2}")))));
+    }
+
+    private LocationUploader.Sender recording(CountDownLatch latch) {
+        return (body, key) -> {
+            bodies.add(text(body));
+            latch.countDown();
+            return 0;
+        };
+    }
+
+    private static byte[] record(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] body) {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+}
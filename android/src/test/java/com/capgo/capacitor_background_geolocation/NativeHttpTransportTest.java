@@ -0,0 +1,249 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for the shared keep-alive transport
+ */
+public class NativeHttpTransportTest {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private volatile int statusCode = 204;
+    private volatile String retryAfter;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newFixedThreadPool(4);
+        server.setExecutor(serverExecutor);
+        server.createContext("/", (exchange) -> {
+            // Each TCP connection has its own client port.
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try (InputStream requestBody = exchange.getRequestBody()) {
+                received.add(new String(requestBody.readAllBytes(), StandardCharsets.UTF_8));
+                Thread.sleep(20);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // Before the response goes out: the client hands its slot to
+                // the next request as soon as it has read it.
+                inFlight.decrementAndGet();
+            }
+            try {
+                byte[] response = "{\"ok\":true}".getBytes(StandardCharsets.UTF_8);
+                if (retryAfter != null) {
+                    exchange.getResponseHeaders().set("Retry-After", retryAfter);
+                    exchange.getResponseHeaders().set("X-Upload-Pause", retryAfter);
+                }
+                exchange.sendResponseHeaders(statusCode, statusCode == 204 ? -1 : response.length);
+                if (statusCode != 204) {
+                    try (OutputStream responseBody = exchange.getResponseBody()) {
+                        responseBody.write(response);
+                    }
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testSequentialPostsReuseOneConnection() throws IOException {
+        NativeHttpTransport transport = new NativeHttpTransport();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(transport.post(url(), Collections.emptyMap(), null, body(i)).isSuccessful());
+        }
+
+        assertEquals(5, transport.requestCount());
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void testErrorResponseKeepsConnectionReusable() throws IOException {
+        NativeHttpTransport transport = new NativeHttpTransport();
+
+        statusCode = 500;
+        NativeHttpTransport.Response failed = transport.post(url(), Collections.emptyMap(), null, body(1));
+        statusCode = 200;
+        NativeHttpTransport.Response succeeded = transport.post(url(), Collections.emptyMap(), "gzip", body(2));
+
+        assertEquals(500, failed.statusCode);
+        assertFalse(failed.isSuccessful());
+        assertTrue(succeeded.isSuccessful());
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void testConcurrentPostsAreCappedPerOrigin() throws Exception {
+        NativeHttpTransport transport = new NativeHttpTransport();
+        transport.configure(1);
+        ExecutorService clients = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<NativeHttpTransport.Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                byte[] body = body(i);
+                responses.add(clients.submit(() -> transport.post(url(), Collections.emptyMap(), null, body)));
+            }
+            for (Future<NativeHttpTransport.Response> response : responses) {
+                assertTrue(response.get().isSuccessful());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+
+        assertEquals(1, maxInFlight.get());
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void testSinksSharingAnOriginEachGetABulkSlot() throws Exception {
+        NativeHttpTransport transport = new NativeHttpTransport();
+        transport.configure(2, Arrays.asList(url() + "primary", url() + "archive", "https://elsewhere.example.com/"));
+        postFromTwoSinks(transport);
+        // Both sinks upload at once, and a third slot stays free for HIGH.
+        assertEquals(2, maxInFlight.get());
+
+        transport.configure(2, Collections.singletonList(url() + "primary"));
+        maxInFlight.set(0);
+        postFromTwoSinks(transport);
+        assertEquals(1, maxInFlight.get());
+    }
+
+    private void postFromTwoSinks(NativeHttpTransport transport) throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<NativeHttpTransport.Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                byte[] body = body(i);
+                String url = url() + (i % 2 == 0 ? "primary" : "archive");
+                responses.add(clients.submit(() -> transport.post(url, Collections.emptyMap(), null, body)));
+            }
+            for (Future<NativeHttpTransport.Response> response : responses) {
+                assertTrue(response.get().isSuccessful());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testHighLaneOvertakesBulkBacklog() throws Exception {
+        NativeHttpTransport transport = new NativeHttpTransport();
+        transport.configure(2);
+        ExecutorService clients = Executors.newFixedThreadPool(11);
+        try {
+            List<Future<NativeHttpTransport.Response>> responses = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                byte[] body = body(i);
+                responses.add(clients.submit(() -> transport.post(url(), Collections.emptyMap(), null, body)));
+            }
+            while (transport.laneStats(DeliveryScheduler.Lane.BULK).waiting < 5) {
+                Thread.sleep(1);
+            }
+            byte[] urgent = "{\"transition\":\"enter\"}".getBytes(StandardCharsets.UTF_8);
+            responses.add(
+                clients.submit(() ->
+                    transport.post(DeliveryScheduler.Lane.HIGH, url(), Collections.emptyMap(), NativeHttpTransport.JSON_CONTENT_TYPE, null, urgent)
+                )
+            );
+            for (Future<NativeHttpTransport.Response> response : responses) {
+                assertTrue(response.get().isSuccessful());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+
+        // Bulk keeps one of the two connections free, so the transition went
+        // out right away instead of after the queued points.
+        int urgentIndex = received.indexOf("{\"transition\":\"enter\"}");
+        assertTrue("transition was request #" + urgentIndex + " of " + received, urgentIndex >= 0 && urgentIndex <= 6);
+        assertTrue(maxInFlight.get() <= 2);
+        DeliveryScheduler.LaneStats bulk = transport.laneStats(DeliveryScheduler.Lane.BULK);
+        DeliveryScheduler.LaneStats high = transport.laneStats(DeliveryScheduler.Lane.HIGH);
+        assertEquals(10, bulk.completed);
+        assertEquals(1, high.completed);
+        assertTrue(bulk.peakWaiting >= 5);
+        assertEquals(0, bulk.waiting + bulk.inFlight + high.waiting + high.inFlight);
+    }
+
+    @Test
+    public void testPlainHttpDoesNotCountHandshakes() throws IOException {
+        NativeHttpTransport transport = new NativeHttpTransport();
+
+        transport.post(url(), Collections.emptyMap(), null, body(1));
+
+        assertEquals(0, transport.handshakeCount());
+        assertEquals(0, transport.reuseRatio(), 0);
+    }
+
+    @Test
+    public void testRetryAfterIsReadFromThrottledResponses() throws IOException {
+        NativeHttpTransport transport = new NativeHttpTransport();
+        retryAfter = "120";
+
+        statusCode = 503;
+        NativeHttpTransport.Response throttled = transport.post(url(), Collections.emptyMap(), null, body(1));
+        statusCode = 200;
+        NativeHttpTransport.Response accepted = transport.post(url(), Collections.emptyMap(), null, body(2));
+
+        assertEquals(120_000, throttled.requestedPauseMs(null, 0));
+        assertEquals("Retry-After only applies to 429 and 503", 0, accepted.requestedPauseMs(null, 0));
+        assertEquals("The rate-hint header applies to any response", 120_000, accepted.requestedPauseMs("x-upload-pause", 0));
+    }
+
+    @Test
+    public void testParseRetryAfter() {
+        long now = 1_445_412_480_000L;
+
+        assertEquals(30_000, NativeHttpTransport.parseRetryAfterMs("30", now));
+        assertEquals(1_500, NativeHttpTransport.parseRetryAfterMs(" 1.5 ", now));
+        assertEquals(60_000, NativeHttpTransport.parseRetryAfterMs("Wed, 21 Oct 2015 07:29:00 GMT", now));
+        assertEquals(0, NativeHttpTransport.parseRetryAfterMs("Wed, 21 Oct 2015 07:27:00 GMT", now));
+        assertEquals(0, NativeHttpTransport.parseRetryAfterMs("-5", now));
+        assertEquals(0, NativeHttpTransport.parseRetryAfterMs("soon", now));
+        assertEquals(0, NativeHttpTransport.parseRetryAfterMs(null, now));
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    private static byte[] body(int n) {
+        return ("{\"n\":" + n + "}").getBytes(StandardCharsets.UTF_8);
+    }
+}
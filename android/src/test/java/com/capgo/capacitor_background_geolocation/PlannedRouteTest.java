@@ -0,0 +1,215 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Unit tests and benchmark for the planned route's nearest-segment index
+ */
+public class PlannedRouteTest {
+
+    @Test
+    public void testMatchesAFullScan() {
+        Random random = new Random(7);
+        for (int size : new int[] { 2, 3, 17, 300, 5000 }) {
+            double[][] points = deliveryRoute(random, size, 48.8566, 2.3522);
+            PlannedRoute route = new PlannedRoute(points);
+            PlannedRoute.Match match = new PlannedRoute.Match();
+            for (int i = 0; i < 500; i++) {
+                // Mostly near the route, sometimes kilometers away.
+                double[] point = i % 10 == 0 ? offset(random, points[random.nextInt(size)], 5000) : nearRoute(random, points);
+
+                route.nearest(point, match);
+
+                double expected = fullScan(points, point);
+                assertEquals("size " + size + " query " + i, expected, match.distance, 1e-9);
+                assertEquals(expected, PlannedRoute.distancePointToLineSegment(point, points[match.segment], points[match.segment + 1]), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void testHighLatitudeRoute() {
+        Random random = new Random(11);
+        double[][] points = deliveryRoute(random, 2000, 69.6492, 18.9553);
+        PlannedRoute route = new PlannedRoute(points);
+        PlannedRoute.Match match = new PlannedRoute.Match();
+        for (int i = 0; i < 500; i++) {
+            double[] point = nearRoute(random, points);
+            route.nearest(point, match);
+            assertEquals(fullScan(points, point), match.distance, 1e-9);
+        }
+    }
+
+    @Test
+    public void testLongNorthSouthRoute() {
+        // About 500 km from Marseille towards Paris, where the plane's scale
+        // drifts most from the center's.
+        Random random = new Random(13);
+        int size = 2000;
+        double[][] points = new double[size][];
+        for (int i = 0; i < size; i++) {
+            points[i] = new double[] { 5.37 + 0.2 * Math.sin(i / 50.0), 43.3 + i * 0.00225 };
+        }
+        PlannedRoute route = new PlannedRoute(points);
+        PlannedRoute.Match match = new PlannedRoute.Match();
+        for (int i = 0; i < 500; i++) {
+            double[] point = i % 10 == 0 ? offset(random, points[random.nextInt(size)], 20_000) : nearRoute(random, points);
+            route.nearest(point, match);
+            assertEquals(fullScan(points, point), match.distance, 1e-9);
+        }
+    }
+
+    @Test
+    public void testQueriesDoNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        Random random = new Random(17);
+        double[][] points = deliveryRoute(random, 20_000, 48.8566, 2.3522);
+        PlannedRoute route = new PlannedRoute(points);
+        RouteCursor cursor = new RouteCursor(route);
+        PlannedRoute.Match match = new PlannedRoute.Match();
+        double[][] targets = new double[2000][];
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = offset(random, points[i], 15);
+        }
+        double checksum = 0;
+        for (int i = 0; i < targets.length; i++) {
+            route.nearest(targets[i], match);
+            checksum += match.distance;
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < targets.length; i++) {
+            route.nearest(targets[i], match);
+            checksum += match.distance;
+            cursor.match(targets[i], 15, i * 1000L, 50, match);
+            checksum += match.distance;
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum > 0);
+        assertTrue("allocated " + allocated + " bytes for 4000 queries", allocated < 4096);
+    }
+
+    @Test
+    public void testDegenerateRoutes() {
+        PlannedRoute.Match match = new PlannedRoute.Match();
+        double[] point = { 2.3522, 48.8566 };
+
+        new PlannedRoute(new double[0][2]).nearest(point, match);
+        assertEquals(-1, match.segment);
+        assertEquals(Double.POSITIVE_INFINITY, match.distance, 0);
+
+        new PlannedRoute(new double[][] { { 2.3522, 48.8576 } }).nearest(point, match);
+        assertEquals(0, match.segment);
+        assertEquals(111.2, match.distance, 0.1);
+
+        // A repeated point is a zero length segment.
+        new PlannedRoute(new double[][] { { 2.3522, 48.8576 }, { 2.3522, 48.8576 }, { 2.3532, 48.8576 } }).nearest(point, match);
+        assertEquals(111.2, match.distance, 0.1);
+
+        assertThrows(IllegalArgumentException.class, () -> new PlannedRoute(new double[][] { { 2.3522 } }));
+    }
+
+    @Test
+    public void testQueriesScaleLogarithmically() {
+        Random random = new Random(42);
+        int queries = 2000;
+        double[] measuredPerQuery = new double[3];
+        int[] sizes = { 2_000, 20_000, 200_000 };
+        for (int s = 0; s < sizes.length; s++) {
+            double[][] points = deliveryRoute(random, sizes[s], 48.8566, 2.3522);
+            long buildStartedAt = System.nanoTime();
+            PlannedRoute route = new PlannedRoute(points);
+            long buildNs = System.nanoTime() - buildStartedAt;
+            double[][] targets = new double[queries][];
+            for (int i = 0; i < queries; i++) {
+                targets[i] = nearRoute(random, points);
+            }
+
+            PlannedRoute.Match match = new PlannedRoute.Match();
+            long measured = 0;
+            long startedAt = System.nanoTime();
+            for (double[] target : targets) {
+                route.nearest(target, match);
+                measured += route.measuredSegments();
+            }
+            long indexedNs = System.nanoTime() - startedAt;
+
+            int scanned = Math.min(queries, 100);
+            startedAt = System.nanoTime();
+            double checksum = 0;
+            for (int i = 0; i < scanned; i++) {
+                checksum += fullScan(points, targets[i]);
+            }
+            long scanNs = System.nanoTime() - startedAt;
+
+            measuredPerQuery[s] = (double) measured / queries;
+            System.out.printf(
+                "route[%d] build=%.1fms measured/query=%.1f indexed=%.1fus/query fullScan=%.1fus/query (%.0f)%n",
+                sizes[s],
+                buildNs / 1e6,
+                measuredPerQuery[s],
+                indexedNs / 1e3 / queries,
+                scanNs / 1e3 / scanned,
+                checksum
+            );
+        }
+
+        // 100 times more segments, but only a few more measured per query.
+        assertTrue(measuredPerQuery[2] < 64);
+        assertTrue(measuredPerQuery[2] < measuredPerQuery[0] * 3);
+    }
+
+    // A random walk of about 15 m steps that changes direction slowly, like a
+    // vehicle trace.
+    static double[][] deliveryRoute(Random random, int size, double latitude, double longitude) {
+        double[][] points = new double[size][];
+        double heading = random.nextDouble() * 2 * Math.PI;
+        double lat = latitude;
+        double lon = longitude;
+        for (int i = 0; i < size; i++) {
+            points[i] = new double[] { lon, lat };
+            heading += (random.nextDouble() - 0.5) * 0.6;
+            double step = 10 + random.nextDouble() * 10;
+            lat += step * Math.cos(heading) / 111_195;
+            lon += step * Math.sin(heading) / (111_195 * Math.cos(Math.toRadians(lat)));
+        }
+        return points;
+    }
+
+    static double[] nearRoute(Random random, double[][] points) {
+        return offset(random, points[random.nextInt(points.length)], 120);
+    }
+
+    static double[] offset(Random random, double[] point, double maxMeters) {
+        double distance = random.nextDouble() * maxMeters;
+        double bearing = random.nextDouble() * 2 * Math.PI;
+        double lat = point[1] + distance * Math.cos(bearing) / 111_195;
+        double lon = point[0] + distance * Math.sin(bearing) / (111_195 * Math.cos(Math.toRadians(point[1])));
+        return new double[] { lon, lat };
+    }
+
+    // The scan distancePointToRoute() used to do for every fix.
+    static double fullScan(double[][] points, double[] point) {
+        if (points.length == 1) {
+            return PlannedRoute.haversine(point, points[0]);
+        }
+        double minDistance = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < points.length - 1; i++) {
+            minDistance = Math.min(minDistance, PlannedRoute.distancePointToLineSegment(point, points[i], points[i + 1]));
+        }
+        return minDistance;
+    }
+}
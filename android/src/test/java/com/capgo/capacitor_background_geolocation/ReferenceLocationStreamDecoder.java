@@ -0,0 +1,75 @@
+package com.capgo.capacitor_background_geolocation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference decoder for the binary location stream, written from the format
+ * description only so it can catch codec changes that break servers. Decodes
+ * each record into the same keys as the JSON payload.
+ */
+final class ReferenceLocationStreamDecoder {
+
+    private static final String[] OPTIONAL_FIELDS = { "accuracy", "altitude", "altitudeAccuracy", "speed", "bearing" };
+
+    private final byte[] data;
+    private int position;
+
+    private ReferenceLocationStreamDecoder(byte[] data) {
+        this.data = data;
+    }
+
+    static List<Map<String, Object>> decode(byte[] body) {
+        if (body.length < 4 || body[0] != 'C' || body[1] != 'G' || body[2] != 'L' || body[3] != 1) {
+            throw new IllegalArgumentException("Missing CGL v1 header");
+        }
+        ReferenceLocationStreamDecoder decoder = new ReferenceLocationStreamDecoder(body);
+        decoder.position = 4;
+        List<Map<String, Object>> locations = new ArrayList<>();
+        long time = 0;
+        long latitude = 0;
+        long longitude = 0;
+        while (decoder.position < body.length) {
+            int end = (int) decoder.varint();
+            end += decoder.position;
+            long flags = decoder.varint();
+            time += decoder.zigzag();
+            latitude += decoder.zigzag();
+            longitude += decoder.zigzag();
+            Map<String, Object> location = new LinkedHashMap<>();
+            location.put("latitude", latitude / 1e7);
+            location.put("longitude", longitude / 1e7);
+            for (int i = 0; i < OPTIONAL_FIELDS.length; i++) {
+                location.put(OPTIONAL_FIELDS[i], (flags & (1L << i)) != 0 ? decoder.zigzag() / 100.0 : null);
+            }
+            location.put("simulated", (flags & (1L << 5)) != 0);
+            location.put("time", time);
+            if ((flags & (1L << 6)) != 0) {
+                location.put("sequence", decoder.varint());
+            }
+            locations.add(location);
+            decoder.position = end;
+        }
+        return locations;
+    }
+
+    private long varint() {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[position++] & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    private long zigzag() {
+        long value = varint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,137 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for compressed native POST bodies
+ */
+public class RequestCompressionTest {
+
+    private HttpServer server;
+    private final AtomicReference<String> receivedEncoding = new AtomicReference<>();
+    private final AtomicReference<byte[]> receivedBody = new AtomicReference<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", (exchange) -> {
+            receivedEncoding.set(exchange.getRequestHeaders().getFirst("Content-Encoding"));
+            receivedBody.set(readAll(exchange.getRequestBody()));
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSupportedValues() {
+        assertTrue(RequestCompression.isSupported(null));
+        assertTrue(RequestCompression.isSupported("none"));
+        assertTrue(RequestCompression.isSupported("gzip"));
+        assertTrue(RequestCompression.isSupported("deflate"));
+        assertFalse(RequestCompression.isSupported("br"));
+        assertNull(RequestCompression.normalize("none"));
+        assertEquals("gzip", RequestCompression.normalize("gzip"));
+    }
+
+    @Test
+    public void testUncompressedBodyIsSentAsIs() throws IOException {
+        byte[] body = locations(3);
+
+        long wireBytes = post(body, null);
+
+        assertNull(receivedEncoding.get());
+        assertArrayEquals(body, receivedBody.get());
+        assertEquals(body.length, wireBytes);
+    }
+
+    @Test
+    public void testGzipBodyRoundTripsAndShrinks() throws IOException {
+        byte[] body = locations(50);
+        long uncompressedBefore = RequestCompression.uncompressedBytes();
+        long wireBefore = RequestCompression.wireBytes();
+
+        long wireBytes = post(body, "gzip");
+
+        assertEquals("gzip", receivedEncoding.get());
+        assertEquals(wireBytes, receivedBody.get().length);
+        assertArrayEquals(body, readAll(new GZIPInputStream(new ByteArrayInputStream(receivedBody.get()))));
+        assertTrue("Repeated location keys should compress well", wireBytes * 4 < body.length);
+        assertEquals(body.length, RequestCompression.uncompressedBytes() - uncompressedBefore);
+        assertEquals(wireBytes, RequestCompression.wireBytes() - wireBefore);
+    }
+
+    @Test
+    public void testDeflateBodyRoundTrips() throws IOException {
+        byte[] body = locations(10);
+
+        post(body, "deflate");
+
+        assertEquals("deflate", receivedEncoding.get());
+        assertArrayEquals(body, readAll(new InflaterInputStream(new ByteArrayInputStream(receivedBody.get()))));
+    }
+
+    private long post(byte[] body, String compression) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/").openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            long wireBytes = RequestCompression.writeBody(connection, body, compression);
+            assertEquals(204, connection.getResponseCode());
+            return wireBytes;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static byte[] locations(int count) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json
+                .append("{\"latitude\":")
+                .append(48.8566 + i * 0.0001)
+                .append(",\"longitude\":")
+                .append(2.3522 + i * 0.0001)
+                .append(",\"accuracy\":5.0,\"altitude\":null,\"altitudeAccuracy\":null,\"simulated\":false,")
+                .append("\"speed\":null,\"bearing\":null,\"time\":")
+                .append(1_700_000_000_000L + i * 1000L)
+                .append(",\"source\":\"native\"}");
+        }
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = inputStream.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
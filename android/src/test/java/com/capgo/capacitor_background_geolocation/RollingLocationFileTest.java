@@ -0,0 +1,202 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for recording locations into rolling segment files
+ */
+public class RollingLocationFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testJsonSegmentsRotateBySize() throws Exception {
+        File directory = folder.newFolder("track");
+        RollingLocationFile file = new RollingLocationFile(directory, false, 40, 60_000, 0);
+
+        for (int i = 0; i < 5; i++) {
+            file.appendJson(json(i), 1000 + i);
+        }
+        file.closeSegment();
+
+        List<RollingLocationFile.Segment> segments = RollingLocationFile.closedSegments(directory);
+        List<String> lines = new ArrayList<>();
+        for (RollingLocationFile.Segment segment : segments) {
+            assertFalse(segment.isBinary());
+            assertTrue(segment.file.length() <= 40);
+            lines.addAll(Files.readAllLines(segment.file.toPath(), StandardCharsets.UTF_8));
+        }
+        assertTrue("segments: " + segments.size(), segments.size() >= 3);
+        assertEquals(5, lines.size());
+        assertEquals("{\"n\":0,\"pad\":\"xxxxxx\"}", lines.get(0));
+        assertEquals("{\"n\":4,\"pad\":\"xxxxxx\"}", lines.get(4));
+    }
+
+    @Test
+    public void testOpenSegmentIsNotListed() throws Exception {
+        File directory = folder.newFolder("track");
+        RollingLocationFile file = new RollingLocationFile(directory, false, 1024, 60_000, 0);
+
+        file.appendJson(json(0), 1000);
+
+        assertTrue(RollingLocationFile.closedSegments(directory).isEmpty());
+        file.closeSegment();
+        assertEquals(1, RollingLocationFile.closedSegments(directory).size());
+    }
+
+    @Test
+    public void testTickClosesOldSegmentsWithoutNewFixes() throws Exception {
+        File directory = folder.newFolder("track");
+        RollingLocationFile file = new RollingLocationFile(directory, false, 1024, 60_000, 10_000);
+
+        file.appendJson(json(0), 1000);
+        file.tick(30_000);
+        assertTrue(RollingLocationFile.closedSegments(directory).isEmpty());
+
+        file.tick(61_000);
+        List<RollingLocationFile.Segment> segments = RollingLocationFile.closedSegments(directory);
+        assertEquals(1, segments.size());
+        assertEquals(1000, segments.get(0).openedAtMs);
+    }
+
+    @Test
+    public void testBinarySegmentsAreCompleteBodies() throws Exception {
+        File directory = folder.newFolder("track");
+        RollingLocationFile file = new RollingLocationFile(directory, true, 64, 60_000, 0);
+        List<LocationFix> written = new ArrayList<>();
+
+        for (int i = 0; i < 20; i++) {
+            LocationFix fix = new LocationFix(48.8566 + i * 0.0001, 2.3522 - i * 0.0002, 1_700_000_000_000L + i * 1000L).setAccuracy(5);
+            written.add(fix);
+            file.appendFix(fix, 1000 + i);
+        }
+        file.closeSegment();
+
+        List<RollingLocationFile.Segment> segments = RollingLocationFile.closedSegments(directory);
+        assertTrue("segments: " + segments.size(), segments.size() > 1);
+        List<LocationFix> read = new ArrayList<>();
+        for (RollingLocationFile.Segment segment : segments) {
+            assertTrue(segment.isBinary());
+            read.addAll(BinaryLocationCodec.decodeBody(Files.readAllBytes(segment.file.toPath())));
+        }
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(written.get(i).time, read.get(i).time);
+            assertEquals(written.get(i).latitudeE7, read.get(i).latitudeE7);
+            assertEquals(written.get(i).longitudeE7, read.get(i).longitudeE7);
+        }
+    }
+
+    @Test
+    public void testFixThatCouldNotBeWrittenIsNotADeltaBase() throws Exception {
+        File directory = folder.newFolder("track");
+        RollingLocationFile file = new RollingLocationFile(directory, true, 1024, 60_000, 0);
+        LocationFix lost = new LocationFix(48.8566, 2.3522, 1_700_000_000_000L);
+        LocationFix next = new LocationFix(48.8567, 2.3520, 1_700_000_001_000L);
+
+        // No segment can be opened while the directory is gone.
+        assertTrue(directory.delete());
+        try {
+            file.appendFix(lost, 1000);
+            fail("expected the append to fail");
+        } catch (IOException expected) {
+            // The recording carries on with the next fix.
+        }
+        assertTrue(directory.mkdir());
+        file.appendFix(next, 2000);
+        file.closeSegment();
+
+        List<RollingLocationFile.Segment> segments = RollingLocationFile.closedSegments(directory);
+        assertEquals(1, segments.size());
+        List<LocationFix> read = BinaryLocationCodec.decodeBody(Files.readAllBytes(segments.get(0).file.toPath()));
+        assertEquals(1, read.size());
+        assertEquals(next.time, read.get(0).time);
+        assertEquals(next.latitudeE7, read.get(0).latitudeE7);
+        assertEquals(next.longitudeE7, read.get(0).longitudeE7);
+    }
+
+    @Test
+    public void testSegmentLeftOpenByACrashIsCutAndClosed() throws Exception {
+        File directory = folder.newFolder("track");
+        write(new File(directory, "5000.part"), "{\"n\":0}\n{\"n\":1}\n{\"n\":");
+        write(new File(directory, "6000.part"), "{\"n\":");
+
+        new RollingLocationFile(directory, false, 1024, 60_000, 0);
+
+        List<RollingLocationFile.Segment> segments = RollingLocationFile.closedSegments(directory);
+        assertEquals(1, segments.size());
+        assertEquals("5000.ndjson", segments.get(0).file.getName());
+        assertEquals("{\"n\":0}\n{\"n\":1}\n", new String(Files.readAllBytes(segments.get(0).file.toPath()), StandardCharsets.UTF_8));
+        assertFalse(new File(directory, "6000.part").exists());
+    }
+
+    @Test
+    public void testTornBinaryRecordIsDropped() throws Exception {
+        List<byte[]> records = new ArrayList<>();
+        records.add(BinaryLocationCodec.encodeRecord(new LocationFix(1, 2, 1000)));
+        records.add(BinaryLocationCodec.encodeRecord(new LocationFix(1.5, 2.5, 2000)));
+        byte[] body = BinaryLocationCodec.encodeBody(records);
+        byte[] torn = Arrays.copyOf(body, body.length - 1);
+
+        assertEquals(body.length, RollingLocationFile.completeBinaryLength(body));
+        long complete = RollingLocationFile.completeBinaryLength(torn);
+        assertEquals(1, BinaryLocationCodec.decodeBody(Arrays.copyOf(torn, (int) complete)).size());
+        assertEquals(0, RollingLocationFile.completeBinaryLength(Arrays.copyOf(body, BinaryLocationCodec.HEADER_BYTES)));
+    }
+
+    @Test
+    public void testFileSinkRecordsFilteredFixes() throws Exception {
+        File directory = folder.newFolder("track");
+        SinkConfig config = new SinkConfig(
+            "track",
+            SinkConfig.TYPE_FILE,
+            null,
+            null,
+            2000,
+            0f,
+            DeliveryOptions.DEFAULT,
+            SinkConfig.DEFAULT_MAX_FILE_BYTES,
+            SinkConfig.DEFAULT_MAX_FILE_AGE_MS,
+            SinkConfig.DEFAULT_SYNC_INTERVAL_MS
+        );
+        FileLocationSink sink = new FileLocationSink(config, directory);
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+
+        for (int i = 0; i < 5; i++) {
+            sample.time = i * 1000L;
+            sink.accept(sample);
+        }
+        assertTrue(sink.closeSegment(5000));
+        sink.close();
+
+        List<RollingLocationFile.Segment> segments = RollingLocationFile.closedSegments(directory);
+        assertEquals(1, segments.size());
+        List<String> lines = Files.readAllLines(segments.get(0).file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(1), lines.get(1).contains("\"time\":2000"));
+        assertTrue(lines.get(1), lines.get(1).contains("\"source\":\"native\""));
+    }
+
+    private static byte[] json(int n) {
+        return ("{\"n\":" + n + ",\"pad\":\"xxxxxx\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void write(File file, String content) throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
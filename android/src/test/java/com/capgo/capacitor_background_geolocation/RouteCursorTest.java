@@ -0,0 +1,108 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Unit tests for the windowed route cursor
+ */
+public class RouteCursorTest {
+
+    private static final double THRESHOLD = 50;
+
+    @Test
+    public void testFollowsTheRouteWithinTheWindow() {
+        Random random = new Random(3);
+        double[][] points = PlannedRouteTest.deliveryRoute(random, 20_000, 48.8566, 2.3522);
+        PlannedRoute route = new PlannedRoute(points);
+        RouteCursor cursor = new RouteCursor(route);
+        PlannedRoute.Match match = new PlannedRoute.Match();
+        PlannedRoute.Match expected = new PlannedRoute.Match();
+
+        // One fix per second at about 15 m/s, so about one vertex per fix.
+        long time = 0;
+        for (int i = 0; i < 2000; i++) {
+            double[] fix = PlannedRouteTest.offset(random, points[i], 15);
+            cursor.match(fix, 15, time, THRESHOLD, match);
+            time += 1000;
+
+            assertTrue(match.distance <= 15.01);
+            route.nearest(fix, expected);
+            if (expected.segment >= i - 5 && expected.segment <= i + 5) {
+                assertEquals(expected.distance, match.distance, 1e-9);
+            }
+        }
+        assertEquals(1, cursor.globalSearches());
+    }
+
+    @Test
+    public void testFallsBackToTheIndexWhenOffRoute() {
+        Random random = new Random(5);
+        double[][] points = PlannedRouteTest.deliveryRoute(random, 5000, 48.8566, 2.3522);
+        PlannedRoute route = new PlannedRoute(points);
+        RouteCursor cursor = new RouteCursor(route);
+        PlannedRoute.Match match = new PlannedRoute.Match();
+        cursor.match(points[100], 10, 0, THRESHOLD, match);
+
+        double[] far = PlannedRouteTest.offset(random, points[100], 3000);
+        far[1] += 0.05;
+        cursor.match(far, 10, 1000, THRESHOLD, match);
+
+        assertEquals(2, cursor.globalSearches());
+        assertEquals(PlannedRouteTest.fullScan(points, far), match.distance, 1e-9);
+
+        // Back on route far along it: the window around the last match does
+        // not reach, so the index finds it.
+        cursor.match(points[4000], 10, 2000, THRESHOLD, match);
+        assertEquals(3, cursor.globalSearches());
+        assertEquals(0, match.distance, 1e-6);
+    }
+
+    @Test
+    public void testKeepsTheCurrentLegOfAnOutAndBackRoute() {
+        // 330 m north to a street, 2 km east along it, then back along the
+        // same street.
+        int legPoints = 201;
+        double[][] points = new double[1 + legPoints * 2 - 1][];
+        points[0] = new double[] { 2.35, 48.847 };
+        for (int i = 0; i < legPoints; i++) {
+            points[1 + i] = new double[] { 2.35 + i * 0.000136, 48.85 };
+            points[points.length - 1 - i] = new double[] { 2.35 + i * 0.000136, 48.85 };
+        }
+        int turn = legPoints;
+        PlannedRoute route = new PlannedRoute(points);
+        RouteCursor cursor = new RouteCursor(route);
+        PlannedRoute.Match match = new PlannedRoute.Match();
+
+        long time = 0;
+        for (int i = 0; i < points.length - 1; i += 3) {
+            double[] fix = { points[i][0], points[i][1] + 0.00005 };
+            cursor.match(fix, 10, time, THRESHOLD, match);
+            time += 3000;
+            if (i != turn) {
+                assertEquals("fix " + i, i < turn, match.segment < turn);
+            }
+        }
+        assertEquals(1, cursor.globalSearches());
+    }
+
+    @Test
+    public void testWindowCostDoesNotGrowWithTheRoute() {
+        Random random = new Random(9);
+        for (int size : new int[] { 2_000, 200_000 }) {
+            double[][] points = PlannedRouteTest.deliveryRoute(random, size, 48.8566, 2.3522);
+            RouteCursor cursor = new RouteCursor(new PlannedRoute(points));
+            PlannedRoute.Match match = new PlannedRoute.Match();
+            int fixes = Math.min(size - 1, 1500);
+            long startedAt = System.nanoTime();
+            for (int i = 0; i < fixes; i++) {
+                cursor.match(PlannedRouteTest.offset(random, points[i], 15), 15, i * 1000L, THRESHOLD, match);
+            }
+            long elapsedNs = System.nanoTime() - startedAt;
+            System.out.printf("cursor[%d] %.1fus/fix globalSearches=%d%n", size, elapsedNs / 1e3 / fixes, cursor.globalSearches());
+            assertEquals(1, cursor.globalSearches());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for off-route hysteresis
+ */
+public class RouteDeviationDetectorTest {
+
+    private static final int NONE = RouteDeviationDetector.NONE;
+    private static final int OFF_ROUTE = RouteDeviationDetector.OFF_ROUTE;
+    private static final int BACK_ON_ROUTE = RouteDeviationDetector.BACK_ON_ROUTE;
+
+    // Leaves beyond 50 m, comes back within 25 m, after 5 s.
+    private static RouteDeviationDetector detector() {
+        RouteDeviationDetector detector = new RouteDeviationDetector(50, 25, 5000, 100);
+        assertEquals(NONE, detector.update(5, 5, 0));
+        return detector;
+    }
+
+    @Test
+    public void testNoEventBeforeJoiningTheRoute() {
+        RouteDeviationDetector detector = new RouteDeviationDetector(50, 25, 0, 100);
+        assertEquals(NONE, detector.update(800, 5, 0));
+        assertEquals(NONE, detector.update(400, 5, 1000));
+        assertEquals(NONE, detector.update(10, 5, 2000));
+        assertFalse(detector.isOffRoute());
+        assertEquals(OFF_ROUTE, detector.update(80, 5, 3000));
+    }
+
+    @Test
+    public void testDoesNotFlapAroundTheThreshold() {
+        RouteDeviationDetector detector = detector();
+        // Wandering between 30 and 60 m: never 5 s beyond 50 m in a row.
+        long time = 1000;
+        for (int i = 0; i < 60; i++) {
+            double distance = i % 3 == 2 ? 30 : 60;
+            assertEquals("fix " + i, NONE, detector.update(distance, 5, time));
+            time += 2000;
+        }
+        assertFalse(detector.isOffRoute());
+    }
+
+    @Test
+    public void testChangesOnlyAfterTheMinimumDuration() {
+        RouteDeviationDetector detector = detector();
+        assertEquals(NONE, detector.update(70, 5, 10_000));
+        assertEquals(NONE, detector.update(70, 5, 12_000));
+        assertEquals(NONE, detector.update(70, 5, 14_000));
+        assertEquals(OFF_ROUTE, detector.update(70, 5, 15_000));
+        assertTrue(detector.isOffRoute());
+        assertEquals(10_000, detector.changedAtMs());
+
+        // Within the exit distance but not the reentry one: still off route.
+        assertEquals(NONE, detector.update(40, 5, 30_000));
+        assertEquals(NONE, detector.update(40, 5, 40_000));
+        assertEquals(NONE, detector.update(20, 5, 41_000));
+        assertEquals(NONE, detector.update(20, 5, 45_000));
+        assertEquals(BACK_ON_ROUTE, detector.update(20, 5, 46_000));
+        assertEquals(41_000, detector.changedAtMs());
+    }
+
+    @Test
+    public void testAccuracySuppression() {
+        RouteDeviationDetector detector = detector();
+        // 70 m away, but the fix may be within 50 m of the route.
+        assertEquals(NONE, detector.update(70, 30, 10_000));
+        assertEquals(NONE, detector.update(70, 30, 20_000));
+
+        // Fixes worse than 100 m neither confirm nor cancel a change.
+        assertEquals(NONE, detector.update(70, 5, 30_000));
+        assertEquals(NONE, detector.update(10, 150, 33_000));
+        assertEquals(OFF_ROUTE, detector.update(70, 5, 35_000));
+
+        // Without an accuracy the distance is taken as is.
+        RouteDeviationDetector unknown = new RouteDeviationDetector(50, 25, 0, 100);
+        unknown.update(0, Double.NaN, 0);
+        assertEquals(OFF_ROUTE, unknown.update(51, Double.NaN, 1000));
+    }
+
+    @Test
+    public void testReentryDistanceIsClamped() {
+        RouteDeviationDetector detector = new RouteDeviationDetector(50, 80, 0, 100);
+        assertEquals(50, detector.reentryDistance, 0);
+    }
+}
@@ -0,0 +1,98 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Unit tests for progress along the planned route
+ */
+public class RouteProgressTest {
+
+    // 2 km due north in four 500 m segments.
+    private static final double STEP = 500 / 111_194.93;
+
+    private static PlannedRoute northRoute() {
+        double[][] points = new double[5][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = new double[] { 2.35, 48.85 + i * STEP };
+        }
+        return new PlannedRoute(points);
+    }
+
+    private static void update(PlannedRoute route, RouteCursor cursor, RouteProgress progress, double[] point, double speed, long time) {
+        PlannedRoute.Match match = new PlannedRoute.Match();
+        cursor.match(point, speed, time, 50, match);
+        progress.update(route, point, match, speed, time);
+    }
+
+    @Test
+    public void testSnapsTheFixAndSplitsTheRoute() throws Exception {
+        PlannedRoute route = northRoute();
+        RouteProgress progress = new RouteProgress();
+
+        // 20 m east of the route, 1.25 km along it.
+        double[] fix = { 2.35 + 20 / (111_194.93 * Math.cos(Math.toRadians(48.86))), 48.85 + 2.5 * STEP };
+        update(route, new RouteCursor(route), progress, fix, 10, 1000);
+
+        assertEquals(2, progress.segment);
+        assertEquals(2.35, progress.longitude, 1e-9);
+        assertEquals(48.85 + 2.5 * STEP, progress.latitude, 1e-7);
+        assertEquals(20, progress.distanceToRoute, 0.1);
+        assertEquals(2000, progress.routeLength, 1);
+        assertEquals(1250, progress.distanceTravelled, 1);
+        assertEquals(750, progress.distanceRemaining, 1);
+        assertEquals(62.5, progress.percentComplete, 0.1);
+        assertEquals(75, progress.timeRemaining(), 0.1);
+
+        JSONObject json = progress.toJson();
+        assertEquals(2, json.getInt("segment"));
+        assertEquals(75, json.getDouble("timeRemaining"), 0.1);
+        assertEquals(1000 + 75_000, json.getLong("eta"), 100);
+    }
+
+    @Test
+    public void testSpeedIsDerivedFromProgressWhenTheFixHasNone() throws Exception {
+        PlannedRoute route = northRoute();
+        RouteCursor cursor = new RouteCursor(route);
+        RouteProgress progress = new RouteProgress();
+
+        update(route, cursor, progress, new double[] { 2.35, 48.85 + 0.2 * STEP }, Double.NaN, 0);
+        assertFalse(progress.toJson().has("eta"));
+
+        // 100 m in 10 s.
+        update(route, cursor, progress, new double[] { 2.35, 48.85 + 0.4 * STEP }, Double.NaN, 10_000);
+        assertEquals(10, progress.speed, 0.1);
+        assertEquals(1800 / 10.0, progress.timeRemaining(), 1);
+
+        // One fast fix only moves the smoothed speed part of the way.
+        update(route, cursor, progress, new double[] { 2.35, 48.85 + 0.6 * STEP }, 30, 20_000);
+        assertEquals(10 + RouteProgress.SPEED_SMOOTHING * 20, progress.speed, 0.1);
+    }
+
+    @Test
+    public void testStoppedAndFinished() throws Exception {
+        PlannedRoute route = northRoute();
+        RouteCursor cursor = new RouteCursor(route);
+        RouteProgress progress = new RouteProgress();
+
+        update(route, cursor, progress, new double[] { 2.35, 48.85 + STEP }, 0, 0);
+        assertTrue(Double.isNaN(progress.timeRemaining()));
+        assertFalse(progress.toJson().has("timeRemaining"));
+
+        update(route, cursor, progress, new double[] { 2.35, 48.85 + 4.1 * STEP }, 0, 1000);
+        assertEquals(3, progress.segment);
+        assertEquals(100, progress.percentComplete, 1e-9);
+        assertEquals(0, progress.distanceRemaining, 1e-9);
+        assertEquals(0, progress.timeRemaining(), 0);
+
+        // A single point route is complete from the start.
+        PlannedRoute point = new PlannedRoute(new double[][] { { 2.35, 48.85 } });
+        RouteProgress atPoint = new RouteProgress();
+        update(point, new RouteCursor(point), atPoint, new double[] { 2.35, 48.851 }, 5, 0);
+        assertEquals(0, atPoint.segment);
+        assertEquals(100, atPoint.percentComplete, 0);
+        assertEquals(48.85, atPoint.latitude, 0);
+    }
+}
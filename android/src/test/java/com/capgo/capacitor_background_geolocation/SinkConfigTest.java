@@ -0,0 +1,112 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import org.json.JSONException;
+import org.junit.Test;
+
+/**
+ * Unit tests for parsing the sinks start option and per-sink filtering
+ */
+public class SinkConfigTest {
+
+    @Test
+    public void testParsesSinksWithTheirOwnOptions() throws Exception {
+        List<SinkConfig> sinks = SinkConfig.parseAll(
+            "[{\"name\":\"archive\",\"url\":\"https://archive.example.com\",\"headers\":{\"X-Key\":\"k\"}," +
+                "\"minIntervalMs\":60000,\"distanceFilter\":100,\"batchSize\":50,\"format\":\"binary\"}," +
+                "{\"url\":\"https://live.example.com\"}]"
+        );
+
+        assertEquals(2, sinks.size());
+        SinkConfig archive = sinks.get(0);
+        assertEquals("archive", archive.name);
+        assertEquals("https://archive.example.com", archive.url);
+        assertEquals("k", archive.headers.get("X-Key"));
+        assertEquals(60000, archive.minIntervalMs);
+        assertEquals(100f, archive.distanceFilter, 0f);
+        assertEquals(50, archive.deliveryOptions.batchSize);
+        assertTrue(archive.deliveryOptions.isBinary());
+
+        SinkConfig live = sinks.get(1);
+        assertEquals("sink-1", live.name);
+        assertTrue(live.headers.isEmpty());
+        assertEquals(0, live.minIntervalMs);
+        assertEquals(DeliveryOptions.DEFAULT.batchSize, live.deliveryOptions.batchSize);
+        assertFalse(live.deliveryOptions.isBinary());
+    }
+
+    @Test
+    public void testFileSinksNeedNoUrl() throws Exception {
+        List<SinkConfig> sinks = SinkConfig.parseAll(
+            "[{\"type\":\"file\",\"name\":\"track\",\"format\":\"binary\",\"maxFileBytes\":4096}]"
+        );
+
+        SinkConfig track = sinks.get(0);
+        assertEquals(SinkConfig.TYPE_FILE, track.type);
+        assertNull(track.url);
+        assertEquals(4096, track.maxFileBytes);
+        assertEquals(SinkConfig.DEFAULT_MAX_FILE_AGE_MS, track.maxFileAgeMs);
+        assertEquals(SinkConfig.DEFAULT_SYNC_INTERVAL_MS, track.syncIntervalMs);
+        assertTrue(track.deliveryOptions.isBinary());
+    }
+
+    @Test
+    public void testNoSinksParseToAnEmptyList() throws Exception {
+        assertTrue(SinkConfig.parseAll(null).isEmpty());
+        assertTrue(SinkConfig.parseAll("[]").isEmpty());
+    }
+
+    @Test
+    public void testRejectsInvalidSinks() {
+        assertParseError("needs a url", "[{\"name\":\"a\"}]");
+        assertParseError("Duplicate sink name", "[{\"name\":\"a\",\"url\":\"u\"},{\"name\":\"a\",\"url\":\"v\"}]");
+        assertParseError("Duplicate sink name", "[{\"name\":\"primary\",\"url\":\"u\"}]");
+        assertParseError("Invalid sink name", "[{\"name\":\"../a\",\"url\":\"u\"}]");
+        assertParseError("unsupported type", "[{\"type\":\"ftp\",\"url\":\"u\"}]");
+        assertParseError("compression", "[{\"name\":\"a\",\"url\":\"u\",\"compression\":\"zip\"}]");
+        assertParseError("Unsupported field \"heading\"", "[{\"url\":\"u\",\"fields\":[\"latitude\",\"heading\"]}]");
+        assertParseError("envelope must be an object", "[{\"url\":\"u\",\"envelope\":\"fleet\"}]");
+    }
+
+    @Test
+    public void testFilterAppliesIntervalAndDistance() {
+        LocationFilter filter = new LocationFilter(1000, 50f);
+
+        assertTrue(filter.accept(sample(0, 0.0)));
+        assertFalse("too soon", filter.accept(sample(500, 0.01)));
+        assertFalse("too close", filter.accept(sample(2000, 0.0001)));
+        assertTrue(filter.accept(sample(2000, 0.001)));
+
+        filter.configure(0, 0f);
+        assertTrue(filter.accept(sample(2000, 0.001)));
+    }
+
+    @Test
+    public void testDistanceFilterUsesTheRouteHaversine() {
+        // A thousandth of a degree of latitude is about 111.2 m.
+        double distance = PlannedRoute.haversine(0, 0, 0, 0.001);
+        assertEquals(111.195, distance, 0.01);
+
+        LocationFilter below = new LocationFilter(0, (float) distance - 0.01f);
+        assertTrue(below.accept(sample(0, 0)));
+        assertTrue(below.accept(sample(1000, 0.001)));
+
+        LocationFilter above = new LocationFilter(0, (float) distance + 0.01f);
+        assertTrue(above.accept(sample(0, 0)));
+        assertFalse(above.accept(sample(1000, 0.001)));
+    }
+
+    private static LocationSerializer.Sample sample(long time, double latitude) {
+        LocationSerializer.Sample sample = new LocationSerializer.Sample();
+        sample.time = time;
+        sample.latitude = latitude;
+        return sample;
+    }
+
+    private static void assertParseError(String message, String json) {
+        JSONException exception = assertThrows(JSONException.class, () -> SinkConfig.parseAll(json));
+        assertTrue(exception.getMessage(), exception.getMessage().contains(message));
+    }
+}
@@ -0,0 +1,149 @@
+package com.capgo.capacitor_background_geolocation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Unit tests for network-aware upload scheduling
+ */
+public class UploadPolicyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final UploadPolicy.Conditions OFFLINE = new UploadPolicy.Conditions(false, false, true);
+    private static final UploadPolicy.Conditions METERED = new UploadPolicy.Conditions(true, true, false);
+    private static final UploadPolicy.Conditions WIFI = new UploadPolicy.Conditions(true, false, false);
+    private static final UploadPolicy.Conditions WIFI_CHARGING = new UploadPolicy.Conditions(true, false, true);
+
+    @Test
+    public void testPolicies() {
+        assertFalse(UploadPolicy.DEFAULT.allows(OFFLINE));
+        assertTrue(UploadPolicy.DEFAULT.allows(METERED));
+
+        UploadPolicy unmetered = new UploadPolicy(UploadPolicy.NETWORK_UNMETERED, false);
+        assertFalse(unmetered.allows(METERED));
+        assertTrue(unmetered.allows(WIFI));
+
+        UploadPolicy charging = new UploadPolicy(UploadPolicy.NETWORK_ANY, true);
+        assertFalse(charging.allows(WIFI));
+        assertTrue(charging.allows(WIFI_CHARGING));
+        assertFalse(charging.allows(OFFLINE));
+
+        assertFalse(UploadPolicy.isSupportedNetwork("cellular"));
+        assertEquals(UploadPolicy.NETWORK_ANY, new UploadPolicy("cellular", false).network);
+    }
+
+    @Test
+    public void testOfflineDefersUploadsUntilConnectivityReturns() throws Exception {
+        FakeMonitor monitor = new FakeMonitor(OFFLINE);
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch sent = new CountDownLatch(3);
+        LocationUploader uploader = uploader(DeliveryOptions.DEFAULT, monitor, (body, key) -> {
+            attempts.incrementAndGet();
+            bodies.add(new String(body, StandardCharsets.UTF_8));
+            sent.countDown();
+            return 0;
+        });
+
+        for (int i = 1; i <= 3; i++) {
+            uploader.enqueue(("{\"n\":" + i + "}").getBytes(StandardCharsets.UTF_8), i);
+        }
+        Thread.sleep(200);
+        assertEquals("No connection attempt while offline", 0, attempts.get());
+
+        monitor.change(METERED);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        uploader.shutdown();
+
+        assertEquals(List.of("{\"n\":1}", "{\"n\":2}", "{\"n\":3}"), bodies);
+        assertTrue(monitor.closed);
+    }
+
+    @Test
+    public void testUnmeteredPolicyHoldsBacklogOnMeteredNetworks() throws Exception {
+        FakeMonitor monitor = new FakeMonitor(METERED);
+        DeliveryOptions options = new DeliveryOptions.Builder().setUploadNetwork(UploadPolicy.NETWORK_UNMETERED).build();
+        CountDownLatch sent = new CountDownLatch(1);
+        LocationUploader uploader = uploader(options, monitor, (body, key) -> {
+            sent.countDown();
+            return 0;
+        });
+
+        uploader.enqueue("{}".getBytes(StandardCharsets.UTF_8), 0);
+        assertFalse(sent.await(200, TimeUnit.MILLISECONDS));
+
+        // Losing the connection while waiting does not trigger anything either.
+        monitor.change(OFFLINE);
+        assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+
+        monitor.change(WIFI);
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+        uploader.shutdown();
+    }
+
+    @Test
+    public void testFinalFlushIgnoresThePolicy() throws Exception {
+        FakeMonitor monitor = new FakeMonitor(METERED);
+        DeliveryOptions options = new DeliveryOptions.Builder().setUploadRequiresCharging(true).build();
+        CountDownLatch sent = new CountDownLatch(1);
+        LocationUploader uploader = uploader(options, monitor, (body, key) -> {
+            throw new AssertionError("Held for charging");
+        });
+
+        uploader.enqueue("{}".getBytes(StandardCharsets.UTF_8), 0);
+        Thread.sleep(100);
+        uploader.flushAndShutdown((body, key) -> {
+            sent.countDown();
+            return 0;
+        });
+
+        assertTrue(sent.await(5, TimeUnit.SECONDS));
+    }
+
+    private LocationUploader uploader(DeliveryOptions options, FakeMonitor monitor, LocationUploader.Sender sender) {
+        return new LocationUploader(new File(folder.getRoot(), "outbox"), sender, options, RetryPolicy.DEFAULT, monitor);
+    }
+
+    private static final class FakeMonitor implements UploadPolicy.Monitor {
+
+        private volatile UploadPolicy.Conditions conditions;
+        private volatile Runnable listener;
+        volatile boolean closed;
+
+        FakeMonitor(UploadPolicy.Conditions conditions) {
+            this.conditions = conditions;
+        }
+
+        void change(UploadPolicy.Conditions conditions) {
+            this.conditions = conditions;
+            listener.run();
+        }
+
+        @Override
+        public UploadPolicy.Conditions current() {
+            return conditions;
+        }
+
+        @Override
+        public void setListener(Runnable listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
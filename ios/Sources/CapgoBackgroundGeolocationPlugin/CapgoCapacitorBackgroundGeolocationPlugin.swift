@@ -46,11 +46,15 @@ public class BackgroundGeolocation: CAPPlugin, CLLocationManagerDelegate, CAPBri
         CAPPluginMethod(name: "stop", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "openSettings", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "setPlannedRoute", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "getRouteProgress", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "setupGeofencing", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "addGeofence", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "removeGeofence", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "removeAllGeofences", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "getMonitoredGeofences", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "getRecordedSegments", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "deleteRecordedSegments", returnType: CAPPluginReturnPromise),
+        CAPPluginMethod(name: "getDiagnostics", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "checkPermissions", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "requestPermissions", returnType: CAPPluginReturnPromise),
         CAPPluginMethod(name: "getPluginVersion", returnType: CAPPluginReturnPromise)
@@ -224,6 +228,23 @@ public class BackgroundGeolocation: CAPPlugin, CLLocationManagerDelegate, CAPBri
         }
     }
 
+    // File sinks are Android-only, so nothing is ever recorded here.
+    @objc func getRecordedSegments(_ call: CAPPluginCall) {
+        call.resolve(["segments": []])
+    }
+
+    @objc func deleteRecordedSegments(_ call: CAPPluginCall) {
+        if let paths = call.getArray("paths"), !paths.isEmpty {
+            call.unimplemented("Recorded segments are only available on Android.")
+            return
+        }
+        call.resolve()
+    }
+
+    @objc func getDiagnostics(_ call: CAPPluginCall) {
+        call.unimplemented("Diagnostics are only available on Android.")
+    }
+
     @objc func openSettings(_ call: CAPPluginCall) {
         DispatchQueue.main.async {
             guard let settingsUrl = URL(
@@ -246,6 +267,10 @@ public class BackgroundGeolocation: CAPPlugin, CLLocationManagerDelegate, CAPBri
         }
     }
 
+    @objc func getRouteProgress(_ call: CAPPluginCall) {
+        call.unimplemented("Route progress is only available on Android.")
+    }
+
     @objc func setPlannedRoute(_ call: CAPPluginCall) {
         DispatchQueue.global(qos: .background).async { [weak self] in
             guard let self = self else { return }
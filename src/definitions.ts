@@ -148,9 +148,29 @@ export interface StartOptions {
    * location updates when the user terminates the app (an OS restriction — iOS
    * has no equivalent of Android's restartable foreground service).
    *
-   * Delivery is best-effort: there is no on-disk queue and no automatic retry.
-   * Failed POSTs are logged and dropped. A flaky network can delay in-flight
-   * requests, but points are not persisted across process death.
+   * On Android, every point is first appended to an on-disk outbox and then
+   * POSTed in order by a background drainer. A point is removed only after the
+   * server answered with a 2xx status, so points survive network outages and
+   * process death and are replayed when the service restarts. The outbox is
+   * capped at 10 MB; past that the oldest points are dropped. Points the server
+   * rejects as malformed (400, 413, 415, 422) are dropped so they cannot block
+   * the queue. Points still queued after `stop()` are sent on the next start
+   * with a `url`. Failed POSTs are retried with jittered exponential backoff
+   * (5 seconds up to 5 minutes). After 5 failures in a row, the plugin only
+   * probes the server every 15 minutes or so until it answers again. This state
+   * survives service restarts. A `429` or `503` response with `Retry-After`
+   * pauses delivery for that long (see {@link StartOptions.rateHintHeader}).
+   *
+   * On Android, every point also carries an `eventId` field
+   * (`<installationId>-<time>-<sequence>`) that stays the same across retries,
+   * and every POST an `Idempotency-Key` header: the `eventId` for a single
+   * point, otherwise a digest of the points in the request. Use them to drop
+   * duplicates when a response was lost after the server stored the points.
+   * Points the server already acknowledged are never sent again, even when
+   * they are replayed after a crash.
+   *
+   * On iOS, delivery is best-effort: there is no on-disk queue and no automatic
+   * retry. Failed POSTs are logged and dropped.
    *
    * @since 8.2.0
    * @example "https://api.example.com/locations"
@@ -188,6 +208,680 @@ export interface StartOptions {
    * @example 120000
    */
   minIntervalMs?: number;
+  /**
+   * Maximum number of locations sent in a single native POST.
+   *
+   * `1` (the default) keeps one JSON `Location` object per request. Any larger
+   * value switches {@link StartOptions.url} delivery to batch mode: locations
+   * are collected and POSTed together as a JSON array as soon as `batchSize`
+   * points are waiting, {@link StartOptions.batchMaxBytes} is reached, or the
+   * oldest point has waited {@link StartOptions.batchMaxDelayMs}. A partially
+   * filled batch is also sent when `stop()` is called.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 1
+   * @example 50
+   */
+  batchSize?: number;
+  /**
+   * Longest time, in milliseconds, a location may wait for its batch to fill
+   * up before it is sent anyway. Ignored unless {@link StartOptions.batchSize}
+   * is greater than 1.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 60000
+   * @example 300000
+   */
+  batchMaxDelayMs?: number;
+  /**
+   * Upper bound, in bytes, for the serialized locations of a single batch.
+   * Ignored unless {@link StartOptions.batchSize} is greater than 1.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 262144
+   * @example 65536
+   */
+  batchMaxBytes?: number;
+  /**
+   * Compresses native POST bodies sent to {@link StartOptions.url}.
+   *
+   * `"gzip"` or `"deflate"` streams the JSON body through the compressor and
+   * sets the matching `Content-Encoding` request header, so your server must
+   * accept compressed request bodies. Location JSON repeats the same keys for
+   * every point, so it compresses well, especially together with
+   * {@link StartOptions.batchSize}.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default "none"
+   * @example "gzip"
+   */
+  compression?: 'none' | 'gzip' | 'deflate';
+
+  /**
+   * Maximum number of concurrent native POSTs to the origin of
+   * {@link StartOptions.url}. Extra requests wait for a free connection
+   * instead of opening a new one. When more than one connection is allowed,
+   * location uploads leave one free so geofence transitions are sent first.
+   * When several {@link StartOptions.sinks} upload to the same origin, the
+   * limit is raised to one connection per sink plus that free one, so the
+   * sinks do not wait for each other. A limit of `1` is always kept.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 2
+   * @example 1
+   */
+  maxConnectionsPerOrigin?: number;
+
+  /**
+   * Name of a response header your server can use to slow down native
+   * location, geofence transition and route deviation POSTs, in the same
+   * format as `Retry-After` (seconds or an HTTP date).
+   *
+   * `Retry-After` is always honored on `429` and `503` responses. This header
+   * is honored on any response, so the server can ask devices to back off
+   * without failing requests. While a pause is active, new points stay in the
+   * outbox and are sent once it ends. Each device adds a fixed, per-installation
+   * share of the pause (up to 10 minutes), so a fleet does not reconnect all at
+   * once.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @example "X-Upload-Pause"
+   */
+  rateHintHeader?: string;
+
+  /**
+   * Wire format of native location POSTs sent to {@link StartOptions.url}.
+   *
+   * `"json"` sends the JSON payload described above. `"binary"` sends a compact
+   * stream with `Content-Type: application/x-capgo-location-stream`, about ten
+   * times smaller than JSON:
+   *
+   * - a 4 byte header (`CGL` and version `1`);
+   * - one record per location, prefixed by its length as a varint;
+   * - in each record: a flags varint, then time (ms), latitude and longitude
+   *   (degrees × 10⁷) as zig-zag varint deltas from the previous record;
+   * - then, when their flag is set, accuracy, altitude, altitude accuracy,
+   *   speed and bearing as zig-zag varints in hundredths of their unit;
+   * - then, when its flag is set, the `sequence` part of the point's `eventId`
+   *   as a varint.
+   *
+   * Flags: 1 accuracy, 2 altitude, 4 altitudeAccuracy, 8 speed, 16 bearing,
+   * 32 simulated, 64 sequence. Decoders should skip any bytes left at the end
+   * of a record.
+   * A binary body always carries an array of locations, whatever
+   * {@link StartOptions.batchSize} is.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default "json"
+   * @example "binary"
+   */
+  format?: 'json' | 'binary';
+
+  /**
+   * Location fields sent in native JSON POSTs to {@link StartOptions.url},
+   * in their usual order. Leaving out fields your server ignores, such as the
+   * often `null` altitude, speed and bearing, saves bytes and work for every
+   * point. `eventId` is always sent, as retries and replays are recognized by
+   * it. Binary bodies keep their own layout.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default all fields
+   * @example ['latitude', 'longitude', 'time', 'accuracy']
+   */
+  fields?: LocationField[];
+
+  /**
+   * Static JSON members added to every location of native JSON POSTs to
+   * {@link StartOptions.url}, after its fields, for example a vehicle or
+   * fleet id. It is encoded once when tracking starts. Members named like a
+   * field sent in {@link StartOptions.fields}, or `eventId`, are ignored.
+   * Binary bodies keep their own layout.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @example { vehicle: 'van-12' }
+   */
+  envelope?: Record<string, unknown>;
+
+  /**
+   * Maximum number of native locations held in memory while the upload thread
+   * is busy, for example waiting for a POST to time out. Locations move from
+   * this buffer to the on-disk outbox between two requests; once the buffer is
+   * full, {@link StartOptions.bufferPolicy} decides which ones are dropped.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 256
+   * @example 1000
+   */
+  bufferSize?: number;
+
+  /**
+   * Which locations to drop when {@link StartOptions.bufferSize} is reached:
+   *
+   * - `"drop-oldest"` drops the oldest buffered location;
+   * - `"drop-newest"` drops the new location;
+   * - `"thin"` keeps one buffered location in
+   *   {@link StartOptions.bufferThinEvery}, so the track loses detail instead
+   *   of a whole stretch;
+   * - `"first-last"` keeps the first and last location of every
+   *   {@link StartOptions.bufferWindowMs} window, and drops the oldest when
+   *   that frees nothing.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default "drop-oldest"
+   * @example "thin"
+   */
+  bufferPolicy?: 'drop-oldest' | 'drop-newest' | 'thin' | 'first-last';
+
+  /**
+   * With `bufferPolicy: "thin"`, keep one buffered location in this many when
+   * the buffer is full.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 2
+   * @example 5
+   */
+  bufferThinEvery?: number;
+
+  /**
+   * With `bufferPolicy: "first-last"`, the window of fix time, in
+   * milliseconds, whose first and last locations are kept.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 60000
+   * @example 300000
+   */
+  bufferWindowMs?: number;
+
+  /**
+   * Network native location uploads wait for. Uploads never run while the
+   * device is offline: locations stay in the outbox and are sent as soon as a
+   * network is back, instead of every POST waiting for a connect timeout.
+   * `"unmetered"` additionally holds them until the device is on an unmetered
+   * network such as Wi-Fi.
+   *
+   * Pending locations are sent regardless when `stop()` is called.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default "any"
+   * @example "unmetered"
+   */
+  uploadNetwork?: 'any' | 'unmetered';
+
+  /**
+   * Hold native location uploads until the device is charging. Locations stay
+   * in the outbox meanwhile, which drops its oldest points beyond its size
+   * limit. Pending locations are sent regardless when `stop()` is called.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default false
+   * @example true
+   */
+  uploadRequiresCharging?: boolean;
+
+  /**
+   * Additional destinations for native location delivery, next to
+   * {@link StartOptions.url}. Every location is fanned out to each sink, which
+   * has its own on-disk outbox and upload thread: a slow or unreachable sink
+   * only delays its own points, never those of `url` or the other sinks.
+   *
+   * Each sink can downsample the track on its own and has its own batching,
+   * format, buffer and upload options, for example a live dashboard fed every
+   * point and an archive fed one binary batch per minute on Wi-Fi only.
+   *
+   * A sink with `type: "file"` records the track on the device instead, see
+   * {@link BackgroundGeolocationPlugin.getRecordedSegments}. It needs no
+   * `url`, so file sinks alone keep native tracking running.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @example [{ name: 'archive', url: 'https://archive.example.com/track', minIntervalMs: 60000, format: 'binary' }]
+   */
+  sinks?: LocationSinkOptions[];
+
+  /**
+   * When set, the {@link BackgroundGeolocationPlugin.getDiagnostics} snapshot
+   * is POSTed as JSON to this url every
+   * {@link StartOptions.diagnosticsIntervalMs}, with the {@link StartOptions.headers},
+   * an `installationId` and a `time`. Best effort: a failed POST is not
+   * retried, as the next snapshot carries the same cumulative counters.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @example "https://metrics.example.com/devices"
+   */
+  diagnosticsUrl?: string;
+
+  /**
+   * Interval between two {@link StartOptions.diagnosticsUrl} POSTs, in
+   * milliseconds. At least 60000.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 900000
+   */
+  diagnosticsIntervalMs?: number;
+}
+
+/**
+ * A location field that {@link StartOptions.fields} can select.
+ *
+ * @since 8.5.0
+ */
+export type LocationField =
+  | 'latitude'
+  | 'longitude'
+  | 'accuracy'
+  | 'altitude'
+  | 'altitudeAccuracy'
+  | 'simulated'
+  | 'speed'
+  | 'bearing'
+  | 'time'
+  | 'source';
+
+/**
+ * One additional native location destination, see {@link StartOptions.sinks}.
+ *
+ * The batching, format, buffer and upload options work as their
+ * {@link StartOptions} counterparts, for this sink only.
+ * {@link StartOptions.maxConnectionsPerOrigin} is shared by all sinks and
+ * configured at the top level.
+ *
+ * @since 8.5.0
+ */
+export interface LocationSinkOptions
+  extends Pick<
+    StartOptions,
+    | 'batchSize'
+    | 'batchMaxDelayMs'
+    | 'batchMaxBytes'
+    | 'compression'
+    | 'rateHintHeader'
+    | 'format'
+    | 'fields'
+    | 'envelope'
+    | 'bufferSize'
+    | 'bufferPolicy'
+    | 'bufferThinEvery'
+    | 'bufferWindowMs'
+    | 'uploadNetwork'
+    | 'uploadRequiresCharging'
+  > {
+  /**
+   * `"http"` POSTs locations to {@link LocationSinkOptions.url}. `"file"`
+   * appends them to rolling segment files on the device: one
+   * <a href="#location">`Location`</a> JSON object per line (NDJSON) with
+   * `format: "json"`, or a binary location stream as described by
+   * {@link StartOptions.format}. A segment is closed once it reaches
+   * {@link LocationSinkOptions.maxFileBytes} or
+   * {@link LocationSinkOptions.maxFileAgeMs}; closed segments are listed by
+   * {@link BackgroundGeolocationPlugin.getRecordedSegments}.
+   *
+   * @since 8.5.0
+   * @default "http"
+   * @example "file"
+   */
+  type?: 'http' | 'file';
+
+  /**
+   * Name of the sink, unique within {@link StartOptions.sinks}. Letters,
+   * digits, `.`, `_` and `-`, up to 64 characters. Points still queued for a
+   * sink are kept under its name, so they are sent when a later `start()`
+   * configures a sink with the same name. File sinks record into a directory
+   * of that name.
+   *
+   * @since 8.5.0
+   * @default "sink-<index>"
+   * @example "archive"
+   */
+  name?: string;
+
+  /**
+   * URL the locations of this sink are POSTed to, in the same format as
+   * {@link StartOptions.url}. Required for `"http"` sinks.
+   *
+   * @since 8.5.0
+   * @example "https://archive.example.com/track"
+   */
+  url?: string;
+
+  /**
+   * Extra HTTP headers for the POSTs of this sink. Persisted like
+   * {@link StartOptions.headers}, but not changed by
+   * {@link BackgroundGeolocationPlugin.updateHeaders}.
+   *
+   * @since 8.5.0
+   */
+  headers?: Record<string, string>;
+
+  /**
+   * Minimum time, in milliseconds of location time, between two locations
+   * sent to this sink. Locations in between are skipped for this sink only.
+   *
+   * @since 8.5.0
+   * @default 0
+   * @example 60000
+   */
+  minIntervalMs?: number;
+
+  /**
+   * Minimum distance, in meters, between two locations sent to this sink.
+   * Locations in between are skipped for this sink only.
+   *
+   * @since 8.5.0
+   * @default 0
+   * @example 100
+   */
+  distanceFilter?: number;
+
+  /**
+   * File sinks: size, in bytes, at which the open segment is closed and a new
+   * one started.
+   *
+   * @since 8.5.0
+   * @default 1048576
+   */
+  maxFileBytes?: number;
+
+  /**
+   * File sinks: age, in milliseconds, at which the open segment is closed and
+   * a new one started, even while no new location arrives.
+   *
+   * @since 8.5.0
+   * @default 3600000
+   */
+  maxFileAgeMs?: number;
+
+  /**
+   * File sinks: how often, in milliseconds, recorded locations are flushed to
+   * disk with `fsync`. Writes are buffered in between, so a crash loses at most
+   * this much of the track. A segment left open by a crash is closed on the
+   * next start.
+   *
+   * @since 8.5.0
+   * @default 10000
+   */
+  syncIntervalMs?: number;
+}
+
+/**
+ * Options for {@link BackgroundGeolocationPlugin.getRecordedSegments}.
+ *
+ * @since 8.5.0
+ */
+export interface GetRecordedSegmentsOptions {
+  /**
+   * Close the open segment of every running file sink first, so the result
+   * covers every location recorded so far.
+   *
+   * @since 8.5.0
+   * @default false
+   */
+  closeCurrent?: boolean;
+}
+
+/**
+ * A closed segment of a file sink. It is never written again, so it can be
+ * read, uploaded and deleted while recording goes on.
+ *
+ * @since 8.5.0
+ */
+export interface RecordedSegment {
+  /**
+   * Name of the file sink that recorded the segment.
+   *
+   * @since 8.5.0
+   */
+  sink: string;
+
+  /**
+   * Absolute path of the segment file, for example for the Filesystem plugin.
+   *
+   * @since 8.5.0
+   */
+  path: string;
+
+  /**
+   * `"json"` for NDJSON segments, `"binary"` for binary location streams.
+   *
+   * @since 8.5.0
+   */
+  format: 'json' | 'binary';
+
+  /**
+   * Size of the segment in bytes.
+   *
+   * @since 8.5.0
+   */
+  size: number;
+
+  /**
+   * Time the segment was opened, in milliseconds since the epoch. Segments of
+   * a sink sort by it.
+   *
+   * @since 8.5.0
+   */
+  startTime: number;
+}
+
+/**
+ * Result of {@link BackgroundGeolocationPlugin.getRecordedSegments}.
+ *
+ * @since 8.5.0
+ */
+export interface RecordedSegmentsResult {
+  /**
+   * Closed segments, grouped by sink and oldest first within a sink.
+   *
+   * @since 8.5.0
+   */
+  segments: RecordedSegment[];
+}
+
+/**
+ * Options for {@link BackgroundGeolocationPlugin.deleteRecordedSegments}.
+ *
+ * @since 8.5.0
+ */
+export interface DeleteRecordedSegmentsOptions {
+  /**
+   * Paths of segments returned by
+   * {@link BackgroundGeolocationPlugin.getRecordedSegments}.
+   *
+   * @since 8.5.0
+   */
+  paths: string[];
+}
+
+/**
+ * Summary of a latency histogram, in milliseconds. Percentiles are reported as
+ * the upper bound of a power-of-two bucket, so within a factor of two; `max`
+ * is exact.
+ *
+ * @since 8.5.0
+ */
+export interface DiagnosticsHistogram {
+  /** @since 8.5.0 */
+  count: number;
+  /** @since 8.5.0 */
+  mean: number;
+  /** @since 8.5.0 */
+  p50: number;
+  /** @since 8.5.0 */
+  p90: number;
+  /** @since 8.5.0 */
+  p99: number;
+  /** @since 8.5.0 */
+  max: number;
+}
+
+/**
+ * Counters of one kind of native POST. `attempts - successes - failures` are
+ * in flight; a response outside 2xx counts as a failure.
+ *
+ * @since 8.5.0
+ */
+export interface DiagnosticsRequests {
+  /** @since 8.5.0 */
+  attempts: number;
+  /** @since 8.5.0 */
+  successes: number;
+  /** @since 8.5.0 */
+  failures: number;
+  /**
+   * Request body bytes sent, after compression.
+   *
+   * @since 8.5.0
+   */
+  bytesSent: number;
+  /** @since 8.5.0 */
+  latencyMs: DiagnosticsHistogram;
+}
+
+/**
+ * Connection slot usage of one priority lane, summed over every server.
+ *
+ * @since 8.5.0
+ */
+export interface DiagnosticsLane {
+  /** @since 8.5.0 */
+  waiting: number;
+  /** @since 8.5.0 */
+  inFlight: number;
+  /** @since 8.5.0 */
+  completed: number;
+  /** @since 8.5.0 */
+  peakWaiting: number;
+}
+
+/**
+ * Counters of one running sink: the primary `url` sink (named `"primary"`)
+ * or one of {@link StartOptions.sinks}.
+ *
+ * @since 8.5.0
+ */
+export interface DiagnosticsSink {
+  /** @since 8.5.0 */
+  name: string;
+  /** @since 8.5.0 */
+  type: 'http' | 'file';
+  /**
+   * Locations dropped by the sink's own downsampling.
+   *
+   * @since 8.5.0
+   */
+  filtered: number;
+  /**
+   * Locations shed because the in-memory buffer was full.
+   *
+   * @since 8.5.0
+   */
+  shed: number;
+  /**
+   * Locations waiting for delivery. HTTP sinks only.
+   *
+   * @since 8.5.0
+   */
+  queued?: number;
+  /**
+   * Locations the outbox dropped to stay under its size cap. HTTP sinks only.
+   *
+   * @since 8.5.0
+   */
+  dropped?: number;
+}
+
+/**
+ * Result of {@link BackgroundGeolocationPlugin.getDiagnostics}. Counters
+ * cover the app process since it started.
+ *
+ * @since 8.5.0
+ */
+export interface DiagnosticsResult {
+  /**
+   * Locations received from the system.
+   *
+   * @since 8.5.0
+   */
+  fixes: { received: number };
+  /** @since 8.5.0 */
+  locationPosts: DiagnosticsRequests;
+  /** @since 8.5.0 */
+  geofencePosts: DiagnosticsRequests;
+  /**
+   * Route deviation POSTs.
+   *
+   * @since 8.5.0
+   */
+  routeEventPosts: DiagnosticsRequests;
+  /**
+   * Runs of the geofence delivery job, and those that ended in a retry.
+   *
+   * @since 8.5.0
+   */
+  geofenceWorker: { runs: number; retries: number };
+  /**
+   * Locations waiting in all sinks, and geofence transitions waiting for
+   * delivery (-1 when unknown).
+   *
+   * @since 8.5.0
+   */
+  queueDepth: { locations: number; geofences: number };
+  /** @since 8.5.0 */
+  lanes: { high: DiagnosticsLane; bulk: DiagnosticsLane };
+  /**
+   * Times the watchdog restarted location updates after a minute without a
+   * fix.
+   *
+   * @since 8.5.0
+   */
+  watchdogRestarts: number;
+  /**
+   * Whether the wake lock is held, the total time it was held (including the
+   * current hold) and a histogram of completed holds.
+   *
+   * @since 8.5.0
+   */
+  wakeLock: { held: boolean; heldMs: number; holdMs: DiagnosticsHistogram };
+  /**
+   * Running sinks. Empty while tracking is stopped.
+   *
+   * @since 8.5.0
+   */
+  sinks: DiagnosticsSink[];
 }
 
 /**
@@ -289,10 +983,12 @@ export interface SetPlannedRouteOptions {
    * The name of the sound file to play.
    * Must be a valid sound relative path in the app's public folder to work for both web and native platforms.
    * There's no need to include the public folder in the path.
+   * Required on iOS and web. Optional on Android, where deviations are then
+   * only reported through `routeDeviation` events and native delivery.
    * @since 7.0.10
    * @example "notification.mp3"
    * */
-  soundFile: string;
+  soundFile?: string;
   /**
    * The planned route as an array of longitude and latitude pairs.
    * Each pair represents a point on the route.
@@ -312,6 +1008,279 @@ export interface SetPlannedRouteOptions {
    * @example 50
    */
   distance: number;
+
+  /**
+   * Distance to the route, in meters, within which the user is back on it
+   * after a deviation. Keep it below {@link SetPlannedRouteOptions.distance}
+   * so a location near the limit does not flap between the two states.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default half of distance
+   * @example 25
+   */
+  backOnRouteDistance?: number;
+
+  /**
+   * How long, in milliseconds, locations must agree before leaving or coming
+   * back to the route counts.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 5000
+   * @example 10000
+   */
+  deviationDurationMs?: number;
+
+  /**
+   * Locations with an accuracy radius above this many meters are ignored by
+   * deviation detection. Other locations only count as off route when their
+   * whole accuracy circle is beyond {@link SetPlannedRouteOptions.distance}.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default 100
+   * @example 50
+   */
+  maxDeviationAccuracy?: number;
+}
+
+/**
+ * Where the last location is along the route given to
+ * {@link BackgroundGeolocationPlugin.setPlannedRoute}.
+ *
+ * @since 8.5.0
+ */
+export interface RouteProgress {
+  /**
+   * Index of the matched route segment, from point `segment` to
+   * `segment + 1` of the route.
+   *
+   * @since 8.5.0
+   * @example 41
+   */
+  segment: number;
+
+  /**
+   * Latitude of the location snapped onto the route, in degrees.
+   *
+   * @since 8.5.0
+   * @example 40.7128
+   */
+  latitude: number;
+
+  /**
+   * Longitude of the location snapped onto the route, in degrees.
+   *
+   * @since 8.5.0
+   * @example -74.006
+   */
+  longitude: number;
+
+  /**
+   * Distance from the location to the route, in meters.
+   *
+   * @since 8.5.0
+   * @example 12.4
+   */
+  distanceToRoute: number;
+
+  /**
+   * Distance along the route from its first point to the snapped location,
+   * in meters.
+   *
+   * @since 8.5.0
+   * @example 1250
+   */
+  distanceTravelled: number;
+
+  /**
+   * Distance along the route from the snapped location to its last point,
+   * in meters.
+   *
+   * @since 8.5.0
+   * @example 750
+   */
+  distanceRemaining: number;
+
+  /**
+   * Length of the whole route, in meters.
+   *
+   * @since 8.5.0
+   * @example 2000
+   */
+  routeLength: number;
+
+  /**
+   * Share of the route travelled, from 0 to 100.
+   *
+   * @since 8.5.0
+   * @example 62.5
+   */
+  percentComplete: number;
+
+  /**
+   * Smoothed speed along the route, in meters per second. Taken from the
+   * locations' speed, or from the progress between locations when they have
+   * none.
+   *
+   * @since 8.5.0
+   * @example 10
+   */
+  speed?: number;
+
+  /**
+   * Seconds to the end of the route at {@link RouteProgress.speed}. Missing
+   * while the speed is unknown or the device is stopped.
+   *
+   * @since 8.5.0
+   * @example 75
+   */
+  timeRemaining?: number;
+
+  /**
+   * Estimated arrival at the end of the route, in milliseconds since the
+   * Unix epoch. Missing with {@link RouteProgress.timeRemaining}.
+   *
+   * @since 8.5.0
+   * @example 1700000075000
+   */
+  eta?: number;
+
+  /**
+   * Time of the location, in milliseconds since the Unix epoch.
+   *
+   * @since 8.5.0
+   * @example 1700000000000
+   */
+  time: number;
+}
+
+/**
+ * Result of {@link BackgroundGeolocationPlugin.getRouteProgress}.
+ *
+ * @since 8.5.0
+ */
+export interface RouteProgressResult {
+  /**
+   * Progress at the last location, missing until a location was matched to
+   * the planned route.
+   *
+   * @since 8.5.0
+   */
+  progress?: RouteProgress;
+}
+
+/**
+ * Event emitted when the user leaves the planned route or comes back to it.
+ *
+ * On Android the same JSON, with an `eventId`, is also POSTed natively to the
+ * `url` given to {@link BackgroundGeolocationPlugin.start}, with its headers,
+ * even when the WebView is gone.
+ *
+ * @since 8.5.0
+ */
+export interface RouteDeviationEvent {
+  /**
+   * Always `"routeDeviation"`, to tell these apart from locations on the
+   * native `url`.
+   *
+   * @since 8.5.0
+   */
+  event: 'routeDeviation';
+
+  /**
+   * What happened.
+   *
+   * @since 8.5.0
+   * @example "offRoute"
+   */
+  deviation: 'offRoute' | 'backOnRoute';
+
+  /**
+   * `true` when the user left the route, `false` when they came back.
+   *
+   * @since 8.5.0
+   * @example true
+   */
+  offRoute: boolean;
+
+  /**
+   * Distance from the location to the route, in meters.
+   *
+   * @since 8.5.0
+   * @example 72.5
+   */
+  distanceToRoute: number;
+
+  /**
+   * Latitude of the location that confirmed the change, in degrees.
+   *
+   * @since 8.5.0
+   * @example 40.7128
+   */
+  latitude: number;
+
+  /**
+   * Longitude of the location that confirmed the change, in degrees.
+   *
+   * @since 8.5.0
+   * @example -74.006
+   */
+  longitude: number;
+
+  /**
+   * Accuracy radius of that location, in meters, when known.
+   *
+   * @since 8.5.0
+   * @example 8
+   */
+  accuracy?: number;
+
+  /**
+   * Index of the nearest route segment.
+   *
+   * @since 8.5.0
+   * @example 41
+   */
+  segment: number;
+
+  /**
+   * Distance along the route to the point nearest to the location, in
+   * meters.
+   *
+   * @since 8.5.0
+   * @example 1250
+   */
+  distanceTravelled: number;
+
+  /**
+   * Time of the first location of the change, in milliseconds since the
+   * Unix epoch: when the user actually left or came back.
+   *
+   * @since 8.5.0
+   * @example 1700000000000
+   */
+  since: number;
+
+  /**
+   * Time of the location that confirmed the change, in milliseconds since
+   * the Unix epoch.
+   *
+   * @since 8.5.0
+   * @example 1700000005000
+   */
+  time: number;
+
+  /**
+   * Unique id of the native delivery, present when a native `url` is set.
+   *
+   * @since 8.5.0
+   */
+  eventId?: string;
 }
 
 /**
@@ -328,9 +1297,16 @@ export interface GeofenceSetupOptions {
    * Endpoint that receives geofence transition payloads.
    *
    * On Android, native background POST delivery requires `backgroundLocation: true`.
+   * Transitions are queued on disk and sent in order, retried until the server
+   * answers, and never sent again once acknowledged. Each payload carries an
+   * `eventId` field, also sent as the `Idempotency-Key` header, so the server
+   * can drop duplicates.
    *
-   * Delivery is best-effort: there is no on-disk queue and no automatic retry.
-   * Failed POSTs are logged and dropped.
+   * On iOS, delivery is best-effort: there is no on-disk queue and no automatic
+   * retry. Failed POSTs are logged and dropped.
+   *
+   * On Android, a `429` or `503` response with `Retry-After` holds back
+   * transitions until the pause is over.
    *
    * @since 8.0.30
    * @example "https://api.example.com/geofences"
@@ -407,6 +1383,20 @@ export interface GeofenceSetupOptions {
    * @example false
    */
   backgroundLocation?: boolean;
+
+  /**
+   * Compresses native transition POST bodies sent to {@link GeofenceSetupOptions.url}.
+   *
+   * `"gzip"` or `"deflate"` sets the matching `Content-Encoding` request
+   * header, so your server must accept compressed request bodies.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @default "none"
+   * @example "gzip"
+   */
+  compression?: 'none' | 'gzip' | 'deflate';
 }
 
 /**
@@ -688,6 +1678,55 @@ export interface BackgroundGeolocationPlugin {
    */
   updateHeaders(options: UpdateHeadersOptions): Promise<void>;
 
+  /**
+   * Lists the closed segments recorded by file sinks (see
+   * {@link StartOptions.sinks}), so the app can hand them to its own sync
+   * channel. Also works while tracking is stopped.
+   *
+   * Only available on Android.
+   *
+   * @param options Whether to close the open segments first
+   * @returns A promise with the closed segments
+   *
+   * @since 8.5.0
+   * @example
+   * const { segments } = await BackgroundGeolocation.getRecordedSegments({ closeCurrent: true });
+   */
+  getRecordedSegments(options?: GetRecordedSegmentsOptions): Promise<RecordedSegmentsResult>;
+
+  /**
+   * Deletes recorded segments once the app has synced them. Only closed
+   * segments returned by {@link BackgroundGeolocationPlugin.getRecordedSegments}
+   * can be deleted.
+   *
+   * Only available on Android.
+   *
+   * @param options The segments to delete
+   * @returns A promise that resolves when the segments are deleted
+   *
+   * @since 8.5.0
+   * @example
+   * await BackgroundGeolocation.deleteRecordedSegments({ paths: segments.map((segment) => segment.path) });
+   */
+  deleteRecordedSegments(options: DeleteRecordedSegmentsOptions): Promise<void>;
+
+  /**
+   * Returns delivery and pipeline counters, to find out on the device why a
+   * track has gaps: fixes received and filtered, native POST outcomes and
+   * latency, queue depths, watchdog restarts and wake lock time. See also
+   * {@link StartOptions.diagnosticsUrl}.
+   *
+   * Only available on Android.
+   *
+   * @returns A promise with the current counters
+   *
+   * @since 8.5.0
+   * @example
+   * const diagnostics = await BackgroundGeolocation.getDiagnostics();
+   * console.log(diagnostics.locationPosts.failures, diagnostics.queueDepth.locations);
+   */
+  getDiagnostics(): Promise<DiagnosticsResult>;
+
   /**
    * Opens the device's location settings page.
    * Useful for directing users to enable location services or adjust permissions.
@@ -705,6 +1744,9 @@ export interface BackgroundGeolocationPlugin {
    * Plays a sound file when the user deviates from the planned route.
    * This should be used to play a sound (in the background too, only for native).
    *
+   * On Android the route also drives `routeProgress` and `routeDeviation`
+   * events, and deviations are POSTed to the native `url`.
+   *
    * @param options The options for setting the planned route and sound file
    * @returns A promise that resolves when the route is set successfully
    *
@@ -717,6 +1759,24 @@ export interface BackgroundGeolocationPlugin {
    */
   setPlannedRoute(options: SetPlannedRouteOptions): Promise<void>;
 
+  /**
+   * Returns where the last location is along the planned route: the matched
+   * segment, the location snapped onto it, distances travelled and remaining,
+   * and a speed based ETA. The same values are sent to `routeProgress`
+   * listeners for every location.
+   *
+   * Only available on Android.
+   *
+   * @returns A promise with the progress, without it until a location was
+   * matched to the route
+   *
+   * @since 8.5.0
+   * @example
+   * const { progress } = await BackgroundGeolocation.getRouteProgress();
+   * console.log(progress?.percentComplete, progress?.timeRemaining);
+   */
+  getRouteProgress(): Promise<RouteProgressResult>;
+
   /**
    * Configures native geofence transition handling.
    *
@@ -821,6 +1881,45 @@ export interface BackgroundGeolocationPlugin {
     listenerFunc: (event: GeofenceErrorEvent) => void,
   ): Promise<PluginListenerHandle>;
 
+  /**
+   * Listens for progress along the planned route, sent for every location
+   * once {@link BackgroundGeolocationPlugin.setPlannedRoute} was called,
+   * while the WebView is alive.
+   *
+   * Only available on Android.
+   *
+   * @since 8.5.0
+   * @example
+   * const handle = await BackgroundGeolocation.addListener(
+   *   "routeProgress",
+   *   (progress) => console.log(progress.distanceRemaining, progress.eta)
+   * );
+   */
+  addListener(
+    eventName: 'routeProgress',
+    listenerFunc: (progress: RouteProgress) => void,
+  ): Promise<PluginListenerHandle>;
+
+  /**
+   * Listens for the user leaving the planned route or coming back to it,
+   * while the WebView is alive. Events sent while no listener was added are
+   * kept for the first one.
+   *
+   * Only available on Android, where deviations are also POSTed to the
+   * native `url` given to `start()`.
+   *
+   * @since 8.5.0
+   * @example
+   * const handle = await BackgroundGeolocation.addListener(
+   *   "routeDeviation",
+   *   (event) => console.log(event.deviation, event.distanceToRoute)
+   * );
+   */
+  addListener(
+    eventName: 'routeDeviation',
+    listenerFunc: (event: RouteDeviationEvent) => void,
+  ): Promise<PluginListenerHandle>;
+
   /**
    * Read current location authorization without prompting or side effects.
    *
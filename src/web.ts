@@ -13,6 +13,10 @@ import type {
   GeofenceTransitionEvent,
   BackgroundGeolocationPermissionStatus,
   UpdateHeadersOptions,
+  RecordedSegmentsResult,
+  DeleteRecordedSegmentsOptions,
+  DiagnosticsResult,
+  RouteProgressResult,
 } from './definitions';
 
 interface WebGeofence {
@@ -127,6 +131,10 @@ export class BackgroundGeolocationWeb extends WebPlugin implements BackgroundGeo
     this.distanceThreshold = options.distance || 50;
   }
 
+  async getRouteProgress(): Promise<RouteProgressResult> {
+    throw this.unimplemented('Route progress is only available on Android.');
+  }
+
   async setupGeofencing(options: GeofenceSetupOptions): Promise<void> {
     if (options.url) {
       new URL(options.url);
@@ -142,6 +150,21 @@ export class BackgroundGeolocationWeb extends WebPlugin implements BackgroundGeo
     this.geofenceHeaders = { ...(options.headers ?? {}) };
   }
 
+  // File sinks only exist on Android, so there is never anything recorded.
+  async getRecordedSegments(): Promise<RecordedSegmentsResult> {
+    return { segments: [] };
+  }
+
+  async deleteRecordedSegments(options: DeleteRecordedSegmentsOptions): Promise<void> {
+    if (options.paths.length > 0) {
+      throw this.unimplemented('Recorded segments are only available on Android.');
+    }
+  }
+
+  async getDiagnostics(): Promise<DiagnosticsResult> {
+    throw this.unimplemented('Diagnostics are only available on Android.');
+  }
+
   async addGeofence(options: AddGeofenceOptions): Promise<void> {
     if (!navigator.geolocation) {
       throw new Error('Geolocation is not supported by this browser');